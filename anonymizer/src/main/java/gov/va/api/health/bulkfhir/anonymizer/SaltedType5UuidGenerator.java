@@ -1,23 +1,96 @@
 package gov.va.api.health.bulkfhir.anonymizer;
 
-import com.fasterxml.uuid.Generators;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.UUID;
-import lombok.AllArgsConstructor;
 import lombok.Builder;
 
-@Builder
-@AllArgsConstructor
+/**
+ * Generates name based (type 5) UUIDs from `saltKey:resource:identifier` in the namespace of the
+ * seed UUID.
+ *
+ * <p>The namespace and the `saltKey:resource:` prefix are the same for every identifier, so they
+ * are hashed once when the generator is created. Each identifier only clones that digest and hashes
+ * its own bytes. Generators are thread safe and are meant to be created once and reused.
+ */
 public class SaltedType5UuidGenerator implements AnonymizedIdGenerator {
 
-  private final String saltKey;
+  private static final String SHA_1 = "SHA-1";
+
+  /** The namespace UUID followed by `saltKey:resource:`. */
+  private final byte[] prefixBytes;
+
+  /** A digest of the prefix bytes, or null if the digest cannot be cloned. */
+  private final MessageDigest prefix;
 
-  private final String resource;
+  /** Create a generator, hashing the namespace and prefix common to every identifier. */
+  @Builder
+  public SaltedType5UuidGenerator(String saltKey, String resource, String seed) {
+    UUID namespace = UUID.fromString(seed);
+    byte[] salt = (saltKey + ":" + resource + ":").getBytes(UTF_8);
+    this.prefixBytes =
+        ByteBuffer.allocate(16 + salt.length)
+            .putLong(namespace.getMostSignificantBits())
+            .putLong(namespace.getLeastSignificantBits())
+            .put(salt)
+            .array();
+    MessageDigest digest = sha1();
+    digest.update(prefixBytes);
+    this.prefix = cloneOf(digest);
+  }
 
-  private final String seed;
+  private static MessageDigest cloneOf(MessageDigest digest) {
+    try {
+      return (MessageDigest) digest.clone();
+    } catch (CloneNotSupportedException e) {
+      return null;
+    }
+  }
+
+  private static MessageDigest sha1() {
+    try {
+      return MessageDigest.getInstance(SHA_1);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-1 is required for type 5 UUIDs", e);
+    }
+  }
+
+  /** Set the version and variant bits as described in RFC 4122. */
+  private static UUID type5UuidOf(byte[] hash) {
+    long msb = 0;
+    long lsb = 0;
+    for (int i = 0; i < 8; i++) {
+      msb = (msb << 8) | (hash[i] & 0xff);
+    }
+    for (int i = 8; i < 16; i++) {
+      lsb = (lsb << 8) | (hash[i] & 0xff);
+    }
+    msb = (msb & ~0xF000L) | 0x5000L;
+    lsb = (lsb & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+    return new UUID(msb, lsb);
+  }
 
   @Override
   public String generateIdFrom(String identifier) {
-    String combinedString = saltKey + ":" + resource + ":" + identifier;
-    return Generators.nameBasedGenerator(UUID.fromString(seed)).generate(combinedString).toString();
+    MessageDigest digest = startDigest();
+    digest.update(identifier.getBytes(UTF_8));
+    return type5UuidOf(digest.digest()).toString();
+  }
+
+  /**
+   * A digest that has already been given the namespace and prefix. Cloning is supported by the
+   * standard SHA-1 implementation, but a provider that doesn't support it falls back to replaying
+   * the prefix.
+   */
+  private MessageDigest startDigest() {
+    MessageDigest digest = prefix == null ? null : cloneOf(prefix);
+    if (digest == null) {
+      digest = sha1();
+      digest.update(prefixBytes);
+    }
+    return digest;
   }
 }
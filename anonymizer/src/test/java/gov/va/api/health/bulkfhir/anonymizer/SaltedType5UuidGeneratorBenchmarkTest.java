@@ -0,0 +1,66 @@
+package gov.va.api.health.bulkfhir.anonymizer;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.fasterxml.uuid.Generators;
+import java.util.UUID;
+import java.util.function.Function;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+/**
+ * A rough microbenchmark comparing the per ID cost of the generator to building a name based
+ * generator and salted string for every ID. The costs are logged, not asserted, since timings
+ * depend on the machine. It is slow and only runs when requested, e.g.
+ *
+ * <pre>mvn test -pl anonymizer -Dtest=SaltedType5UuidGeneratorBenchmarkTest -Dbenchmark=true</pre>
+ */
+@Slf4j
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+public class SaltedType5UuidGeneratorBenchmarkTest {
+
+  private static final String SALT = "SALTYBRAH";
+
+  private static final String SEED = "3e7636e4-6e18-58df-8ee8-69f4d9770c3e";
+
+  private static final int WARMUP = 200_000;
+
+  private static final int ITERATIONS = 1_000_000;
+
+  /** Log the per ID cost of the generator, and return a checksum of the IDs it generated. */
+  private static long timeIds(String name, Function<String, String> generator) {
+    /* Accumulate something from every ID so the JIT cannot skip the work. */
+    long blackhole = 0;
+    for (int i = 0; i < WARMUP; i++) {
+      blackhole += generator.apply(icn(i)).hashCode();
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      blackhole += generator.apply(icn(i)).hashCode();
+    }
+    long nanos = (System.nanoTime() - start) / ITERATIONS;
+    log.info("{}: {} ns per id ({})", name, nanos, blackhole);
+    return blackhole;
+  }
+
+  private static String icn(int i) {
+    return "1011" + i + "V" + i;
+  }
+
+  @Test
+  void perIdCost() {
+    long originalIds =
+        timeIds(
+            "Generator per ID",
+            id ->
+                Generators.nameBasedGenerator(UUID.fromString(SEED))
+                    .generate(SALT + ":Patient:" + id)
+                    .toString());
+    AnonymizedIdGenerator generator =
+        SaltedType5UuidGenerator.builder().saltKey(SALT).resource("Patient").seed(SEED).build();
+    long reusedIds = timeIds("Reused generator", generator::generateIdFrom);
+    /* Both generated the same IDs, so the timings compare the same work. */
+    assertThat(reusedIds).isEqualTo(originalIds);
+  }
+}
@@ -2,6 +2,11 @@ package gov.va.api.health.bulkfhir.anonymizer;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
+import com.fasterxml.uuid.Generators;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import org.junit.jupiter.api.Test;
 
 public class SaltedType5UuidGeneratorTest {
@@ -17,6 +22,31 @@ public class SaltedType5UuidGeneratorTest {
     assertThat(firstGeneratedUuid).isNotEqualTo(secondGeneratedUuid);
   }
 
+  @Test
+  void generatorIsThreadSafe() {
+    AnonymizedIdGenerator generator = idGenerator("Patient");
+    List<String> icns =
+        IntStream.range(0, 10_000).mapToObj(i -> i + "V" + i).collect(Collectors.toList());
+    List<String> sequential =
+        icns.stream().map(generator::generateIdFrom).collect(Collectors.toList());
+    List<String> parallel =
+        icns.parallelStream().map(generator::generateIdFrom).collect(Collectors.toList());
+    assertThat(parallel).isEqualTo(sequential);
+  }
+
+  @Test
+  void generatorMatchesNameBasedGenerator() {
+    String seed = "3e7636e4-6e18-58df-8ee8-69f4d9770c3e";
+    var reference = Generators.nameBasedGenerator(UUID.fromString(seed));
+    AnonymizedIdGenerator generator = idGenerator("Patient");
+    List<String> icns =
+        List.of("12345V67890", "", "1011537977V693883", "\u00fcn\u00efc\u00f8d\u00e9", "a:b:c");
+    for (String icn : icns) {
+      assertThat(generator.generateIdFrom(icn))
+          .isEqualTo(reference.generate("SALTYBRAH:Patient:" + icn).toString());
+    }
+  }
+
   SaltedType5UuidGenerator idGenerator(String resource) {
     return SaltedType5UuidGenerator.builder()
         .resource(resource)
@@ -3,5 +3,6 @@ package gov.va.api.health.bulkfhir.api.internal;
 public enum BuildStatus {
   NOT_STARTED,
   IN_PROGRESS,
-  COMPLETE
+  COMPLETE,
+  FAILED
 }
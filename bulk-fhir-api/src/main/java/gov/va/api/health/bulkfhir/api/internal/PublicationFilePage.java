@@ -0,0 +1,24 @@
+package gov.va.api.health.bulkfhir.api.internal;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import gov.va.api.health.bulkfhir.api.internal.PublicationStatus.FileStatus;
+import java.util.List;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Pattern;
+import lombok.Builder;
+import lombok.Value;
+
+/** A page of the status of the files of a publication, in file name order. */
+@Value
+@Builder
+@JsonAutoDetect(fieldVisibility = JsonAutoDetect.Visibility.ANY)
+public class PublicationFilePage {
+  @NotNull
+  @Pattern(regexp = "[-A-Za-z0-9]{8,64}")
+  String publicationId;
+
+  @NotNull List<FileStatus> files;
+
+  /** The cursor to request the next page with, or null if this is the last page. */
+  String next;
+}
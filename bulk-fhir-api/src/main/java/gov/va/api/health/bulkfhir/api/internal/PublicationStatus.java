@@ -51,5 +51,10 @@ public class PublicationStatus {
     @NotBlank
     @Max(64)
     String buildProcessorId;
+
+    @Min(0)
+    int buildAttempts;
+
+    Instant lastFailureTime;
   }
 }
@@ -0,0 +1,51 @@
+package gov.va.api.health.bulkfhir.api.internal;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import java.time.Instant;
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
+import javax.validation.constraints.NotNull;
+import javax.validation.constraints.Pattern;
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * The status of a publication without the status of each file, for checking on progress cheaply.
+ */
+@Value
+@Builder
+@JsonAutoDetect(fieldVisibility = JsonAutoDetect.Visibility.ANY)
+public class PublicationSummary {
+  @NotNull
+  @Pattern(regexp = "[-A-Za-z0-9]{8,64}")
+  String publicationId;
+
+  @Min(1)
+  @Max(500_000)
+  int recordsPerFile;
+
+  @NotNull Instant creationDate;
+
+  @NotNull BuildStatus overallStatus;
+
+  @Min(1)
+  int files;
+
+  @Min(0)
+  int notStarted;
+
+  @Min(0)
+  int inProgress;
+
+  @Min(0)
+  int complete;
+
+  @Min(0)
+  int failed;
+
+  /** When the first file started building, or null if none has. */
+  Instant firstBuildStartTime;
+
+  /** When the last file finished building, or null if none has. */
+  Instant lastBuildCompleteTime;
+}
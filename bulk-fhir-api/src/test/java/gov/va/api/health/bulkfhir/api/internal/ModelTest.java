@@ -31,6 +31,27 @@ public class ModelTest {
             .build());
   }
 
+  @Test
+  void publicationFilePage() {
+    var now = Instant.now();
+    roundTrip(
+        PublicationFilePage.builder()
+            .publicationId("HokeyPokey123")
+            .files(
+                List.of(
+                    FileStatus.builder()
+                        .fileId("f1")
+                        .firstRecord(0)
+                        .lastRecord(99)
+                        .buildStartTime(now.minus(23, HOURS))
+                        .buildCompleteTime(now.minus(22, HOURS))
+                        .status(BuildStatus.COMPLETE)
+                        .buildProcessorId("incredible-bulk-1")
+                        .build()))
+            .next("f1")
+            .build());
+  }
+
   @Test
   void publicationRequest() {
     roundTrip(
@@ -73,10 +94,40 @@ public class ModelTest {
                         .buildCompleteTime(null)
                         .status(BuildStatus.NOT_STARTED)
                         .buildProcessorId(null)
+                        .build(),
+                    FileStatus.builder()
+                        .fileId("f4")
+                        .firstRecord(300)
+                        .lastRecord(399)
+                        .buildStartTime(null)
+                        .buildCompleteTime(null)
+                        .status(BuildStatus.FAILED)
+                        .buildProcessorId("incredible-bulk-1")
+                        .buildAttempts(5)
+                        .lastFailureTime(now.minus(1, HOURS))
                         .build()))
             .build());
   }
 
+  @Test
+  void publicationSummary() {
+    var now = Instant.now();
+    roundTrip(
+        PublicationSummary.builder()
+            .publicationId("HokeyPokey123")
+            .recordsPerFile(100)
+            .creationDate(now.minus(24, HOURS))
+            .overallStatus(BuildStatus.IN_PROGRESS)
+            .files(4)
+            .notStarted(1)
+            .inProgress(1)
+            .complete(1)
+            .failed(1)
+            .firstBuildStartTime(now.minus(23, HOURS))
+            .lastBuildCompleteTime(now.minus(22, HOURS))
+            .build());
+  }
+
   @SneakyThrows
   private <T> void roundTrip(T object) {
     ObjectMapper mapper = new JacksonConfig().objectMapper();
@@ -1,18 +1,116 @@
 package gov.va.api.health.bulkfhir.service.config;
 
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.scheduling.annotation.EnableAsync;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 
+/**
+ * Executors for building files. By default, builds and Data Query fetches run on small fixed
+ * pools. With `bulk.build.executor=thread-per-task`, every build and fetch gets its own thread
+ * instead, and concurrency is bounded by the Data Query and S3 request limits
+ * (`dataquery.max-concurrent-requests` and `aws.s3.max-concurrent-uploads`) rather than by pool
+ * size. Nothing else bounds the number of threads in that mode, so the application does not start
+ * unless the limits are set.
+ */
+@Slf4j
 @Configuration
 @EnableAsync
 public class AsyncConfig {
   public static final String PUBLICATION_BUILD_EXECUTOR = "publicationBuildExecutor";
 
+  public static final String DATA_QUERY_FETCH_EXECUTOR = "dataQueryFetchExecutor";
+
+  private static final String BUILD_EXECUTOR_MODE = "bulk.build.executor";
+
+  /**
+   * Fail unless the requests that tasks wait on are limited, because every task has a thread and
+   * nothing else bounds how many there are. Uploads only need a limit if files go to S3.
+   */
+  private static void requireRequestLimits(
+      int maxConcurrentRequests, int maxConcurrentUploads, String fileWriter) {
+    if (maxConcurrentRequests <= 0) {
+      throw new IllegalStateException(
+          BUILD_EXECUTOR_MODE + "=thread-per-task requires dataquery.max-concurrent-requests");
+    }
+    if ("s3".equals(fileWriter) && maxConcurrentUploads <= 0) {
+      throw new IllegalStateException(
+          BUILD_EXECUTOR_MODE + "=thread-per-task requires aws.s3.max-concurrent-uploads");
+    }
+  }
+
+  /**
+   * An executor that starts a new thread for every task. Virtual threads are used when the runtime
+   * provides them, since builds spend nearly all their time waiting on Data Query and S3. Otherwise
+   * platform threads are cached and reused, which costs far more per waiting task.
+   */
+  private static ExecutorService threadPerTask(String threadNamePrefix) {
+    try {
+      ExecutorService executor =
+          (ExecutorService)
+              Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      log.info("{} tasks will run on virtual threads", threadNamePrefix);
+      return executor;
+    } catch (ReflectiveOperationException e) {
+      log.warn(
+          "{} tasks will run on cached platform threads, virtual threads are not available",
+          threadNamePrefix);
+      CustomizableThreadFactory threads = new CustomizableThreadFactory(threadNamePrefix);
+      threads.setDaemon(true);
+      return Executors.newCachedThreadPool(threads);
+    }
+  }
+
+  /**
+   * Provides an executor for fetching parts of a file from Data Query in parallel. It is shared by
+   * every file being built, so its size caps the number of concurrent Data Query requests.
+   */
+  @Bean(name = DATA_QUERY_FETCH_EXECUTOR)
+  @ConditionalOnProperty(name = BUILD_EXECUTOR_MODE, havingValue = "pooled", matchIfMissing = true)
+  public Executor dataQueryFetchExecutor(@Value("${bulk.file.fetch.threads:8}") int threads) {
+    ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+    executor.setCorePoolSize(threads);
+    executor.setMaxPoolSize(threads);
+    executor.setThreadNamePrefix("Data-Query-Fetch-");
+    executor.initialize();
+    return executor;
+  }
+
+  /** Provides a thread per fetch. Data Query requests are limited by the client instead. */
+  @Bean(name = DATA_QUERY_FETCH_EXECUTOR, destroyMethod = "shutdown")
+  @ConditionalOnProperty(name = BUILD_EXECUTOR_MODE, havingValue = "thread-per-task")
+  public ExecutorService threadPerTaskFetchExecutor(
+      @Value("${dataquery.max-concurrent-requests:0}") int maxConcurrentRequests,
+      @Value("${aws.s3.max-concurrent-uploads:0}") int maxConcurrentUploads,
+      @Value("${bulk.file.writer:s3}") String fileWriter) {
+    requireRequestLimits(maxConcurrentRequests, maxConcurrentUploads, fileWriter);
+    return threadPerTask("Data-Query-Fetch-");
+  }
+
+  /**
+   * Provides a thread per file build, so builds are never queued behind each other. Data Query
+   * requests and S3 uploads are limited by their clients instead.
+   */
+  @Bean(name = PUBLICATION_BUILD_EXECUTOR, destroyMethod = "shutdown")
+  @ConditionalOnProperty(name = BUILD_EXECUTOR_MODE, havingValue = "thread-per-task")
+  public ExecutorService threadPerTaskBuildExecutor(
+      @Value("${dataquery.max-concurrent-requests:0}") int maxConcurrentRequests,
+      @Value("${aws.s3.max-concurrent-uploads:0}") int maxConcurrentUploads,
+      @Value("${bulk.file.writer:s3}") String fileWriter) {
+    requireRequestLimits(maxConcurrentRequests, maxConcurrentUploads, fileWriter);
+    return threadPerTask("Publication-Build-");
+  }
+
   /** Provides an execute that will be used for File Building only. */
   @Bean(name = PUBLICATION_BUILD_EXECUTOR)
+  @ConditionalOnProperty(name = BUILD_EXECUTOR_MODE, havingValue = "pooled", matchIfMissing = true)
   public Executor taskExecutor() {
     ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
     executor.setCorePoolSize(3);
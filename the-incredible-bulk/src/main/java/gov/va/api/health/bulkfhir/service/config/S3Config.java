@@ -0,0 +1,28 @@
+package gov.va.api.health.bulkfhir.service.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3Client;
+
+@Configuration
+@ConditionalOnProperty(name = "bulk.file.writer", havingValue = "s3", matchIfMissing = true)
+public class S3Config {
+
+  /**
+   * Provides the S3 client shared by all file uploads. The connection pool bounds the number of
+   * concurrent requests this application will make to S3.
+   */
+  @Bean(destroyMethod = "close")
+  public S3Client s3Client(
+      @Value("${aws.region}") String awsRegion,
+      @Value("${aws.s3.max-connections:50}") int maxConnections) {
+    return S3Client.builder()
+        .region(Region.of(awsRegion))
+        .httpClientBuilder(ApacheHttpClient.builder().maxConnections(maxConnections))
+        .build();
+  }
+}
@@ -0,0 +1,56 @@
+package gov.va.api.health.bulkfhir.service.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+/**
+ * Runs streamed responses, such as the bulk status manifest of a publication that is still being
+ * built, on a bounded pool. The application defines its own executors, so Spring Boot does not
+ * provide one for MVC, which would otherwise start a new thread for every streamed response.
+ */
+@Configuration
+public class WebMvcAsyncConfig implements WebMvcConfigurer {
+
+  public static final String STREAMING_RESPONSE_EXECUTOR = "streamingResponseExecutor";
+
+  private final ThreadPoolTaskExecutor executor;
+
+  private final long timeoutMillis;
+
+  /**
+   * Spring constructor that allows customization from application properties.
+   *
+   * @param threads The most responses streamed at once
+   * @param queueCapacity The most responses waiting for a thread, beyond which they are rejected
+   * @param timeoutMillis How long a response may take to stream, or 0 for the server's default
+   */
+  public WebMvcAsyncConfig(
+      @Value("${bulk.status.stream.threads:8}") int threads,
+      @Value("${bulk.status.stream.queue-capacity:100}") int queueCapacity,
+      @Value("${bulk.status.stream.timeout-millis:0}") long timeoutMillis) {
+    executor = new ThreadPoolTaskExecutor();
+    executor.setCorePoolSize(Math.max(1, threads));
+    executor.setMaxPoolSize(Math.max(1, threads));
+    executor.setQueueCapacity(Math.max(0, queueCapacity));
+    executor.setThreadNamePrefix("Streaming-Response-");
+    this.timeoutMillis = timeoutMillis;
+  }
+
+  @Override
+  public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+    configurer.setTaskExecutor(executor);
+    if (timeoutMillis > 0) {
+      configurer.setDefaultTimeout(timeoutMillis);
+    }
+  }
+
+  /** Provides the executor that streamed responses are written on. */
+  @Bean(name = STREAMING_RESPONSE_EXECUTOR)
+  public ThreadPoolTaskExecutor streamingResponseExecutor() {
+    return executor;
+  }
+}
@@ -0,0 +1,78 @@
+package gov.va.api.health.bulkfhir.service.controller;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import gov.va.api.health.bulkfhir.service.filebuilder.NdjsonContent;
+import gov.va.api.health.dstu2.api.resources.Resource;
+import java.io.ByteArrayOutputStream;
+import java.util.Iterator;
+import java.util.stream.Stream;
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Serializes resources directly to UTF-8 JSON bytes with a writer prepared once for the resource
+ * type. Unlike {@link JsonStringConverter}, no String is created for each record.
+ */
+@Slf4j
+public class NdjsonSerializer<T extends Resource> {
+
+  private final ObjectWriter writer;
+
+  /** Prepare a writer for the resource type. */
+  @Builder
+  public NdjsonSerializer(ObjectMapper jacksonMapper, Class<T> resourceType) {
+    /* Records are written to an in-memory buffer, so there is nothing to flush after each. */
+    this.writer =
+        jacksonMapper.writerFor(resourceType).without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+  }
+
+  /**
+   * Content that serializes each resource into a buffer reused for every record and copies it to
+   * the output. As with {@link JsonStringConverter}, null resources are skipped and a resource that
+   * cannot be serialized is logged and dropped, leaving nothing partial in the output.
+   */
+  public NdjsonContent content(Stream<? extends T> resources) {
+    return out -> {
+      ByteArrayOutputStream record = new ByteArrayOutputStream();
+      Iterator<? extends T> iterator = resources.iterator();
+      boolean first = true;
+      while (iterator.hasNext()) {
+        T resource = iterator.next();
+        if (resource == null) {
+          continue;
+        }
+        record.reset();
+        try {
+          writer.writeValue(record, resource);
+        } catch (JsonProcessingException e) {
+          log.error("Failed to JSONify resource: {}", resource, e);
+          continue;
+        }
+        if (!first) {
+          out.write(NdjsonContent.NEWLINE);
+        }
+        record.writeTo(out);
+        first = false;
+      }
+    };
+  }
+
+  /**
+   * Serialize one resource for a stage that hands records to a writer later. As with {@link
+   * JsonStringConverter}, a resource that cannot be serialized is logged and null is returned.
+   */
+  public byte[] toBytes(T resource) {
+    if (resource == null) {
+      return null;
+    }
+    try {
+      return writer.writeValueAsBytes(resource);
+    } catch (JsonProcessingException e) {
+      log.error("Failed to JSONify resource: {}", resource, e);
+      return null;
+    }
+  }
+}
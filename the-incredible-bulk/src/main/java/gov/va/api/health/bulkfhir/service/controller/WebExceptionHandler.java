@@ -7,7 +7,9 @@ import javax.servlet.http.HttpServletRequest;
 import javax.validation.ConstraintViolationException;
 import lombok.AllArgsConstructor;
 import lombok.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
 import org.springframework.validation.BindException;
 import org.springframework.web.bind.MethodArgumentNotValidException;
 import org.springframework.web.bind.UnsatisfiedServletRequestParameterException;
@@ -40,6 +42,15 @@ public class WebExceptionHandler {
     return ErrorMessage.of(e.getMessage());
   }
 
+  /** Ask the caller to come back later, or try another instance. */
+  @ExceptionHandler(FileBuilderExceptions.BuildCapacityExceeded.class)
+  public ResponseEntity<ErrorMessage> handleBuildCapacityExceeded(
+      FileBuilderExceptions.BuildCapacityExceeded e) {
+    return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+        .header(HttpHeaders.RETRY_AFTER, Long.toString(e.retryAfter().toSeconds()))
+        .body(ErrorMessage.of(e.getMessage()));
+  }
+
   @ExceptionHandler({
     HttpClientErrorException.NotFound.class,
     PublicationExceptions.PublicationNotFound.class,
@@ -1,22 +1,24 @@
 package gov.va.api.health.bulkfhir.service.controller.bulkstatus;
 
 import gov.va.api.health.autoconfig.logging.Loggable;
-import gov.va.api.health.bulkfhir.api.bulkstatus.PublicationFileStatusResponse;
+import gov.va.api.health.bulkfhir.service.controller.bulkstatus.ManifestCache.Manifest;
 import gov.va.api.health.bulkfhir.service.status.StatusEntity;
 import gov.va.api.health.bulkfhir.service.status.StatusRepository;
+import gov.va.api.health.bulkfhir.service.status.StatusSummary;
 import gov.va.api.health.ids.api.IdentityService;
 import gov.va.api.health.ids.api.IdentityService.LookupFailed;
 import gov.va.api.health.ids.api.ResourceIdentity;
 import gov.va.api.health.ids.client.IdEncoder.BadId;
-import java.time.Instant;
 import java.util.List;
 import java.util.Optional;
-import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
 import lombok.Builder;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.GetMapping;
@@ -42,44 +44,48 @@ public class BulkStatusController {
 
   private final String bulkBaseUrl;
 
-  private final String bulkFileBaseUrl;
-
   private final IdentityService identityService;
 
+  private final PublicationManifests manifests;
+
+  private final ManifestCache cache;
+
+  private final CacheControl completedCacheControl;
+
+  /** Spring constructor that allows customization from application properties. */
   @Builder
   BulkStatusController(
       @Value("${incrediblebulk.public-url}") String bulkBaseUrl,
-      @Value("${incrediblebulk.public-bulk-file-path}") String bulkFileUrlPath,
       @Autowired StatusRepository repository,
-      @Autowired IdentityService identityService) {
+      @Autowired IdentityService identityService,
+      @Autowired PublicationManifests manifests) {
     this.bulkBaseUrl = bulkBaseUrl;
-    this.bulkFileBaseUrl = bulkBaseUrl + bulkFileUrlPath;
     this.repository = repository;
     this.identityService = identityService;
+    this.manifests = manifests;
+    this.cache = manifests.cache();
+    /* The manifest is only served to clients with an access token. */
+    this.completedCacheControl =
+        CacheControl.maxAge(cache.expiry().getSeconds(), TimeUnit.SECONDS).cachePrivate();
   }
 
   /**
-   * Convert the list of publication file status objects to output FileLocations.
-   *
-   * @param fileStatuses The file statuses to convert
-   * @return A list of FileLocation with the appropriate fully qualified URL to the file.
+   * Respond with the manifest of a completed publication, or that it has not changed if the client
+   * already has it. The manifest is already in memory, so it is written by the request thread
+   * instead of being streamed from an async dispatch.
    */
-  private List<PublicationFileStatusResponse.FileLocation> createFileOutputList(
-      List<StatusEntity> fileStatuses) {
-    return fileStatuses.stream()
-        .map(
-            (file) ->
-                PublicationFileStatusResponse.FileLocation.builder()
-                    .type("Patient")
-                    .url(
-                        bulkFileBaseUrl
-                            + "/"
-                            + file.publicationId()
-                            + "/"
-                            + file.fileName()
-                            + ".ndjson")
-                    .build())
-        .collect(Collectors.toList());
+  private ResponseEntity<byte[]> completed(Manifest manifest, String ifNoneMatch) {
+    if (manifest.matches(ifNoneMatch)) {
+      return ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+          .eTag(manifest.eTag())
+          .cacheControl(completedCacheControl)
+          .build();
+    }
+    return ResponseEntity.ok()
+        .eTag(manifest.eTag())
+        .cacheControl(completedCacheControl)
+        .contentType(MediaType.APPLICATION_JSON)
+        .body(manifest.json());
   }
 
   /**
@@ -102,55 +108,71 @@ public class BulkStatusController {
   }
 
   /**
-   * Build and return the bulk status response.
+   * Build and return the bulk status response. The files are streamed to the response a page at a
+   * time, once the first page shows that the publication exists.
+   *
+   * <p>The manifest of a completed publication does not change, so it is kept in memory and served
+   * with an entity tag that clients may use to ask whether it has changed. It is read from the
+   * manifest stored when the publication completed, or rendered if there is none. It is forgotten
+   * when a file of the publication is rebuilt or the publication is deleted.
    *
    * @param publicationRequestString The encoded publication request containing the original
    *     kick-off request and the publication id to retrieve
+   * @param ifNoneMatch The entity tags of the manifests the client already has, if any
    * @return The publication file status with a link to all of the relevant files
    */
   @GetMapping(path = "{id}")
-  public ResponseEntity<PublicationFileStatusResponse> getBulkStatus(
+  public ResponseEntity<?> getBulkStatus(
       @RequestHeader("Accept") String acceptHeader,
-      @PathVariable("id") String publicationRequestString) {
+      @PathVariable("id") String publicationRequestString,
+      @RequestHeader(name = "If-None-Match", required = false) String ifNoneMatch) {
     if (!VALID_ACCEPT_HEADER_VALUES.contains(acceptHeader)) {
       log.info("Invalid Accept header received for bulk status request");
       return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
     }
+    Optional<Manifest> cached = cache.get(publicationRequestString);
+    if (cached.isPresent()) {
+      return completed(cached.get(), ifNoneMatch);
+    }
 
+    long generation = cache.generation();
     ResourceIdentity publicationRequest = decodePublicationRequest(publicationRequestString);
     if (publicationRequest == null) {
       return new ResponseEntity<>(HttpStatus.NOT_FOUND);
     }
-    List<StatusEntity> fileStatuses =
-        repository.findByPublicationId(publicationRequest.identifier());
-    if (fileStatuses == null || fileStatuses.isEmpty()) {
+    String publicationId = publicationRequest.identifier();
+    String request = bulkBaseUrl + publicationRequest.resource();
+    Optional<byte[]> stored = manifests.stored(publicationId, request);
+    if (stored.isPresent()) {
+      return completed(
+          cache.put(publicationRequestString, publicationId, stored.get(), generation),
+          ifNoneMatch);
+    }
+    Optional<StreamingManifest<StatusEntity>> manifest =
+        manifests.manifestOf(publicationId, request);
+    if (!manifest.isPresent()) {
       /*
        * No statuses were found for the given publication id
        */
-      log.info("No publication data found for publication {}", publicationRequest.identifier());
+      log.info("No publication data found for publication {}", publicationId);
       return new ResponseEntity<>(HttpStatus.NOT_FOUND);
     }
-    List<PublicationFileStatusResponse.FileLocation> outputFiles =
-        createFileOutputList(fileStatuses);
-    /*
-     * Pull out the first status entity to use for the boiler plate information of the response
-     */
-    StatusEntity firstStatusEntity = fileStatuses.get(0);
-    return ResponseEntity.ok(
-        PublicationFileStatusResponse.builder()
-            .requiresAccessToken(true)
-            .request(bulkBaseUrl + publicationRequest.resource())
-            .transactionTime(Instant.ofEpochMilli(firstStatusEntity.publicationEpoch()))
-            .output(outputFiles)
-            /* Error is required, but will remain empty */
-            .error(List.of())
-            .extension(
-                Optional.of(
-                    PublicationFileStatusResponse.Extension.builder()
-                        .creationDate(Instant.ofEpochMilli(firstStatusEntity.publicationEpoch()))
-                        .id(firstStatusEntity.publicationId())
-                        .recordsPerFile(firstStatusEntity.recordsPerFile())
-                        .build()))
-            .build());
+    if (isComplete(publicationId)) {
+      byte[] json = manifests.render(manifest.get());
+      return completed(
+          cache.put(publicationRequestString, publicationId, json, generation), ifNoneMatch);
+    }
+    /* Files are still being built, so the manifest may be different next time. */
+    return ResponseEntity.ok()
+        .cacheControl(CacheControl.noCache())
+        .contentType(MediaType.APPLICATION_JSON)
+        .body(manifest.get());
+  }
+
+  private boolean isComplete(String publicationId) {
+    return repository
+        .findSummaryByPublicationId(publicationId)
+        .map(StatusSummary::allComplete)
+        .orElse(false);
   }
 }
@@ -0,0 +1,127 @@
+package gov.va.api.health.bulkfhir.service.controller.bulkstatus;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import lombok.Builder;
+import lombok.Value;
+import org.springframework.util.DigestUtils;
+
+/**
+ * The rendered manifests of completed publications, by the encoded publication request they were
+ * requested with. The least recently used manifest is dropped once the cache is full.
+ *
+ * <p>A completed publication only changes if one of its files is rebuilt or it is deleted. Changes
+ * made by this instance evict its manifests right away. Changes made by other instances are seen
+ * once the manifests expire, so the expiry bounds how stale a manifest can be across the cluster.
+ */
+class ManifestCache {
+
+  private final int maxEntries;
+
+  private final Duration expiry;
+
+  private final long expiryNanos;
+
+  /** Incremented whenever manifests are evicted, so a manifest that raced it is not cached. */
+  private long generation;
+
+  private final LinkedHashMap<String, Manifest> manifests;
+
+  @Builder
+  ManifestCache(int maxEntries, Duration expiry) {
+    this.maxEntries = Math.max(0, maxEntries);
+    this.expiry = expiry == null || expiry.isNegative() ? Duration.ZERO : expiry;
+    this.expiryNanos = this.expiry.toNanos();
+    this.manifests =
+        new LinkedHashMap<>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, Manifest> eldest) {
+            return size() > ManifestCache.this.maxEntries;
+          }
+        };
+  }
+
+  /** Drop the manifests of the publication, because a file is being rebuilt or it is gone. */
+  synchronized void evict(String publicationId) {
+    generation++;
+    manifests.values().removeIf(manifest -> manifest.publicationId().equals(publicationId));
+  }
+
+  /** How long manifests are kept. */
+  Duration expiry() {
+    return expiry;
+  }
+
+  private boolean enabled() {
+    return maxEntries > 0 && expiryNanos > 0;
+  }
+
+  /** The cached manifest for the publication request, unless it was never cached or expired. */
+  synchronized Optional<Manifest> get(String publicationRequest) {
+    if (!enabled()) {
+      return Optional.empty();
+    }
+    Manifest manifest = manifests.get(publicationRequest);
+    if (manifest == null) {
+      return Optional.empty();
+    }
+    if (System.nanoTime() - manifest.cachedNanos() >= expiryNanos) {
+      manifests.remove(publicationRequest);
+      return Optional.empty();
+    }
+    return Optional.of(manifest);
+  }
+
+  /** The current generation, to be read before the manifest to be cached is. */
+  synchronized long generation() {
+    return generation;
+  }
+
+  /**
+   * Cache the manifest of a completed publication, and return it with its entity tag. The manifest
+   * is not cached if any manifests were evicted since the generation was read.
+   */
+  synchronized Manifest put(
+      String publicationRequest, String publicationId, byte[] json, long readGeneration) {
+    Manifest manifest =
+        new Manifest(
+            publicationId, json, '"' + DigestUtils.md5DigestAsHex(json) + '"', System.nanoTime());
+    if (enabled() && readGeneration == generation) {
+      manifests.put(publicationRequest, manifest);
+    }
+    return manifest;
+  }
+
+  synchronized int size() {
+    return manifests.size();
+  }
+
+  /** A rendered manifest. */
+  @Value
+  static class Manifest {
+    String publicationId;
+
+    byte[] json;
+
+    /** The quoted entity tag of the manifest, for conditional requests. */
+    String eTag;
+
+    long cachedNanos;
+
+    /** Whether the entity tags the client has cached include this manifest's. */
+    boolean matches(String ifNoneMatch) {
+      if (ifNoneMatch == null) {
+        return false;
+      }
+      for (String tag : ifNoneMatch.split(",")) {
+        String trimmed = tag.trim();
+        if ("*".equals(trimmed) || eTag.equals(trimmed) || ("W/" + eTag).equals(trimmed)) {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
@@ -0,0 +1,242 @@
+package gov.va.api.health.bulkfhir.service.controller.bulkstatus;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gov.va.api.health.bulkfhir.api.bulkstatus.PublicationFileStatusResponse;
+import gov.va.api.health.bulkfhir.service.filebuilder.BulkFileCodec;
+import gov.va.api.health.bulkfhir.service.status.PublicationManifestEntity;
+import gov.va.api.health.bulkfhir.service.status.PublicationManifestRepository;
+import gov.va.api.health.bulkfhir.service.status.StatusEntity;
+import gov.va.api.health.bulkfhir.service.status.StatusRepository;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+
+/**
+ * Builds the bulk status manifests of publications. The manifest of a completed publication only
+ * differs between clients by the request they made, so it is rendered once with a placeholder
+ * request when the last file completes and stored. Stored manifests are served by splicing the
+ * request in, instead of reading and serializing the status of every file again. Served manifests
+ * are kept in memory until the publication is forgotten or they expire.
+ *
+ * <p>A stored manifest is only served while the base URL of its files is still the configured
+ * one, and rendered again otherwise. The extension of each file is recorded when it is built, so
+ * a change of codec does not change the URLs of files that were already written.
+ */
+@Slf4j
+@Component
+public class PublicationManifests {
+
+  /** Stands in for the request in stored manifests, where it is replaced by the real one. */
+  private static final String REQUEST_PLACEHOLDER = "urn:bulk-status:request";
+
+  private final StatusRepository statusRepository;
+
+  private final PublicationManifestRepository repository;
+
+  private final ObjectMapper mapper;
+
+  private final String bulkFileBaseUrl;
+
+  private final BulkFileCodec codec;
+
+  private final int pageSize;
+
+  private final ManifestCache cache;
+
+  /**
+   * Spring constructor that allows customization from application properties.
+   *
+   * @param pageSize The number of files read from the database at a time while the manifest is
+   *     written
+   * @param cacheMaxEntries The number of manifests of completed publications kept in memory, or 0
+   *     to not keep any
+   * @param cacheMaxAgeSeconds How long manifests of completed publications are kept in memory and
+   *     may be cached by clients before checking whether they changed
+   */
+  @Builder
+  public PublicationManifests(
+      @Value("${incrediblebulk.public-url}") String bulkBaseUrl,
+      @Value("${incrediblebulk.public-bulk-file-path}") String bulkFileUrlPath,
+      @Value("${bulk.file.codec:none}") String codec,
+      @Value("${bulk.status.manifest.page-size:500}") int pageSize,
+      @Value("${bulk.status.cache.max-entries:0}") int cacheMaxEntries,
+      @Value("${bulk.status.cache.max-age-seconds:0}") long cacheMaxAgeSeconds,
+      @Autowired StatusRepository statusRepository,
+      @Autowired PublicationManifestRepository repository,
+      @Autowired ObjectMapper mapper) {
+    this.bulkFileBaseUrl = bulkBaseUrl + bulkFileUrlPath;
+    this.codec = BulkFileCodec.of(codec);
+    this.pageSize = pageSize > 0 ? pageSize : 500;
+    this.cache =
+        ManifestCache.builder()
+            .maxEntries(cacheMaxEntries)
+            .expiry(Duration.ofSeconds(Math.max(0, cacheMaxAgeSeconds)))
+            .build();
+    this.statusRepository = statusRepository;
+    this.repository = repository;
+    this.mapper = mapper;
+  }
+
+  /** The manifests served for completed publications. */
+  ManifestCache cache() {
+    return cache;
+  }
+
+  /**
+   * The extension the file was written with, or the configured codec's for files completed before
+   * extensions were recorded.
+   */
+  private String extensionOf(StatusEntity file) {
+    return file.fileExtension() == null ? codec.extension() : file.fileExtension();
+  }
+
+  /**
+   * Convert a publication file status to an output FileLocation.
+   *
+   * @param file The file status to convert
+   * @return A FileLocation with the appropriate fully qualified URL to the file.
+   */
+  private PublicationFileStatusResponse.FileLocation fileLocationOf(StatusEntity file) {
+    return PublicationFileStatusResponse.FileLocation.builder()
+        .type("Patient")
+        .url(
+            bulkFileBaseUrl
+                + "/"
+                + file.publicationId()
+                + "/"
+                + file.fileName()
+                + extensionOf(file))
+        .build();
+  }
+
+  /** The page of the publication's files after the given file, in file name order. */
+  private List<StatusEntity> filesAfter(String publicationId, String afterFileName) {
+    return statusRepository.findByPublicationIdAndFileNameGreaterThanOrderByFileNameAsc(
+        publicationId, afterFileName, PageRequest.of(0, pageSize));
+  }
+
+  /** Forget the stored manifest, because a file is being rebuilt or the publication is gone. */
+  public void forget(String publicationId) {
+    repository.deleteByPublicationId(publicationId);
+    /* Evicted after the stored manifest is gone, so a request that read it is not cached. */
+    cache.evict(publicationId);
+  }
+
+  /**
+   * The manifest of the publication, which streams its files a page at a time, unless it has none.
+   *
+   * @param publicationId The publication to describe
+   * @param request The kick-off request URL
+   */
+  Optional<StreamingManifest<StatusEntity>> manifestOf(String publicationId, String request) {
+    List<StatusEntity> firstPage = filesAfter(publicationId, "");
+    if (firstPage.isEmpty()) {
+      return Optional.empty();
+    }
+    /*
+     * Pull out the first status entity to use for the boiler plate information of the response
+     */
+    StatusEntity firstStatusEntity = firstPage.get(0);
+    PublicationFileStatusResponse envelope =
+        PublicationFileStatusResponse.builder()
+            .requiresAccessToken(true)
+            .request(request)
+            .transactionTime(Instant.ofEpochMilli(firstStatusEntity.publicationEpoch()))
+            /* Replaced by every file as the manifest is written. */
+            .output(List.of(fileLocationOf(firstStatusEntity)))
+            /* Error is required, but will remain empty */
+            .error(List.of())
+            .extension(
+                Optional.of(
+                    PublicationFileStatusResponse.Extension.builder()
+                        .creationDate(Instant.ofEpochMilli(firstStatusEntity.publicationEpoch()))
+                        .id(firstStatusEntity.publicationId())
+                        .recordsPerFile(firstStatusEntity.recordsPerFile())
+                        .build()))
+            .build();
+    return Optional.of(
+        StreamingManifest.<StatusEntity>builder()
+            .mapper(mapper)
+            .envelope(envelope)
+            .firstPage(firstPage)
+            .nextPage(page -> filesAfter(publicationId, page.get(page.size() - 1).fileName()))
+            .toFileLocation(this::fileLocationOf)
+            .pageSize(pageSize)
+            .build());
+  }
+
+  /** Write the whole manifest to memory. */
+  byte[] render(StreamingManifest<StatusEntity> manifest) {
+    ByteArrayOutputStream json = new ByteArrayOutputStream();
+    try {
+      manifest.writeTo(json);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return json.toByteArray();
+  }
+
+  /** The JSON string of the value. */
+  private String jsonString(String value) {
+    try {
+      return mapper.writeValueAsString(value);
+    } catch (JsonProcessingException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * The stored manifest of a completed publication with the request spliced in, if the manifest
+   * was stored when the publication completed and still has the configured file base URL. It is
+   * the same JSON the manifest would be rendered as.
+   */
+  Optional<byte[]> stored(String publicationId, String request) {
+    Optional<PublicationManifestEntity> entity = repository.findById(publicationId);
+    if (!entity.isPresent() || !bulkFileBaseUrl.equals(entity.get().fileBaseUrl())) {
+      return Optional.empty();
+    }
+    String manifest = entity.get().manifest();
+    String placeholder = jsonString(REQUEST_PLACEHOLDER);
+    /* The request is the first string in the manifest, before any file URL. */
+    int at = manifest.indexOf(placeholder);
+    if (at < 0) {
+      return Optional.empty();
+    }
+    String json =
+        manifest.substring(0, at)
+            + jsonString(request)
+            + manifest.substring(at + placeholder.length());
+    return Optional.of(json.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Render and store the manifest of a publication whose files have all been built, so it is not
+   * rendered again for every request.
+   */
+  public void store(String publicationId) {
+    Optional<StreamingManifest<StatusEntity>> manifest =
+        manifestOf(publicationId, REQUEST_PLACEHOLDER);
+    if (!manifest.isPresent()) {
+      return;
+    }
+    repository.save(
+        PublicationManifestEntity.builder()
+            .publicationId(publicationId)
+            .manifest(new String(render(manifest.get()), StandardCharsets.UTF_8))
+            .fileBaseUrl(bulkFileBaseUrl)
+            .build());
+    log.info("Stored the manifest of publication {}", publicationId);
+  }
+}
@@ -0,0 +1,82 @@
+package gov.va.api.health.bulkfhir.service.controller.bulkstatus;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gov.va.api.health.bulkfhir.api.bulkstatus.PublicationFileStatusResponse;
+import gov.va.api.health.bulkfhir.api.bulkstatus.PublicationFileStatusResponse.FileLocation;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import lombok.Builder;
+import lombok.NonNull;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+/**
+ * Writes a bulk status manifest to the response a page of files at a time, so the whole list of
+ * files is never held in memory and the first files are sent before the last are read.
+ *
+ * <p>Every field but the output is serialized from the envelope, so the manifest looks exactly
+ * like a {@link PublicationFileStatusResponse} serialized in one go. The output is written from the
+ * first page, then from each page found after the last file of the page before it, until a page
+ * comes back short.
+ */
+@Builder
+class StreamingManifest<T> implements StreamingResponseBody {
+
+  @NonNull private final ObjectMapper mapper;
+
+  /**
+   * The manifest, whose output is replaced by the files. The output must not be empty, so it is
+   * serialized whatever the mapper's inclusion rules are.
+   */
+  @NonNull private final PublicationFileStatusResponse envelope;
+
+  @NonNull private final List<T> firstPage;
+
+  /** Find the page of files after the last file of the given page. */
+  @NonNull private final UnaryOperator<List<T>> nextPage;
+
+  @NonNull private final Function<T, FileLocation> toFileLocation;
+
+  private final int pageSize;
+
+  @Override
+  public void writeTo(OutputStream out) throws IOException {
+    JsonGenerator generator = mapper.getFactory().createGenerator(out);
+    generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    generator.writeStartObject();
+    Iterator<Map.Entry<String, JsonNode>> fields = mapper.valueToTree(envelope).fields();
+    while (fields.hasNext()) {
+      Map.Entry<String, JsonNode> field = fields.next();
+      if ("output".equals(field.getKey())) {
+        writeOutput(generator);
+      } else {
+        generator.writeFieldName(field.getKey());
+        generator.writeTree(field.getValue());
+      }
+    }
+    generator.writeEndObject();
+    generator.close();
+  }
+
+  private void writeOutput(JsonGenerator generator) throws IOException {
+    generator.writeArrayFieldStart("output");
+    List<T> page = firstPage;
+    while (true) {
+      for (T file : page) {
+        generator.writeObject(toFileLocation.apply(file));
+      }
+      generator.flush();
+      if (page.size() < pageSize) {
+        break;
+      }
+      page = nextPage.apply(page);
+    }
+    generator.writeEndArray();
+  }
+}
@@ -1,11 +1,6 @@
 package gov.va.api.health.bulkfhir.service.controller.patient;
 
-import gov.va.api.health.bulkfhir.api.internal.BuildStatus;
-import gov.va.api.health.bulkfhir.api.internal.PublicationStatus;
-import gov.va.api.health.bulkfhir.service.controller.publication.DefaultPublicationStatusTransformer;
-import gov.va.api.health.bulkfhir.service.controller.publication.PublicationStatusTransformer;
-import gov.va.api.health.bulkfhir.service.status.StatusEntity;
-import gov.va.api.health.bulkfhir.service.status.StatusRepository;
+import gov.va.api.health.bulkfhir.service.controller.publication.CompletedPublications;
 import gov.va.api.health.dstu2.api.elements.Narrative;
 import gov.va.api.health.dstu2.api.resources.OperationOutcome;
 import gov.va.api.health.ids.api.IdentityService;
@@ -14,6 +9,7 @@ import gov.va.api.health.ids.api.ResourceIdentity;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import java.util.UUID;
 import javax.servlet.http.HttpServletRequest;
 import lombok.Builder;
@@ -46,9 +42,7 @@ class BulkPatientController {
   private static List<String> VALID_ACCEPT_HEADER_VALUES =
       List.of("application/fhir+json", "application/json");
 
-  private final StatusRepository repository;
-
-  private final PublicationStatusTransformer transformer;
+  private final CompletedPublications completedPublications;
 
   private final String bulkStatusUrl;
 
@@ -58,14 +52,11 @@ class BulkPatientController {
   BulkPatientController(
       @Value("${incrediblebulk.public-url}") String baseUrl,
       @Value("${incrediblebulk.public-bulk-status-path}") String bulkStatusPath,
-      @Autowired StatusRepository repository,
-      @Autowired IdentityService identityService,
-      @Autowired(required = false) PublicationStatusTransformer transformer) {
+      @Autowired CompletedPublications completedPublications,
+      @Autowired IdentityService identityService) {
     this.bulkStatusUrl = baseUrl + bulkStatusPath;
-    this.repository = repository;
+    this.completedPublications = completedPublications;
     this.identityService = identityService;
-    this.transformer =
-        transformer == null ? new DefaultPublicationStatusTransformer() : transformer;
   }
 
   /**
@@ -95,11 +86,11 @@ class BulkPatientController {
    * Encode the original request along with the publication id.
    *
    * @param request The http request
-   * @param completedPublication The completed publication
+   * @param completedPublicationId The id of the completed publication
    * @return The encoded string for the request and publication id
    */
   private String encodeRequestAndPublicationName(
-      HttpServletRequest request, PublicationStatus completedPublication) {
+      HttpServletRequest request, String completedPublicationId) {
     String requestUrl = request.getRequestURI();
     if (request.getQueryString() != null) {
       requestUrl += "?" + request.getQueryString();
@@ -108,7 +99,7 @@ class BulkPatientController {
         identityService.register(
             List.of(
                 ResourceIdentity.builder()
-                    .identifier(completedPublication.publicationId())
+                    .identifier(completedPublicationId)
                     .resource(requestUrl)
                     .system("BULK")
                     .build()));
@@ -116,7 +107,7 @@ class BulkPatientController {
       /*
        * Somehow no results came back from encoding, just return the publication id
        */
-      return completedPublication.publicationId();
+      return completedPublicationId;
     }
     return encoded.get(0).uuid();
   }
@@ -138,37 +129,21 @@ class BulkPatientController {
       log.info("Invalid bulk export request received");
       return new ResponseEntity<>(HttpStatus.BAD_REQUEST);
     }
-    PublicationStatus completedPublication = getMostRecentCompletedPublication();
-    if (completedPublication == null) {
+    Optional<String> completedPublicationId = completedPublications.latest();
+    if (completedPublicationId.isEmpty()) {
       log.info("No completed publications found.");
       return new ResponseEntity<>(buildNotReadyOperationOutcome(), HttpStatus.SERVICE_UNAVAILABLE);
     } else {
       HttpHeaders responseHeaders = new HttpHeaders();
       responseHeaders.add(
           "Content-Location",
-          bulkStatusUrl + "/" + encodeRequestAndPublicationName(request, completedPublication));
+          bulkStatusUrl
+              + "/"
+              + encodeRequestAndPublicationName(request, completedPublicationId.get()));
       return new ResponseEntity<>(responseHeaders, HttpStatus.ACCEPTED);
     }
   }
 
-  /**
-   * Get the most recently fully completed publication (if one exists) and return the status.
-   *
-   * @return The most recently fully completed publication, or null if no publications have been
-   *     completed
-   */
-  private PublicationStatus getMostRecentCompletedPublication() {
-    List<String> publicationIdsByCreation = repository.findDistinctPublicationIds();
-    for (String publication : publicationIdsByCreation) {
-      List<StatusEntity> entities = repository.findByPublicationId(publication);
-      PublicationStatus status = transformer.apply(entities);
-      if (status.overallStatus() == BuildStatus.COMPLETE) {
-        return status;
-      }
-    }
-    return null;
-  }
-
   /**
    * Determine if the export request is invalid or not.
    *
@@ -0,0 +1,220 @@
+package gov.va.api.health.bulkfhir.service.controller.publication;
+
+import gov.va.api.health.bulkfhir.api.internal.FileBuildResponse;
+import gov.va.api.health.bulkfhir.service.dataquery.client.DataQueryBatchClient.RequestObserver;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * Limits the number of files being built at once, adjusting the limit to how Data Query is coping.
+ * The limit follows AIMD: while builds are using most of the limit and Data Query responds within
+ * the target latency, the limit grows by about one per limit's worth of requests. A slow response,
+ * server error, or timeout shrinks it by the backoff ratio, at most once per round of requests:
+ * responses to requests that started before the last decrease were sent under the old limit, so
+ * they do not shrink it again.
+ *
+ * <p>Builds over the limit wait in order for a build to finish. The limit can only be used if the
+ * publication build executor has enough threads, so this is meant to be paired with the
+ * `thread-per-task` executor.
+ *
+ * <p>The limit, builds in flight, waiting builds, adjustments, and Data Query latency are published
+ * as metrics under `bulk.build.concurrency`.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "bulk.build.concurrency", havingValue = "adaptive")
+public class AdaptiveBuildLimiter implements RequestObserver {
+
+  private static final String METRIC = "bulk.build.concurrency";
+
+  private final int minLimit;
+
+  private final int maxLimit;
+
+  private final Duration targetLatency;
+
+  private final double backoffRatio;
+
+  private final Queue<Runnable> waiting = new ArrayDeque<>();
+
+  private final Timer latency;
+
+  private final Counter increases;
+
+  private final Counter decreases;
+
+  private double limit;
+
+  private int inFlight;
+
+  private boolean dispatching;
+
+  private boolean decreased;
+
+  /** When the limit was last decreased, in {@link System#nanoTime()} units. */
+  private long lastDecreaseNanos;
+
+  /**
+   * Spring constructor that allows customization from application properties.
+   *
+   * @param minLimit The fewest builds allowed at once, no matter how Data Query is doing
+   * @param maxLimit The most builds allowed at once, no matter how Data Query is doing
+   * @param initialLimit The limit when the application starts
+   * @param targetLatencyMillis Data Query responses slower than this reduce the limit
+   * @param backoffRatio The limit is multiplied by this when it is reduced
+   * @param meterRegistry Where metrics are published, or the global registry if there is none
+   */
+  @Builder
+  public AdaptiveBuildLimiter(
+      @Value("${bulk.build.adaptive.min-limit:1}") int minLimit,
+      @Value("${bulk.build.adaptive.max-limit:20}") int maxLimit,
+      @Value("${bulk.build.adaptive.initial-limit:3}") int initialLimit,
+      @Value("${bulk.build.adaptive.target-latency-millis:2000}") long targetLatencyMillis,
+      @Value("${bulk.build.adaptive.backoff-ratio:0.9}") double backoffRatio,
+      @Autowired(required = false) MeterRegistry meterRegistry) {
+    this.minLimit = Math.max(1, minLimit);
+    this.maxLimit = Math.max(this.minLimit, maxLimit);
+    this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+    this.targetLatency = Duration.ofMillis(targetLatencyMillis);
+    this.backoffRatio = backoffRatio > 0 && backoffRatio < 1 ? backoffRatio : 0.9;
+    MeterRegistry registry = meterRegistry == null ? Metrics.globalRegistry : meterRegistry;
+    Gauge.builder(METRIC + ".limit", this, AdaptiveBuildLimiter::limit)
+        .description("The number of files that may be built at once")
+        .register(registry);
+    Gauge.builder(METRIC + ".in-flight", this, AdaptiveBuildLimiter::inFlight)
+        .description("The number of files being built")
+        .register(registry);
+    Gauge.builder(METRIC + ".waiting", this, AdaptiveBuildLimiter::waiting)
+        .description("The number of files waiting to be built")
+        .register(registry);
+    this.increases = registry.counter(METRIC + ".adjustments", "direction", "increase");
+    this.decreases = registry.counter(METRIC + ".adjustments", "direction", "decrease");
+    this.latency = registry.timer(METRIC + ".dataquery-latency");
+  }
+
+  /** Start builds while there is room under the limit. Only one thread dispatches at a time. */
+  private void dispatch() {
+    synchronized (this) {
+      if (dispatching) {
+        return;
+      }
+      dispatching = true;
+    }
+    while (true) {
+      Runnable next;
+      synchronized (this) {
+        if (inFlight >= (int) limit || waiting.isEmpty()) {
+          dispatching = false;
+          return;
+        }
+        next = waiting.remove();
+        inFlight++;
+      }
+      next.run();
+    }
+  }
+
+  private void finished() {
+    synchronized (this) {
+      inFlight--;
+    }
+    dispatch();
+  }
+
+  synchronized int inFlight() {
+    return inFlight;
+  }
+
+  /** The current limit, rounded down to a whole number of builds. */
+  public synchronized int limit() {
+    return (int) limit;
+  }
+
+  @Override
+  public void requestCompleted(Duration requestLatency, boolean overloaded) {
+    requestCompleted(requestLatency, overloaded, System.nanoTime());
+  }
+
+  /** A request completed at the given {@link System#nanoTime()}. */
+  void requestCompleted(Duration requestLatency, boolean overloaded, long completedNanos) {
+    latency.record(requestLatency);
+    long startedNanos = completedNanos - requestLatency.toNanos();
+    int before;
+    int after;
+    synchronized (this) {
+      before = (int) limit;
+      if (overloaded || requestLatency.compareTo(targetLatency) > 0) {
+        if (!decreased || startedNanos - lastDecreaseNanos > 0) {
+          limit = Math.max(minLimit, limit * backoffRatio);
+          decreased = true;
+          lastDecreaseNanos = completedNanos;
+        }
+      } else if (inFlight * 2 >= before) {
+        limit = Math.min(maxLimit, limit + 1 / limit);
+      }
+      after = (int) limit;
+    }
+    if (after > before) {
+      increases.increment();
+      log.info("Build concurrency increased to {}", after);
+      dispatch();
+    } else if (after < before) {
+      decreases.increment();
+      log.info(
+          "Build concurrency decreased to {} (Data Query took {} ms{})",
+          after,
+          requestLatency.toMillis(),
+          overloaded ? " and failed" : "");
+    }
+  }
+
+  /**
+   * Build the file once there is room under the limit. The file may be a claim, or a request that
+   * is claimed when the build starts. The returned future completes with the build.
+   */
+  public <T> CompletableFuture<FileBuildResponse> submit(
+      T file, Function<T, CompletableFuture<FileBuildResponse>> build) {
+    CompletableFuture<FileBuildResponse> result = new CompletableFuture<>();
+    Runnable start =
+        () -> {
+          CompletableFuture<FileBuildResponse> building;
+          try {
+            building = build.apply(file);
+          } catch (RuntimeException e) {
+            building = CompletableFuture.failedFuture(e);
+          }
+          building.whenComplete(
+              (response, failure) -> {
+                finished();
+                if (failure == null) {
+                  result.complete(response);
+                } else {
+                  result.completeExceptionally(failure);
+                }
+              });
+        };
+    synchronized (this) {
+      waiting.add(start);
+    }
+    dispatch();
+    return result;
+  }
+
+  synchronized int waiting() {
+    return waiting.size();
+  }
+}
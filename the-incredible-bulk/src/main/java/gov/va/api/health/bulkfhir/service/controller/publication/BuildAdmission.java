@@ -0,0 +1,171 @@
+package gov.va.api.health.bulkfhir.service.controller.publication;
+
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilderExceptions.BuildCapacityExceeded;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileClaim;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Decides whether this application should take on another file build. Builds are admitted before
+ * the file is claimed, so a rejected file stays available for instances with spare capacity.
+ *
+ * <p>Capacity is measured by the number of files admitted but not yet finished, and by the records
+ * in those files, which estimates the work still to be done. When either limit is reached, builds
+ * are rejected with a retry delay estimated from the rate records have recently been written.
+ */
+@Slf4j
+@Component
+public class BuildAdmission {
+
+  /** How much each newly finished build moves the throughput estimate. */
+  private static final double THROUGHPUT_WEIGHT = 0.2;
+
+  private final int maxQueuedFiles;
+
+  private final long maxQueuedRecords;
+
+  private final Duration defaultRetryAfter;
+
+  private final Duration maxRetryAfter;
+
+  private final List<Runnable> releaseListeners = new CopyOnWriteArrayList<>();
+
+  private int queuedFiles;
+
+  private long queuedRecords;
+
+  /** Records written per second, or 0 if no builds have finished yet. */
+  private double throughput;
+
+  private long lastFinishedNanos = System.nanoTime();
+
+  /**
+   * Spring constructor that allows customization from application properties.
+   *
+   * @param maxQueuedFiles The number of builds that may be admitted but unfinished, or 0 for no
+   *     limit
+   * @param maxQueuedRecords The number of records in admitted but unfinished builds, or 0 for no
+   *     limit
+   * @param retryAfterSeconds The retry delay used until the throughput is known
+   * @param maxRetryAfterSeconds The longest retry delay ever suggested
+   */
+  @Builder
+  public BuildAdmission(
+      @Value("${bulk.build.admission.max-queued-files:0}") int maxQueuedFiles,
+      @Value("${bulk.build.admission.max-queued-records:0}") long maxQueuedRecords,
+      @Value("${bulk.build.admission.retry-after-seconds:30}") int retryAfterSeconds,
+      @Value("${bulk.build.admission.max-retry-after-seconds:300}") int maxRetryAfterSeconds) {
+    this.maxQueuedFiles = maxQueuedFiles;
+    this.maxQueuedRecords = maxQueuedRecords;
+    this.defaultRetryAfter = Duration.ofSeconds(Math.max(1, retryAfterSeconds));
+    this.maxRetryAfter = Duration.ofSeconds(Math.max(1, maxRetryAfterSeconds));
+  }
+
+  /**
+   * Admit a build, or throw if this application is at capacity. The ticket must be cancelled or
+   * finished.
+   */
+  public synchronized Ticket admit() {
+    if (maxQueuedFiles > 0 && queuedFiles >= maxQueuedFiles) {
+      throw rejected(queuedFiles + " files are already queued");
+    }
+    if (maxQueuedRecords > 0 && queuedRecords >= maxQueuedRecords) {
+      throw rejected(queuedRecords + " records are already queued");
+    }
+    queuedFiles++;
+    return new Ticket();
+  }
+
+  /** Run the listener, without holding any lock, whenever an admitted build is released. */
+  public void onRelease(Runnable listener) {
+    releaseListeners.add(listener);
+  }
+
+  synchronized int queuedFiles() {
+    return queuedFiles;
+  }
+
+  synchronized long queuedRecords() {
+    return queuedRecords;
+  }
+
+  private BuildCapacityExceeded rejected(String reason) {
+    Duration retryAfter = retryAfter();
+    log.info("Rejecting build, {}. Retry after {}s", reason, retryAfter.toSeconds());
+    return new BuildCapacityExceeded(
+        "Build capacity exceeded, " + reason + ". Retry after " + retryAfter.toSeconds() + "s",
+        retryAfter);
+  }
+
+  /** The time until enough records have been written to make room under the record limit. */
+  private Duration retryAfter() {
+    if (throughput <= 0) {
+      return defaultRetryAfter;
+    }
+    long excess = maxQueuedRecords > 0 ? queuedRecords - maxQueuedRecords + 1 : 0;
+    double recordsToWait = Math.max(excess, (double) queuedRecords / Math.max(1, queuedFiles));
+    long seconds = (long) Math.ceil(recordsToWait / throughput);
+    return Duration.ofSeconds(Math.min(maxRetryAfter.toSeconds(), Math.max(1, seconds)));
+  }
+
+  /** An admitted build. Releasing it more than once has no effect. */
+  public final class Ticket {
+
+    private long records;
+
+    private boolean released;
+
+    private Ticket() {}
+
+    /** The build will not run, e.g. because the file could not be claimed. */
+    public void cancel() {
+      synchronized (BuildAdmission.this) {
+        if (released) {
+          return;
+        }
+        release();
+      }
+      releaseListeners.forEach(Runnable::run);
+    }
+
+    /** Count the records of the claimed file towards the work queued. */
+    public void claimed(FileClaim claim) {
+      synchronized (BuildAdmission.this) {
+        if (!released) {
+          records = Math.max(0, claim.count());
+          queuedRecords += records;
+        }
+      }
+    }
+
+    /** The build has finished, successfully or not. */
+    public void finished() {
+      synchronized (BuildAdmission.this) {
+        if (released) {
+          return;
+        }
+        long now = System.nanoTime();
+        double seconds = Math.max(0.001, (now - lastFinishedNanos) / 1e9);
+        lastFinishedNanos = now;
+        double rate = records / seconds;
+        throughput =
+            throughput <= 0
+                ? rate
+                : THROUGHPUT_WEIGHT * rate + (1 - THROUGHPUT_WEIGHT) * throughput;
+        release();
+      }
+      releaseListeners.forEach(Runnable::run);
+    }
+
+    private void release() {
+      released = true;
+      queuedFiles--;
+      queuedRecords -= records;
+    }
+  }
+}
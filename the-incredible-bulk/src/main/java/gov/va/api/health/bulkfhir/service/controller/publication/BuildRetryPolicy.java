@@ -0,0 +1,70 @@
+package gov.va.api.health.bulkfhir.service.controller.publication;
+
+import java.time.Duration;
+import lombok.Builder;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+/**
+ * Decides when a file whose build failed is built again. The delay before each retry doubles, from
+ * the initial delay up to the maximum, so a file that fails during an outage is not retried in a
+ * tight loop. After the maximum number of failures the file fails for good.
+ */
+@Component
+public class BuildRetryPolicy {
+
+  static final int DEFAULT_MAX_ATTEMPTS = 5;
+
+  static final long DEFAULT_INITIAL_DELAY_SECONDS = 60;
+
+  static final long DEFAULT_MAX_DELAY_SECONDS = 3600;
+
+  private final int maxAttempts;
+
+  private final Duration initialDelay;
+
+  private final Duration maxDelay;
+
+  /**
+   * Spring constructor that allows customization from application properties. Values that are not
+   * given have the same defaults as the application properties.
+   *
+   * @param maxAttempts The number of failed builds before a file fails for good, or 0 to always
+   *     retry
+   * @param initialDelaySeconds The delay before the first retry
+   * @param maxDelaySeconds The longest delay between retries
+   */
+  @Builder
+  public BuildRetryPolicy(
+      @Value("${bulk.build.retry.max-attempts:" + DEFAULT_MAX_ATTEMPTS + "}") Integer maxAttempts,
+      @Value("${bulk.build.retry.initial-delay-seconds:" + DEFAULT_INITIAL_DELAY_SECONDS + "}")
+          Long initialDelaySeconds,
+      @Value("${bulk.build.retry.max-delay-seconds:" + DEFAULT_MAX_DELAY_SECONDS + "}")
+          Long maxDelaySeconds) {
+    long initial =
+        initialDelaySeconds == null ? DEFAULT_INITIAL_DELAY_SECONDS : initialDelaySeconds;
+    long max = maxDelaySeconds == null ? DEFAULT_MAX_DELAY_SECONDS : maxDelaySeconds;
+    this.maxAttempts = Math.max(0, maxAttempts == null ? DEFAULT_MAX_ATTEMPTS : maxAttempts);
+    this.initialDelay = Duration.ofSeconds(Math.max(0, initial));
+    this.maxDelay = Duration.ofSeconds(Math.max(0, Math.max(initial, max)));
+  }
+
+  /** The delay before retrying a file whose build has failed the given number of times. */
+  Duration delayAfter(int failures) {
+    long millis = initialDelay.toMillis() << Math.min(Math.max(0, failures - 1), 30);
+    return millis < 0 || millis > maxDelay.toMillis() ? maxDelay : Duration.ofMillis(millis);
+  }
+
+  /** Whether a file whose build has failed the given number of times should not be built again. */
+  boolean exhausted(int failures) {
+    return maxAttempts > 0 && failures >= maxAttempts;
+  }
+
+  /**
+   * When a file whose build has failed the given number of times may be retried, or 0 if it should
+   * not.
+   */
+  long retryAfterEpoch(long failureEpoch, int failures) {
+    return exhausted(failures) ? 0 : failureEpoch + delayAfter(failures).toMillis();
+  }
+}
@@ -0,0 +1,183 @@
+package gov.va.api.health.bulkfhir.service.controller.publication;
+
+import gov.va.api.health.bulkfhir.api.internal.FileBuildResponse;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilder;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilderExceptions.BuildCapacityExceeded;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps this instance building automatic publications without waiting for a caller to ask for the
+ * next file. While fewer than `slots` builds are admitted, the {@link FileBuilder} is asked to
+ * claim and build enough of the oldest files to fill the free slots, so throughput is limited by
+ * the workers rather than by how often `internal/publication/any/file/next` is called.
+ *
+ * <p>When there is nothing to build, polling backs off exponentially with jitter, so idle
+ * instances do not query the database in step with each other. A finished build or a new automatic
+ * publication wakes the scheduler immediately.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "bulk.build.scheduler.enabled", havingValue = "true")
+public class BuildScheduler implements SmartLifecycle {
+
+  private final FileBuilder fileBuilder;
+
+  private final BuildAdmission admission;
+
+  private final int slots;
+
+  private final Duration minIdle;
+
+  private final Duration maxIdle;
+
+  private boolean running;
+
+  private boolean woken;
+
+  private int idlePolls;
+
+  private Thread thread;
+
+  /**
+   * Spring constructor that allows customization from application properties.
+   *
+   * @param fileBuilder Starts the builds
+   * @param admission Tracks the builds admitted on this instance
+   * @param slots The number of builds to keep admitted at once
+   * @param minIdleMillis The first delay after finding nothing to build
+   * @param maxIdleMillis The longest delay between polls when there is nothing to build
+   */
+  @Builder
+  public BuildScheduler(
+      @Autowired FileBuilder fileBuilder,
+      @Autowired BuildAdmission admission,
+      @Value("${bulk.build.scheduler.slots:3}") int slots,
+      @Value("${bulk.build.scheduler.min-idle-millis:1000}") long minIdleMillis,
+      @Value("${bulk.build.scheduler.max-idle-millis:60000}") long maxIdleMillis) {
+    this.fileBuilder = fileBuilder;
+    this.admission = admission;
+    this.slots = Math.max(1, slots);
+    this.minIdle = Duration.ofMillis(Math.max(1, minIdleMillis));
+    this.maxIdle = Duration.ofMillis(Math.max(this.minIdle.toMillis(), maxIdleMillis));
+    admission.onRelease(this::wake);
+  }
+
+  /** Wait for the delay, or until the scheduler is woken or stopped. */
+  private synchronized void await(Duration delay) {
+    long deadline = System.nanoTime() + delay.toNanos();
+    while (running && !woken) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        break;
+      }
+      try {
+        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+    }
+    woken = false;
+  }
+
+  /**
+   * The delay after finding nothing to build. The delay doubles with each empty poll up to the
+   * maximum, and a random half of it is dropped.
+   */
+  synchronized Duration idle() {
+    long cap = Math.min(maxIdle.toMillis(), minIdle.toMillis() << Math.min(idlePolls, 30));
+    idlePolls++;
+    long half = cap / 2;
+    return Duration.ofMillis(half + ThreadLocalRandom.current().nextLong(cap - half + 1));
+  }
+
+  @Override
+  public synchronized boolean isRunning() {
+    return running;
+  }
+
+  /** Look for work right away when a publication that should be built automatically appears. */
+  @EventListener
+  public void onPublicationCreated(PublicationCreated event) {
+    if (!event.automatic()) {
+      return;
+    }
+    log.info("Publication {} created, looking for files to build", event.publicationId());
+    synchronized (this) {
+      idlePolls = 0;
+    }
+    wake();
+  }
+
+  /** Try to fill the free slots, and return how long to wait before trying again. */
+  Duration poll() {
+    int free = slots - admission.queuedFiles();
+    if (free <= 0) {
+      /* A finished build will wake us up. */
+      return maxIdle;
+    }
+    List<FileBuildResponse> started;
+    try {
+      started = fileBuilder.buildNextFiles(free);
+    } catch (BuildCapacityExceeded e) {
+      /* Builds requested directly have filled the instance. */
+      return e.retryAfter().compareTo(maxIdle) < 0 ? e.retryAfter() : maxIdle;
+    } catch (Exception e) {
+      log.error("Failed to start scheduled builds", e);
+      return idle();
+    }
+    if (started.isEmpty()) {
+      return idle();
+    }
+    log.info("Started {} scheduled builds", started.size());
+    synchronized (this) {
+      idlePolls = 0;
+    }
+    return Duration.ZERO;
+  }
+
+  private void run() {
+    log.info("Build scheduler started with {} slots", slots);
+    while (isRunning()) {
+      Duration delay = poll();
+      if (!delay.isZero()) {
+        await(delay);
+      }
+    }
+    log.info("Build scheduler stopped");
+  }
+
+  @Override
+  public synchronized void start() {
+    if (running) {
+      return;
+    }
+    running = true;
+    thread = new Thread(this::run, "Build-Scheduler");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /** Builds already started are left to finish. */
+  @Override
+  public synchronized void stop() {
+    running = false;
+    notifyAll();
+  }
+
+  synchronized void wake() {
+    woken = true;
+    notifyAll();
+  }
+}
@@ -0,0 +1,288 @@
+package gov.va.api.health.bulkfhir.service.controller.publication;
+
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilderExceptions.BuildTimedOut;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileClaim;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import javax.annotation.PreDestroy;
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Bounds how long one file may take to build. Each build is given a budget of a base time plus a
+ * time per record in the file. When the budget runs out, the build is cancelled cooperatively: the
+ * threads it registered are interrupted, the cancellations it registered are run, and its record
+ * streams fail on the next record. The worker then releases the claim so the file can be built
+ * again, rather than completing it.
+ *
+ * <p>The number of builds that timed out is published as the `bulk.build.timeouts` metric.
+ */
+@Slf4j
+@Component
+public class BuildWatchdog {
+
+  private final Duration baseBudget;
+
+  private final Duration budgetPerRecord;
+
+  private final ScheduledExecutorService timer;
+
+  private final Counter timeouts;
+
+  /**
+   * Spring constructor that allows customization from application properties.
+   *
+   * @param baseSeconds The time any build may take, no matter how small the file is
+   * @param millisPerRecord The time each record of the file adds to the budget
+   * @param meterRegistry Where metrics are published, or the global registry if there is none
+   */
+  @Builder
+  public BuildWatchdog(
+      @Value("${bulk.build.timeout.base-seconds:0}") long baseSeconds,
+      @Value("${bulk.build.timeout.millis-per-record:0}") long millisPerRecord,
+      @Autowired(required = false) MeterRegistry meterRegistry) {
+    this.baseBudget = Duration.ofSeconds(Math.max(0, baseSeconds));
+    this.budgetPerRecord = Duration.ofMillis(Math.max(0, millisPerRecord));
+    CustomizableThreadFactory threads = new CustomizableThreadFactory("Build-Watchdog-");
+    threads.setDaemon(true);
+    this.timer = Executors.newSingleThreadScheduledExecutor(threads);
+    MeterRegistry registry = meterRegistry == null ? Metrics.globalRegistry : meterRegistry;
+    this.timeouts =
+        Counter.builder("bulk.build.timeouts")
+            .description("The number of file builds cancelled for taking too long")
+            .register(registry);
+  }
+
+  /** A watch for builds that are not watched. It never times out. */
+  static Watch unwatched(FileClaim claim) {
+    return new Watch(claim, Duration.ZERO, null);
+  }
+
+  /** The time the claim's file may take to build, or zero if builds are not timed. */
+  Duration budgetFor(FileClaim claim) {
+    if (baseBudget.isZero() && budgetPerRecord.isZero()) {
+      return Duration.ZERO;
+    }
+    return baseBudget.plus(budgetPerRecord.multipliedBy(Math.max(0, claim.count())));
+  }
+
+  @PreDestroy
+  void shutdown() {
+    timer.shutdownNow();
+  }
+
+  /** Start timing the build of the claim. The watch must be closed when the build ends. */
+  public Watch watch(FileClaim claim) {
+    Watch watch = watchLater(claim);
+    watch.start();
+    return watch;
+  }
+
+  /**
+   * Prepare to time the build of the claim, for builds that wait before the work the budget is
+   * meant for begins. The budget only starts to run when the watch is started. The watch must be
+   * closed when the build ends, whether or not it was started.
+   */
+  public Watch watchLater(FileClaim claim) {
+    return new Watch(
+        claim,
+        budgetFor(claim),
+        watch ->
+            timer.schedule(() -> expire(watch), watch.budget.toMillis(), TimeUnit.MILLISECONDS));
+  }
+
+  private void expire(Watch watch) {
+    List<Runnable> cancellations = watch.stop(null);
+    if (cancellations == null) {
+      return;
+    }
+    timeouts.increment();
+    log.warn("Build of {} took longer than {}, cancelling it", watch.claim, watch.budget);
+    watch.run(cancellations);
+  }
+
+  /** A scope in which the current thread is interrupted if the build times out. */
+  @FunctionalInterface
+  public interface Scope extends AutoCloseable {
+    @Override
+    void close();
+  }
+
+  /** The timer of one build. */
+  public static final class Watch implements AutoCloseable {
+
+    private final FileClaim claim;
+
+    private final Duration budget;
+
+    private final Function<Watch, ScheduledFuture<?>> timing;
+
+    private final List<Runnable> cancellations = new ArrayList<>();
+
+    private final Set<Thread> interruptible = new HashSet<>();
+
+    private ScheduledFuture<?> timeout;
+
+    private volatile boolean timedOut;
+
+    /** Why the build was cancelled before it timed out, if it was. */
+    private volatile RuntimeException cancelReason;
+
+    private boolean closed;
+
+    private Watch(FileClaim claim, Duration budget, Function<Watch, ScheduledFuture<?>> timing) {
+      this.claim = claim;
+      this.budget = budget;
+      this.timing = timing;
+    }
+
+    /**
+     * Cancel the build for a reason other than time, as it would be if it timed out. This does
+     * nothing if the watch is closed or the build was already cancelled.
+     */
+    public void cancel(RuntimeException reason) {
+      List<Runnable> cancellations = stop(reason);
+      if (cancellations != null) {
+        log.warn("Cancelling the build of {}: {}", claim, reason.getMessage());
+        run(cancellations);
+      }
+    }
+
+    /** Whether the build timed out or was cancelled. */
+    public boolean cancelled() {
+      return timedOut || cancelReason != null;
+    }
+
+    /** Fail the build if it has timed out or was cancelled. */
+    public void checkNotTimedOut() {
+      if (cancelled()) {
+        throw failure();
+      }
+    }
+
+    /** Stop timing the build. Timeouts after this do nothing. */
+    @Override
+    public synchronized void close() {
+      closed = true;
+      if (timeout != null) {
+        timeout.cancel(false);
+      }
+      cancellations.clear();
+      leave(Thread.currentThread());
+    }
+
+    /**
+     * Mark the build as timed out, or as cancelled for the reason if there is one, interrupt its
+     * threads, and collect the cancellations to run, or null if the watch was already closed or
+     * cancelled. Threads are interrupted while holding the lock, so a thread that has left the
+     * scope is never interrupted.
+     */
+    private synchronized List<Runnable> stop(RuntimeException reason) {
+      if (closed || cancelled()) {
+        return null;
+      }
+      if (reason == null) {
+        timedOut = true;
+      } else {
+        cancelReason = reason;
+      }
+      interruptible.forEach(Thread::interrupt);
+      return new ArrayList<>(cancellations);
+    }
+
+    private void run(List<Runnable> cancellations) {
+      for (Runnable cancellation : cancellations) {
+        try {
+          cancellation.run();
+        } catch (RuntimeException e) {
+          log.error("Failed to cancel the build of {}", claim, e);
+        }
+      }
+    }
+
+    /** The failure reported for a build that timed out or was cancelled. */
+    public RuntimeException failure() {
+      RuntimeException reason = cancelReason;
+      return reason != null
+          ? reason
+          : new BuildTimedOut(claim.request().publicationId(), claim.request().fileId(), budget);
+    }
+
+    /** Fail the stream on the first record after the build times out or is cancelled. */
+    public <T> Stream<T> guard(Stream<T> records) {
+      return records.peek(record -> checkNotTimedOut());
+    }
+
+    /**
+     * Interrupt the current thread if the build times out or is cancelled before the returned scope
+     * or the watch is closed.
+     */
+    public synchronized Scope interruptOnTimeout() {
+      Thread thread = Thread.currentThread();
+      if (cancelled()) {
+        throw failure();
+      }
+      if (!closed) {
+        interruptible.add(thread);
+      }
+      return () -> {
+        synchronized (this) {
+          leave(thread);
+        }
+      };
+    }
+
+    /**
+     * Stop interrupting the thread. If the thread is the current thread and the watch may have
+     * interrupted it, the interrupt is cleared so it does not leak into unrelated work.
+     */
+    private void leave(Thread thread) {
+      if (interruptible.remove(thread) && cancelled() && thread == Thread.currentThread()) {
+        Thread.interrupted();
+      }
+    }
+
+    /** Start the budget, unless it has already started or the watch is closed. */
+    public synchronized void start() {
+      if (timing != null && timeout == null && !closed && !budget.isZero()) {
+        timeout = timing.apply(this);
+      }
+    }
+
+    /**
+     * Run the cancellation if the build times out or is cancelled. It runs right away if it already
+     * has.
+     */
+    public void onTimeout(Runnable cancellation) {
+      synchronized (this) {
+        if (!cancelled()) {
+          if (!closed) {
+            cancellations.add(cancellation);
+          }
+          return;
+        }
+      }
+      cancellation.run();
+    }
+
+    public boolean timedOut() {
+      return timedOut;
+    }
+  }
+}
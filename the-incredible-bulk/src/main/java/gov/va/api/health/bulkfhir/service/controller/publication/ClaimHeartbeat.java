@@ -0,0 +1,149 @@
+package gov.va.api.health.bulkfhir.service.controller.publication;
+
+import gov.va.api.health.bulkfhir.service.filebuilder.ClaimLease;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileClaim;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileClaimant;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.PreDestroy;
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Renews the leases of claims from when their files are claimed until their builds end, three times
+ * per lease, so a slow but healthy build keeps its claim however long it waits and takes. If this
+ * instance dies, renewals stop and the file becomes available to other instances once the lease
+ * expires. If a renewal finds the claim was lost, the build is cancelled.
+ */
+@Slf4j
+@Component
+public class ClaimHeartbeat {
+
+  private final FileClaimant claimant;
+
+  private final Duration interval;
+
+  private final ScheduledExecutorService renewals;
+
+  /**
+   * Spring constructor that allows customization from application properties.
+   *
+   * @param claimant Renews the leases
+   * @param leaseSeconds How long a claim lasts without being renewed, or 0 if claims never expire
+   *     and are not renewed
+   */
+  @Builder
+  public ClaimHeartbeat(
+      @Autowired FileClaimant claimant,
+      @Value("${bulk.build.lease.duration-seconds:0}") long leaseSeconds) {
+    this.claimant = claimant;
+    this.interval =
+        leaseSeconds > 0 ? Duration.ofMillis(Math.max(1, leaseSeconds * 1000 / 3)) : Duration.ZERO;
+    CustomizableThreadFactory threads = new CustomizableThreadFactory("Claim-Heartbeat-");
+    threads.setDaemon(true);
+    this.renewals = Executors.newSingleThreadScheduledExecutor(threads);
+  }
+
+  private void renew(FileClaim claim, Beat beat) {
+    try {
+      if (!claimant.renewClaim(claim)) {
+        log.warn("Lost the claim on {}, it has been claimed again or reset", claim);
+        beat.lose();
+      }
+    } catch (Exception e) {
+      /* Try again next time, the lease lasts for a couple more beats. */
+      log.error("Failed to renew the lease of {}", claim, e);
+    }
+  }
+
+  @PreDestroy
+  void shutdown() {
+    renewals.shutdownNow();
+  }
+
+  /**
+   * Renew the claim's lease until it is closed. Start it as soon as the file is claimed, since a
+   * file waiting for a build thread needs its lease as much as one being built.
+   */
+  public ClaimLease start(FileClaim claim) {
+    if (interval.isZero()) {
+      return ClaimLease.NONE;
+    }
+    Beat beat = new Beat(claim);
+    long millis = interval.toMillis();
+    synchronized (beat) {
+      /* Renewals wait for the beat to know its schedule, so a lost lease can stop it. */
+      beat.renewing =
+          renewals.scheduleAtFixedRate(
+              () -> renew(claim, beat), millis, millis, TimeUnit.MILLISECONDS);
+    }
+    return beat;
+  }
+
+  /** The heartbeat of one claim. */
+  private static final class Beat implements ClaimLease {
+
+    private final FileClaim claim;
+
+    private final List<Runnable> cancellations = new ArrayList<>();
+
+    private ScheduledFuture<?> renewing;
+
+    private boolean lost;
+
+    private boolean closed;
+
+    private Beat(FileClaim claim) {
+      this.claim = claim;
+    }
+
+    @Override
+    public synchronized void close() {
+      closed = true;
+      renewing.cancel(false);
+      cancellations.clear();
+    }
+
+    /** Stop renewing and cancel the build, unless the lease was closed or already lost. */
+    private void lose() {
+      List<Runnable> cancelling;
+      synchronized (this) {
+        if (closed || lost) {
+          return;
+        }
+        lost = true;
+        renewing.cancel(false);
+        cancelling = new ArrayList<>(cancellations);
+      }
+      for (Runnable cancellation : cancelling) {
+        try {
+          cancellation.run();
+        } catch (RuntimeException e) {
+          log.error("Failed to cancel the build of {}", claim, e);
+        }
+      }
+    }
+
+    @Override
+    public void onLost(Runnable cancellation) {
+      synchronized (this) {
+        if (!lost) {
+          if (!closed) {
+            cancellations.add(cancellation);
+          }
+          return;
+        }
+      }
+      cancellation.run();
+    }
+  }
+}
@@ -0,0 +1,157 @@
+package gov.va.api.health.bulkfhir.service.controller.publication;
+
+import gov.va.api.health.bulkfhir.service.controller.bulkstatus.PublicationManifests;
+import gov.va.api.health.bulkfhir.service.status.CompletedPublicationEntity;
+import gov.va.api.health.bulkfhir.service.status.CompletedPublicationRepository;
+import gov.va.api.health.bulkfhir.service.status.StatusEntity;
+import gov.va.api.health.bulkfhir.service.status.StatusRepository;
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps track of the publications whose files have all been built, so the newest one can be found
+ * with a single indexed lookup instead of reading the status of every publication. A publication
+ * is recorded when its last file completes and forgotten when a file is rebuilt or the publication
+ * is deleted. Its bulk status manifest is stored and forgotten along with it.
+ *
+ * <p>The newest completed publication is cached in memory. Changes made by this instance clear the
+ * cache right away. Changes made by other instances are seen once the cache expires, so the cache
+ * duration bounds how stale the answer can be across the cluster.
+ */
+@Slf4j
+@Component
+public class CompletedPublications {
+
+  private final StatusRepository statusRepository;
+
+  private final CompletedPublicationRepository repository;
+
+  private final PublicationManifests manifests;
+
+  private final long cacheNanos;
+
+  /** Incremented whenever the cache is cleared, so a lookup that raced it is not cached. */
+  private final AtomicLong generation = new AtomicLong();
+
+  private volatile Latest latest;
+
+  /**
+   * Spring constructor that allows customization from application properties.
+   *
+   * @param statusRepository The status of each file
+   * @param repository The completed publications
+   * @param cacheSeconds How long the newest completed publication is cached, or 0 to not cache it
+   * @param manifests Stores the manifest of each completed publication, if there is one
+   */
+  @Builder
+  public CompletedPublications(
+      @Autowired StatusRepository statusRepository,
+      @Autowired CompletedPublicationRepository repository,
+      @Value("${bulk.publication.latest-completed.cache-seconds:0}") long cacheSeconds,
+      @Autowired(required = false) PublicationManifests manifests) {
+    this.statusRepository = statusRepository;
+    this.repository = repository;
+    this.manifests = manifests;
+    this.cacheNanos = Duration.ofSeconds(Math.max(0, cacheSeconds)).toNanos();
+  }
+
+  /**
+   * Record the publication as complete if the file that just completed was its last. Only the
+   * instance completing the last file finds no incomplete files, unless two finish at once, in
+   * which case the second record is ignored.
+   */
+  public void fileCompleted(String publicationId, String fileId) {
+    if (statusRepository.countByPublicationIdAndBuildCompleteEpoch(publicationId, 0) > 0) {
+      return;
+    }
+    List<StatusEntity> entities =
+        statusRepository.findByPublicationIdAndFileName(publicationId, fileId);
+    if (entities.isEmpty()) {
+      return;
+    }
+    try {
+      repository.save(
+          CompletedPublicationEntity.builder()
+              .publicationId(publicationId)
+              .publicationEpoch(entities.get(0).publicationEpoch())
+              .completeEpoch(entities.get(0).buildCompleteEpoch())
+              .build());
+      log.info("Publication {} is complete", publicationId);
+      storeManifest(publicationId);
+    } catch (DataIntegrityViolationException e) {
+      log.info("Publication {} was already recorded as complete", publicationId);
+    }
+    invalidate();
+  }
+
+  /** Forget that the publication is complete, because a file is being rebuilt or it is gone. */
+  public void forget(String publicationId) {
+    /* Manifests are also served for publications completed before they were recorded. */
+    if (manifests != null) {
+      manifests.forget(publicationId);
+    }
+    if (repository.deleteByPublicationId(publicationId) > 0) {
+      invalidate();
+    }
+  }
+
+  /** Clear the cached newest completed publication. */
+  public void invalidate() {
+    generation.incrementAndGet();
+    latest = null;
+  }
+
+  /** The id of the most recently created publication whose files have all been built. */
+  public Optional<String> latest() {
+    Latest cached = latest;
+    long now = System.nanoTime();
+    if (cached != null && now - cached.loadedNanos < cacheNanos) {
+      return cached.publicationId;
+    }
+    long loadedGeneration = generation.get();
+    Optional<String> publicationId =
+        repository
+            .findFirstByOrderByPublicationEpochDesc()
+            .map(CompletedPublicationEntity::publicationId);
+    if (cacheNanos > 0 && generation.get() == loadedGeneration) {
+      latest = new Latest(publicationId, now);
+    }
+    return publicationId;
+  }
+
+  /**
+   * Store the manifest of the completed publication. The file is complete either way, so failing to
+   * store it only means the manifest is rendered when it is requested.
+   */
+  private void storeManifest(String publicationId) {
+    if (manifests == null) {
+      return;
+    }
+    try {
+      manifests.store(publicationId);
+    } catch (DataAccessException | UncheckedIOException e) {
+      log.warn("Failed to store the manifest of publication {}", publicationId, e);
+    }
+  }
+
+  private static final class Latest {
+    private final Optional<String> publicationId;
+
+    private final long loadedNanos;
+
+    private Latest(Optional<String> publicationId, long loadedNanos) {
+      this.publicationId = publicationId;
+      this.loadedNanos = loadedNanos;
+    }
+  }
+}
@@ -0,0 +1,177 @@
+package gov.va.api.health.bulkfhir.service.controller.publication;
+
+import static gov.va.api.health.bulkfhir.service.controller.publication.PublicationExceptions.assertPublicationFileFound;
+
+import gov.va.api.health.bulkfhir.service.filebuilder.BulkFileCodec;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuildRequest;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilderExceptions.AlreadyClaimed;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilderExceptions.ClaimLost;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileClaim;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileClaimant;
+import gov.va.api.health.bulkfhir.service.status.StatusEntity;
+import gov.va.api.health.bulkfhir.service.status.StatusRepository;
+import java.time.Duration;
+import java.util.List;
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Claims a file with a single conditional update that only matches if the file is not being built,
+ * then checks the number of rows updated. Unlike the {@link OptimisticFileClaimant}, the status is
+ * not read and written back, and losing a race is an update count of 0 rather than an optimistic
+ * lock exception. The file's page and count are read once the claim has succeeded. Completed files
+ * are claimed with a second update, only tried when the first matches nothing, so that only
+ * rebuilds forget the completed publication.
+ */
+@Service
+@Slf4j
+@ConditionalOnProperty(name = "bulk.build.claimant", havingValue = "conditional-update")
+public class ConditionalUpdateFileClaimant implements FileClaimant {
+
+  private final StatusRepository repository;
+
+  private final Duration lease;
+
+  private final BuildRetryPolicy retryPolicy;
+
+  private final CompletedPublications completedPublications;
+
+  private final BulkFileCodec codec;
+
+  /**
+   * Spring constructor that allows customization from application properties.
+   *
+   * @param repository The status repository
+   * @param leaseSeconds How long a claim lasts without being renewed, or 0 for claims that never
+   *     expire
+   * @param retryPolicy When failed builds are retried, or immediately and forever if there is none
+   * @param completedPublications Told when files complete or are rebuilt, if there is one
+   * @param codec The codec files are written with, whose extension is recorded when they complete
+   */
+  @Builder
+  public ConditionalUpdateFileClaimant(
+      @Autowired StatusRepository repository,
+      @Value("${bulk.build.lease.duration-seconds:0}") long leaseSeconds,
+      @Autowired(required = false) BuildRetryPolicy retryPolicy,
+      @Autowired(required = false) CompletedPublications completedPublications,
+      @Value("${bulk.file.codec:none}") String codec) {
+    this.repository = repository;
+    this.lease = Duration.ofSeconds(Math.max(0, leaseSeconds));
+    this.retryPolicy = retryPolicy == null ? BuildRetryPolicy.builder().build() : retryPolicy;
+    this.completedPublications = completedPublications;
+    this.codec = BulkFileCodec.of(codec);
+  }
+
+  @Override
+  public void completeClaim(FileClaim claim) {
+    FileBuildRequest request = claim.request();
+    int updated =
+        repository.completeFile(
+            request.publicationId(),
+            request.fileId(),
+            claim.version(),
+            System.currentTimeMillis(),
+            codec.extension());
+    if (updated == 0) {
+      assertPublicationFileFound(exists(request), request.publicationId(), request.fileId());
+      throw new ClaimLost(request.publicationId(), request.fileId());
+    }
+    if (completedPublications != null) {
+      completedPublications.fileCompleted(request.publicationId(), request.fileId());
+    }
+  }
+
+  private boolean exists(FileBuildRequest request) {
+    return repository.countByPublicationIdAndFileName(request.publicationId(), request.fileId())
+        > 0;
+  }
+
+  @Override
+  public void failClaim(FileClaim claim) {
+    FileBuildRequest request = claim.request();
+    long now = System.currentTimeMillis();
+    int failures = claim.failureCount() + 1;
+    boolean failed = retryPolicy.exhausted(failures);
+    int updated =
+        repository.failFile(
+            request.publicationId(),
+            request.fileId(),
+            claim.version(),
+            now,
+            retryPolicy.retryAfterEpoch(now, failures),
+            failed);
+    if (updated == 0) {
+      assertPublicationFileFound(exists(request), request.publicationId(), request.fileId());
+      throw new ClaimLost(request.publicationId(), request.fileId());
+    }
+    if (failed) {
+      log.warn("{} failed {} times, giving up", claim, failures);
+    }
+  }
+
+  @Override
+  public void releaseClaim(FileClaim claim) {
+    FileBuildRequest request = claim.request();
+    int updated =
+        repository.releaseFile(request.publicationId(), request.fileId(), claim.version());
+    if (updated == 0) {
+      assertPublicationFileFound(exists(request), request.publicationId(), request.fileId());
+      throw new ClaimLost(request.publicationId(), request.fileId());
+    }
+  }
+
+  @Override
+  public boolean renewClaim(FileClaim claim) {
+    long leaseExpiryEpoch = FileClaims.leaseExpiryEpoch(System.currentTimeMillis(), lease);
+    return leaseExpiryEpoch > 0
+        && repository.renewLease(
+                claim.request().publicationId(),
+                claim.request().fileId(),
+                claim.version(),
+                leaseExpiryEpoch)
+            > 0;
+  }
+
+  @Transactional(propagation = Propagation.REQUIRES_NEW)
+  @Override
+  public FileClaim tryClaim(FileBuildRequest request) {
+    log.info("Claiming {}/{}", request.publicationId(), request.fileId());
+    long now = System.currentTimeMillis();
+    long leaseExpiryEpoch = FileClaims.leaseExpiryEpoch(now, lease);
+    String processorId = FileClaims.processorId();
+    int claimed =
+        repository.claimFile(
+            request.publicationId(), request.fileId(), now, leaseExpiryEpoch, processorId);
+    if (claimed == 0) {
+      /* Files that are not waiting to be built are either complete or already claimed. */
+      claimed =
+          repository.rebuildFile(
+              request.publicationId(), request.fileId(), now, leaseExpiryEpoch, processorId);
+      if (claimed == 0) {
+        /* Only the losing side pays for finding out why. */
+        assertPublicationFileFound(exists(request), request.publicationId(), request.fileId());
+        throw new AlreadyClaimed(request.publicationId(), request.fileId());
+      }
+      if (completedPublications != null) {
+        /* The file was complete, so the publication no longer is. */
+        completedPublications.forget(request.publicationId());
+      }
+    }
+    List<StatusEntity> entities =
+        repository.findByPublicationIdAndFileName(request.publicationId(), request.fileId());
+    return FileClaims.claimOf(request, entities.get(0));
+  }
+
+  /** Batches are claimed the same way by every claimant, see {@link FileClaims#claimNext}. */
+  @Transactional(propagation = Propagation.REQUIRES_NEW)
+  @Override
+  public List<FileClaim> tryClaimNext(int maxFiles) {
+    return FileClaims.claimNext(repository, maxFiles, lease);
+  }
+}
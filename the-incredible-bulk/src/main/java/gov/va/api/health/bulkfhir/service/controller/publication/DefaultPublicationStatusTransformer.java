@@ -4,7 +4,9 @@ import gov.va.api.health.bulkfhir.api.internal.BuildStatus;
 import gov.va.api.health.bulkfhir.api.internal.PublicationStatus;
 import gov.va.api.health.bulkfhir.api.internal.PublicationStatus.FileStatus;
 import gov.va.api.health.bulkfhir.api.internal.PublicationStatus.PublicationStatusBuilder;
+import gov.va.api.health.bulkfhir.api.internal.PublicationSummary;
 import gov.va.api.health.bulkfhir.service.status.StatusEntity;
+import gov.va.api.health.bulkfhir.service.status.StatusSummary;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
@@ -16,7 +18,7 @@ public class DefaultPublicationStatusTransformer implements PublicationStatusTra
 
   @Override
   public PublicationStatus apply(Iterable<StatusEntity> statusEntities) {
-    log.info("{}", statusEntities);
+    log.debug("{}", statusEntities);
     Counter counter = new Counter();
     PublicationStatusBuilder publication = PublicationStatus.builder();
     List<FileStatus> fileStatuses = new ArrayList<>();
@@ -35,17 +37,53 @@ public class DefaultPublicationStatusTransformer implements PublicationStatusTra
     return publication.overallStatus(counter.overallStatus()).build();
   }
 
-  private BuildStatus statusOf(Optional<Instant> start, Optional<Instant> complete) {
+  /**
+   * Summarize a publication from the number of its files in each status. The overall status is
+   * decided the same way as it is for a publication status.
+   */
+  static PublicationSummary summaryOf(StatusSummary summary) {
+    Counter counter = new Counter();
+    counter.notStarted = (int) summary.notStarted();
+    counter.inProgress = (int) summary.inProgress();
+    counter.completed = (int) summary.complete();
+    counter.failed = (int) summary.failed();
+    return PublicationSummary.builder()
+        .publicationId(summary.publicationId())
+        .recordsPerFile(summary.recordsPerFile())
+        .creationDate(Instant.ofEpochMilli(summary.publicationEpoch()))
+        .overallStatus(counter.overallStatus())
+        .files(counter.total())
+        .notStarted(counter.notStarted)
+        .inProgress(counter.inProgress)
+        .complete(counter.completed)
+        .failed(counter.failed)
+        .firstBuildStartTime(
+            summary.firstBuildStartEpoch() == null
+                ? null
+                : Instant.ofEpochMilli(summary.firstBuildStartEpoch()))
+        .lastBuildCompleteTime(
+            summary.lastBuildCompleteEpoch() > 0
+                ? Instant.ofEpochMilli(summary.lastBuildCompleteEpoch())
+                : null)
+        .build();
+  }
+
+  private static BuildStatus statusOf(
+      Optional<Instant> start, Optional<Instant> complete, boolean failed) {
     if (complete.isPresent()) {
       return BuildStatus.COMPLETE;
     }
+    if (failed) {
+      return BuildStatus.FAILED;
+    }
     if (start.isPresent()) {
       return BuildStatus.IN_PROGRESS;
     }
     return BuildStatus.NOT_STARTED;
   }
 
-  private FileStatus toStatus(StatusEntity entity) {
+  /** The status of one file of a publication. */
+  static FileStatus toStatus(StatusEntity entity) {
     int firstRecord = (entity.page() - 1) * entity.recordsPerFile();
     Optional<Instant> start = entity.buildStartTime();
     Optional<Instant> complete = entity.buildCompleteTime();
@@ -53,10 +91,12 @@ public class DefaultPublicationStatusTransformer implements PublicationStatusTra
         .fileId(entity.fileName())
         .firstRecord(firstRecord)
         .lastRecord(firstRecord + entity.count() - 1)
-        .status(statusOf(start, complete))
+        .status(statusOf(start, complete, entity.failed()))
         .buildStartTime(start.orElse(null))
         .buildCompleteTime(complete.orElse(null))
         .buildProcessorId(entity.buildProcessorId())
+        .buildAttempts(entity.attemptCount())
+        .lastFailureTime(entity.lastFailureTime().orElse(null))
         .build();
   }
 
@@ -64,12 +104,15 @@ public class DefaultPublicationStatusTransformer implements PublicationStatusTra
     int notStarted;
     int inProgress;
     int completed;
+    int failed;
 
     void add(BuildStatus status) {
       if (status == BuildStatus.IN_PROGRESS) {
         inProgress++;
       } else if (status == BuildStatus.COMPLETE) {
         completed++;
+      } else if (status == BuildStatus.FAILED) {
+        failed++;
       } else {
         notStarted++;
       }
@@ -84,9 +127,13 @@ public class DefaultPublicationStatusTransformer implements PublicationStatusTra
        * Nothing is actively in progress, but some files have not been started and some have
        * already completed.
        */
-      if (notStarted != 0 && completed != 0) {
+      if (notStarted != 0 && completed + failed != 0) {
         return BuildStatus.IN_PROGRESS;
       }
+      /* Everything has finished, but some files will not be built without being requested. */
+      if (notStarted == 0 && failed != 0) {
+        return BuildStatus.FAILED;
+      }
       /* Everything has completed. */
       if (notStarted == 0 && completed != 0) {
         return BuildStatus.COMPLETE;
@@ -95,7 +142,7 @@ public class DefaultPublicationStatusTransformer implements PublicationStatusTra
     }
 
     int total() {
-      return notStarted + inProgress + completed;
+      return notStarted + inProgress + completed + failed;
     }
   }
 }
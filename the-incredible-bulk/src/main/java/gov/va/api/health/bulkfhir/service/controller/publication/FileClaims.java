@@ -0,0 +1,116 @@
+package gov.va.api.health.bulkfhir.service.controller.publication;
+
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuildRequest;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileClaim;
+import gov.va.api.health.bulkfhir.service.status.StatusEntity;
+import gov.va.api.health.bulkfhir.service.status.StatusRepository;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import lombok.experimental.UtilityClass;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.domain.PageRequest;
+
+/** Claim logic shared by the file claimants. */
+@Slf4j
+@UtilityClass
+class FileClaims {
+
+  static FileClaim claimOf(FileBuildRequest request, StatusEntity entity) {
+    return claimOf(request, entity, entity.version(), entity.attemptCount());
+  }
+
+  private static FileClaim claimOf(
+      FileBuildRequest request, StatusEntity entity, int version, int attemptCount) {
+    return FileClaim.builder()
+        .request(request)
+        .fileName(entity.fileName())
+        .recordsPerFile(entity.recordsPerFile())
+        .page(entity.page())
+        .count(entity.count())
+        .version(version)
+        .attemptCount(attemptCount)
+        .failureCount(entity.failureCount())
+        .build();
+  }
+
+  private static FileBuildRequest requestOf(StatusEntity entity) {
+    return FileBuildRequest.builder()
+        .publicationId(entity.publicationId())
+        .fileId(entity.fileName())
+        .build();
+  }
+
+  /**
+   * Whether the file is started and not complete under a lease that has not expired, the opposite
+   * of {@link StatusRepository#NOT_BEING_BUILT}. Builds without a lease never expire.
+   */
+  static boolean beingBuilt(StatusEntity entity, long now) {
+    return entity.buildCompleteEpoch() == 0
+        && entity.buildStartEpoch() > 0
+        && (entity.leaseExpiryEpoch() == 0 || entity.leaseExpiryEpoch() >= now);
+  }
+
+  /** When a lease taken now expires, or 0 if leases are disabled. */
+  static long leaseExpiryEpoch(long now, Duration lease) {
+    return lease.isZero() || lease.isNegative() ? 0 : now + lease.toMillis();
+  }
+
+  /**
+   * Claim up to the given number of available files in one step. The oldest files that are not
+   * started, or whose lease has expired, are selected and locked, skipping files another
+   * application has locked, so concurrent callers are handed different files instead of racing for
+   * the same one. The locked files are then claimed with one conditional bulk update. This must run
+   * in its own transaction so the locks are held until the claims are committed.
+   */
+  static List<FileClaim> claimNext(StatusRepository repository, int maxFiles, Duration lease) {
+    if (maxFiles <= 0) {
+      return List.of();
+    }
+    long now = System.currentTimeMillis();
+    List<StatusEntity> available = repository.lockAvailable(now, PageRequest.of(0, maxFiles));
+    if (available == null || available.isEmpty()) {
+      return List.of();
+    }
+    List<String> ids = available.stream().map(StatusEntity::id).collect(Collectors.toList());
+    /* The host name is not unique to this call, other threads or pods may share it. */
+    String claimToken = UUID.randomUUID().toString();
+    int claimed =
+        repository.claimAvailable(
+            ids, now, leaseExpiryEpoch(now, lease), processorId(), claimToken);
+    log.info("Claimed {} of {} files available", claimed, ids.size());
+    if (claimed == 0) {
+      return List.of();
+    }
+    if (claimed == ids.size()) {
+      /* The locked files cannot have changed, except for the counts the claim incremented. */
+      return available.stream()
+          .map(
+              entity ->
+                  claimOf(
+                      requestOf(entity), entity, entity.version() + 1, entity.attemptCount() + 1))
+          .collect(Collectors.toList());
+    }
+    /* The database could not lock the files. Find out which were claimed. */
+    return repository.findClaimed(ids, claimToken).stream()
+        .map(entity -> claimOf(requestOf(entity), entity))
+        .collect(Collectors.toList());
+  }
+
+  /** The name of this application instance, recorded with the files it claims. */
+  static String processorId() {
+    try {
+      return InetAddress.getLocalHost().getHostName();
+    } catch (UnknownHostException e) {
+      var assumedIdentity = System.getenv("HOST");
+      if (assumedIdentity == null) {
+        assumedIdentity = "Unknown-" + System.identityHashCode(FileClaims.class);
+      }
+      log.info("Could not determine hostname, assuming identity: {}", assumedIdentity);
+      return assumedIdentity;
+    }
+  }
+}
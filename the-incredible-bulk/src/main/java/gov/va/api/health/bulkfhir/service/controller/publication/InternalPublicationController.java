@@ -7,8 +7,10 @@ import static gov.va.api.health.bulkfhir.service.controller.publication.Publicat
 
 import gov.va.api.health.bulkfhir.api.internal.ClearHungRequest;
 import gov.va.api.health.bulkfhir.api.internal.FileBuildResponse;
+import gov.va.api.health.bulkfhir.api.internal.PublicationFilePage;
 import gov.va.api.health.bulkfhir.api.internal.PublicationRequest;
 import gov.va.api.health.bulkfhir.api.internal.PublicationStatus;
+import gov.va.api.health.bulkfhir.api.internal.PublicationSummary;
 import gov.va.api.health.bulkfhir.service.dataquery.client.DataQueryBatchClient;
 import gov.va.api.health.bulkfhir.service.filebuilder.FileBuildRequest;
 import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilder;
@@ -23,10 +25,14 @@ import java.util.Objects;
 import java.util.stream.Collectors;
 import javax.servlet.http.HttpServletResponse;
 import javax.validation.Valid;
+import javax.validation.constraints.Max;
+import javax.validation.constraints.Min;
 import lombok.Builder;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.http.HttpStatus;
 import org.springframework.validation.annotation.Validated;
 import org.springframework.web.bind.annotation.DeleteMapping;
@@ -35,6 +41,7 @@ import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.ResponseStatus;
 import org.springframework.web.bind.annotation.RestController;
 
@@ -46,6 +53,9 @@ import org.springframework.web.bind.annotation.RestController;
     produces = {"application/json"})
 class InternalPublicationController {
 
+  /** The most files returned in one page of file statuses. */
+  static final int MAX_FILES_PER_PAGE = 5000;
+
   private final int maxFileCount;
 
   private final FileBuilder fileBuilder;
@@ -58,6 +68,13 @@ class InternalPublicationController {
 
   private final DataQueryBatchClient dataQuery;
 
+  private final ApplicationEventPublisher events;
+
+  private final CompletedPublications completedPublications;
+
+  /** Select and claim the next file in one step, instead of asking the file to build manager. */
+  private final boolean claimNextFile;
+
   @Builder
   InternalPublicationController(
       @Value("${incrediblebulk.publication-max-file-count}") int maxFileCount,
@@ -65,7 +82,10 @@ class InternalPublicationController {
       @Autowired StatusRepository repository,
       @Autowired DataQueryBatchClient dataQuery,
       @Autowired FileToBuildManager fileToBuildManager,
-      @Autowired(required = false) PublicationStatusTransformer transformer) {
+      @Autowired(required = false) PublicationStatusTransformer transformer,
+      @Autowired(required = false) ApplicationEventPublisher events,
+      @Value("${bulk.build.next-file:oldest-first}") String nextFile,
+      @Autowired(required = false) CompletedPublications completedPublications) {
     this.maxFileCount = maxFileCount;
     this.fileBuilder = fileBuilder;
     this.repository = repository;
@@ -73,6 +93,9 @@ class InternalPublicationController {
     this.fileToBuildManager = fileToBuildManager;
     this.transformer =
         transformer == null ? new DefaultPublicationStatusTransformer() : transformer;
+    this.events = events;
+    this.claimNextFile = "skip-locked".equals(nextFile);
+    this.completedPublications = completedPublications;
   }
 
   @PostMapping(path = "{id}/file/{fileId}")
@@ -85,6 +108,12 @@ class InternalPublicationController {
 
   @PostMapping("any/file/next")
   public FileBuildResponse buildNextFile(HttpServletResponse response) {
+    if (claimNextFile) {
+      List<FileBuildResponse> started = fileBuilder.buildNextFiles(1);
+      response.setStatus(
+          started.isEmpty() ? HttpStatus.NO_CONTENT.value() : HttpStatus.ACCEPTED.value());
+      return started.isEmpty() ? null : started.get(0);
+    }
     FileBuildRequest fileToBuild = fileToBuildManager.getNextFileToBuild();
     if (fileToBuild == null) {
       /*
@@ -95,7 +124,7 @@ class InternalPublicationController {
     }
 
     response.setStatus(HttpStatus.ACCEPTED.value());
-    return buildFile(fileToBuild.publicationId(), fileToBuild.fileId());
+    return fileBuilder.buildNextFile(fileToBuild);
   }
 
   @PostMapping
@@ -127,12 +156,23 @@ class InternalPublicationController {
       remaining -= thisFileSize;
     }
     repository.saveAll(entities);
+    if (events != null) {
+      events.publishEvent(
+          PublicationCreated.builder()
+              .publicationId(request.publicationId())
+              .fileCount(entities.size())
+              .automatic(request.automatic())
+              .build());
+    }
   }
 
   @DeleteMapping(path = "{id}")
   public void deletePublication(@PathVariable("id") String publicationId) {
     var deleted = repository.deleteByPublicationId(publicationId);
     assertPublicationFound(deleted > 0, publicationId);
+    if (completedPublications != null) {
+      completedPublications.forget(publicationId);
+    }
   }
 
   private void doClearHungStatusMarkers(Duration allowedHangTime) {
@@ -163,6 +203,44 @@ class InternalPublicationController {
     return transformer.apply(entities);
   }
 
+  /**
+   * A page of the status of the publication's files, in file name order. The next page is
+   * requested with the cursor returned by this one.
+   */
+  @GetMapping(path = "{id}/files")
+  public PublicationFilePage getPublicationFiles(
+      @PathVariable("id") String publicationId,
+      @RequestParam(name = "after", defaultValue = "") String after,
+      @RequestParam(name = "limit", defaultValue = "500") @Min(1) @Max(MAX_FILES_PER_PAGE)
+          int limit) {
+    /* One more file than requested tells whether there is another page. */
+    var entities =
+        repository.findByPublicationIdAndFileNameGreaterThanOrderByFileNameAsc(
+            publicationId, after, PageRequest.of(0, limit + 1));
+    assertPublicationFound(!entities.isEmpty() || !after.isEmpty(), publicationId);
+    var files =
+        entities.stream()
+            .limit(limit)
+            .map(DefaultPublicationStatusTransformer::toStatus)
+            .collect(Collectors.toList());
+    return PublicationFilePage.builder()
+        .publicationId(publicationId)
+        .files(files)
+        .next(entities.size() > limit ? files.get(files.size() - 1).fileId() : null)
+        .build();
+  }
+
+  /**
+   * The number of files in each status and the overall status of the publication, counted by the
+   * database instead of loading the status of every file.
+   */
+  @GetMapping(path = "{id}/summary")
+  public PublicationSummary getPublicationSummary(@PathVariable("id") String publicationId) {
+    var summary = repository.findSummaryByPublicationId(publicationId);
+    assertPublicationFound(summary.isPresent(), publicationId);
+    return DefaultPublicationStatusTransformer.summaryOf(summary.get());
+  }
+
   @PostMapping(path = "hung")
   @ResponseStatus(HttpStatus.OK)
   public void manuallyClearHungPublications(@RequestBody ClearHungRequest clearHungRequest) {
@@ -1,27 +1,155 @@
 package gov.va.api.health.bulkfhir.service.controller.publication;
 
+import gov.va.api.health.bulkfhir.service.filebuilder.BlockIndex;
+import gov.va.api.health.bulkfhir.service.filebuilder.BulkFileCodec;
 import gov.va.api.health.bulkfhir.service.filebuilder.BulkFileWriter;
 import gov.va.api.health.bulkfhir.service.filebuilder.FileClaim;
+import gov.va.api.health.bulkfhir.service.filebuilder.NdjsonContent;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.UUID;
+import lombok.Builder;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.logging.log4j.util.Strings;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Service;
 
+/**
+ * Writes bulk files to the local file system, one directory per publication. Files are streamed to
+ * a hidden temporary file in the publication directory and then atomically moved into place, so
+ * readers never see a partially written file.
+ */
 @Service
 @Slf4j
 @ConditionalOnProperty(name = "bulk.file.writer", havingValue = "local")
 public class LocalBulkFileWriter implements BulkFileWriter {
 
-  @Override
-  public void writeFile(FileClaim claim, Stream<String> resources) throws IOException {
-    Path filePath = Paths.get(claim.fileName() + ".ndjson");
-    Files.writeString(filePath, resources.collect(Collectors.joining(Strings.LINE_SEPARATOR)));
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final Path root;
+
+  private final FsyncPolicy fsync;
+
+  private final BulkFileCodec codec;
+
+  /**
+   * Spring constructor that allows customization from application properties.
+   *
+   * @param root The directory that publication directories are created in
+   * @param fsync One of `none`, `file`, or `file-and-directory`, controlling how durable a file
+   *     is before it is considered written
+   * @param codec The compression applied to files, one of `none`, `gzip`, `zstd`, or `bgzf`
+   */
+  @Builder
+  public LocalBulkFileWriter(
+      @Value("${bulk.file.local.root:.}") String root,
+      @Value("${bulk.file.local.fsync:none}") String fsync,
+      @Value("${bulk.file.codec:none}") String codec) {
+    this.root = Paths.get(root == null ? "." : root);
+    this.fsync = FsyncPolicy.of(fsync);
+    this.codec = BulkFileCodec.of(codec);
+  }
+
+  /** Flush directory metadata, e.g. the rename, to disk. Not every platform supports this. */
+  private static void forceDirectory(Path directory) {
+    try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+      channel.force(true);
+    } catch (IOException e) {
+      log.warn("Unable to sync directory {}: {}", directory, e.getMessage());
+    }
+  }
+
+  /**
+   * Write a file in the publication directory through a temporary file that is moved into place
+   * once it is complete.
+   */
+  private <T> T publish(Path directory, String name, FileContents<T> contents) throws IOException {
+    Path filePath = directory.resolve(name);
+    Path tempPath = directory.resolve("." + name + "." + UUID.randomUUID() + ".tmp");
+    T result;
+    try {
+      try (FileChannel channel =
+              FileChannel.open(tempPath, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+          OutputStream out =
+              new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE)) {
+        result = contents.writeTo(out);
+        out.flush();
+        if (fsync != FsyncPolicy.NONE) {
+          channel.force(false);
+        }
+      }
+      Files.move(
+          tempPath, filePath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(tempPath);
+      throw e;
+    }
+    if (fsync == FsyncPolicy.FILE_AND_DIRECTORY) {
+      forceDirectory(directory);
+    }
     log.info("File written to {}", filePath.toAbsolutePath().toString());
+    return result;
+  }
+
+  /**
+   * Write the file, followed by its block index if the codec produces one. The index is written
+   * second, so an index never describes a file that is missing.
+   */
+  @Override
+  public void writeFile(FileClaim claim, NdjsonContent content) throws IOException {
+    Path directory = root.resolve(claim.request().publicationId());
+    Files.createDirectories(directory);
+    String name = claim.fileName() + codec.extension();
+    Optional<BlockIndex> index =
+        publish(
+            directory,
+            name,
+            out -> {
+              OutputStream encoded = codec.encode(out);
+              try (encoded) {
+                content.writeTo(encoded);
+              }
+              return BulkFileCodec.indexOf(encoded);
+            });
+    if (index.isPresent()) {
+      publish(
+          directory,
+          name + BlockIndex.EXTENSION,
+          out -> {
+            index.get().writeTo(out);
+            return null;
+          });
+    }
+  }
+
+  @FunctionalInterface
+  private interface FileContents<T> {
+    T writeTo(OutputStream out) throws IOException;
+  }
+
+  /** How much effort is made to make sure a file has reached the disk before it is published. */
+  enum FsyncPolicy {
+    /** Leave it to the operating system. */
+    NONE,
+    /** Sync the file contents before it is moved into place. */
+    FILE,
+    /** Also sync the publication directory after the move, so the rename survives a crash. */
+    FILE_AND_DIRECTORY;
+
+    static FsyncPolicy of(String policy) {
+      return policy == null
+          ? NONE
+          : valueOf(policy.trim().replace('-', '_').toUpperCase(Locale.ENGLISH));
+    }
   }
 }
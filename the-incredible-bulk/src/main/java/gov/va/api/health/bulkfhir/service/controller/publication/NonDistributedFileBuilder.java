@@ -1,33 +1,138 @@
 package gov.va.api.health.bulkfhir.service.controller.publication;
 
 import gov.va.api.health.bulkfhir.api.internal.FileBuildResponse;
+import gov.va.api.health.bulkfhir.service.filebuilder.ClaimLease;
 import gov.va.api.health.bulkfhir.service.filebuilder.FileBuildRequest;
 import gov.va.api.health.bulkfhir.service.filebuilder.FileBuildWorker;
 import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilder;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilderExceptions.BuildCapacityExceeded;
 import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilderExceptions.ClaimFailed;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilderExceptions.FindFileToBuildFailed;
 import gov.va.api.health.bulkfhir.service.filebuilder.FileClaim;
 import gov.va.api.health.bulkfhir.service.filebuilder.FileClaimant;
-import lombok.AllArgsConstructor;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
 import lombok.Builder;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 @Service
 @Slf4j
-@Builder
-@AllArgsConstructor(onConstructor = @__({@Autowired}))
 public class NonDistributedFileBuilder implements FileBuilder {
 
   private final FileClaimant claimant;
   private final FileBuildWorker worker;
+  private final AdaptiveBuildLimiter limiter;
+  private final BuildAdmission admission;
+  private final ClaimMode claimMode;
+  private final ClaimHeartbeat heartbeat;
+
+  /**
+   * Create a builder that hands files to the worker. Files are only accepted if admission allows
+   * another build. If there is a limiter, builds wait for room under its limit instead of starting
+   * immediately.
+   *
+   * @param claimMode Either `on-submit` to claim the file before it is handed to the worker, or
+   *     `on-dequeue` to leave it unclaimed until a worker thread starts building it
+   * @param heartbeat Renews the lease of claimed files from the claim on, if there is one
+   */
+  @Builder
+  public NonDistributedFileBuilder(
+      @Autowired FileClaimant claimant,
+      @Autowired FileBuildWorker worker,
+      @Autowired(required = false) AdaptiveBuildLimiter limiter,
+      @Autowired(required = false) BuildAdmission admission,
+      @Value("${bulk.build.claim:on-submit}") String claimMode,
+      @Autowired(required = false) ClaimHeartbeat heartbeat) {
+    this.claimant = claimant;
+    this.worker = worker;
+    this.limiter = limiter;
+    this.admission = admission == null ? BuildAdmission.builder().build() : admission;
+    this.claimMode = ClaimMode.of(claimMode);
+    this.heartbeat = heartbeat;
+  }
 
-  @SuppressWarnings("FutureReturnValueIgnored")
   @Override
   public FileBuildResponse buildFile(FileBuildRequest request) {
-    var claim = claim(request);
-    worker.buildFile(claim);
-    return submittedResponse(claim);
+    return build(request, claimMode);
+  }
+
+  /**
+   * Build a file picked as the next to build. It is always claimed before it is queued, otherwise
+   * it would still be the next file for every caller until a worker thread got to it.
+   */
+  @Override
+  public FileBuildResponse buildNextFile(FileBuildRequest request) {
+    return build(request, ClaimMode.ON_SUBMIT);
+  }
+
+  private FileBuildResponse build(FileBuildRequest request, ClaimMode mode) {
+    BuildAdmission.Ticket ticket = admission.admit();
+    CompletableFuture<FileBuildResponse> building;
+    try {
+      building = mode == ClaimMode.ON_DEQUEUE ? submit(request) : claimAndSubmit(request, ticket);
+    } catch (RuntimeException e) {
+      ticket.cancel();
+      throw e;
+    }
+    finishWhenBuilt(ticket, building);
+    return submittedResponse(request);
+  }
+
+  /**
+   * Admit as many of the files as there is capacity for, then claim them all at once. Files are
+   * always claimed before they are queued, whatever the claim mode.
+   */
+  @Override
+  public List<FileBuildResponse> buildNextFiles(int maxFiles) {
+    List<BuildAdmission.Ticket> tickets = new ArrayList<>(Math.max(0, maxFiles));
+    try {
+      while (tickets.size() < maxFiles) {
+        tickets.add(admission.admit());
+      }
+    } catch (BuildCapacityExceeded e) {
+      if (tickets.isEmpty()) {
+        throw e;
+      }
+    }
+    List<FileClaim> claims;
+    try {
+      claims = tickets.isEmpty() ? List.of() : claimant.tryClaimNext(tickets.size());
+    } catch (Exception e) {
+      tickets.forEach(BuildAdmission.Ticket::cancel);
+      log.error("Failed to claim the next {} files", tickets.size(), e);
+      throw new FindFileToBuildFailed(e);
+    }
+    List<FileBuildResponse> responses = new ArrayList<>(claims.size());
+    for (int i = 0; i < tickets.size(); i++) {
+      BuildAdmission.Ticket ticket = tickets.get(i);
+      if (i >= claims.size()) {
+        ticket.cancel();
+        continue;
+      }
+      FileClaim claim = claims.get(i);
+      ticket.claimed(claim);
+      try {
+        finishWhenBuilt(ticket, submit(claim));
+      } catch (RuntimeException e) {
+        ticket.cancel();
+        log.error("Failed to start the build of {}", claim, e);
+        continue;
+      }
+      responses.add(submittedResponse(claim.request()));
+    }
+    return responses;
+  }
+
+  private CompletableFuture<FileBuildResponse> claimAndSubmit(
+      FileBuildRequest request, BuildAdmission.Ticket ticket) {
+    FileClaim claim = claim(request);
+    ticket.claimed(claim);
+    return submit(claim);
   }
 
   private FileClaim claim(FileBuildRequest request) {
@@ -41,10 +146,78 @@ public class NonDistributedFileBuilder implements FileBuilder {
     }
   }
 
-  private FileBuildResponse submittedResponse(FileClaim claim) {
+  private void finishWhenBuilt(
+      BuildAdmission.Ticket ticket, CompletableFuture<FileBuildResponse> building) {
+    if (building == null) {
+      ticket.finished();
+    } else {
+      building.whenComplete((response, failure) -> ticket.finished());
+    }
+  }
+
+  /**
+   * The worker could not accept the build, so return the file to not started rather than leave it
+   * hung. It was never built, so it must not be completed.
+   */
+  private void releaseClaim(FileClaim claim) {
+    try {
+      claimant.releaseClaim(claim);
+    } catch (Exception e) {
+      log.error("We failed to release claim {} after the worker rejected it.", claim, e);
+    }
+  }
+
+  /**
+   * Hand the claimed file to the worker, or to the limiter to hand to the worker later. The lease
+   * is renewed from now on, so it does not expire while the build waits for a thread. Either way,
+   * the claim is released if the worker will not take it.
+   */
+  private CompletableFuture<FileBuildResponse> submit(FileClaim claim) {
+    ClaimLease lease = heartbeat == null ? ClaimLease.NONE : heartbeat.start(claim);
+    return limiter == null
+        ? startBuild(claim, lease)
+        : limiter.submit(claim, limited -> startBuild(limited, lease));
+  }
+
+  /**
+   * Start the build on the worker, releasing the claim if the worker will not take it. The limiter
+   * only reports this failure through the future, so it is released here instead of by the caller.
+   */
+  private CompletableFuture<FileBuildResponse> startBuild(FileClaim claim, ClaimLease lease) {
+    try {
+      return worker.buildFile(claim, lease);
+    } catch (RuntimeException e) {
+      lease.close();
+      releaseClaim(claim);
+      throw e;
+    }
+  }
+
+  /** Queue the build unclaimed. The worker claims it when the build starts. */
+  private CompletableFuture<FileBuildResponse> submit(FileBuildRequest request) {
+    return limiter == null
+        ? worker.claimAndBuildFile(request)
+        : limiter.submit(request, worker::claimAndBuildFile);
+  }
+
+  private FileBuildResponse submittedResponse(FileBuildRequest request) {
     return FileBuildResponse.builder()
-        .publicationId(claim.request().publicationId())
-        .fileId(claim.request().fileId())
+        .publicationId(request.publicationId())
+        .fileId(request.fileId())
         .build();
   }
+
+  /** When a file is claimed for building. */
+  enum ClaimMode {
+    /** Before the build is handed to the worker, so claim failures are reported to the caller. */
+    ON_SUBMIT,
+    /** When a worker thread starts the build, so queued files are never claimed but idle. */
+    ON_DEQUEUE;
+
+    static ClaimMode of(String mode) {
+      return mode == null
+          ? ON_SUBMIT
+          : valueOf(mode.trim().replace('-', '_').toUpperCase(Locale.ENGLISH));
+    }
+  }
 }
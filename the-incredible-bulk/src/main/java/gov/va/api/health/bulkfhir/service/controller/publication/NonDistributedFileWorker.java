@@ -1,38 +1,41 @@
 package gov.va.api.health.bulkfhir.service.controller.publication;
 
+import static gov.va.api.health.bulkfhir.service.config.AsyncConfig.DATA_QUERY_FETCH_EXECUTOR;
 import static gov.va.api.health.bulkfhir.service.config.AsyncConfig.PUBLICATION_BUILD_EXECUTOR;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import gov.va.api.health.argonaut.api.resources.Patient;
-import gov.va.api.health.bulkfhir.anonymizer.ClassPathResourceBasedNames;
-import gov.va.api.health.bulkfhir.anonymizer.ResourceBasedSyntheticData;
-import gov.va.api.health.bulkfhir.anonymizer.SaltedType5UuidGenerator;
-import gov.va.api.health.bulkfhir.anonymizer.patient.PatientAnonymizer;
 import gov.va.api.health.bulkfhir.api.internal.FileBuildResponse;
-import gov.va.api.health.bulkfhir.service.controller.JsonStringConverter;
 import gov.va.api.health.bulkfhir.service.dataquery.client.DataQueryBatchClient;
 import gov.va.api.health.bulkfhir.service.dataquery.client.DataQueryBatchClient.DataQueryBatchClientException;
 import gov.va.api.health.bulkfhir.service.filebuilder.BulkFileWriter;
+import gov.va.api.health.bulkfhir.service.filebuilder.ClaimLease;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuildRequest;
 import gov.va.api.health.bulkfhir.service.filebuilder.FileBuildWorker;
 import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilderExceptions.BuildFailed;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilderExceptions.ClaimFailed;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilderExceptions.ClaimLost;
 import gov.va.api.health.bulkfhir.service.filebuilder.FileClaim;
 import gov.va.api.health.bulkfhir.service.filebuilder.FileClaimant;
-import gov.va.api.health.dstu2.api.resources.Resource;
-import java.util.List;
-import java.util.Objects;
+import gov.va.api.health.bulkfhir.service.filebuilder.NdjsonContent;
 import java.util.concurrent.CompletableFuture;
-import java.util.function.Function;
+import java.util.concurrent.Executor;
 import java.util.stream.Stream;
 import lombok.Builder;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 
 @Service
 @Slf4j
-@Builder
+@ConditionalOnProperty(
+    name = "bulk.file.worker",
+    havingValue = "non-distributed",
+    matchIfMissing = true)
 public class NonDistributedFileWorker implements FileBuildWorker {
 
   private final DataQueryBatchClient dataQuery;
@@ -41,13 +44,17 @@ public class NonDistributedFileWorker implements FileBuildWorker {
 
   private final BulkFileWriter fileWriter;
 
-  private final ObjectMapper jacksonMapper;
+  private final PatientFileStages stages;
 
-  private final int familyNameOffset;
+  private final Executor fetchExecutor;
 
-  private final String saltKey;
+  private final int subRangeSize;
 
-  private final String uuidSeed;
+  private final int fetchConcurrency;
+
+  private final ClaimHeartbeat heartbeat;
+
+  private final BuildWatchdog watchdog;
 
   /**
    * Default constructor.
@@ -58,7 +65,15 @@ public class NonDistributedFileWorker implements FileBuildWorker {
    * @param jacksonMapper The jackson object mapper
    * @param familyNameOffset The family name offset value
    * @param saltKey The salt key to use for id anonymization
+   * @param uuidSeed The seed to use for id anonymization
+   * @param fetchExecutor The executor used to fetch sub-ranges of a file from Data Query
+   * @param subRangeSize The preferred number of records per Data Query request, or 0 to fetch each
+   *     file with one request
+   * @param fetchConcurrency The number of requests for one file that may be in flight at once
+   * @param heartbeat Renews the lease of files claimed when their build starts, if there is one
+   * @param watchdog Cancels builds that take too long, if there is one
    */
+  @Builder
   public NonDistributedFileWorker(
       @Autowired DataQueryBatchClient dataQuery,
       @Autowired FileClaimant claimant,
@@ -66,75 +81,103 @@ public class NonDistributedFileWorker implements FileBuildWorker {
       @Autowired ObjectMapper jacksonMapper,
       @Value("${anonymization.family-name-offset}") int familyNameOffset,
       @Value("${anonymization.salt}") String saltKey,
-      @Value("${anonymization.uuid-seed}") String uuidSeed) {
+      @Value("${anonymization.uuid-seed}") String uuidSeed,
+      @Autowired @Qualifier(DATA_QUERY_FETCH_EXECUTOR) Executor fetchExecutor,
+      @Value("${bulk.file.fetch.sub-range-size:0}") int subRangeSize,
+      @Value("${bulk.file.fetch.concurrency:4}") int fetchConcurrency,
+      @Autowired(required = false) ClaimHeartbeat heartbeat,
+      @Autowired(required = false) BuildWatchdog watchdog) {
     this.dataQuery = dataQuery;
     this.claimant = claimant;
     this.fileWriter = fileWriter;
-    this.jacksonMapper = jacksonMapper;
-    this.familyNameOffset = familyNameOffset;
-    this.saltKey = saltKey;
-    this.uuidSeed = uuidSeed;
+    this.stages =
+        PatientFileStages.builder()
+            .jacksonMapper(jacksonMapper)
+            .familyNameOffset(familyNameOffset)
+            .saltKey(saltKey)
+            .uuidSeed(uuidSeed)
+            .build();
+    this.fetchExecutor = fetchExecutor;
+    this.subRangeSize = subRangeSize;
+    this.fetchConcurrency = fetchConcurrency;
+    this.heartbeat = heartbeat;
+    this.watchdog = watchdog;
   }
 
   @Override
   @Async(PUBLICATION_BUILD_EXECUTOR)
-  public CompletableFuture<FileBuildResponse> buildFile(FileClaim claim) {
-    try {
-      List<Patient> patients = fetchPatients(claim);
-      writePatients(
-          claim,
-          patients.stream()
-              .map(patientAnonymizer())
-              .map(jsonStringConverter())
-              .filter(Objects::nonNull));
-      releaseClaim(claim);
+  public CompletableFuture<FileBuildResponse> buildFile(FileClaim claim, ClaimLease lease) {
+    BuildWatchdog.Watch watch = startWatch(claim);
+    /* The file may already be another build's, so this build stops rather than finish it. */
+    lease.onLost(
+        () ->
+            watch.cancel(new ClaimLost(claim.request().publicationId(), claim.request().fileId())));
+    try (BuildWatchdog.Scope interruptible = watch.interruptOnTimeout();
+        Stream<Patient> patients = fetchPatients(claim)) {
+      writePatients(claim, stages.content(watch.guard(patients)));
+      watch.close();
+      completeClaim(claim, lease);
       return successfulResponse(claim);
     } catch (Exception e) {
-      releaseClaim(claim);
-      return failedResponse(claim, e);
+      watch.close();
+      failClaim(claim, lease);
+      return failedResponse(claim, watch.cancelled() ? watch.failure() : e);
     }
   }
 
+  /**
+   * Claim the file on the build thread. The build itself runs on this thread too, since calls from
+   * within the worker do not go through the asynchronous proxy.
+   */
+  @Override
+  @Async(PUBLICATION_BUILD_EXECUTOR)
+  public CompletableFuture<FileBuildResponse> claimAndBuildFile(FileBuildRequest request) {
+    FileClaim claim;
+    try {
+      claim = claimant.tryClaim(request);
+    } catch (ClaimFailed e) {
+      log.info("Not building {}: {}", request, e.getMessage());
+      return CompletableFuture.failedFuture(e);
+    } catch (Exception e) {
+      log.error("Failed to claim {}", request, e);
+      return CompletableFuture.failedFuture(
+          new ClaimFailed(request.publicationId(), request.fileId(), e));
+    }
+    return buildFile(claim, startHeartbeat(claim));
+  }
+
   private CompletableFuture<FileBuildResponse> failedResponse(FileClaim claim, Exception cause) {
     return CompletableFuture.failedFuture(
         new BuildFailed(claim.request().publicationId(), claim.request().fileId(), cause));
   }
 
-  private List<Patient> fetchPatients(FileClaim claim) {
+  /**
+   * Open a stream of patients for the claim. Patients are read from Data Query as the file is
+   * written, so the whole page is never held in memory at once. Large files may be fetched as
+   * several sub-ranges in parallel.
+   */
+  private Stream<Patient> fetchPatients(FileClaim claim) {
     try {
       log.info("Fetching patients: {}", claim);
-      List<Patient> patients = dataQuery.requestPatients(claim.page(), claim.count());
-      log.info("Found {} patients to bulk process.", patients.size());
-      return patients;
+      return SubRangePatientFetcher.builder()
+          .dataQuery(dataQuery)
+          .subRangeSize(subRangeSize)
+          .concurrency(fetchConcurrency)
+          .executor(fetchExecutor)
+          .build()
+          .fetch(claim);
     } catch (DataQueryBatchClientException e) {
       log.error("Failed to fetch patients", e);
       throw e;
     }
   }
 
-  private Function<? super Resource, String> jsonStringConverter() {
-    return JsonStringConverter.builder().jacksonMapper(jacksonMapper).build();
-  }
-
-  private Function<Patient, Patient> patientAnonymizer() {
-    return PatientAnonymizer.builder()
-        .syntheticData(
-            ResourceBasedSyntheticData.builder()
-                .names(ClassPathResourceBasedNames.instance())
-                .familyNameOffset(familyNameOffset)
-                .build())
-        .idGenerator(
-            SaltedType5UuidGenerator.builder()
-                .resource("Patient")
-                .saltKey(saltKey)
-                .seed(uuidSeed)
-                .build())
-        .build();
-  }
-
-  private void releaseClaim(FileClaim claim) {
+  private void completeClaim(FileClaim claim, ClaimLease lease) {
+    lease.close();
     try {
-      claimant.completeClaim(claim.request());
+      claimant.completeClaim(claim);
+    } catch (ClaimLost e) {
+      log.warn("Not completing {}, its lease expired and it was claimed again.", claim);
     } catch (Exception e) {
       /*
        * We don't want to explode if we fail to complete the claim for some reason.
@@ -145,6 +188,29 @@ public class NonDistributedFileWorker implements FileBuildWorker {
     }
   }
 
+  /**
+   * The build failed or timed out, so return the file to not started instead of completing it. It
+   * is retried after a delay, so only the files that failed are built again.
+   */
+  private void failClaim(FileClaim claim, ClaimLease lease) {
+    lease.close();
+    try {
+      claimant.failClaim(claim);
+    } catch (ClaimLost e) {
+      log.warn("Not failing {}, its lease expired and it was claimed again.", claim);
+    } catch (Exception e) {
+      log.error("We failed to record the failed build of {}.", claim, e);
+    }
+  }
+
+  private ClaimLease startHeartbeat(FileClaim claim) {
+    return heartbeat == null ? ClaimLease.NONE : heartbeat.start(claim);
+  }
+
+  private BuildWatchdog.Watch startWatch(FileClaim claim) {
+    return watchdog == null ? BuildWatchdog.unwatched(claim) : watchdog.watch(claim);
+  }
+
   private CompletableFuture<FileBuildResponse> successfulResponse(FileClaim claim) {
     return CompletableFuture.completedFuture(
         FileBuildResponse.builder()
@@ -153,7 +219,7 @@ public class NonDistributedFileWorker implements FileBuildWorker {
             .build());
   }
 
-  private void writePatients(FileClaim claim, Stream<String> patients) throws Exception {
+  private void writePatients(FileClaim claim, NdjsonContent patients) throws Exception {
     try {
       fileWriter.writeFile(claim, patients);
     } catch (Exception e) {
@@ -24,10 +24,11 @@ public class OldestFirstFileToBuildManager implements FileToBuildManager {
 
   @Override
   public FileBuildRequest getNextFileToBuild() {
-    List<StatusEntity> availableFiles = repository.findByStatusNotStarted(PageRequest.of(0, 1));
+    List<StatusEntity> availableFiles =
+        repository.findAvailable(System.currentTimeMillis(), PageRequest.of(0, 1));
     if (availableFiles == null || availableFiles.isEmpty()) {
       /*
-       * No files that haven't been started yet have been found.
+       * No files that haven't been started yet, or whose lease has expired, have been found.
        */
       log.info("Didn't find any files available to be started.");
       return null;
@@ -2,19 +2,22 @@ package gov.va.api.health.bulkfhir.service.controller.publication;
 
 import static gov.va.api.health.bulkfhir.service.controller.publication.PublicationExceptions.assertPublicationFileFound;
 
+import gov.va.api.health.bulkfhir.service.filebuilder.BulkFileCodec;
 import gov.va.api.health.bulkfhir.service.filebuilder.FileBuildRequest;
 import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilderExceptions.AlreadyClaimed;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilderExceptions.ClaimLost;
 import gov.va.api.health.bulkfhir.service.filebuilder.FileClaim;
 import gov.va.api.health.bulkfhir.service.filebuilder.FileClaimant;
 import gov.va.api.health.bulkfhir.service.status.StatusEntity;
 import gov.va.api.health.bulkfhir.service.status.StatusRepository;
-import java.net.InetAddress;
-import java.net.UnknownHostException;
+import java.time.Duration;
 import java.util.List;
-import lombok.AllArgsConstructor;
+import java.util.function.Consumer;
 import lombok.Builder;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.orm.ObjectOptimisticLockingFailureException;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Propagation;
@@ -28,17 +31,66 @@ import org.springframework.transaction.annotation.Transactional;
  */
 @Service
 @Slf4j
-@Builder
-@AllArgsConstructor(onConstructor = @__({@Autowired}))
+@ConditionalOnProperty(
+    name = "bulk.build.claimant",
+    havingValue = "optimistic",
+    matchIfMissing = true)
 public class OptimisticFileClaimant implements FileClaimant {
 
   private final StatusRepository repository;
 
+  private final Duration lease;
+
+  private final BuildRetryPolicy retryPolicy;
+
+  private final CompletedPublications completedPublications;
+
+  private final BulkFileCodec codec;
+
+  /**
+   * Spring constructor that allows customization from application properties.
+   *
+   * @param repository The status repository
+   * @param leaseSeconds How long a claim lasts without being renewed, or 0 for claims that never
+   *     expire
+   * @param retryPolicy When failed builds are retried, or immediately and forever if there is none
+   * @param completedPublications Told when files complete or are rebuilt, if there is one
+   * @param codec The codec files are written with, whose extension is recorded when they complete
+   */
+  @Builder
+  public OptimisticFileClaimant(
+      @Autowired StatusRepository repository,
+      @Value("${bulk.build.lease.duration-seconds:0}") long leaseSeconds,
+      @Autowired(required = false) BuildRetryPolicy retryPolicy,
+      @Autowired(required = false) CompletedPublications completedPublications,
+      @Value("${bulk.file.codec:none}") String codec) {
+    this.repository = repository;
+    this.lease = Duration.ofSeconds(Math.max(0, leaseSeconds));
+    this.retryPolicy = retryPolicy == null ? BuildRetryPolicy.builder().build() : retryPolicy;
+    this.completedPublications = completedPublications;
+    this.codec = BulkFileCodec.of(codec);
+  }
+
+  /** The file is only completed if it still has the claim's version. */
   @Override
-  public void completeClaim(FileBuildRequest request) {
+  public void completeClaim(FileClaim claim) {
+    FileBuildRequest request = claim.request();
     StatusEntity entity = findStatusEntity(request);
+    if (entity.version() != claim.version()) {
+      throw new ClaimLost(request.publicationId(), request.fileId());
+    }
     entity.buildCompleteEpoch(System.currentTimeMillis());
-    repository.saveAndFlush(entity);
+    entity.fileExtension(codec.extension());
+    entity.leaseExpiryEpoch(0);
+    entity.failureCount(0);
+    try {
+      repository.saveAndFlush(entity);
+    } catch (ObjectOptimisticLockingFailureException e) {
+      throw new ClaimLost(request.publicationId(), request.fileId());
+    }
+    if (completedPublications != null) {
+      completedPublications.fileCompleted(request.publicationId(), request.fileId());
+    }
   }
 
   private StatusEntity findStatusEntity(FileBuildRequest request) {
@@ -48,42 +100,107 @@ public class OptimisticFileClaimant implements FileClaimant {
     return entities.get(0);
   }
 
-  private String hostName() {
+  /** The failure is only recorded if the file is still being built with the claim's version. */
+  @Override
+  public void failClaim(FileClaim claim) {
+    long now = System.currentTimeMillis();
+    int failures = claim.failureCount() + 1;
+    boolean failed = retryPolicy.exhausted(failures);
+    reset(
+        claim,
+        entity -> {
+          entity.failureCount(failures);
+          entity.lastFailureEpoch(now);
+          entity.retryAfterEpoch(retryPolicy.retryAfterEpoch(now, failures));
+          entity.failed(failed);
+        });
+    if (failed) {
+      log.warn("{} failed {} times, giving up", claim, failures);
+    }
+  }
+
+  /** The file is only released if it is still being built with the claim's version. */
+  @Override
+  public void releaseClaim(FileClaim claim) {
+    reset(claim, entity -> {});
+  }
+
+  /** Return the file to not started, if it still has the claim's version. */
+  private void reset(FileClaim claim, Consumer<StatusEntity> update) {
+    FileBuildRequest request = claim.request();
+    StatusEntity entity = findStatusEntity(request);
+    if (entity.version() != claim.version() || entity.buildCompleteEpoch() > 0) {
+      throw new ClaimLost(request.publicationId(), request.fileId());
+    }
+    entity.buildStartEpoch(0);
+    entity.leaseExpiryEpoch(0);
+    update.accept(entity);
     try {
-      return InetAddress.getLocalHost().getHostName();
-    } catch (UnknownHostException e) {
-      var assumedIdentity = System.getenv("HOST");
-      if (assumedIdentity == null) {
-        assumedIdentity = "Unknown-" + System.identityHashCode(this);
-      }
-      log.info("Could not determine hostname, assuming identity: {}", assumedIdentity);
-      return assumedIdentity;
+      repository.saveAndFlush(entity);
+    } catch (ObjectOptimisticLockingFailureException e) {
+      throw new ClaimLost(request.publicationId(), request.fileId());
     }
   }
 
+  /**
+   * Leases are renewed with a conditional update, like the {@link ConditionalUpdateFileClaimant},
+   * so renewing does not change the version that fences the claim.
+   */
+  @Override
+  public boolean renewClaim(FileClaim claim) {
+    long leaseExpiryEpoch = FileClaims.leaseExpiryEpoch(System.currentTimeMillis(), lease);
+    return leaseExpiryEpoch > 0
+        && repository.renewLease(
+                claim.request().publicationId(),
+                claim.request().fileId(),
+                claim.version(),
+                leaseExpiryEpoch)
+            > 0;
+  }
+
   /**
    * This claim attempt defines it's own transaction boundary and explicitly updates and flushes.
-   * JPA Optimistic Locking behavior is expected to prevent overwriting.
+   * JPA Optimistic Locking behavior is expected to prevent overwriting. Files being built under a
+   * lease that has not expired are already claimed, as they are for the {@link
+   * ConditionalUpdateFileClaimant}.
    */
   @Transactional(propagation = Propagation.REQUIRES_NEW)
   @Override
   public FileClaim tryClaim(FileBuildRequest request) {
     log.info("Claiming {}/{}", request.publicationId(), request.fileId());
     StatusEntity entity = findStatusEntity(request);
-    entity.buildStartEpoch(System.currentTimeMillis());
+    long now = System.currentTimeMillis();
+    if (FileClaims.beingBuilt(entity, now)) {
+      throw new AlreadyClaimed(request.publicationId(), request.fileId());
+    }
+    boolean rebuilding = entity.buildCompleteEpoch() > 0;
+    entity.buildStartEpoch(now);
     entity.buildCompleteEpoch(0);
-    entity.buildProcessorId(hostName());
+    entity.leaseExpiryEpoch(FileClaims.leaseExpiryEpoch(now, lease));
+    entity.attemptCount(entity.attemptCount() + 1);
+    if (entity.failed()) {
+      /* Asking for a file that failed for good gives it its retries back. */
+      entity.failureCount(0);
+    }
+    entity.retryAfterEpoch(0);
+    entity.failed(false);
+    entity.buildProcessorId(FileClaims.processorId());
     log.info("BEFORE: {}", entity);
     try {
       entity = repository.saveAndFlush(entity);
-      return FileClaim.builder()
-          .request(request)
-          .fileName(entity.fileName())
-          .page(entity.page())
-          .count(entity.count())
-          .build();
+      if (rebuilding && completedPublications != null) {
+        completedPublications.forget(request.publicationId());
+      }
+      return FileClaims.claimOf(request, entity);
     } catch (ObjectOptimisticLockingFailureException e) {
       throw new AlreadyClaimed(request.publicationId(), request.fileId());
     }
   }
+
+  /** Batches are claimed the same way by every claimant, see {@link FileClaims#claimNext}. */
+  @Transactional(propagation = Propagation.REQUIRES_NEW)
+  @Override
+  public List<FileClaim> tryClaimNext(int maxFiles) {
+    return FileClaims.claimNext(repository, maxFiles, lease);
+  }
 }
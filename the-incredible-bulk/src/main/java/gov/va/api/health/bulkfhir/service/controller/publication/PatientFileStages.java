@@ -0,0 +1,71 @@
+package gov.va.api.health.bulkfhir.service.controller.publication;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gov.va.api.health.argonaut.api.resources.Patient;
+import gov.va.api.health.bulkfhir.anonymizer.ClassPathResourceBasedNames;
+import gov.va.api.health.bulkfhir.anonymizer.ResourceBasedSyntheticData;
+import gov.va.api.health.bulkfhir.anonymizer.SaltedType5UuidGenerator;
+import gov.va.api.health.bulkfhir.anonymizer.patient.PatientAnonymizer;
+import gov.va.api.health.bulkfhir.service.controller.NdjsonSerializer;
+import gov.va.api.health.bulkfhir.service.filebuilder.NdjsonContent;
+import java.util.Objects;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import lombok.AccessLevel;
+import lombok.Builder;
+import lombok.Getter;
+
+/**
+ * The anonymize and serialize steps of building a patient file, shared by the file workers. The
+ * functions are stateless, so they are built once, on first use, and shared by every thread.
+ */
+@Builder
+class PatientFileStages {
+
+  private final ObjectMapper jacksonMapper;
+
+  private final int familyNameOffset;
+
+  private final String saltKey;
+
+  private final String uuidSeed;
+
+  @Getter(value = AccessLevel.PRIVATE, lazy = true)
+  private final Function<Patient, Patient> anonymizer = createAnonymizer();
+
+  @Getter(value = AccessLevel.PRIVATE, lazy = true)
+  private final NdjsonSerializer<Patient> serializer =
+      NdjsonSerializer.<Patient>builder()
+          .jacksonMapper(jacksonMapper)
+          .resourceType(Patient.class)
+          .build();
+
+  private Function<Patient, Patient> createAnonymizer() {
+    return PatientAnonymizer.builder()
+        .syntheticData(
+            ResourceBasedSyntheticData.builder()
+                .names(ClassPathResourceBasedNames.instance())
+                .familyNameOffset(familyNameOffset)
+                .build())
+        .idGenerator(
+            SaltedType5UuidGenerator.builder()
+                .resource("Patient")
+                .saltKey(saltKey)
+                .seed(uuidSeed)
+                .build())
+        .build();
+  }
+
+  /** Anonymize patients and serialize them directly to the file as it is written. */
+  NdjsonContent content(Stream<Patient> patients) {
+    return serializer().content(patients.map(anonymizer()));
+  }
+
+  /**
+   * Anonymize and serialize patients for a writer on another thread, dropping any that cannot be
+   * converted to JSON.
+   */
+  Stream<byte[]> records(Stream<Patient> patients) {
+    return patients.map(anonymizer()).map(serializer()::toBytes).filter(Objects::nonNull);
+  }
+}
@@ -0,0 +1,380 @@
+package gov.va.api.health.bulkfhir.service.controller.publication;
+
+import static gov.va.api.health.bulkfhir.service.config.AsyncConfig.DATA_QUERY_FETCH_EXECUTOR;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gov.va.api.health.argonaut.api.resources.Patient;
+import gov.va.api.health.bulkfhir.api.internal.FileBuildResponse;
+import gov.va.api.health.bulkfhir.service.controller.publication.StagePipe.PipeAborted;
+import gov.va.api.health.bulkfhir.service.dataquery.client.DataQueryBatchClient;
+import gov.va.api.health.bulkfhir.service.filebuilder.BulkFileWriter;
+import gov.va.api.health.bulkfhir.service.filebuilder.ClaimLease;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuildRequest;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuildWorker;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilderExceptions.BuildFailed;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilderExceptions.ClaimFailed;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilderExceptions.ClaimLost;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileClaim;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileClaimant;
+import gov.va.api.health.bulkfhir.service.filebuilder.NdjsonContent;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import javax.annotation.PreDestroy;
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+/**
+ * Builds files as a three stage pipeline: fetch from Data Query, anonymize and serialize to JSON
+ * bytes, then write. Each stage has its own threads, and stages hand records to each other through
+ * bounded pipes. The CPU bound transform of one file overlaps the network bound fetch and write,
+ * and the fetch of the next claimed file starts as soon as a fetch thread is free, even if earlier
+ * files are still being uploaded.
+ *
+ * <p>Stages of every file are submitted in claim order to executors that run tasks in order, so a
+ * file's fetch and transform are never stuck behind a later file whose writer cannot start.
+ */
+@Service
+@Slf4j
+@ConditionalOnProperty(name = "bulk.file.worker", havingValue = "pipelined")
+public class PipelinedFileWorker implements FileBuildWorker {
+
+  private final SubRangePatientFetcher fetcher;
+
+  private final FileClaimant claimant;
+
+  private final BulkFileWriter fileWriter;
+
+  private final PatientFileStages stages;
+
+  private final int queueSize;
+
+  private final ExecutorService fetchStage;
+
+  private final ExecutorService transformStage;
+
+  private final ExecutorService writeStage;
+
+  private final ClaimHeartbeat heartbeat;
+
+  private final BuildWatchdog watchdog;
+
+  /**
+   * Spring constructor that allows customization from application properties.
+   *
+   * @param dataQuery The data query client
+   * @param claimant The file claimant
+   * @param fileWriter The file writer
+   * @param jacksonMapper The jackson object mapper
+   * @param familyNameOffset The family name offset value
+   * @param saltKey The salt key to use for id anonymization
+   * @param uuidSeed The seed to use for id anonymization
+   * @param fetchThreads The number of files that may be fetched from Data Query at once
+   * @param transformThreads The number of files that may be anonymized at once
+   * @param writeThreads The number of files that may be written at once
+   * @param queueSize The number of records that may wait between two stages of one file
+   * @param fetchExecutor The executor used to fetch sub-ranges of a file from Data Query
+   * @param subRangeSize The preferred number of records per Data Query request, or 0 to fetch each
+   *     file with one request
+   * @param fetchConcurrency The number of requests for one file that may be in flight at once
+   * @param heartbeat Renews the lease of files claimed when their fetch starts, if there is one
+   * @param watchdog Cancels builds that take too long, if there is one
+   */
+  @Builder
+  public PipelinedFileWorker(
+      @Autowired DataQueryBatchClient dataQuery,
+      @Autowired FileClaimant claimant,
+      @Autowired BulkFileWriter fileWriter,
+      @Autowired ObjectMapper jacksonMapper,
+      @Value("${anonymization.family-name-offset}") int familyNameOffset,
+      @Value("${anonymization.salt}") String saltKey,
+      @Value("${anonymization.uuid-seed}") String uuidSeed,
+      @Value("${bulk.file.pipeline.fetch-threads:3}") int fetchThreads,
+      @Value("${bulk.file.pipeline.transform-threads:3}") int transformThreads,
+      @Value("${bulk.file.pipeline.write-threads:3}") int writeThreads,
+      @Value("${bulk.file.pipeline.queue-size:1000}") int queueSize,
+      @Autowired @Qualifier(DATA_QUERY_FETCH_EXECUTOR) Executor fetchExecutor,
+      @Value("${bulk.file.fetch.sub-range-size:0}") int subRangeSize,
+      @Value("${bulk.file.fetch.concurrency:4}") int fetchConcurrency,
+      @Autowired(required = false) ClaimHeartbeat heartbeat,
+      @Autowired(required = false) BuildWatchdog watchdog) {
+    this.fetcher =
+        SubRangePatientFetcher.builder()
+            .dataQuery(dataQuery)
+            .subRangeSize(subRangeSize)
+            .concurrency(fetchConcurrency)
+            .executor(fetchExecutor)
+            .build();
+    this.claimant = claimant;
+    this.fileWriter = fileWriter;
+    this.stages =
+        PatientFileStages.builder()
+            .jacksonMapper(jacksonMapper)
+            .familyNameOffset(familyNameOffset)
+            .saltKey(saltKey)
+            .uuidSeed(uuidSeed)
+            .build();
+    this.queueSize = Math.max(1, queueSize);
+    this.fetchStage = stageExecutor("Build-Fetch-", fetchThreads);
+    this.transformStage = stageExecutor("Build-Transform-", transformThreads);
+    this.writeStage = stageExecutor("Build-Write-", writeThreads);
+    this.heartbeat = heartbeat;
+    this.watchdog = watchdog;
+  }
+
+  /**
+   * Find the exception that caused the build to fail. Stages that failed only because another
+   * stage aborted their pipe are not interesting.
+   */
+  private static Throwable causeOf(CompletableFuture<?>... stages) {
+    Throwable cause = null;
+    for (CompletableFuture<?> stage : stages) {
+      Throwable failure = stage.handle((ignored, error) -> unwrap(error)).join();
+      if (failure != null && (cause == null || cause instanceof PipeAborted)) {
+        cause = failure;
+      }
+    }
+    if (cause instanceof PipeAborted && cause.getCause() != null) {
+      return cause.getCause();
+    }
+    return cause;
+  }
+
+  private static CompletableFuture<Void> runStage(
+      Stage stage, ExecutorService executor, StagePipe<?> input, StagePipe<?> output) {
+    CompletableFuture<Void> future =
+        CompletableFuture.runAsync(
+            () -> {
+              try {
+                stage.run();
+              } catch (Exception e) {
+                throw new CompletionException(e);
+              }
+            },
+            executor);
+    return future.whenComplete(
+        (ignored, error) -> {
+          if (error != null) {
+            Throwable cause = unwrap(error);
+            if (output != null) {
+              output.abort(cause);
+            }
+            if (input != null) {
+              input.abort(cause);
+            }
+          } else if (input != null) {
+            /* The input should be exhausted. If it isn't, stop the producer rather than hang. */
+            input.abort(new IllegalStateException("Stage finished without reading all records"));
+          }
+        });
+  }
+
+  private static ExecutorService stageExecutor(String name, int threads) {
+    CustomizableThreadFactory factory = new CustomizableThreadFactory(name);
+    factory.setDaemon(true);
+    return Executors.newFixedThreadPool(Math.max(1, threads), factory);
+  }
+
+  private static Throwable unwrap(Throwable error) {
+    return error instanceof CompletionException && error.getCause() != null
+        ? error.getCause()
+        : error;
+  }
+
+  /** Wait for the fetch stage to claim the file. */
+  private static FileClaim awaitClaim(CompletableFuture<FileClaim> claimed) {
+    try {
+      return claimed.join();
+    } catch (CompletionException e) {
+      throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+    }
+  }
+
+  private CompletableFuture<FileBuildResponse> build(
+      FileBuildRequest request,
+      Supplier<FileClaim> claimer,
+      Function<FileClaim, ClaimLease> leaser) {
+    CompletableFuture<FileClaim> claimed = new CompletableFuture<>();
+    CompletableFuture<ClaimLease> lease = claimed.thenApply(leaser);
+    StagePipe<Patient> patients = new StagePipe<>(queueSize);
+    StagePipe<byte[]> records = new StagePipe<>(queueSize);
+    /*
+     * A build that times out or loses its lease is cancelled by aborting its pipes, which fails
+     * every stage. The budget starts when the write stage does, so waiting for a writer does not
+     * use it up.
+     */
+    CompletableFuture<BuildWatchdog.Watch> watch =
+        lease.thenApply(leased -> prepareWatch(claimed.join(), leased, patients, records));
+    CompletableFuture<Void> fetched;
+    CompletableFuture<Void> transformed;
+    CompletableFuture<Void> written;
+    synchronized (this) {
+      fetched =
+          runStage(() -> fetch(claimer, claimed, watch, patients), fetchStage, null, patients);
+      transformed = runStage(() -> transform(patients, records), transformStage, patients, records);
+      written =
+          runStage(
+              () -> write(awaitClaim(claimed), watch.join(), records), writeStage, records, null);
+    }
+    return CompletableFuture.allOf(fetched, transformed, written)
+        .handle(
+            (ignored, error) -> {
+              boolean cancelled = false;
+              if (claimed.isDone() && !claimed.isCompletedExceptionally()) {
+                watch.join().close();
+                lease.join().close();
+                cancelled = watch.join().cancelled();
+                if (error == null) {
+                  completeClaim(claimed.join());
+                } else {
+                  failClaim(claimed.join());
+                }
+              }
+              if (error != null) {
+                Throwable cause =
+                    cancelled ? watch.join().failure() : causeOf(written, transformed, fetched);
+                if (cause instanceof ClaimFailed) {
+                  log.info("Not building {}: {}", request, cause.getMessage());
+                  throw (ClaimFailed) cause;
+                }
+                log.error("Failed to build file {}", request, cause);
+                throw new BuildFailed(request.publicationId(), request.fileId(), cause);
+              }
+              return FileBuildResponse.builder()
+                  .publicationId(request.publicationId())
+                  .fileId(request.fileId())
+                  .build();
+            });
+  }
+
+  @Override
+  public CompletableFuture<FileBuildResponse> buildFile(FileClaim claim, ClaimLease lease) {
+    return build(claim.request(), () -> claim, claimed -> lease);
+  }
+
+  /** Claim the file when its fetch starts, so it is not claimed while it waits for a thread. */
+  @Override
+  public CompletableFuture<FileBuildResponse> claimAndBuildFile(FileBuildRequest request) {
+    return build(request, () -> claim(request), this::startHeartbeat);
+  }
+
+  private FileClaim claim(FileBuildRequest request) {
+    try {
+      return claimant.tryClaim(request);
+    } catch (ClaimFailed e) {
+      throw e;
+    } catch (Exception e) {
+      log.error("Failed to claim {}", request, e);
+      throw new ClaimFailed(request.publicationId(), request.fileId(), e);
+    }
+  }
+
+  private void fetch(
+      Supplier<FileClaim> claimer,
+      CompletableFuture<FileClaim> claimed,
+      CompletableFuture<BuildWatchdog.Watch> watch,
+      StagePipe<Patient> patients) {
+    FileClaim claim;
+    try {
+      claim = claimer.get();
+    } catch (RuntimeException e) {
+      claimed.completeExceptionally(e);
+      throw e;
+    }
+    claimed.complete(claim);
+    log.info("Fetching patients: {}", claim);
+    /* The fetch may be blocked on Data Query rather than the pipe, so it is interrupted too. */
+    try (BuildWatchdog.Scope interruptible = watch.join().interruptOnTimeout();
+        Stream<Patient> stream = fetcher.fetch(claim)) {
+      stream.forEach(patients::put);
+    }
+    patients.finish();
+  }
+
+  private void completeClaim(FileClaim claim) {
+    try {
+      claimant.completeClaim(claim);
+    } catch (ClaimLost e) {
+      log.warn("Not completing {}, its lease expired and it was claimed again.", claim);
+    } catch (Exception e) {
+      /*
+       * As with the non-distributed worker, failing to complete the claim only means the file
+       * may be rebuilt later.
+       */
+      log.error("We failed to mark this claim {} as complete.", claim, e);
+    }
+  }
+
+  /** The build failed or timed out, so return the file to be retried after a delay. */
+  private void failClaim(FileClaim claim) {
+    try {
+      claimant.failClaim(claim);
+    } catch (ClaimLost e) {
+      log.warn("Not failing {}, its lease expired and it was claimed again.", claim);
+    } catch (Exception e) {
+      log.error("We failed to record the failed build of {}.", claim, e);
+    }
+  }
+
+  private ClaimLease startHeartbeat(FileClaim claim) {
+    return heartbeat == null ? ClaimLease.NONE : heartbeat.start(claim);
+  }
+
+  private BuildWatchdog.Watch prepareWatch(
+      FileClaim claim, ClaimLease lease, StagePipe<Patient> patients, StagePipe<byte[]> records) {
+    BuildWatchdog.Watch watch =
+        watchdog == null ? BuildWatchdog.unwatched(claim) : watchdog.watchLater(claim);
+    watch.onTimeout(
+        () -> {
+          patients.abort(watch.failure());
+          records.abort(watch.failure());
+        });
+    /* A lost lease means another build may have the file, so this one must not finish it. */
+    lease.onLost(
+        () ->
+            watch.cancel(new ClaimLost(claim.request().publicationId(), claim.request().fileId())));
+    return watch;
+  }
+
+  @PreDestroy
+  void shutdown() {
+    fetchStage.shutdownNow();
+    transformStage.shutdownNow();
+    writeStage.shutdownNow();
+  }
+
+  private void transform(StagePipe<Patient> patients, StagePipe<byte[]> records) {
+    try (Stream<byte[]> transformed = stages.records(patients.stream())) {
+      transformed.forEach(records::put);
+    }
+    records.finish();
+  }
+
+  /**
+   * Start the build's budget and write the file. The writer may be blocked on an upload rather
+   * than the pipe, so it is interrupted too.
+   */
+  private void write(FileClaim claim, BuildWatchdog.Watch watch, StagePipe<byte[]> records)
+      throws Exception {
+    watch.start();
+    try (BuildWatchdog.Scope interruptible = watch.interruptOnTimeout()) {
+      fileWriter.writeFile(claim, NdjsonContent.ofRecords(records.stream()));
+    }
+  }
+
+  @FunctionalInterface
+  private interface Stage {
+    void run() throws Exception;
+  }
+}
@@ -0,0 +1,16 @@
+package gov.va.api.health.bulkfhir.service.controller.publication;
+
+import lombok.Builder;
+import lombok.Value;
+
+/** Published once the files of a new publication have been saved and are ready to be built. */
+@Value
+@Builder
+public class PublicationCreated {
+  String publicationId;
+
+  int fileCount;
+
+  /** `true` if the files will be found by the file to build manager. */
+  boolean automatic;
+}
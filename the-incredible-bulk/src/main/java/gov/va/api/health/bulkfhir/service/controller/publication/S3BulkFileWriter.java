@@ -1,16 +1,27 @@
 package gov.va.api.health.bulkfhir.service.controller.publication;
 
+import gov.va.api.health.bulkfhir.service.filebuilder.BlockIndex;
+import gov.va.api.health.bulkfhir.service.filebuilder.BulkFileCodec;
 import gov.va.api.health.bulkfhir.service.filebuilder.BulkFileWriter;
 import gov.va.api.health.bulkfhir.service.filebuilder.FileClaim;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import gov.va.api.health.bulkfhir.service.filebuilder.NdjsonContent;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import javax.annotation.PreDestroy;
+import lombok.Builder;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.logging.log4j.util.Strings;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Service;
 import software.amazon.awssdk.core.sync.RequestBody;
-import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 import software.amazon.awssdk.services.s3.model.PutObjectResponse;
@@ -20,30 +31,159 @@ import software.amazon.awssdk.services.s3.model.PutObjectResponse;
 @ConditionalOnProperty(name = "bulk.file.writer", havingValue = "s3", matchIfMissing = true)
 public class S3BulkFileWriter implements BulkFileWriter {
 
-  @Value("${aws.s3.bucket}")
-  private String s3Bucket;
+  /** S3 rejects multipart uploads with parts (other than the last) smaller than 5 MiB. */
+  static final int MIN_PART_SIZE = 5 * 1024 * 1024;
 
-  @Value("${aws.region}")
-  private String awsRegion;
+  private final S3Client s3Client;
 
-  public void setAwsRegion(final String region) {
-    this.awsRegion = region;
+  private final BulkFileCodec codec;
+
+  private final String s3Bucket;
+
+  private final UploadMode uploadMode;
+
+  private final int partSize;
+
+  private final int maxPartsInFlight;
+
+  private final ExecutorService partUploader;
+
+  /** Bounds the number of files being uploaded to S3 at once. */
+  private final Semaphore uploadPermits;
+
+  /**
+   * Spring constructor that allows customization from application properties.
+   *
+   * @param s3Client The long lived S3 client used for every upload
+   * @param s3Bucket The bucket files are uploaded to
+   * @param uploadMode Either `single` to upload each file with one put, or `multipart` to stream
+   *     the file to S3 in parts
+   * @param partSize The size in bytes of each part of a multipart upload
+   * @param maxPartsInFlight The number of parts of one file that may be uploading at once
+   * @param partUploadThreads The number of threads shared by all multipart uploads
+   * @param maxConcurrentUploads The number of files that may be uploading at once, or 0 for no
+   *     limit beyond the threads building files
+   * @param codec The compression applied to files, one of `none`, `gzip`, `zstd`, or `bgzf`
+   */
+  @Builder
+  public S3BulkFileWriter(
+      @Autowired S3Client s3Client,
+      @Value("${aws.s3.bucket}") String s3Bucket,
+      @Value("${aws.s3.upload-mode:single}") String uploadMode,
+      @Value("${aws.s3.part-size:8388608}") int partSize,
+      @Value("${aws.s3.parts-in-flight:4}") int maxPartsInFlight,
+      @Value("${aws.s3.part-upload-threads:8}") int partUploadThreads,
+      @Value("${aws.s3.max-concurrent-uploads:0}") int maxConcurrentUploads,
+      @Value("${bulk.file.codec:none}") String codec) {
+    this.s3Client = s3Client;
+    this.codec = BulkFileCodec.of(codec);
+    this.s3Bucket = s3Bucket;
+    this.uploadMode = UploadMode.of(uploadMode);
+    this.partSize = Math.max(partSize, MIN_PART_SIZE);
+    this.maxPartsInFlight = Math.max(1, maxPartsInFlight);
+    CustomizableThreadFactory threads = new CustomizableThreadFactory("S3-Part-Upload-");
+    threads.setDaemon(true);
+    this.partUploader = Executors.newFixedThreadPool(Math.max(1, partUploadThreads), threads);
+    this.uploadPermits =
+        new Semaphore(maxConcurrentUploads > 0 ? maxConcurrentUploads : Integer.MAX_VALUE, true);
+  }
+
+  private String keyOf(FileClaim claim) {
+    return claim.request().publicationId() + "/" + claim.fileName() + codec.extension();
+  }
+
+  /** Upload a whole object, waiting for a permit if too many uploads are in progress. */
+  private PutObjectResponse put(String key, String contentType, byte[] bytes) {
+    uploadPermits.acquireUninterruptibly();
+    try {
+      return s3Client.putObject(
+          PutObjectRequest.builder().bucket(s3Bucket).key(key).contentType(contentType).build(),
+          RequestBody.fromBytes(bytes));
+    } finally {
+      uploadPermits.release();
+    }
   }
 
-  public void setS3Bucket(final String bucket) {
-    this.s3Bucket = bucket;
+  @PreDestroy
+  void shutdown() {
+    partUploader.shutdown();
   }
 
   @Override
-  public void writeFile(FileClaim claim, Stream<String> resources) {
-    S3Client s3Client = S3Client.builder().region(Region.of(awsRegion)).build();
-    PutObjectResponse response =
-        s3Client.putObject(
-            PutObjectRequest.builder()
-                .bucket(s3Bucket)
-                .key(claim.request().publicationId() + "/" + claim.fileName() + ".ndjson")
-                .build(),
-            RequestBody.fromString(resources.collect(Collectors.joining(Strings.LINE_SEPARATOR))));
+  public void writeFile(FileClaim claim, NdjsonContent content) throws IOException {
+    String key = keyOf(claim);
+    Optional<BlockIndex> index =
+        uploadMode == UploadMode.MULTIPART
+            ? writeMultipart(key, content)
+            : writeSingle(key, content);
+    if (index.isPresent()) {
+      writeIndex(key + BlockIndex.EXTENSION, index.get());
+    }
+  }
+
+  /** The index is uploaded after the file, so an index never describes a file that is missing. */
+  private void writeIndex(String key, BlockIndex index) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    index.writeTo(bytes);
+    put(key, BlockIndex.CONTENT_TYPE, bytes.toByteArray());
+    log.info("Block index uploaded to S3: {}/{}", s3Bucket, key);
+  }
+
+  /** A multipart upload streams the file as it is built, so it holds a permit throughout. */
+  private Optional<BlockIndex> writeMultipart(String key, NdjsonContent content)
+      throws IOException {
+    uploadPermits.acquireUninterruptibly();
+    try {
+      return writeMultipartWithPermit(key, content);
+    } finally {
+      uploadPermits.release();
+    }
+  }
+
+  private Optional<BlockIndex> writeMultipartWithPermit(String key, NdjsonContent content)
+      throws IOException {
+    S3MultipartOutputStream upload =
+        S3MultipartOutputStream.builder()
+            .s3(s3Client)
+            .bucket(s3Bucket)
+            .key(key)
+            .contentType(codec.contentType())
+            .partSize(partSize)
+            .maxPartsInFlight(maxPartsInFlight)
+            .executor(partUploader)
+            .start();
+    OutputStream out;
+    try {
+      out = codec.encode(upload);
+      content.writeTo(out);
+      out.close();
+      upload.close();
+    } catch (IOException | RuntimeException e) {
+      upload.abort();
+      throw e;
+    }
+    log.info(
+        "File successfully uploaded to S3: {}/{} ({} parts)", s3Bucket, key, upload.partCount());
+    return BulkFileCodec.indexOf(out);
+  }
+
+  private Optional<BlockIndex> writeSingle(String key, NdjsonContent content) throws IOException {
+    ByteArrayOutputStream file = new ByteArrayOutputStream();
+    OutputStream out = codec.encode(file);
+    try (out) {
+      content.writeTo(out);
+    }
+    PutObjectResponse response = put(key, codec.contentType(), file.toByteArray());
     log.info("File successfully uploaded to S3: {}", response);
+    return BulkFileCodec.indexOf(out);
+  }
+
+  enum UploadMode {
+    SINGLE,
+    MULTIPART;
+
+    static UploadMode of(String mode) {
+      return mode == null ? SINGLE : valueOf(mode.trim().toUpperCase(Locale.ENGLISH));
+    }
   }
 }
@@ -0,0 +1,225 @@
+package gov.va.api.health.bulkfhir.service.controller.publication;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+
+/**
+ * Uploads everything written to it as an S3 multipart upload. Bytes are collected into fixed size
+ * parts and each full part is uploaded in the background while the next one is filled. The number
+ * of parts in flight is bounded, so memory use stays near the part size times the number of parts
+ * in flight, regardless of how large the file is.
+ *
+ * <p>Closing the stream completes the upload. If anything fails, the upload is aborted so that S3
+ * does not hold on to orphaned parts.
+ */
+@Slf4j
+class S3MultipartOutputStream extends OutputStream {
+
+  private final S3Client s3;
+
+  private final String bucket;
+
+  private final String key;
+
+  private final String uploadId;
+
+  private final int partSize;
+
+  private final Executor executor;
+
+  private final Semaphore partsInFlight;
+
+  private final List<CompletableFuture<CompletedPart>> parts = new ArrayList<>();
+
+  private byte[] buffer;
+
+  private int position;
+
+  private boolean closed;
+
+  private boolean aborted;
+
+  /** Start a new multipart upload. Parts will be uploaded using the given executor. */
+  @Builder(buildMethodName = "start")
+  private S3MultipartOutputStream(
+      S3Client s3,
+      String bucket,
+      String key,
+      String contentType,
+      int partSize,
+      int maxPartsInFlight,
+      Executor executor) {
+    this.s3 = s3;
+    this.bucket = bucket;
+    this.key = key;
+    this.partSize = partSize;
+    this.executor = executor;
+    this.partsInFlight = new Semaphore(Math.max(1, maxPartsInFlight));
+    this.buffer = new byte[partSize];
+    this.uploadId =
+        s3.createMultipartUpload(
+                CreateMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .contentType(contentType)
+                    .build())
+            .uploadId();
+    log.info("Started multipart upload {} for {}/{}", uploadId, bucket, key);
+  }
+
+  /**
+   * Abort the upload. Parts that are already in flight are allowed to finish first, otherwise S3
+   * may keep them after the abort. Failures to abort are logged but not thrown, since the upload
+   * has already failed for some other reason.
+   */
+  void abort() {
+    if (aborted) {
+      return;
+    }
+    aborted = true;
+    closed = true;
+    CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0]))
+        .handle((ignored, error) -> null)
+        .join();
+    try {
+      s3.abortMultipartUpload(
+          AbortMultipartUploadRequest.builder().bucket(bucket).key(key).uploadId(uploadId).build());
+      log.info("Aborted multipart upload {} for {}/{}", uploadId, bucket, key);
+    } catch (RuntimeException e) {
+      log.error("Failed to abort multipart upload {} for {}/{}", uploadId, bucket, key, e);
+    }
+  }
+
+  /** Complete the upload, uploading any remaining bytes as the last part. */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      if (position > 0 || parts.isEmpty()) {
+        uploadPart();
+      }
+      List<CompletedPart> completedParts = new ArrayList<>(parts.size());
+      for (CompletableFuture<CompletedPart> part : parts) {
+        completedParts.add(part.join());
+      }
+      s3.completeMultipartUpload(
+          CompleteMultipartUploadRequest.builder()
+              .bucket(bucket)
+              .key(key)
+              .uploadId(uploadId)
+              .multipartUpload(CompletedMultipartUpload.builder().parts(completedParts).build())
+              .build());
+    } catch (CompletionException e) {
+      abort();
+      throw new IOException("Failed to upload part of " + key, e.getCause());
+    } catch (IOException | RuntimeException e) {
+      abort();
+      throw e;
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Upload of " + key + " is already closed");
+    }
+  }
+
+  int partCount() {
+    return parts.size();
+  }
+
+  /** Fail fast if a part has already failed, rather than waiting to find out on close. */
+  private void throwIfAnyPartFailed() throws IOException {
+    for (CompletableFuture<CompletedPart> part : parts) {
+      if (part.isCompletedExceptionally()) {
+        try {
+          part.join();
+        } catch (CompletionException e) {
+          throw new IOException("Failed to upload part of " + key, e.getCause());
+        }
+      }
+    }
+  }
+
+  private CompletedPart upload(int partNumber, byte[] bytes, int length) {
+    UploadPartResponse response =
+        s3.uploadPart(
+            UploadPartRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .uploadId(uploadId)
+                .partNumber(partNumber)
+                .contentLength((long) length)
+                .build(),
+            RequestBody.fromInputStream(new ByteArrayInputStream(bytes, 0, length), length));
+    return CompletedPart.builder().partNumber(partNumber).eTag(response.eTag()).build();
+  }
+
+  /**
+   * Hand the current buffer off to be uploaded in the background. This blocks if the maximum number
+   * of parts are already in flight.
+   */
+  private void uploadPart() throws IOException {
+    throwIfAnyPartFailed();
+    try {
+      partsInFlight.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while uploading " + key);
+    }
+    int partNumber = parts.size() + 1;
+    byte[] bytes = buffer;
+    int length = position;
+    buffer = new byte[partSize];
+    position = 0;
+    parts.add(
+        CompletableFuture.supplyAsync(() -> upload(partNumber, bytes, length), executor)
+            .whenComplete((part, error) -> partsInFlight.release()));
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    ensureOpen();
+    buffer[position++] = (byte) b;
+    if (position == partSize) {
+      uploadPart();
+    }
+  }
+
+  @Override
+  public void write(byte[] bytes, int offset, int length) throws IOException {
+    ensureOpen();
+    while (length > 0) {
+      int chunk = Math.min(length, partSize - position);
+      System.arraycopy(bytes, offset, buffer, position, chunk);
+      position += chunk;
+      offset += chunk;
+      length -= chunk;
+      if (position == partSize) {
+        uploadPart();
+      }
+    }
+  }
+}
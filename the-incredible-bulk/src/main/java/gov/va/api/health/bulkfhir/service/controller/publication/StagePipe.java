@@ -0,0 +1,118 @@
+package gov.va.api.health.bulkfhir.service.controller.publication;
+
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A bounded hand off between two stages of a file build. The producer blocks when the pipe is full,
+ * so a fast stage cannot run arbitrarily far ahead of a slow one.
+ *
+ * <p>Either side may abort the pipe. Once aborted, the other side fails on its next put or take
+ * rather than blocking forever.
+ */
+final class StagePipe<T> {
+
+  private static final Object END = new Object();
+
+  private static final long POLL_MILLIS = 100;
+
+  private final BlockingQueue<Object> queue;
+
+  private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+  StagePipe(int capacity) {
+    queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+  }
+
+  /** Abort the pipe. Only the first cause is kept. */
+  void abort(Throwable cause) {
+    if (cause instanceof PipeAborted && cause.getCause() != null) {
+      cause = cause.getCause();
+    }
+    failure.compareAndSet(null, cause);
+    queue.clear();
+  }
+
+  /** Indicate that the producer has nothing more to put. */
+  void finish() {
+    offer(END);
+  }
+
+  private void offer(Object item) {
+    try {
+      throwIfAborted();
+      while (!queue.offer(item, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+        throwIfAborted();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      abort(e);
+      throw new PipeAborted(e);
+    }
+  }
+
+  /** Put an item into the pipe, blocking while it is full. */
+  void put(T item) {
+    offer(item);
+  }
+
+  /** A stream of everything put into the pipe. It ends once the producer has finished. */
+  Stream<T> stream() {
+    return StreamSupport.stream(new Taker(), false);
+  }
+
+  private void throwIfAborted() {
+    Throwable cause = failure.get();
+    if (cause != null) {
+      throw new PipeAborted(cause);
+    }
+  }
+
+  /** Thrown when reading or writing a pipe that has been aborted. */
+  static class PipeAborted extends RuntimeException {
+    PipeAborted(Throwable cause) {
+      super("Pipe aborted", cause);
+    }
+  }
+
+  private class Taker extends Spliterators.AbstractSpliterator<T> {
+
+    private boolean done;
+
+    Taker() {
+      super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean tryAdvance(Consumer<? super T> action) {
+      if (done) {
+        return false;
+      }
+      try {
+        Object next;
+        do {
+          throwIfAborted();
+          next = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        } while (next == null);
+        if (next == END) {
+          done = true;
+          return false;
+        }
+        action.accept((T) next);
+        return true;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        abort(e);
+        throw new PipeAborted(e);
+      }
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package gov.va.api.health.bulkfhir.service.controller.publication;
+
+import gov.va.api.health.argonaut.api.resources.Patient;
+import gov.va.api.health.bulkfhir.service.dataquery.client.DataQueryBatchClient;
+import gov.va.api.health.bulkfhir.service.dataquery.client.DataQueryBatchClient.RequestFailed;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileClaim;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import lombok.Builder;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Fetches the patients of a file claim as several smaller Data Query pages, with a limited number
+ * of pages in flight at once. Pages are handed out in order, so the file has the same records in
+ * the same order as it would with a single request for the whole file.
+ *
+ * <p>Sub-ranges are themselves Data Query pages, so their size must divide the file's page size
+ * evenly. If no reasonable size does, or splitting is disabled, the whole file is streamed with one
+ * request for the file's page. The last file of a publication may be short, so either way its
+ * records are trimmed to the file's count.
+ */
+@Slf4j
+@Builder
+final class SubRangePatientFetcher {
+
+  private final DataQueryBatchClient dataQuery;
+
+  /** The preferred number of records per sub-range, or 0 to disable splitting. */
+  private final int subRangeSize;
+
+  /** The number of sub-ranges of one file that may be in flight at once. */
+  private final int concurrency;
+
+  private final Executor executor;
+
+  /**
+   * Determine the sub-range size to use for a file. This is the largest divisor of the file's page
+   * size that is no bigger than the target. Divisors less than half the target would make too many
+   * small requests, so 0 is returned to indicate the file should not be split.
+   */
+  static int subRangeSizeFor(int recordsPerFile, int count, int target) {
+    if (target <= 0 || recordsPerFile <= 0 || count <= target) {
+      return 0;
+    }
+    for (int size = Math.min(target, recordsPerFile); size > 0; size--) {
+      if (recordsPerFile % size == 0) {
+        return size * 2 >= target ? size : 0;
+      }
+    }
+    return 0;
+  }
+
+  /** Open a stream of patients for the claim. The stream must be closed. */
+  Stream<Patient> fetch(FileClaim claim) {
+    int size = subRangeSizeFor(claim.recordsPerFile(), claim.count(), subRangeSize);
+    if (size == 0 || executor == null) {
+      /*
+       * Pages are the file's page size, like the sub-ranges, so a short last file starts at the
+       * same record. Claims that do not know it have a single page size, their count.
+       */
+      int pageSize = claim.recordsPerFile() > 0 ? claim.recordsPerFile() : claim.count();
+      return dataQuery.streamPatients(claim.page(), pageSize).limit(claim.count());
+    }
+    int subRangesPerFile = claim.recordsPerFile() / size;
+    SubRanges subRanges =
+        new SubRanges(
+            (claim.page() - 1) * subRangesPerFile + 1, (claim.count() + size - 1) / size, size);
+    log.info("Fetching patients for {} in {} sub-ranges of {}", claim, subRanges.remaining, size);
+    return StreamSupport.stream(subRanges, false)
+        .flatMap(List::stream)
+        .limit(claim.count())
+        .onClose(subRanges::cancel);
+  }
+
+  /**
+   * Sub-range pages in order. Up to `concurrency` requests are kept in flight ahead of the
+   * consumer.
+   */
+  private class SubRanges extends Spliterators.AbstractSpliterator<List<Patient>> {
+
+    private final Deque<CompletableFuture<List<Patient>>> inFlight = new ArrayDeque<>();
+
+    private final int size;
+
+    private int nextPage;
+
+    private int remaining;
+
+    SubRanges(int firstPage, int count, int size) {
+      super(count, Spliterator.ORDERED | Spliterator.NONNULL);
+      this.nextPage = firstPage;
+      this.remaining = count;
+      this.size = size;
+    }
+
+    void cancel() {
+      inFlight.forEach(f -> f.cancel(false));
+      inFlight.clear();
+      remaining = 0;
+    }
+
+    private void fill() {
+      while (remaining > 0 && inFlight.size() < Math.max(1, concurrency)) {
+        int page = nextPage++;
+        remaining--;
+        inFlight.add(
+            CompletableFuture.supplyAsync(() -> dataQuery.requestPatients(page, size), executor));
+      }
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super List<Patient>> action) {
+      fill();
+      CompletableFuture<List<Patient>> next = inFlight.poll();
+      if (next == null) {
+        return false;
+      }
+      List<Patient> patients;
+      try {
+        patients = next.get();
+      } catch (InterruptedException e) {
+        /* The build was cancelled. */
+        cancel();
+        Thread.currentThread().interrupt();
+        throw new RequestFailed("Interrupted while fetching patients");
+      } catch (ExecutionException e) {
+        cancel();
+        if (e.getCause() instanceof RuntimeException) {
+          throw (RuntimeException) e.getCause();
+        }
+        throw new RequestFailed(e.getMessage());
+      }
+      fill();
+      action.accept(patients);
+      return true;
+    }
+  }
+}
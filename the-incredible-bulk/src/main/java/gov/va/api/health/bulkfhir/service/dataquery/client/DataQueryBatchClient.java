@@ -1,7 +1,9 @@
 package gov.va.api.health.bulkfhir.service.dataquery.client;
 
 import gov.va.api.health.argonaut.api.resources.Patient;
+import java.time.Duration;
 import java.util.List;
+import java.util.stream.Stream;
 import lombok.AccessLevel;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
@@ -13,6 +15,28 @@ public interface DataQueryBatchClient {
 
   List<Patient> requestPatients(int page, int count);
 
+  /**
+   * Stream the patients for the given page. Unlike {@link #requestPatients(int, int)}, records are
+   * parsed one at a time as the stream is consumed, so only a small read buffer is held regardless
+   * of the page size. The stream holds an open connection to Data Query and must be closed.
+   */
+  Stream<Patient> streamPatients(int page, int count);
+
+  /**
+   * Notified as each request to Data Query completes, e.g. to adjust how hard Data Query is being
+   * pushed. Notifications arrive on the requesting thread and must be quick.
+   */
+  interface RequestObserver {
+    /**
+     * A request has completed.
+     *
+     * @param latency The time until the response arrived, not including reading a streamed body
+     * @param overloaded True if the request failed in a way that suggests Data Query is struggling,
+     *     e.g. a server error or a timeout
+     */
+    void requestCompleted(Duration latency, boolean overloaded);
+  }
+
   /** The resource requested was not allowed because we do not have the correct access token. */
   class AccessDenied extends DataQueryBatchClientException {
     public AccessDenied(String url) {
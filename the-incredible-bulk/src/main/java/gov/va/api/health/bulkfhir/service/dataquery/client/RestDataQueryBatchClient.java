@@ -1,9 +1,22 @@
 package gov.va.api.health.bulkfhir.service.dataquery.client;
 
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
 import gov.va.api.health.argonaut.api.resources.Patient;
+import java.io.IOException;
+import java.net.URI;
+import java.time.Duration;
 import java.util.List;
 import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
 import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import lombok.Builder;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -12,10 +25,13 @@ import org.springframework.core.ParameterizedTypeReference;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
-import org.springframework.http.ResponseEntity;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
 import org.springframework.stereotype.Component;
 import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.RestTemplate;
 
 /**
@@ -26,27 +42,53 @@ import org.springframework.web.client.RestTemplate;
 public class RestDataQueryBatchClient implements DataQueryBatchClient {
 
   private final RestTemplate restTemplate;
+  private final ObjectReader patientReader;
   private final String baseUrl;
   private final String accessKey;
   private final String accessKeyHeader;
   private final String internalBulkPath;
 
-  /** Spring constructor that allows customization from application properties. */
+  /** Bounds the number of requests to Data Query that may be open at once. */
+  private final Semaphore requestPermits;
+
+  private final RequestObserver requestObserver;
+
+  /**
+   * Spring constructor that allows customization from application properties. If
+   * maxConcurrentRequests is 0, requests are only limited by the threads making them.
+   */
   @Builder
   public RestDataQueryBatchClient(
       @Value("${dataquery.url}") String baseUrl,
       @Value("${dataquery.internal-bulk-path:/internal/bulk}") String internalBulkPath,
       @Value("${dataquery.access-key-header:bulk}") String accessKeyHeader,
       @Value("${dataquery.access-key}") String accessKey,
-      @Autowired RestTemplate restTemplate) {
+      @Autowired RestTemplate restTemplate,
+      @Autowired ObjectMapper jacksonMapper,
+      @Value("${dataquery.max-concurrent-requests:0}") int maxConcurrentRequests,
+      @Autowired(required = false) RequestObserver requestObserver) {
     this.baseUrl = baseUrl;
     this.internalBulkPath = internalBulkPath;
     this.accessKeyHeader = accessKeyHeader;
     this.accessKey = accessKey;
     this.restTemplate = restTemplate;
+    this.patientReader = jacksonMapper.readerFor(Patient.class);
+    this.requestPermits =
+        new Semaphore(maxConcurrentRequests > 0 ? maxConcurrentRequests : Integer.MAX_VALUE, true);
+    this.requestObserver = requestObserver;
+  }
+
+  /** Make a request, waiting for a permit if too many requests are already open. */
+  private <T> T callTo(String url, Supplier<T> call) {
+    requestPermits.acquireUninterruptibly();
+    try {
+      return observed(() -> interpretErrors(url, call));
+    } finally {
+      requestPermits.release();
+    }
   }
 
-  private <T> ResponseEntity<T> callTo(String url, Supplier<ResponseEntity<T>> call) {
+  private <T> T interpretErrors(String url, Supplier<T> call) {
     try {
       return call.get();
     } catch (HttpClientErrorException.Forbidden | HttpClientErrorException.Unauthorized e) {
@@ -69,6 +111,31 @@ public class RestDataQueryBatchClient implements DataQueryBatchClient {
     return headers;
   }
 
+  /**
+   * Open a response to Data Query without reading the body. The caller is responsible for closing
+   * the response. Error statuses are interpreted by the rest template error handler so that they
+   * are reported the same way as the non-streaming requests.
+   */
+  private ClientHttpResponse open(URI uri) {
+    try {
+      ClientHttpRequest request =
+          restTemplate.getRequestFactory().createRequest(uri, HttpMethod.GET);
+      request.getHeaders().addAll(headers());
+      request.getHeaders().setAccept(List.of(MediaType.APPLICATION_JSON));
+      ClientHttpResponse response = request.execute();
+      if (restTemplate.getErrorHandler().hasError(response)) {
+        try {
+          restTemplate.getErrorHandler().handleError(uri, HttpMethod.GET, response);
+        } finally {
+          response.close();
+        }
+      }
+      return response;
+    } catch (IOException e) {
+      throw new ResourceAccessException("I/O error on GET request for " + uri, e);
+    }
+  }
+
   @Override
   public ResourceCount requestPatientCount() {
     String url = urlOf("/Patient/count");
@@ -98,7 +165,105 @@ public class RestDataQueryBatchClient implements DataQueryBatchClient {
         .getBody();
   }
 
+  @Override
+  public Stream<Patient> streamPatients(int page, int count) {
+    String url = urlOf("/Patient?page={page}&_count={_count}");
+    URI uri =
+        restTemplate.getUriTemplateHandler().expand(url, Map.of("page", page, "_count", count));
+    requestPermits.acquireUninterruptibly();
+    try {
+      ClientHttpResponse response = observed(() -> interpretErrors(url, () -> open(uri)));
+      JsonArrayReader reader = new JsonArrayReader(url, response);
+      return StreamSupport.stream(reader, false)
+          .onClose(reader::close)
+          .onClose(requestPermits::release);
+    } catch (RuntimeException e) {
+      requestPermits.release();
+      throw e;
+    }
+  }
+
+  /** Time a request and report it to the observer, if there is one. */
+  private <T> T observed(Supplier<T> call) {
+    if (requestObserver == null) {
+      return call.get();
+    }
+    long start = System.nanoTime();
+    boolean overloaded = false;
+    try {
+      return call.get();
+    } catch (RequestFailed | ResourceAccessException e) {
+      overloaded = true;
+      throw e;
+    } finally {
+      requestObserver.requestCompleted(Duration.ofNanos(System.nanoTime() - start), overloaded);
+    }
+  }
+
   private String urlOf(String subPath) {
     return baseUrl + internalBulkPath + subPath;
   }
+
+  /**
+   * Reads the elements of a JSON array response body one at a time. The parser and the response are
+   * released when the reader is closed.
+   */
+  private class JsonArrayReader extends Spliterators.AbstractSpliterator<Patient> {
+
+    private final String url;
+
+    private final ClientHttpResponse response;
+
+    private JsonParser parser;
+
+    JsonArrayReader(String url, ClientHttpResponse response) {
+      super(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL);
+      this.url = url;
+      this.response = response;
+    }
+
+    void close() {
+      try {
+        if (parser != null) {
+          parser.close();
+        }
+      } catch (IOException e) {
+        log.warn("Failed to close patient response parser for {}", url, e);
+      } finally {
+        response.close();
+      }
+    }
+
+    private JsonParser parser() throws IOException {
+      if (parser == null) {
+        parser = patientReader.getFactory().createParser(response.getBody());
+        if (parser.nextToken() != JsonToken.START_ARRAY) {
+          log.error("Expected a JSON array of patients from {}", url);
+          throw new RequestFailed(url);
+        }
+      }
+      return parser;
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super Patient> action) {
+      try {
+        JsonParser p = parser();
+        JsonToken token = p.nextToken();
+        if (token == JsonToken.END_ARRAY) {
+          return false;
+        }
+        if (token != JsonToken.START_OBJECT) {
+          log.error("Expected a patient but found {} in the patients from {}", token, url);
+          throw new RequestFailed(url);
+        }
+        Patient patient = patientReader.readValue(p);
+        action.accept(patient);
+        return true;
+      } catch (IOException e) {
+        log.error("Failed to read patients from {}", url, e);
+        throw new RequestFailed(url);
+      }
+    }
+  }
 }
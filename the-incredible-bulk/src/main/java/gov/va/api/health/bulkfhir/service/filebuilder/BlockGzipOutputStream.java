@@ -0,0 +1,213 @@
+package gov.va.api.health.bulkfhir.service.filebuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.zip.GZIPOutputStream;
+import lombok.Builder;
+
+/**
+ * Compresses NDJSON as a series of independent gzip members, in the style of BGZF. Content is cut
+ * into blocks of about `blockSize` bytes at record boundaries, and each block is compressed on the
+ * executor so a file uses as many cores as the executor has. Blocks are written in order, so the
+ * result is an ordinary gzip file that any gzip reader can decompress from the start.
+ *
+ * <p>A record is never split across blocks. A record bigger than the block size gets a block of its
+ * own. An empty gzip member is written last as an end of file marker, which lets readers detect a
+ * truncated file. Once the stream is closed, {@link #index()} describes where each block is.
+ */
+public final class BlockGzipOutputStream extends OutputStream {
+
+  private static final byte[] END_OF_FILE = compress(new byte[0], 0);
+
+  private final OutputStream out;
+
+  private final int blockSize;
+
+  private final int maxBlocksInFlight;
+
+  private final Executor executor;
+
+  private final Deque<CompletableFuture<CompressedBlock>> inFlight = new ArrayDeque<>();
+
+  private final BlockIndex.BlockIndexBuilder index = BlockIndex.builder();
+
+  private byte[] buffer;
+
+  private int length;
+
+  private long offset;
+
+  private long records;
+
+  private boolean closed;
+
+  /**
+   * Create a stream that writes compressed blocks to `out`, which is closed when this stream is.
+   *
+   * @param out The destination of the compressed file
+   * @param blockSize The preferred number of uncompressed bytes in each block
+   * @param maxBlocksInFlight The number of blocks that may be compressing at once
+   * @param executor The executor blocks are compressed on
+   */
+  @Builder
+  BlockGzipOutputStream(OutputStream out, int blockSize, int maxBlocksInFlight, Executor executor) {
+    this.out = out;
+    this.blockSize = Math.max(1, blockSize);
+    this.maxBlocksInFlight = Math.max(1, maxBlocksInFlight);
+    this.executor = executor;
+    this.buffer = new byte[this.blockSize];
+  }
+
+  private static byte[] compress(byte[] data, int size) {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream(size / 4 + 32);
+    try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+      gzip.write(data, 0, size);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return compressed.toByteArray();
+  }
+
+  private static int lastNewline(byte[] data, int size) {
+    for (int i = size - 1; i >= 0; i--) {
+      if (data[i] == NdjsonContent.NEWLINE) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** Records start at the beginning of every block and after every newline but the last. */
+  private static int recordsIn(byte[] data) {
+    int records = 1;
+    for (int i = 0; i < data.length - 1; i++) {
+      if (data[i] == NdjsonContent.NEWLINE) {
+        records++;
+      }
+    }
+    return records;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      if (length > 0) {
+        submit(Arrays.copyOf(buffer, length));
+        length = 0;
+      }
+      while (!inFlight.isEmpty()) {
+        writeNextBlock();
+      }
+      out.write(END_OF_FILE);
+    } finally {
+      inFlight.forEach(f -> f.cancel(false));
+      out.close();
+    }
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+  }
+
+  /** Blocks only end at record boundaries, so flushing does not force out a partial block. */
+  @Override
+  public void flush() throws IOException {
+    out.flush();
+  }
+
+  /** The location of every block written. Only complete once the stream is closed. */
+  public BlockIndex index() {
+    return index.build();
+  }
+
+  /**
+   * The buffer is full. Cut a block at the last complete record, or grow the buffer if it holds
+   * less than one record.
+   */
+  private void cutBlock() throws IOException {
+    int end = lastNewline(buffer, length) + 1;
+    if (end == 0) {
+      buffer = Arrays.copyOf(buffer, buffer.length * 2);
+      return;
+    }
+    submit(Arrays.copyOf(buffer, end));
+    length -= end;
+    System.arraycopy(buffer, end, buffer, 0, length);
+  }
+
+  private void submit(byte[] block) throws IOException {
+    while (inFlight.size() >= maxBlocksInFlight) {
+      writeNextBlock();
+    }
+    inFlight.add(
+        CompletableFuture.supplyAsync(
+            () -> new CompressedBlock(compress(block, block.length), recordsIn(block)), executor));
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] {(byte) b}, 0, 1);
+  }
+
+  @Override
+  public void write(byte[] bytes, int start, int size) throws IOException {
+    ensureOpen();
+    while (size > 0) {
+      if (length == buffer.length) {
+        cutBlock();
+      }
+      int chunk = Math.min(size, buffer.length - length);
+      System.arraycopy(bytes, start, buffer, length, chunk);
+      length += chunk;
+      start += chunk;
+      size -= chunk;
+    }
+  }
+
+  private void writeNextBlock() throws IOException {
+    CompressedBlock block;
+    try {
+      block = inFlight.remove().join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof UncheckedIOException) {
+        throw ((UncheckedIOException) e.getCause()).getCause();
+      }
+      throw new IOException("Failed to compress block", e.getCause());
+    }
+    out.write(block.bytes);
+    index.block(
+        BlockIndex.Block.builder()
+            .offset(offset)
+            .length(block.bytes.length)
+            .firstRecord(records)
+            .records(block.records)
+            .build());
+    offset += block.bytes.length;
+    records += block.records;
+  }
+
+  private static final class CompressedBlock {
+    private final byte[] bytes;
+
+    private final int records;
+
+    CompressedBlock(byte[] bytes, int records) {
+      this.bytes = bytes;
+      this.records = records;
+    }
+  }
+}
@@ -0,0 +1,123 @@
+package gov.va.api.health.bulkfhir.service.filebuilder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import lombok.Builder;
+import lombok.Singular;
+import lombok.Value;
+
+/**
+ * The sidecar index of a block compressed bulk file. Each block is a complete gzip member that
+ * starts at a record boundary, so a reader can seek to a block's offset and decompress it without
+ * reading anything before it.
+ *
+ * <p>The index is written as one line per block, with tab separated `offset`, `length`,
+ * `firstRecord`, and `records` columns.
+ */
+@Value
+@Builder
+public class BlockIndex {
+
+  /** The file extension of the index, appended to the name of the file it describes. */
+  public static final String EXTENSION = ".idx";
+
+  /** The content type of the index. */
+  public static final String CONTENT_TYPE = "text/tab-separated-values";
+
+  @Singular List<Block> blocks;
+
+  /** Read an index previously written with {@link #writeTo(OutputStream)}. */
+  public static BlockIndex readFrom(InputStream in) throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF_8));
+    List<Block> blocks = new ArrayList<>();
+    String line;
+    while ((line = reader.readLine()) != null) {
+      if (line.isBlank()) {
+        continue;
+      }
+      String[] columns = line.split("\t");
+      if (columns.length != 4) {
+        throw new IOException("Malformed block index line: " + line);
+      }
+      blocks.add(
+          Block.builder()
+              .offset(Long.parseLong(columns[0]))
+              .length(Integer.parseInt(columns[1]))
+              .firstRecord(Long.parseLong(columns[2]))
+              .records(Integer.parseInt(columns[3]))
+              .build());
+    }
+    return BlockIndex.builder().blocks(blocks).build();
+  }
+
+  /** Find the block holding the given zero based record number, if the file has that many. */
+  public Optional<Block> blockOf(long record) {
+    int low = 0;
+    int high = blocks.size() - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      Block block = blocks.get(middle);
+      if (record < block.firstRecord()) {
+        high = middle - 1;
+      } else if (record >= block.firstRecord() + block.records()) {
+        low = middle + 1;
+      } else {
+        return Optional.of(block);
+      }
+    }
+    return Optional.empty();
+  }
+
+  /** The total number of records in the file. */
+  public long records() {
+    if (blocks.isEmpty()) {
+      return 0;
+    }
+    Block last = blocks.get(blocks.size() - 1);
+    return last.firstRecord() + last.records();
+  }
+
+  /** Write the index to the stream. The stream is not closed. */
+  public void writeTo(OutputStream out) throws IOException {
+    Writer writer = new OutputStreamWriter(out, UTF_8);
+    for (Block block : blocks) {
+      writer
+          .append(Long.toString(block.offset()))
+          .append('\t')
+          .append(Integer.toString(block.length()))
+          .append('\t')
+          .append(Long.toString(block.firstRecord()))
+          .append('\t')
+          .append(Integer.toString(block.records()))
+          .append('\n');
+    }
+    writer.flush();
+  }
+
+  /** The position of one compressed block and the records it holds. */
+  @Value
+  @Builder
+  public static class Block {
+    /** The byte offset of the block's gzip member in the compressed file. */
+    long offset;
+
+    /** The compressed length of the block in bytes. */
+    int length;
+
+    /** The zero based number of the first record in the block. */
+    long firstRecord;
+
+    /** The number of records in the block. */
+    int records;
+  }
+}
@@ -0,0 +1,111 @@
+package gov.va.api.health.bulkfhir.service.filebuilder;
+
+import com.github.luben.zstd.ZstdOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Optional;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.GZIPOutputStream;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * The compression applied to bulk files as they are written. The codec determines the file
+ * extension and content type, so readers and the bulk status response agree on which file to fetch.
+ */
+@AllArgsConstructor
+public enum BulkFileCodec {
+  NONE(".ndjson", "application/fhir+ndjson") {
+    @Override
+    OutputStream compress(OutputStream out) {
+      return out;
+    }
+  },
+  GZIP(".ndjson.gz", "application/gzip") {
+    @Override
+    OutputStream compress(OutputStream out) throws IOException {
+      return new GZIPOutputStream(out, BUFFER_SIZE);
+    }
+  },
+  ZSTD(".ndjson.zst", "application/zstd") {
+    @Override
+    OutputStream compress(OutputStream out) throws IOException {
+      return new ZstdOutputStream(out, ZSTD_LEVEL);
+    }
+  },
+  /**
+   * Gzip compressed in independent blocks on every core, with a sidecar index of the records in
+   * each block. Any gzip reader can read the file, and readers with the index can seek.
+   */
+  BGZF(".ndjson.gz", "application/gzip") {
+    @Override
+    OutputStream compress(OutputStream out) {
+      return BlockGzipOutputStream.builder()
+          .out(out)
+          .blockSize(BUFFER_SIZE)
+          .maxBlocksInFlight(2 * Runtime.getRuntime().availableProcessors())
+          .executor(ForkJoinPool.commonPool())
+          .build();
+    }
+  };
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** The zstd default, which compresses FHIR JSON about as well as gzip for much less CPU. */
+  private static final int ZSTD_LEVEL = 3;
+
+  /** The file extension, including the `.ndjson` part. */
+  @Getter private final String extension;
+
+  /** The content type of the compressed file. */
+  @Getter private final String contentType;
+
+  /** Determine the codec from a property value, e.g. `gzip`. A missing value means `none`. */
+  public static BulkFileCodec of(String name) {
+    if (name == null || name.isBlank()) {
+      return NONE;
+    }
+    return valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+  }
+
+  /**
+   * The block index of a stream returned by {@link #encode(OutputStream)}, if the codec produces
+   * one. The index is only complete once the stream has been closed.
+   */
+  public static Optional<BlockIndex> indexOf(OutputStream encoded) {
+    if (encoded instanceof BlockGzipOutputStream) {
+      return Optional.of(((BlockGzipOutputStream) encoded).index());
+    }
+    return Optional.empty();
+  }
+
+  abstract OutputStream compress(OutputStream out) throws IOException;
+
+  /**
+   * Wrap the destination in a stream that compresses everything written to it. Closing the returned
+   * stream finishes compression, but leaves the destination open so the caller can decide how to
+   * complete it.
+   */
+  public OutputStream encode(OutputStream destination) throws IOException {
+    return compress(new UnclosedOutputStream(destination));
+  }
+
+  /** Passes writes through, but only flushes when closed. */
+  private static class UnclosedOutputStream extends FilterOutputStream {
+    UnclosedOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void close() throws IOException {
+      flush();
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      out.write(bytes, offset, length);
+    }
+  }
+}
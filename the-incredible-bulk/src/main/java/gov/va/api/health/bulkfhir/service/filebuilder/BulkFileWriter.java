@@ -5,11 +5,21 @@ import java.util.stream.Stream;
 /** An interface to be used to write bulk files of anonymized FHIR resource data. */
 public interface BulkFileWriter {
 
+  /**
+   * Write the bulk file.
+   *
+   * @param claim The meta information about the file to write
+   * @param content The newline delimited JSON records to write to the file
+   */
+  void writeFile(FileClaim claim, NdjsonContent content) throws Exception;
+
   /**
    * Write the bulk file.
    *
    * @param claim The meta information about the file to write
    * @param resources The list of resources to write to the file
    */
-  void writeFile(FileClaim claim, Stream<String> resources) throws Exception;
+  default void writeFile(FileClaim claim, Stream<String> resources) throws Exception {
+    writeFile(claim, NdjsonContent.ofLines(resources));
+  }
 }
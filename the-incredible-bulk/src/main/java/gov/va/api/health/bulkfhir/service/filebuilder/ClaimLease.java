@@ -0,0 +1,28 @@
+package gov.va.api.health.bulkfhir.service.filebuilder;
+
+/**
+ * The lease of a file claim. It is kept alive from the moment the file is claimed until its build
+ * ends, including while the build waits for a thread, so a queued file is not built twice.
+ */
+public interface ClaimLease extends AutoCloseable {
+
+  /** A lease that is never renewed and never lost, for claims that do not expire. */
+  ClaimLease NONE =
+      new ClaimLease() {
+        @Override
+        public void close() {}
+
+        @Override
+        public void onLost(Runnable cancellation) {}
+      };
+
+  /** Stop renewing the lease. */
+  @Override
+  void close();
+
+  /**
+   * Run the cancellation if the lease is lost, because it expired and the file was claimed again
+   * or reset. It runs right away if the lease has already been lost.
+   */
+  void onLost(Runnable cancellation);
+}
@@ -4,5 +4,16 @@ import gov.va.api.health.bulkfhir.api.internal.FileBuildResponse;
 import java.util.concurrent.CompletableFuture;
 
 public interface FileBuildWorker {
-  CompletableFuture<FileBuildResponse> buildFile(FileClaim claim);
+  /**
+   * Build a file that has already been claimed. The lease was taken with the claim. The worker
+   * closes it when the build ends, and cancels the build if the lease is lost.
+   */
+  CompletableFuture<FileBuildResponse> buildFile(FileClaim claim, ClaimLease lease);
+
+  /**
+   * Claim the file when the build actually starts, then build it. Until then the file is queued
+   * unclaimed, so it is never reported as in progress while it waits. If the file cannot be
+   * claimed, the future fails with a {@link FileBuilderExceptions.ClaimFailed}.
+   */
+  CompletableFuture<FileBuildResponse> claimAndBuildFile(FileBuildRequest request);
 }
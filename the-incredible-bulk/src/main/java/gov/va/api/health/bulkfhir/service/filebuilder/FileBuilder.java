@@ -1,6 +1,7 @@
 package gov.va.api.health.bulkfhir.service.filebuilder;
 
 import gov.va.api.health.bulkfhir.api.internal.FileBuildResponse;
+import java.util.List;
 
 /**
  * The FileBuilder is the starting point to build a file. It will not do the work itself, but
@@ -19,4 +20,18 @@ public interface FileBuilder {
    * been created.
    */
   FileBuildResponse buildFile(FileBuildRequest request);
+
+  /**
+   * Build the file that was found to be the next one to build. Unlike {@link
+   * #buildFile(FileBuildRequest)}, the file is claimed before this returns whenever files are
+   * claimed, so it is not found to be the next file again.
+   */
+  FileBuildResponse buildNextFile(FileBuildRequest request);
+
+  /**
+   * Claim and build up to the given number of files that have not been started. Files are claimed
+   * together before any are handed to workers, so this returns the files that were claimed and may
+   * return fewer than asked for, or none if there is nothing left to build.
+   */
+  List<FileBuildResponse> buildNextFiles(int maxFiles);
 }
@@ -1,5 +1,6 @@
 package gov.va.api.health.bulkfhir.service.filebuilder;
 
+import java.time.Duration;
 import lombok.experimental.UtilityClass;
 
 @UtilityClass
@@ -21,6 +22,40 @@ public class FileBuilderExceptions {
     }
   }
 
+  /**
+   * This application already has as much work as it should take on. The build was not claimed, so
+   * another instance may build it, or it may be requested again after the retry delay.
+   */
+  public static class BuildCapacityExceeded extends RuntimeException {
+    private final Duration retryAfter;
+
+    public BuildCapacityExceeded(String reason, Duration retryAfter) {
+      super(reason);
+      this.retryAfter = retryAfter;
+    }
+
+    public Duration retryAfter() {
+      return retryAfter;
+    }
+  }
+
+  /** The build took longer than its budget and was cancelled. */
+  public static class BuildTimedOut extends RuntimeException {
+    public BuildTimedOut(String publicationId, String fileId, Duration budget) {
+      super(asMessage(publicationId, fileId) + " Budget: " + budget);
+    }
+  }
+
+  /**
+   * The claim's lease expired and the file was claimed again, so this claim can no longer complete
+   * it.
+   */
+  public static class ClaimLost extends RuntimeException {
+    public ClaimLost(String publicationId, String fileId) {
+      super(asMessage(publicationId, fileId));
+    }
+  }
+
   public static class ClaimFailed extends RuntimeException {
     public ClaimFailed(String publicationId, String fileId, Throwable cause) {
       super(asMessage(publicationId, fileId), cause);
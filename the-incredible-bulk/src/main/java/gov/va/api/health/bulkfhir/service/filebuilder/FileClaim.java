@@ -17,9 +17,30 @@ public class FileClaim {
   /** The file name with out extension, e.g. 'patient-5' */
   String fileName;
 
+  /**
+   * The number of records in each file of the publication, i.e. the page size used to find this
+   * file's page. The last file of a publication may have fewer records than this.
+   */
+  int recordsPerFile;
+
   /** The row or record number of the first item in this file. */
   int page;
 
   /** The row or record number of the last item in this file. */
   int count;
+
+  /**
+   * The version of the file's status once claimed. It fences the claim: only the holder of the
+   * current version may renew the lease or complete the file.
+   */
+  int version;
+
+  /** The number of times the file has been claimed, including this claim. */
+  int attemptCount;
+
+  /**
+   * The number of builds of the file that failed before this claim. Only failures use up retries,
+   * claims that did not fail, such as taking over an expired lease, do not.
+   */
+  int failureCount;
 }
@@ -1,5 +1,7 @@
 package gov.va.api.health.bulkfhir.service.filebuilder;
 
+import java.util.List;
+
 /**
  * The Claimant interacts with the persistence layer to claim a file for exclusive rights. If
  * successful, the persistence store will be updated to indicate this application instance has
@@ -7,8 +9,34 @@ package gov.va.api.health.bulkfhir.service.filebuilder;
  */
 public interface FileClaimant {
 
-  /** Mark the file as completed. */
-  void completeClaim(FileBuildRequest request);
+  /**
+   * Mark the file as completed. If the claim's lease expired and the file has been claimed again,
+   * a ClaimLost exception is thrown and the file is left alone.
+   */
+  void completeClaim(FileClaim claim);
+
+  /**
+   * Record that the build failed and return the file to not started. The file is built again once
+   * its retry delay has passed, unless it has been attempted too many times, in which case it is
+   * marked failed and is only built again if it is requested explicitly. If the file has been
+   * claimed again or completed since, a ClaimLost exception is thrown and the file is left alone.
+   */
+  void failClaim(FileClaim claim);
+
+  /**
+   * Give up a claim without completing the file, so it is not started and may be claimed again.
+   * If the file has been claimed again or completed since, a ClaimLost exception is thrown and the
+   * file is left alone.
+   */
+  void releaseClaim(FileClaim claim);
+
+  /**
+   * Extend the lease of a claim that is still being built.
+   *
+   * @return `false` if the claim has been lost, because its lease expired and the file was claimed
+   *     again or the file was reset
+   */
+  boolean renewClaim(FileClaim claim);
 
   /**
    * Attempt to claim a file. This method will _attempt_ to throw AlreadyClaimed exceptions if a
@@ -16,4 +44,11 @@ public interface FileClaimant {
    * database exceptions that should already be interpreted as claim failures.
    */
   FileClaim tryClaim(FileBuildRequest request);
+
+  /**
+   * Claim up to the given number of files that have not been started, oldest publication first,
+   * in one transaction. Files claimed by another application in the meantime are skipped, so fewer
+   * claims than asked for may be returned, possibly none.
+   */
+  List<FileClaim> tryClaimNext(int maxFiles);
 }
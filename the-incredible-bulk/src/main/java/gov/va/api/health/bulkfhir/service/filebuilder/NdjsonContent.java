@@ -0,0 +1,40 @@
+package gov.va.api.health.bulkfhir.service.filebuilder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.stream.Stream;
+
+/**
+ * The records of a bulk file as newline delimited JSON. Content writes itself to the destination,
+ * so writers never need to hold the whole file, or a String for every record, in memory.
+ */
+@FunctionalInterface
+public interface NdjsonContent {
+
+  /** Records are separated by a single line feed. */
+  byte NEWLINE = '\n';
+
+  /** Content made of records that have already been serialized to JSON strings. */
+  static NdjsonContent ofLines(Stream<String> lines) {
+    return ofRecords(lines.map(line -> line.getBytes(UTF_8)));
+  }
+
+  /** Content made of records that have already been serialized to UTF-8 JSON bytes. */
+  static NdjsonContent ofRecords(Stream<byte[]> records) {
+    return out -> {
+      Iterator<byte[]> iterator = records.iterator();
+      while (iterator.hasNext()) {
+        out.write(iterator.next());
+        if (iterator.hasNext()) {
+          out.write(NEWLINE);
+        }
+      }
+    };
+  }
+
+  /** Write every record to the stream, separated by newlines. The stream is not closed. */
+  void writeTo(OutputStream out) throws IOException;
+}
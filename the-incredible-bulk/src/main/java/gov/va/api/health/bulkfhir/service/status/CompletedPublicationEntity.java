@@ -0,0 +1,36 @@
+package gov.va.api.health.bulkfhir.service.status;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.NoArgsConstructor;
+
+/** A publication whose files have all been built. */
+@Data
+@Entity
+@Builder
+@Table(name = "CompletedPublication", schema = "app")
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+@EqualsAndHashCode(onlyExplicitlyIncluded = true)
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public class CompletedPublicationEntity {
+  /** The name of the publication. */
+  @Id
+  @Column(name = "publicationId", updatable = false, nullable = false)
+  @EqualsAndHashCode.Include
+  private String publicationId;
+
+  /** Publication date in epoch milliseconds. */
+  @Column(name = "publicationEpoch")
+  private long publicationEpoch;
+
+  /** The epoch milliseconds the last file of the publication was completed. */
+  @Column(name = "completeEpoch")
+  private long completeEpoch;
+}
@@ -0,0 +1,25 @@
+package gov.va.api.health.bulkfhir.service.status;
+
+import java.util.Optional;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+public interface CompletedPublicationRepository
+    extends JpaRepository<CompletedPublicationEntity, String> {
+
+  /**
+   * Forget that the publication is complete.
+   *
+   * @return 1 if the publication was complete, 0 otherwise
+   */
+  @Transactional
+  @Modifying(clearAutomatically = true)
+  @Query("delete from CompletedPublicationEntity c where c.publicationId = :publicationId")
+  int deleteByPublicationId(@Param("publicationId") String publicationId);
+
+  /** The most recently created publication whose files have all been built. */
+  Optional<CompletedPublicationEntity> findFirstByOrderByPublicationEpochDesc();
+}
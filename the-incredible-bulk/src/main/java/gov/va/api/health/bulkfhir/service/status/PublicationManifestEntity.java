@@ -0,0 +1,43 @@
+package gov.va.api.health.bulkfhir.service.status;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+import javax.persistence.Table;
+import lombok.AccessLevel;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.NoArgsConstructor;
+
+/** The bulk status manifest of a completed publication, rendered when its last file completed. */
+@Data
+@Entity
+@Builder
+@Table(name = "PublicationManifest", schema = "app")
+@NoArgsConstructor(access = AccessLevel.PRIVATE)
+@EqualsAndHashCode(onlyExplicitlyIncluded = true)
+@AllArgsConstructor(access = AccessLevel.PRIVATE)
+public class PublicationManifestEntity {
+  /** The name of the publication. */
+  @Id
+  @Column(name = "publicationId", updatable = false, nullable = false)
+  @EqualsAndHashCode.Include
+  private String publicationId;
+
+  /**
+   * The manifest JSON, with a placeholder for the request that is different for every client.
+   */
+  @Lob
+  @Column(name = "manifest", nullable = false)
+  private String manifest;
+
+  /**
+   * The URL the file URLs of the manifest start with, or `null` for manifests stored before it was
+   * recorded.
+   */
+  @Column(name = "fileBaseUrl")
+  private String fileBaseUrl;
+}
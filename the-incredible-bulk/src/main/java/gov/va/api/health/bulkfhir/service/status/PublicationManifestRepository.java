@@ -0,0 +1,21 @@
+package gov.va.api.health.bulkfhir.service.status;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+import org.springframework.transaction.annotation.Transactional;
+
+public interface PublicationManifestRepository
+    extends JpaRepository<PublicationManifestEntity, String> {
+
+  /**
+   * Forget the manifest of the publication.
+   *
+   * @return 1 if the publication had a manifest, 0 otherwise
+   */
+  @Transactional
+  @Modifying(clearAutomatically = true)
+  @Query("delete from PublicationManifestEntity m where m.publicationId = :publicationId")
+  int deleteByPublicationId(@Param("publicationId") String publicationId);
+}
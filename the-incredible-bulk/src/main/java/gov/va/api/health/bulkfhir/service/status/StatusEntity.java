@@ -74,6 +74,56 @@ public class StatusEntity {
   @Column(name = "buildProcessorId")
   private String buildProcessorId;
 
+  /**
+   * `null` if the file was never claimed in a batch, otherwise the token unique to the batch that
+   * last claimed it.
+   */
+  @Column(name = "claimToken")
+  private String claimToken;
+
+  /**
+   * 0 if the file has no lease, otherwise the epoch milliseconds the build's lease expires. A file
+   * whose lease has expired before it was completed may be claimed again.
+   */
+  @Column(name = "leaseExpiryEpoch")
+  private long leaseExpiryEpoch;
+
+  /** The number of times this file has been claimed for building. */
+  @Column(name = "attemptCount")
+  private int attemptCount;
+
+  /**
+   * The number of builds of this file that failed since it was last completed, or since it was
+   * requested explicitly after failing for good.
+   */
+  @Column(name = "failureCount")
+  private int failureCount;
+
+  /**
+   * `null` until the file is completed, or if it was completed before extensions were recorded,
+   * otherwise the extension of the file as it was written, such as `.ndjson.gz`.
+   */
+  @Column(name = "fileExtension")
+  private String fileExtension;
+
+  /** 0 if no build of this file has failed, otherwise the epoch milliseconds it last failed. */
+  @Column(name = "lastFailureEpoch")
+  private long lastFailureEpoch;
+
+  /**
+   * 0 if the file may be built now, otherwise the epoch milliseconds before which a failed build
+   * will not be retried.
+   */
+  @Column(name = "retryAfterEpoch")
+  private long retryAfterEpoch;
+
+  /**
+   * `true` if the file failed to build too many times and will not be built again unless it is
+   * requested explicitly.
+   */
+  @Column(name = "failed")
+  private boolean failed;
+
   @Version
   @Column(name = "version")
   private int version;
@@ -97,6 +147,10 @@ public class StatusEntity {
     return asInstant(buildStartEpoch);
   }
 
+  public Optional<Instant> lastFailureTime() {
+    return asInstant(lastFailureEpoch);
+  }
+
   public Optional<Instant> publicationTime() {
     return asInstant(publicationEpoch);
   }
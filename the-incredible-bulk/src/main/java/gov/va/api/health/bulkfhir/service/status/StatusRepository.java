@@ -1,36 +1,258 @@
 package gov.va.api.health.bulkfhir.service.status;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Optional;
+import javax.persistence.LockModeType;
+import javax.persistence.QueryHint;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
 import org.springframework.transaction.annotation.Transactional;
 
 public interface StatusRepository extends JpaRepository<StatusEntity, String> {
 
+  /**
+   * Files that are not being built: not completed, and either not started or started by a build
+   * whose lease expired before `:now`. Builds without a lease never expire.
+   */
+  String NOT_BEING_BUILT =
+      " s.buildCompleteEpoch = 0 and (s.buildStartEpoch = 0"
+          + " or (s.leaseExpiryEpoch > 0 and s.leaseExpiryEpoch < :now))";
+  /**
+   * Files that may be claimed by anyone: not being built, not failed for good, and not waiting to
+   * retry a failed build.
+   */
+  String AVAILABLE = NOT_BEING_BUILT + " and s.failed = false and s.retryAfterEpoch <= :now";
+  String AVAILABLE_BY_PUBLICATION_AND_FILE_QUERY =
+      "select s from StatusEntity s where"
+          + AVAILABLE
+          + " and s.automatic = true order by s.publicationEpoch, s.fileName";
+  String CLAIMED_QUERY =
+      "select s from StatusEntity s where s.id in :ids and s.claimToken = :claimToken"
+          + " order by s.publicationEpoch, s.fileName";
+  String CLAIM_AVAILABLE_QUERY =
+      "update StatusEntity s set s.buildStartEpoch = :now,"
+          + " s.leaseExpiryEpoch = :leaseExpiryEpoch, s.attemptCount = s.attemptCount + 1,"
+          + " s.buildProcessorId = :processorId, s.claimToken = :claimToken,"
+          + " s.version = s.version + 1"
+          + " where s.id in :ids and"
+          + AVAILABLE;
+  String CLAIM_FILE_QUERY =
+      "update StatusEntity s set s.buildStartEpoch = :now,"
+          + " s.leaseExpiryEpoch = :leaseExpiryEpoch, s.attemptCount = s.attemptCount + 1,"
+          + " s.failureCount = case when s.failed = true then 0 else s.failureCount end,"
+          + " s.failed = false, s.retryAfterEpoch = 0,"
+          + " s.buildProcessorId = :processorId, s.version = s.version + 1"
+          + " where s.publicationId = :publicationId and s.fileName = :fileName and"
+          + NOT_BEING_BUILT;
+  String COMPLETE_FILE_QUERY =
+      "update StatusEntity s set s.buildCompleteEpoch = :completeEpoch,"
+          + " s.fileExtension = :fileExtension, s.leaseExpiryEpoch = 0, s.failureCount = 0,"
+          + " s.version = s.version + 1"
+          + " where s.publicationId = :publicationId and s.fileName = :fileName"
+          + " and s.version = :version";
   String DISTINCT_PUBLICATION_IDS_BY_CREATION_TIME_DESC_QUERY =
       "select s.publicationId from StatusEntity s"
           + " group by s.publicationId order by max(s.publicationEpoch) desc";
-  String NOT_STARTED_BY_PUBLICATION_AND_FILE_QUERY =
-      "select s from StatusEntity s where s.buildCompleteEpoch = 0"
-          + " and s.buildStartEpoch = 0 and s.automatic = true"
-          + " order by s.publicationEpoch, s.fileName";
+  String FAIL_FILE_QUERY =
+      "update StatusEntity s set s.buildStartEpoch = 0, s.leaseExpiryEpoch = 0,"
+          + " s.failureCount = s.failureCount + 1, s.lastFailureEpoch = :failureEpoch,"
+          + " s.retryAfterEpoch = :retryAfterEpoch, s.failed = :failed, s.version = s.version + 1"
+          + " where s.publicationId = :publicationId and s.fileName = :fileName"
+          + " and s.version = :version and s.buildCompleteEpoch = 0";
+  String REBUILD_FILE_QUERY =
+      "update StatusEntity s set s.buildStartEpoch = :now, s.buildCompleteEpoch = 0,"
+          + " s.leaseExpiryEpoch = :leaseExpiryEpoch, s.attemptCount = s.attemptCount + 1,"
+          + " s.buildProcessorId = :processorId, s.version = s.version + 1"
+          + " where s.publicationId = :publicationId and s.fileName = :fileName"
+          + " and s.buildCompleteEpoch > 0";
+  String RELEASE_FILE_QUERY =
+      "update StatusEntity s set s.buildStartEpoch = 0, s.leaseExpiryEpoch = 0,"
+          + " s.version = s.version + 1"
+          + " where s.publicationId = :publicationId and s.fileName = :fileName"
+          + " and s.version = :version and s.buildCompleteEpoch = 0";
+  String RENEW_LEASE_QUERY =
+      "update StatusEntity s set s.leaseExpiryEpoch = :leaseExpiryEpoch"
+          + " where s.publicationId = :publicationId and s.fileName = :fileName"
+          + " and s.version = :version and s.buildCompleteEpoch = 0";
+  /**
+   * Count the files of a publication in each status, like the publication status transformer does
+   * for each file, in one grouped statement.
+   */
+  String SUMMARY_QUERY =
+      "select new gov.va.api.health.bulkfhir.service.status.StatusSummary(s.publicationId,"
+          + " max(s.publicationEpoch), max(s.recordsPerFile), count(s),"
+          + " sum(case when s.buildCompleteEpoch > 0 then 1 else 0 end),"
+          + " sum(case when s.buildCompleteEpoch = 0 and s.failed = true then 1 else 0 end),"
+          + " sum(case when s.buildCompleteEpoch = 0 and s.failed = false"
+          + " and s.buildStartEpoch > 0 then 1 else 0 end),"
+          + " min(nullif(s.buildStartEpoch, 0)), max(s.buildCompleteEpoch))"
+          + " from StatusEntity s where s.publicationId = :publicationId"
+          + " group by s.publicationId";
+  /** Hibernate's lock timeout for skipping rows that are locked, see LockOptions.SKIP_LOCKED. */
+  String SKIP_LOCKED = "-2";
+
+  /**
+   * Claim the files that are still available. Files claimed by someone else since their ids were
+   * found are left alone. The files claimed are marked with the claim token, which must be unique
+   * to this call.
+   *
+   * @return The number of files claimed
+   */
+  @Transactional
+  @Modifying(clearAutomatically = true)
+  @Query(CLAIM_AVAILABLE_QUERY)
+  int claimAvailable(
+      @Param("ids") Collection<String> ids,
+      @Param("now") long claimEpoch,
+      @Param("leaseExpiryEpoch") long leaseExpiryEpoch,
+      @Param("processorId") String processorId,
+      @Param("claimToken") String claimToken);
+
+  /**
+   * Claim the file unless it is complete or being built under an unexpired lease. A file that
+   * failed for good gets its full retries back.
+   *
+   * @return 1 if the file was claimed, 0 if it is complete, in progress, or does not exist
+   */
+  @Transactional
+  @Modifying(clearAutomatically = true)
+  @Query(CLAIM_FILE_QUERY)
+  int claimFile(
+      @Param("publicationId") String publicationId,
+      @Param("fileName") String fileName,
+      @Param("now") long claimEpoch,
+      @Param("leaseExpiryEpoch") long leaseExpiryEpoch,
+      @Param("processorId") String processorId);
+
+  /**
+   * Mark the file complete, if it still has the version of the claim completing it.
+   *
+   * @return 1 if the file was updated, 0 if it does not exist or has been claimed again
+   */
+  @Transactional
+  @Modifying(clearAutomatically = true)
+  @Query(COMPLETE_FILE_QUERY)
+  int completeFile(
+      @Param("publicationId") String publicationId,
+      @Param("fileName") String fileName,
+      @Param("version") int version,
+      @Param("completeEpoch") long completeEpoch,
+      @Param("fileExtension") String fileExtension);
 
   int countByPublicationId(String publicationId);
 
+  /** The number of the publication's files with the completion time, 0 for files not complete. */
+  int countByPublicationIdAndBuildCompleteEpoch(String publicationId, long buildCompleteEpoch);
+
+  int countByPublicationIdAndFileName(String publicationId, String fileName);
+
   @Transactional
   int deleteByPublicationId(String publicationId);
 
+  /**
+   * Return a file whose build failed to not started, if it still has the version of the claim that
+   * failed. The file is available again after the retry time, unless it has failed for good.
+   *
+   * @return The number of files updated, 0 if the file was claimed again or completed
+   */
+  @Transactional
+  @Modifying(clearAutomatically = true)
+  @Query(FAIL_FILE_QUERY)
+  int failFile(
+      @Param("publicationId") String publicationId,
+      @Param("fileName") String fileName,
+      @Param("version") int version,
+      @Param("failureEpoch") long failureEpoch,
+      @Param("retryAfterEpoch") long retryAfterEpoch,
+      @Param("failed") boolean failed);
+
+  @Query(AVAILABLE_BY_PUBLICATION_AND_FILE_QUERY)
+  List<StatusEntity> findAvailable(@Param("now") long now, Pageable page);
+
   List<StatusEntity> findByPublicationId(String publicationId);
 
   List<StatusEntity> findByPublicationIdAndFileName(String publicationId, String fileName);
 
+  /**
+   * A page of the publication's files, in file name order, starting after the given file name. The
+   * name of the last file of a page is the cursor for the next page, so each page is found with
+   * the publication and file name index however deep it is, unlike paging by offset.
+   */
+  List<StatusEntity> findByPublicationIdAndFileNameGreaterThanOrderByFileNameAsc(
+      String publicationId, String afterFileName, Pageable page);
+
   @Query("select s from StatusEntity s where s.buildCompleteEpoch = 0 and s.buildStartEpoch > 0")
   List<StatusEntity> findByStatusInProgress();
 
-  @Query(NOT_STARTED_BY_PUBLICATION_AND_FILE_QUERY)
-  List<StatusEntity> findByStatusNotStarted(Pageable page);
+  /** The files claimed by the {@link #claimAvailable} call that wrote the claim token. */
+  @Query(CLAIMED_QUERY)
+  List<StatusEntity> findClaimed(
+      @Param("ids") Collection<String> ids, @Param("claimToken") String claimToken);
 
   @Query(DISTINCT_PUBLICATION_IDS_BY_CREATION_TIME_DESC_QUERY)
   List<String> findDistinctPublicationIds();
+
+  /** Summarize the publication, or nothing if it does not exist. */
+  @Query(SUMMARY_QUERY)
+  Optional<StatusSummary> findSummaryByPublicationId(@Param("publicationId") String publicationId);
+
+  /**
+   * Find available files and lock them for update, skipping files locked by anyone else, e.g.
+   * `WITH (UPDLOCK, ROWLOCK, READPAST)` on SQL Server or `FOR UPDATE SKIP LOCKED` where supported.
+   * Databases that cannot skip locked rows, such as H2, wait for the lock instead. This must be
+   * called in a transaction, and the files stay locked until it ends.
+   */
+  @Lock(LockModeType.PESSIMISTIC_WRITE)
+  @QueryHints(@QueryHint(name = "javax.persistence.lock.timeout", value = SKIP_LOCKED))
+  @Query(AVAILABLE_BY_PUBLICATION_AND_FILE_QUERY)
+  List<StatusEntity> lockAvailable(@Param("now") long now, Pageable page);
+
+  /**
+   * Claim a completed file to build it again.
+   *
+   * @return 1 if the file was claimed, 0 if it is not complete or does not exist
+   */
+  @Transactional
+  @Modifying(clearAutomatically = true)
+  @Query(REBUILD_FILE_QUERY)
+  int rebuildFile(
+      @Param("publicationId") String publicationId,
+      @Param("fileName") String fileName,
+      @Param("now") long claimEpoch,
+      @Param("leaseExpiryEpoch") long leaseExpiryEpoch,
+      @Param("processorId") String processorId);
+
+  /**
+   * Return a file that is being built to not started, if it still has the version of the claim
+   * releasing it.
+   *
+   * @return The number of files released, 0 if the file was claimed again or completed
+   */
+  @Transactional
+  @Modifying(clearAutomatically = true)
+  @Query(RELEASE_FILE_QUERY)
+  int releaseFile(
+      @Param("publicationId") String publicationId,
+      @Param("fileName") String fileName,
+      @Param("version") int version);
+
+  /**
+   * Extend the lease of a file being built, if it still has the version of the claim renewing it.
+   *
+   * @return 1 if the lease was extended, 0 if the file has been completed or claimed again
+   */
+  @Transactional
+  @Modifying(clearAutomatically = true)
+  @Query(RENEW_LEASE_QUERY)
+  int renewLease(
+      @Param("publicationId") String publicationId,
+      @Param("fileName") String fileName,
+      @Param("version") int version,
+      @Param("leaseExpiryEpoch") long leaseExpiryEpoch);
 }
@@ -0,0 +1,43 @@
+package gov.va.api.health.bulkfhir.service.status;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * The number of files of a publication in each status, computed by the database. See {@link
+ * StatusRepository#findSummaryByPublicationId(String)}.
+ */
+@Value
+@Builder
+@AllArgsConstructor
+public class StatusSummary {
+  String publicationId;
+
+  long publicationEpoch;
+
+  int recordsPerFile;
+
+  long files;
+
+  long complete;
+
+  long failed;
+
+  long inProgress;
+
+  /** `null` if no file has been started. */
+  Long firstBuildStartEpoch;
+
+  /** 0 if no file has been completed. */
+  long lastBuildCompleteEpoch;
+
+  /** Whether the publication has files and every one of them has been built. */
+  public boolean allComplete() {
+    return files > 0 && complete == files;
+  }
+
+  public long notStarted() {
+    return files - complete - failed - inProgress;
+  }
+}
@@ -2,23 +2,40 @@ package gov.va.api.health.bulkfhir.service.controller.bulkstatus;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gov.va.api.health.autoconfig.configuration.JacksonConfig;
 import gov.va.api.health.bulkfhir.api.bulkstatus.PublicationFileStatusResponse;
+import gov.va.api.health.bulkfhir.service.status.PublicationManifestEntity;
+import gov.va.api.health.bulkfhir.service.status.PublicationManifestRepository;
 import gov.va.api.health.bulkfhir.service.status.StatusEntity;
 import gov.va.api.health.bulkfhir.service.status.StatusRepository;
+import gov.va.api.health.bulkfhir.service.status.StatusSummary;
 import gov.va.api.health.ids.api.IdentityService;
 import gov.va.api.health.ids.api.ResourceIdentity;
 import gov.va.api.health.ids.client.IdEncoder;
+import java.io.ByteArrayOutputStream;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 import javax.servlet.http.HttpServletRequest;
+import lombok.SneakyThrows;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 @ExtendWith(MockitoExtension.class)
 public class BulkStatusControllerTest {
@@ -29,19 +46,125 @@ public class BulkStatusControllerTest {
 
   @Mock IdentityService identityService;
 
+  @Mock PublicationManifestRepository manifestRepo;
+
+  ObjectMapper mapper = JacksonConfig.createMapper();
+
   BulkStatusController controller() {
+    return controller(null);
+  }
+
+  BulkStatusController controller(String codec) {
+    return BulkStatusController.builder()
+        .repository(repo)
+        .bulkBaseUrl("http://fake-va.gov")
+        .identityService(identityService)
+        .manifests(manifests(codec))
+        .build();
+  }
+
+  BulkStatusController cachingController() {
+    return cachingController(cachingManifests());
+  }
+
+  BulkStatusController cachingController(PublicationManifests manifests) {
     return BulkStatusController.builder()
         .repository(repo)
         .bulkBaseUrl("http://fake-va.gov")
-        .bulkFileUrlPath("/bulk/publication")
         .identityService(identityService)
+        .manifests(manifests)
         .build();
   }
 
+  PublicationManifests cachingManifests() {
+    return PublicationManifests.builder()
+        .statusRepository(repo)
+        .repository(manifestRepo)
+        .bulkBaseUrl("http://fake-va.gov")
+        .bulkFileUrlPath("/bulk/publication")
+        .pageSize(2)
+        .cacheMaxEntries(10)
+        .cacheMaxAgeSeconds(60)
+        .mapper(mapper)
+        .build();
+  }
+
+  private void complete(int files) {
+    when(repo.findSummaryByPublicationId("EXPOSED"))
+        .thenReturn(
+            Optional.of(
+                StatusSummary.builder()
+                    .publicationId("EXPOSED")
+                    .files(files)
+                    .complete(files)
+                    .build()));
+  }
+
+  private List<StatusEntity> files(long publicationEpoch, int first, int last) {
+    return IntStream.rangeClosed(first, last)
+        .mapToObj(
+            i ->
+                StatusEntity.builder()
+                    .publicationEpoch(publicationEpoch)
+                    .fileName("FILE" + i)
+                    .publicationId("EXPOSED")
+                    .recordsPerFile(10)
+                    .build())
+        .collect(Collectors.toList());
+  }
+
+  private void identifiesExposed() {
+    when(identityService.lookup(any()))
+        .thenReturn(
+            List.of(
+                ResourceIdentity.builder()
+                    .identifier("EXPOSED")
+                    .resource("/test")
+                    .system("BULK")
+                    .build()));
+  }
+
+  private void filesAfter(String fileName, List<StatusEntity> files) {
+    when(repo.findByPublicationIdAndFileNameGreaterThanOrderByFileNameAsc(
+            eq("EXPOSED"), eq(fileName), eq(PageRequest.of(0, 2))))
+        .thenReturn(files);
+  }
+
+  PublicationManifests manifests(String codec) {
+    return PublicationManifests.builder()
+        .statusRepository(repo)
+        .repository(manifestRepo)
+        .bulkBaseUrl("http://fake-va.gov")
+        .bulkFileUrlPath("/bulk/publication")
+        .codec(codec)
+        .pageSize(2)
+        .mapper(mapper)
+        .build();
+  }
+
+  /**
+   * The manifest of a completed publication, or the streamed manifest of an incomplete one, to
+   * compare with a manifest serialized in one go.
+   */
+  @SneakyThrows
+  private JsonNode manifest(ResponseEntity<?> response) {
+    if (response.getBody() instanceof byte[]) {
+      return mapper.readTree((byte[]) response.getBody());
+    }
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ((StreamingResponseBody) response.getBody()).writeTo(out);
+    return mapper.readTree(out.toByteArray());
+  }
+
+  private List<String> urls(JsonNode manifest) {
+    List<String> urls = new ArrayList<>();
+    manifest.get("output").forEach(file -> urls.add(file.get("url").asText()));
+    return urls;
+  }
+
   @Test
   void getBulkStatusReturns400WhenInvalidAcceptHeaderIsProvided() {
-    ResponseEntity<PublicationFileStatusResponse> response =
-        controller().getBulkStatus("whatevah", "BOOM");
+    ResponseEntity<?> response = controller().getBulkStatus("whatevah", "BOOM", null);
     assertThat(response.getStatusCodeValue()).isEqualTo(400);
     assertThat(response.getBody()).isNull();
   }
@@ -56,9 +179,8 @@ public class BulkStatusControllerTest {
                     .resource("test.gov")
                     .system("BULK")
                     .build()));
-    when(repo.findByPublicationId("EXPOSED")).thenReturn(List.of());
-    ResponseEntity<PublicationFileStatusResponse> response =
-        controller().getBulkStatus("application/json", "CRACKME");
+    filesAfter("", List.of());
+    ResponseEntity<?> response = controller().getBulkStatus("application/json", "CRACKME", null);
     assertThat(response.getStatusCodeValue()).isEqualTo(404);
     assertThat(response.getBody()).isNull();
   }
@@ -66,8 +188,7 @@ public class BulkStatusControllerTest {
   @Test
   void getBulkStatusReturns404WhenPublicationLookupReturnsNoResults() {
     when(identityService.lookup(any())).thenReturn(List.of());
-    ResponseEntity<PublicationFileStatusResponse> response =
-        controller().getBulkStatus("application/fhir+json", "empty");
+    ResponseEntity<?> response = controller().getBulkStatus("application/fhir+json", "empty", null);
     assertThat(response.getStatusCodeValue()).isEqualTo(404);
     assertThat(response.getBody()).isNull();
   }
@@ -75,8 +196,8 @@ public class BulkStatusControllerTest {
   @Test
   void getBulkStatusReturns404WhenPublicationLookupReturnsNull() {
     when(identityService.lookup(any())).thenReturn(null);
-    ResponseEntity<PublicationFileStatusResponse> response =
-        controller().getBulkStatus("application/fhir+json", "cantcrackme");
+    ResponseEntity<?> response =
+        controller().getBulkStatus("application/fhir+json", "cantcrackme", null);
     assertThat(response.getStatusCodeValue()).isEqualTo(404);
     assertThat(response.getBody()).isNull();
   }
@@ -84,34 +205,120 @@ public class BulkStatusControllerTest {
   @Test
   void getBulkStatusReturns404WhenPublicationStringCouldNotBeDecoded() {
     when(identityService.lookup(any())).thenThrow(new IdEncoder.BadId("WAT IS THIS"));
-    ResponseEntity<PublicationFileStatusResponse> response =
-        controller().getBulkStatus("application/fhir+json", "NODECODE");
+    ResponseEntity<?> response =
+        controller().getBulkStatus("application/fhir+json", "NODECODE", null);
     assertThat(response.getStatusCodeValue()).isEqualTo(404);
     assertThat(response.getBody()).isNull();
   }
 
+  @Test
+  void getBulkStatusCachesCompletedPublications() {
+    identifiesExposed();
+    filesAfter("", files(0, 1, 1));
+    complete(1);
+    BulkStatusController controller = cachingController();
+    var first = controller.getBulkStatus("application/fhir+json", "CRACKME", null);
+    var second = controller.getBulkStatus("application/fhir+json", "CRACKME", null);
+    assertThat(first.getStatusCodeValue()).isEqualTo(200);
+    assertThat(first.getHeaders().getETag()).isNotNull();
+    assertThat(first.getHeaders().getCacheControl()).isEqualTo("max-age=60, private");
+    assertThat(second.getHeaders().getETag()).isEqualTo(first.getHeaders().getETag());
+    assertThat(manifest(second)).isEqualTo(manifest(first));
+    verify(identityService, times(1)).lookup(any());
+    verify(repo, times(1)).findSummaryByPublicationId("EXPOSED");
+  }
+
+  @Test
+  void getBulkStatusReturnsCompletedManifestsFromMemory() {
+    identifiesExposed();
+    filesAfter("", files(0, 1, 1));
+    complete(1);
+    var response = cachingController().getBulkStatus("application/fhir+json", "CRACKME", null);
+    assertThat(response.getBody()).isInstanceOf(byte[].class);
+  }
+
+  @Test
+  void getBulkStatusDoesNotCacheIncompletePublications() {
+    identifiesExposed();
+    filesAfter("", files(0, 1, 1));
+    BulkStatusController controller = cachingController();
+    var response = controller.getBulkStatus("application/fhir+json", "CRACKME", null);
+    controller.getBulkStatus("application/fhir+json", "CRACKME", null);
+    assertThat(response.getHeaders().getETag()).isNull();
+    assertThat(response.getHeaders().getCacheControl()).isEqualTo("no-cache");
+    verify(identityService, times(2)).lookup(any());
+  }
+
+  @Test
+  void getBulkStatusRendersForgottenPublicationsAgain() {
+    identifiesExposed();
+    filesAfter("", files(0, 1, 1));
+    complete(1);
+    PublicationManifests manifests = cachingManifests();
+    BulkStatusController controller = cachingController(manifests);
+    controller.getBulkStatus("application/fhir+json", "CRACKME", null);
+    manifests.forget("EXPOSED");
+    controller.getBulkStatus("application/fhir+json", "CRACKME", null);
+    verify(identityService, times(2)).lookup(any());
+    verify(repo, times(2)).findSummaryByPublicationId("EXPOSED");
+  }
+
+  @Test
+  void getBulkStatusReturns304WhenTheClientHasTheManifest() {
+    identifiesExposed();
+    filesAfter("", files(0, 1, 1));
+    complete(1);
+    BulkStatusController controller = cachingController();
+    String eTag =
+        controller.getBulkStatus("application/fhir+json", "CRACKME", null).getHeaders().getETag();
+    var response = controller.getBulkStatus("application/fhir+json", "CRACKME", eTag);
+    assertThat(response.getStatusCodeValue()).isEqualTo(304);
+    assertThat(response.getHeaders().getETag()).isEqualTo(eTag);
+    assertThat(response.getBody()).isNull();
+  }
+
+  @Test
+  void getBulkStatusReturns304ForCompletedPublicationsWithoutACache() {
+    identifiesExposed();
+    filesAfter("", files(0, 1, 1));
+    complete(1);
+    String eTag =
+        controller().getBulkStatus("application/fhir+json", "CRACKME", null).getHeaders().getETag();
+    var response = controller().getBulkStatus("application/fhir+json", "CRACKME", eTag);
+    assertThat(response.getStatusCodeValue()).isEqualTo(304);
+    verify(identityService, times(2)).lookup(any());
+  }
+
+  @Test
+  void getBulkStatusAdvertisesCompressedFiles() {
+    identifiesExposed();
+    filesAfter("", files(0, 1, 1));
+    var response = controller("gzip").getBulkStatus("application/fhir+json", "CRACKME", null);
+    assertThat(urls(manifest(response)))
+        .containsExactly("http://fake-va.gov/bulk/publication/EXPOSED/FILE1.ndjson.gz");
+  }
+
+  @Test
+  void getBulkStatusAdvertisesTheExtensionEachFileWasWrittenWith() {
+    identifiesExposed();
+    List<StatusEntity> files = files(0, 1, 2);
+    files.get(0).fileExtension(".ndjson.zst");
+    filesAfter("", files);
+    filesAfter("FILE2", List.of());
+    var response = controller("gzip").getBulkStatus("application/fhir+json", "CRACKME", null);
+    assertThat(urls(manifest(response)))
+        .containsExactly(
+            "http://fake-va.gov/bulk/publication/EXPOSED/FILE1.ndjson.zst",
+            "http://fake-va.gov/bulk/publication/EXPOSED/FILE2.ndjson.gz");
+  }
+
   @Test
   void getBulkStatusReturnsAppropriateSuccessfulResponse() {
     long now = Instant.now().toEpochMilli();
-    when(identityService.lookup(any()))
-        .thenReturn(
-            List.of(
-                ResourceIdentity.builder()
-                    .identifier("EXPOSED")
-                    .resource("/test")
-                    .system("BULK")
-                    .build()));
-    when(repo.findByPublicationId("EXPOSED"))
-        .thenReturn(
-            List.of(
-                StatusEntity.builder()
-                    .publicationEpoch(now)
-                    .fileName("FILE1")
-                    .publicationId("EXPOSED")
-                    .recordsPerFile(10)
-                    .build()));
-    ResponseEntity<PublicationFileStatusResponse> response =
-        controller().getBulkStatus("application/fhir+json", "CRACKME");
+    identifiesExposed();
+    filesAfter("", files(now, 1, 1));
+    ResponseEntity<?> response =
+        controller().getBulkStatus("application/fhir+json", "CRACKME", null);
     PublicationFileStatusResponse expected =
         PublicationFileStatusResponse.builder()
             .requiresAccessToken(true)
@@ -133,6 +340,53 @@ public class BulkStatusControllerTest {
                         .build()))
             .build();
     assertThat(response.getStatusCodeValue()).isEqualTo(200);
-    assertThat(response.getBody()).isEqualTo(expected);
+    assertThat(manifest(response)).isEqualTo(mapper.valueToTree(expected));
+  }
+
+  @Test
+  void getBulkStatusServesTheStoredManifestWithTheRequest() {
+    identifiesExposed();
+    when(manifestRepo.findById("EXPOSED"))
+        .thenReturn(
+            Optional.of(
+                PublicationManifestEntity.builder()
+                    .publicationId("EXPOSED")
+                    .manifest(
+                        "{\"requiresAccessToken\":true,"
+                            + "\"request\":\"urn:bulk-status:request\",\"output\":[]}")
+                    .fileBaseUrl("http://fake-va.gov/bulk/publication")
+                    .build()));
+    var response = cachingController().getBulkStatus("application/fhir+json", "CRACKME", null);
+    assertThat(response.getStatusCodeValue()).isEqualTo(200);
+    assertThat(response.getHeaders().getETag()).isNotNull();
+    JsonNode manifest = manifest(response);
+    assertThat(manifest.get("request").asText()).isEqualTo("http://fake-va.gov/test");
+    assertThat(manifest.get("requiresAccessToken").asBoolean()).isTrue();
+    verify(repo, never()).findSummaryByPublicationId(any());
+  }
+
+  @Test
+  void getBulkStatusStreamsEveryPageOfFiles() {
+    identifiesExposed();
+    filesAfter("", files(0, 1, 2));
+    filesAfter("FILE2", files(0, 3, 4));
+    filesAfter("FILE4", files(0, 5, 5));
+    var manifest = manifest(controller().getBulkStatus("application/fhir+json", "CRACKME", null));
+    assertThat(urls(manifest))
+        .containsExactly(
+            "http://fake-va.gov/bulk/publication/EXPOSED/FILE1.ndjson",
+            "http://fake-va.gov/bulk/publication/EXPOSED/FILE2.ndjson",
+            "http://fake-va.gov/bulk/publication/EXPOSED/FILE3.ndjson",
+            "http://fake-va.gov/bulk/publication/EXPOSED/FILE4.ndjson",
+            "http://fake-va.gov/bulk/publication/EXPOSED/FILE5.ndjson");
+  }
+
+  @Test
+  void getBulkStatusStopsAfterAnEmptyPage() {
+    identifiesExposed();
+    filesAfter("", files(0, 1, 2));
+    filesAfter("FILE2", List.of());
+    var manifest = manifest(controller().getBulkStatus("application/fhir+json", "CRACKME", null));
+    assertThat(urls(manifest)).hasSize(2);
   }
 }
@@ -0,0 +1,89 @@
+package gov.va.api.health.bulkfhir.service.controller.bulkstatus;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import gov.va.api.health.bulkfhir.service.controller.bulkstatus.ManifestCache.Manifest;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import org.junit.jupiter.api.Test;
+
+public class ManifestCacheTest {
+
+  private static byte[] json(String value) {
+    return ("{\"id\":\"" + value + "\"}").getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Test
+  void disabledCachesKeepNothing() {
+    ManifestCache cache = ManifestCache.builder().maxEntries(0).expiry(Duration.ofHours(1)).build();
+    Manifest manifest = cache.put("a", "pa", json("a"), 0);
+    assertThat(manifest.eTag()).isNotBlank();
+    assertThat(cache.get("a")).isEmpty();
+  }
+
+  @Test
+  void entityTagsAreMatched() {
+    Manifest manifest = ManifestCache.builder().build().put("a", "pa", json("a"), 0);
+    assertThat(manifest.eTag()).startsWith("\"").endsWith("\"");
+    assertThat(manifest.matches(null)).isFalse();
+    assertThat(manifest.matches("\"nope\"")).isFalse();
+    assertThat(manifest.matches(manifest.eTag())).isTrue();
+    assertThat(manifest.matches("\"nope\", W/" + manifest.eTag())).isTrue();
+    assertThat(manifest.matches("*")).isTrue();
+  }
+
+  @Test
+  void evictedPublicationsAreDropped() {
+    ManifestCache cache = ManifestCache.builder().maxEntries(3).expiry(Duration.ofHours(1)).build();
+    cache.put("a", "p", json("a"), 0);
+    cache.put("b", "p", json("b"), 0);
+    cache.put("c", "q", json("c"), 0);
+    cache.evict("p");
+    assertThat(cache.get("a")).isEmpty();
+    assertThat(cache.get("b")).isEmpty();
+    assertThat(cache.get("c")).isPresent();
+  }
+
+  @Test
+  void expiredManifestsAreDropped() throws Exception {
+    ManifestCache cache =
+        ManifestCache.builder().maxEntries(10).expiry(Duration.ofMillis(50)).build();
+    cache.put("a", "pa", json("a"), 0);
+    Thread.sleep(100);
+    assertThat(cache.get("a")).isEmpty();
+    assertThat(cache.size()).isZero();
+  }
+
+  @Test
+  void leastRecentlyUsedManifestIsDroppedWhenFull() {
+    ManifestCache cache = ManifestCache.builder().maxEntries(2).expiry(Duration.ofHours(1)).build();
+    cache.put("a", "pa", json("a"), 0);
+    cache.put("b", "pb", json("b"), 0);
+    assertThat(cache.get("a")).isPresent();
+    cache.put("c", "pc", json("c"), 0);
+    assertThat(cache.get("a")).isPresent();
+    assertThat(cache.get("b")).isEmpty();
+    assertThat(cache.get("c")).isPresent();
+  }
+
+  @Test
+  void manifestsReadBeforeAnEvictionAreNotCached() {
+    ManifestCache cache = ManifestCache.builder().maxEntries(2).expiry(Duration.ofHours(1)).build();
+    long generation = cache.generation();
+    cache.evict("p");
+    Manifest manifest = cache.put("a", "p", json("a"), generation);
+    assertThat(manifest.eTag()).isNotBlank();
+    assertThat(cache.get("a")).isEmpty();
+    cache.put("a", "p", json("a"), cache.generation());
+    assertThat(cache.get("a")).isPresent();
+  }
+
+  @Test
+  void sameManifestHasTheSameEntityTag() {
+    ManifestCache cache = ManifestCache.builder().maxEntries(2).expiry(Duration.ofHours(1)).build();
+    assertThat(cache.put("a", "pa", json("a"), 0).eTag())
+        .isEqualTo(cache.put("b", "pb", json("a"), 0).eTag());
+    assertThat(cache.put("a", "pa", json("a"), 0).eTag())
+        .isNotEqualTo(cache.put("c", "pc", json("c"), 0).eTag());
+  }
+}
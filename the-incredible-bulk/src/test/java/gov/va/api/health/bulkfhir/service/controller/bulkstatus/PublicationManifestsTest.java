@@ -0,0 +1,136 @@
+package gov.va.api.health.bulkfhir.service.controller.bulkstatus;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gov.va.api.health.autoconfig.configuration.JacksonConfig;
+import gov.va.api.health.bulkfhir.service.status.PublicationManifestEntity;
+import gov.va.api.health.bulkfhir.service.status.PublicationManifestRepository;
+import gov.va.api.health.bulkfhir.service.status.StatusEntity;
+import gov.va.api.health.bulkfhir.service.status.StatusRepository;
+import java.util.List;
+import java.util.Optional;
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.domain.PageRequest;
+
+@ExtendWith(MockitoExtension.class)
+public class PublicationManifestsTest {
+
+  @Mock StatusRepository statusRepository;
+
+  @Mock PublicationManifestRepository repository;
+
+  ObjectMapper mapper = JacksonConfig.createMapper();
+
+  private StatusEntity file(String fileName) {
+    return StatusEntity.builder()
+        .publicationId("p")
+        .fileName(fileName)
+        .publicationEpoch(1000)
+        .recordsPerFile(10)
+        .build();
+  }
+
+  private void filesAfter(String fileName, List<StatusEntity> files) {
+    when(statusRepository.findByPublicationIdAndFileNameGreaterThanOrderByFileNameAsc(
+            eq("p"), eq(fileName), eq(PageRequest.of(0, 2))))
+        .thenReturn(files);
+  }
+
+  private PublicationManifests manifests() {
+    return PublicationManifests.builder()
+        .statusRepository(statusRepository)
+        .repository(repository)
+        .bulkBaseUrl("http://fake-va.gov")
+        .bulkFileUrlPath("/bulk/publication")
+        .pageSize(2)
+        .mapper(mapper)
+        .build();
+  }
+
+  @SneakyThrows
+  private JsonNode readTree(byte[] json) {
+    return mapper.readTree(json);
+  }
+
+  private PublicationManifestEntity stored(String fileBaseUrl) {
+    return PublicationManifestEntity.builder()
+        .publicationId("p")
+        .manifest("{\"requiresAccessToken\":true,\"request\":\"urn:bulk-status:request\"}")
+        .fileBaseUrl(fileBaseUrl)
+        .build();
+  }
+
+  @Test
+  void storedManifestsAreNotRenderedAgain() {
+    when(repository.findById("p"))
+        .thenReturn(Optional.of(stored("http://fake-va.gov/bulk/publication")));
+    assertThat(manifests().stored("p", "http://fake-va.gov/\"quoted\""))
+        .hasValueSatisfying(
+            json ->
+                assertThat(readTree(json).get("request").asText())
+                    .isEqualTo("http://fake-va.gov/\"quoted\""));
+    verify(statusRepository, never())
+        .findByPublicationIdAndFileNameGreaterThanOrderByFileNameAsc(any(), any(), any());
+  }
+
+  @Test
+  void storedManifestsAreSplicedWithTheRequest() {
+    filesAfter("", List.of(file("f1"), file("f2")));
+    filesAfter("f2", List.of(file("f3")));
+    PublicationManifests manifests = manifests();
+    manifests.store("p");
+    ArgumentCaptor<PublicationManifestEntity> stored =
+        ArgumentCaptor.forClass(PublicationManifestEntity.class);
+    verify(repository).save(stored.capture());
+    assertThat(stored.getValue().manifest()).doesNotContain("http://fake-va.gov/test");
+    assertThat(stored.getValue().fileBaseUrl()).isEqualTo("http://fake-va.gov/bulk/publication");
+    when(repository.findById("p")).thenReturn(Optional.of(stored.getValue()));
+    byte[] rendered = manifests.render(manifests.manifestOf("p", "http://fake-va.gov/test").get());
+    assertThat(manifests.stored("p", "http://fake-va.gov/test").get()).containsExactly(rendered);
+  }
+
+  @Test
+  void storedManifestsOfAnotherBaseUrlAreRenderedAgain() {
+    when(repository.findById("p"))
+        .thenReturn(Optional.of(stored("http://old-va.gov/bulk/publication")));
+    assertThat(manifests().stored("p", "http://fake-va.gov/test")).isEmpty();
+  }
+
+  @Test
+  void storedManifestsWithoutARequestPlaceholderAreRenderedAgain() {
+    when(repository.findById("p"))
+        .thenReturn(
+            Optional.of(
+                PublicationManifestEntity.builder()
+                    .publicationId("p")
+                    .manifest("{\"requiresAccessToken\":true}")
+                    .fileBaseUrl("http://fake-va.gov/bulk/publication")
+                    .build()));
+    assertThat(manifests().stored("p", "http://fake-va.gov/test")).isEmpty();
+  }
+
+  @Test
+  void storingAPublicationWithoutFilesIsIgnored() {
+    filesAfter("", List.of());
+    manifests().store("p");
+    verify(repository, never()).save(any());
+  }
+
+  @Test
+  void unstoredManifestsAreNotFound() {
+    when(repository.findById("p")).thenReturn(Optional.empty());
+    assertThat(manifests().stored("p", "http://fake-va.gov/test")).isEmpty();
+  }
+}
@@ -0,0 +1,78 @@
+package gov.va.api.health.bulkfhir.service.controller.bulkstatus;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gov.va.api.health.autoconfig.configuration.JacksonConfig;
+import gov.va.api.health.bulkfhir.api.bulkstatus.PublicationFileStatusResponse;
+import gov.va.api.health.bulkfhir.api.bulkstatus.PublicationFileStatusResponse.FileLocation;
+import java.io.ByteArrayOutputStream;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+
+public class StreamingManifestTest {
+
+  ObjectMapper mapper = JacksonConfig.createMapper();
+
+  private static FileLocation file(String name) {
+    return FileLocation.builder().type("Patient").url("http://fake-va.gov/" + name).build();
+  }
+
+  private static PublicationFileStatusResponse.PublicationFileStatusResponseBuilder envelope() {
+    return PublicationFileStatusResponse.builder()
+        .requiresAccessToken(true)
+        .transactionTime(Instant.ofEpochMilli(1000))
+        .output(List.of(file("first")))
+        .extension(Optional.empty());
+  }
+
+  @SneakyThrows
+  private JsonNode streamed(PublicationFileStatusResponse envelope, List<String> files) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    StreamingManifest.<String>builder()
+        .mapper(mapper)
+        .envelope(envelope)
+        .firstPage(files)
+        .nextPage(page -> List.of())
+        .toFileLocation(StreamingManifestTest::file)
+        .pageSize(10)
+        .build()
+        .writeTo(out);
+    return mapper.readTree(out.toByteArray());
+  }
+
+  @Test
+  @SneakyThrows
+  void manifestIsWrittenLikeTheMapperWritesIt() {
+    PublicationFileStatusResponse envelope =
+        envelope().request("http://fake-va.gov/test").error(List.of()).build();
+    assertThat(streamed(envelope, List.of("a")))
+        .isEqualTo(
+            mapper.readTree(
+                mapper.writeValueAsBytes(
+                    envelope()
+                        .request("http://fake-va.gov/test")
+                        .error(List.of())
+                        .output(List.of(file("a")))
+                        .build())));
+  }
+
+  @Test
+  @SneakyThrows
+  void nullFieldsAreWrittenLikeTheMapperWritesThem() {
+    PublicationFileStatusResponse envelope = envelope().request(null).error(null).build();
+    assertThat(streamed(envelope, List.of("a", "b")))
+        .isEqualTo(
+            mapper.readTree(
+                mapper.writeValueAsBytes(
+                    envelope()
+                        .request(null)
+                        .error(null)
+                        .output(List.of(file("a"), file("b")))
+                        .build())));
+  }
+}
@@ -1,23 +1,17 @@
 package gov.va.api.health.bulkfhir.service.controller.patient;
 
 import static org.assertj.core.api.Assertions.assertThat;
-import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyList;
-import static org.mockito.Mockito.never;
-import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
-import gov.va.api.health.bulkfhir.service.controller.publication.DefaultPublicationStatusTransformer;
-import gov.va.api.health.bulkfhir.service.status.StatusEntity;
-import gov.va.api.health.bulkfhir.service.status.StatusRepository;
+import gov.va.api.health.bulkfhir.service.controller.publication.CompletedPublications;
 import gov.va.api.health.dstu2.api.resources.OperationOutcome;
 import gov.va.api.health.ids.api.IdentityService;
 import gov.va.api.health.ids.api.Registration;
-import java.time.Instant;
-import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
 import javax.servlet.http.HttpServletRequest;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -28,7 +22,7 @@ import org.springframework.http.ResponseEntity;
 @ExtendWith(MockitoExtension.class)
 public class BulkPatientControllerTest {
 
-  @Mock StatusRepository repo;
+  @Mock CompletedPublications completedPublications;
 
   @Mock HttpServletRequest request;
 
@@ -36,62 +30,16 @@ public class BulkPatientControllerTest {
 
   BulkPatientController controller() {
     return BulkPatientController.builder()
-        .repository(repo)
+        .completedPublications(completedPublications)
         .baseUrl("http://fake-va.gov")
         .bulkStatusPath("/STATUSNOW")
         .identityService(identityService)
-        .transformer(new DefaultPublicationStatusTransformer())
         .build();
   }
 
-  @Test
-  void
-      exportReturnsContentLocationHeaderForFirstPublicationWhenMultipleCompletedPublicationExist() {
-    long now = Instant.now().toEpochMilli();
-    when(repo.findByPublicationId("1"))
-        .thenReturn(
-            List.of(
-                StatusEntity.builder()
-                    .publicationId("1")
-                    .publicationEpoch(now)
-                    .buildCompleteEpoch(now)
-                    .buildStartEpoch(now)
-                    .recordsPerFile(10)
-                    .build()));
-    when(identityService.register(anyList()))
-        .thenReturn(List.of(Registration.builder().uuid("ZZZ").build()));
-    ResponseEntity<OperationOutcome> response = mockHeaders("ndjson");
-    verify(repo, never()).findByPublicationId("2");
-    assertThat(response.getStatusCodeValue()).isEqualTo(202);
-    assertThat(response.getBody()).isNull();
-    List<String> contentLocationHeaders = response.getHeaders().get("Content-Location");
-    assertThat(contentLocationHeaders).isNotNull();
-    assertThat(contentLocationHeaders.size()).isEqualTo(1);
-    assertThat(contentLocationHeaders.get(0)).isEqualTo("http://fake-va.gov/STATUSNOW/ZZZ");
-  }
-
   @Test
   void exportReturnsContentLocationHeaderWhenACompletedPublicationExists() {
-    long now = Instant.now().toEpochMilli();
-    when(repo.findByPublicationId("2"))
-        .thenReturn(
-            List.of(
-                StatusEntity.builder()
-                    .publicationId("2")
-                    .publicationEpoch(now)
-                    .buildCompleteEpoch(now)
-                    .buildStartEpoch(now)
-                    .recordsPerFile(10)
-                    .build()));
-    when(repo.findByPublicationId("1"))
-        .thenReturn(
-            List.of(
-                StatusEntity.builder()
-                    .publicationId("1")
-                    .publicationEpoch(now)
-                    .buildStartEpoch(now)
-                    .recordsPerFile(10)
-                    .build()));
+    when(completedPublications.latest()).thenReturn(Optional.of("2"));
     when(identityService.register(anyList()))
         .thenReturn(List.of(Registration.builder().uuid("XXX").build()));
     ResponseEntity<OperationOutcome> response = mockHeaders(null);
@@ -105,26 +53,7 @@ public class BulkPatientControllerTest {
 
   @Test
   void exportReturnsContentLocationHeaderWhenEncoderDoesntReturnData() {
-    long now = Instant.now().toEpochMilli();
-    when(repo.findByPublicationId("2"))
-        .thenReturn(
-            List.of(
-                StatusEntity.builder()
-                    .publicationId("2")
-                    .publicationEpoch(now)
-                    .buildCompleteEpoch(now)
-                    .buildStartEpoch(now)
-                    .recordsPerFile(10)
-                    .build()));
-    when(repo.findByPublicationId("1"))
-        .thenReturn(
-            List.of(
-                StatusEntity.builder()
-                    .publicationId("1")
-                    .publicationEpoch(now)
-                    .buildStartEpoch(now)
-                    .recordsPerFile(10)
-                    .build()));
+    when(completedPublications.latest()).thenReturn(Optional.of("2"));
     when(identityService.register(anyList())).thenReturn(List.of());
     ResponseEntity<OperationOutcome> response = mockHeaders("ndjson");
     assertThat(response.getStatusCodeValue()).isEqualTo(202);
@@ -137,33 +66,7 @@ public class BulkPatientControllerTest {
 
   @Test
   void exportReturnsOperationOutcomeWhenNoCompletedPublicationsExist() {
-    when(repo.findDistinctPublicationIds()).thenReturn(List.of("1", "2", "3"));
-    long now = Instant.now().toEpochMilli();
-    /*
-     * None of the publications should be completed so we can just reuse the same response for them all in this test.
-     */
-    when(repo.findByPublicationId(any()))
-        .thenReturn(
-            List.of(
-                StatusEntity.builder()
-                    .publicationId("1")
-                    .publicationEpoch(now)
-                    .buildStartEpoch(now)
-                    .recordsPerFile(10)
-                    .build()));
-    Map<String, String> headers = new HashMap<>();
-    headers.put("accept", "application/fhir+json");
-    headers.put("prefer", "respond-async");
-    ResponseEntity<OperationOutcome> response = controller().export(request, headers, "ndjson");
-    assertThat(response.getStatusCodeValue()).isEqualTo(503);
-    assertThat(response.getBody()).isNotNull();
-    assertThat(response.getBody().text()).isNotNull();
-    assertThat(response.getBody().text().div()).contains("try again later");
-  }
-
-  @Test
-  void exportReturnsOperationOutcomeWhenNoPublicationsExist() {
-    when(repo.findDistinctPublicationIds()).thenReturn(new ArrayList<>());
+    when(completedPublications.latest()).thenReturn(Optional.empty());
     Map<String, String> headers = new HashMap<>();
     headers.put("accept", "application/fhir+json");
     headers.put("prefer", "respond-async");
@@ -221,7 +124,6 @@ public class BulkPatientControllerTest {
   }
 
   private ResponseEntity<OperationOutcome> mockHeaders(String outputFormat) {
-    when(repo.findDistinctPublicationIds()).thenReturn(List.of("1", "2"));
     when(request.getRequestURI()).thenReturn("/Patient/$export");
     when(request.getQueryString()).thenReturn("_outputFormat=ndjson");
     Map<String, String> headers = new HashMap<>();
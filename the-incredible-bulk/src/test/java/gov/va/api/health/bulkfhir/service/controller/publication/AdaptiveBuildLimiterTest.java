@@ -0,0 +1,135 @@
+package gov.va.api.health.bulkfhir.service.controller.publication;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import gov.va.api.health.bulkfhir.api.internal.FileBuildResponse;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuildRequest;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileClaim;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import org.junit.jupiter.api.Test;
+
+public class AdaptiveBuildLimiterTest {
+
+  SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+  List<CompletableFuture<FileBuildResponse>> started = new ArrayList<>();
+
+  private CompletableFuture<FileBuildResponse> build(FileClaim claim) {
+    CompletableFuture<FileBuildResponse> building = new CompletableFuture<>();
+    started.add(building);
+    return building;
+  }
+
+  private FileClaim claim(String fileId) {
+    return FileClaim.builder()
+        .request(FileBuildRequest.builder().publicationId("p").fileId(fileId).build())
+        .build();
+  }
+
+  private AdaptiveBuildLimiter limiter(int initialLimit) {
+    return AdaptiveBuildLimiter.builder()
+        .minLimit(1)
+        .maxLimit(4)
+        .initialLimit(initialLimit)
+        .targetLatencyMillis(100)
+        .backoffRatio(0.5)
+        .meterRegistry(registry)
+        .build();
+  }
+
+  private static long millis(long millis) {
+    return Duration.ofMillis(millis).toNanos();
+  }
+
+  @Test
+  void failedBuildsReleaseTheirSlot() {
+    AdaptiveBuildLimiter limiter = limiter(1);
+    CompletableFuture<FileBuildResponse> first = limiter.submit(claim("f1"), this::build);
+    limiter.submit(claim("f2"), this::build);
+    started.get(0).completeExceptionally(new IllegalStateException("boom"));
+    assertThat(first).isCompletedExceptionally();
+    assertThat(started).hasSize(2);
+  }
+
+  @Test
+  void fastResponsesRaiseTheLimitWhileItIsInUse() {
+    AdaptiveBuildLimiter limiter = limiter(2);
+    for (int i = 0; i < 5; i++) {
+      limiter.submit(claim("f" + i), this::build);
+    }
+    assertThat(started).hasSize(2);
+    for (int i = 0; i < 10; i++) {
+      limiter.requestCompleted(Duration.ofMillis(10), false);
+    }
+    assertThat(limiter.limit()).isEqualTo(4);
+    assertThat(started).hasSize(4);
+    assertThat(registry.get("bulk.build.concurrency.limit").gauge().value()).isEqualTo(4);
+    assertThat(registry.get("bulk.build.concurrency.waiting").gauge().value()).isEqualTo(1);
+    assertThat(
+            registry
+                .get("bulk.build.concurrency.adjustments")
+                .tag("direction", "increase")
+                .counter()
+                .count())
+        .isEqualTo(2);
+  }
+
+  @Test
+  void limitIsNotRaisedWhenItIsNotInUse() {
+    AdaptiveBuildLimiter limiter = limiter(2);
+    for (int i = 0; i < 10; i++) {
+      limiter.requestCompleted(Duration.ofMillis(10), false);
+    }
+    assertThat(limiter.limit()).isEqualTo(2);
+  }
+
+  @Test
+  void slowOrFailingResponsesLowerTheLimit() {
+    AdaptiveBuildLimiter limiter = limiter(4);
+    limiter.requestCompleted(Duration.ofMillis(500), false, millis(1000));
+    assertThat(limiter.limit()).isEqualTo(2);
+    limiter.requestCompleted(Duration.ofMillis(10), true, millis(2000));
+    assertThat(limiter.limit()).isEqualTo(1);
+    limiter.requestCompleted(Duration.ofMillis(10), true, millis(3000));
+    assertThat(limiter.limit()).isEqualTo(1);
+  }
+
+  @Test
+  void slowResponsesArrivingTogetherLowerTheLimitOnce() {
+    AdaptiveBuildLimiter limiter = limiter(4);
+    for (int i = 0; i < 5; i++) {
+      limiter.requestCompleted(Duration.ofMillis(500), i % 2 == 0, millis(1000 + i));
+    }
+    assertThat(limiter.limit()).isEqualTo(2);
+    assertThat(
+            registry
+                .get("bulk.build.concurrency.adjustments")
+                .tag("direction", "decrease")
+                .counter()
+                .count())
+        .isEqualTo(1);
+    /* Started after the decrease, so it was sent under the lowered limit. */
+    limiter.requestCompleted(Duration.ofMillis(500), false, millis(1600));
+    assertThat(limiter.limit()).isEqualTo(1);
+  }
+
+  @Test
+  void waitingBuildsStartInOrderAsBuildsFinish() throws ExecutionException, InterruptedException {
+    AdaptiveBuildLimiter limiter = limiter(2);
+    List<CompletableFuture<FileBuildResponse>> results = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      results.add(limiter.submit(claim("f" + i), this::build));
+    }
+    assertThat(started).hasSize(2);
+    FileBuildResponse done = FileBuildResponse.builder().publicationId("p").fileId("f0").build();
+    started.get(0).complete(done);
+    assertThat(results.get(0).get()).isEqualTo(done);
+    assertThat(started).hasSize(3);
+    assertThat(results.get(2)).isNotDone();
+  }
+}
@@ -0,0 +1,74 @@
+package gov.va.api.health.bulkfhir.service.controller.publication;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuildRequest;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilderExceptions.BuildCapacityExceeded;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileClaim;
+import java.time.Duration;
+import org.junit.jupiter.api.Test;
+
+public class BuildAdmissionTest {
+
+  private BuildAdmission admission(int maxQueuedFiles, long maxQueuedRecords) {
+    return BuildAdmission.builder()
+        .maxQueuedFiles(maxQueuedFiles)
+        .maxQueuedRecords(maxQueuedRecords)
+        .retryAfterSeconds(42)
+        .maxRetryAfterSeconds(300)
+        .build();
+  }
+
+  private FileClaim claim(int count) {
+    return FileClaim.builder()
+        .request(FileBuildRequest.builder().publicationId("p").fileId("f").build())
+        .count(count)
+        .build();
+  }
+
+  @Test
+  void buildsAreRejectedWhenTooManyFilesAreQueued() {
+    BuildAdmission admission = admission(2, 0);
+    BuildAdmission.Ticket first = admission.admit();
+    admission.admit();
+    BuildCapacityExceeded e = assertThrows(BuildCapacityExceeded.class, admission::admit);
+    assertThat(e.retryAfter()).isEqualTo(Duration.ofSeconds(42));
+    first.cancel();
+    first.cancel();
+    assertThat(admission.queuedFiles()).isEqualTo(1);
+    admission.admit();
+  }
+
+  @Test
+  void buildsAreRejectedWhenTooManyRecordsAreQueued() {
+    BuildAdmission admission = admission(0, 1000);
+    BuildAdmission.Ticket first = admission.admit();
+    first.claimed(claim(600));
+    admission.admit().claimed(claim(600));
+    assertThrows(BuildCapacityExceeded.class, admission::admit);
+    first.finished();
+    assertThat(admission.queuedRecords()).isEqualTo(600);
+    admission.admit();
+  }
+
+  @Test
+  void retryAfterIsEstimatedFromThroughputOnceBuildsFinish() {
+    BuildAdmission admission = admission(1, 0);
+    BuildAdmission.Ticket first = admission.admit();
+    first.claimed(claim(1_000_000_000));
+    first.finished();
+    admission.admit().claimed(claim(1));
+    BuildCapacityExceeded e = assertThrows(BuildCapacityExceeded.class, admission::admit);
+    assertThat(e.retryAfter()).isEqualTo(Duration.ofSeconds(1));
+  }
+
+  @Test
+  void unlimitedAdmissionAdmitsEverything() {
+    BuildAdmission admission = BuildAdmission.builder().build();
+    for (int i = 0; i < 1000; i++) {
+      admission.admit().claimed(claim(1000));
+    }
+    assertThat(admission.queuedFiles()).isEqualTo(1000);
+  }
+}
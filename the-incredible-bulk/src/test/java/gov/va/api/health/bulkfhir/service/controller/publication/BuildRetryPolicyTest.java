@@ -0,0 +1,49 @@
+package gov.va.api.health.bulkfhir.service.controller.publication;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.time.Duration;
+import org.junit.jupiter.api.Test;
+
+public class BuildRetryPolicyTest {
+
+  private BuildRetryPolicy policy(int maxAttempts) {
+    return BuildRetryPolicy.builder()
+        .maxAttempts(maxAttempts)
+        .initialDelaySeconds(60)
+        .maxDelaySeconds(300)
+        .build();
+  }
+
+  @Test
+  void delayDoublesUpToTheMaximum() {
+    assertThat(policy(5).delayAfter(1)).isEqualTo(Duration.ofSeconds(60));
+    assertThat(policy(5).delayAfter(2)).isEqualTo(Duration.ofSeconds(120));
+    assertThat(policy(5).delayAfter(3)).isEqualTo(Duration.ofSeconds(240));
+    assertThat(policy(5).delayAfter(4)).isEqualTo(Duration.ofSeconds(300));
+    assertThat(policy(5).delayAfter(100)).isEqualTo(Duration.ofSeconds(300));
+  }
+
+  @Test
+  void filesAreNotRetriedAfterTheLastAttempt() {
+    assertThat(policy(3).exhausted(2)).isFalse();
+    assertThat(policy(3).exhausted(3)).isTrue();
+    assertThat(policy(3).retryAfterEpoch(1000, 2)).isEqualTo(121_000);
+    assertThat(policy(3).retryAfterEpoch(1000, 3)).isZero();
+  }
+
+  @Test
+  void filesAreAlwaysRetriedWithoutAMaximum() {
+    assertThat(policy(0).exhausted(1000)).isFalse();
+    assertThat(policy(0).retryAfterEpoch(1000, 7)).isEqualTo(301_000);
+  }
+
+  @Test
+  void unsetValuesHaveTheConfiguredDefaults() {
+    BuildRetryPolicy policy = BuildRetryPolicy.builder().build();
+    assertThat(policy.delayAfter(1)).isEqualTo(Duration.ofSeconds(60));
+    assertThat(policy.delayAfter(100)).isEqualTo(Duration.ofHours(1));
+    assertThat(policy.exhausted(4)).isFalse();
+    assertThat(policy.exhausted(5)).isTrue();
+  }
+}
@@ -0,0 +1,101 @@
+package gov.va.api.health.bulkfhir.service.controller.publication;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+import gov.va.api.health.bulkfhir.api.internal.FileBuildResponse;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilder;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilderExceptions.BuildCapacityExceeded;
+import java.time.Duration;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public class BuildSchedulerTest {
+
+  @Mock FileBuilder fileBuilder;
+
+  BuildAdmission admission = BuildAdmission.builder().build();
+
+  private FileBuildResponse response() {
+    return FileBuildResponse.builder().publicationId("p").fileId("f").build();
+  }
+
+  private BuildScheduler scheduler() {
+    return BuildScheduler.builder()
+        .fileBuilder(fileBuilder)
+        .admission(admission)
+        .slots(2)
+        .minIdleMillis(100)
+        .maxIdleMillis(1000)
+        .build();
+  }
+
+  @Test
+  void automaticPublicationsResetTheBackoff() {
+    BuildScheduler scheduler = scheduler();
+    for (int i = 0; i < 10; i++) {
+      scheduler.idle();
+    }
+    scheduler.onPublicationCreated(
+        PublicationCreated.builder().publicationId("p").fileCount(1).automatic(true).build());
+    assertThat(scheduler.idle()).isBetween(Duration.ofMillis(50), Duration.ofMillis(100));
+  }
+
+  @Test
+  void capacityExceededWaitsForTheRetryDelay() {
+    when(fileBuilder.buildNextFiles(2))
+        .thenThrow(new BuildCapacityExceeded("full", Duration.ofMillis(300)));
+    assertThat(scheduler().poll()).isEqualTo(Duration.ofMillis(300));
+  }
+
+  @Test
+  void emptyPollsBackOffWithJitterUpToTheMaximum() {
+    when(fileBuilder.buildNextFiles(2)).thenReturn(List.of());
+    BuildScheduler scheduler = scheduler();
+    assertThat(scheduler.poll()).isBetween(Duration.ofMillis(50), Duration.ofMillis(100));
+    assertThat(scheduler.poll()).isBetween(Duration.ofMillis(100), Duration.ofMillis(200));
+    assertThat(scheduler.poll()).isBetween(Duration.ofMillis(200), Duration.ofMillis(400));
+    for (int i = 0; i < 10; i++) {
+      assertThat(scheduler.poll()).isBetween(Duration.ofMillis(500), Duration.ofMillis(1000));
+    }
+  }
+
+  @Test
+  void fullSlotsAreNotPolled() {
+    admission.admit();
+    admission.admit();
+    assertThat(scheduler().poll()).isEqualTo(Duration.ofMillis(1000));
+    verifyNoInteractions(fileBuilder);
+  }
+
+  @Test
+  void onlyFreeSlotsAreFilled() {
+    admission.admit();
+    when(fileBuilder.buildNextFiles(1)).thenReturn(List.of(response()));
+    assertThat(scheduler().poll()).isZero();
+    verify(fileBuilder).buildNextFiles(1);
+  }
+
+  @Test
+  void runningSchedulerBuildsFilesUntilThereAreNoneLeft() {
+    when(fileBuilder.buildNextFiles(anyInt()))
+        .thenReturn(List.of(response()), List.of(response()), List.of());
+    BuildScheduler scheduler = scheduler();
+    scheduler.start();
+    try {
+      assertThat(scheduler.isRunning()).isTrue();
+      verify(fileBuilder, timeout(5000).atLeast(3)).buildNextFiles(2);
+    } finally {
+      scheduler.stop();
+    }
+    assertThat(scheduler.isRunning()).isFalse();
+  }
+}
@@ -0,0 +1,129 @@
+package gov.va.api.health.bulkfhir.service.controller.publication;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuildRequest;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilderExceptions.BuildTimedOut;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileClaim;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class BuildWatchdogTest {
+
+  SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+  BuildWatchdog watchdog;
+
+  private FileClaim claim(int count) {
+    return FileClaim.builder()
+        .request(FileBuildRequest.builder().publicationId("p").fileId("f").build())
+        .fileName("f")
+        .count(count)
+        .build();
+  }
+
+  @Test
+  void budgetIsScaledByTheRecordsInTheFile() {
+    assertThat(watchdog(60, 10).budgetFor(claim(1000))).isEqualTo(Duration.ofSeconds(70));
+    assertThat(watchdog(0, 0).budgetFor(claim(1000))).isZero();
+  }
+
+  @Test
+  void closedWatchesDoNotTimeOut() throws Exception {
+    CountDownLatch cancelled = new CountDownLatch(1);
+    BuildWatchdog.Watch watch = watchdog(0, 100).watch(claim(1));
+    watch.onTimeout(cancelled::countDown);
+    watch.close();
+    assertThat(cancelled.await(300, TimeUnit.MILLISECONDS)).isFalse();
+    assertThat(watch.timedOut()).isFalse();
+    assertThat(timeouts()).isZero();
+  }
+
+  @Test
+  void guardedStreamsFailAfterTheTimeout() throws Exception {
+    CountDownLatch cancelled = new CountDownLatch(1);
+    BuildWatchdog.Watch watch = watchdog(0, 100).watch(claim(1));
+    watch.onTimeout(cancelled::countDown);
+    assertThat(cancelled.await(2, TimeUnit.SECONDS)).isTrue();
+    assertThrows(
+        BuildTimedOut.class, () -> watch.guard(Stream.of(1, 2)).collect(Collectors.toList()));
+  }
+
+  @Test
+  void interruptIsClearedWhenTheScopeCloses() throws Exception {
+    BuildWatchdog.Watch watch = watchdog(0, 100).watch(claim(2));
+    try (BuildWatchdog.Scope interruptible = watch.interruptOnTimeout()) {
+      assertThrows(InterruptedException.class, () -> Thread.sleep(2000));
+      Thread.currentThread().interrupt();
+    }
+    assertThat(Thread.currentThread().isInterrupted()).isFalse();
+  }
+
+  @Test
+  void timeoutCancelsTheBuild() throws Exception {
+    CountDownLatch cancelled = new CountDownLatch(1);
+    BuildWatchdog.Watch watch = watchdog(0, 100).watch(claim(2));
+    watch.onTimeout(cancelled::countDown);
+    assertThat(cancelled.await(2, TimeUnit.SECONDS)).isTrue();
+    assertThat(watch.timedOut()).isTrue();
+    assertThat(timeouts()).isEqualTo(1);
+    watch.close();
+  }
+
+  private double timeouts() {
+    return registry.counter("bulk.build.timeouts").count();
+  }
+
+  @Test
+  void unwatchedBuildsNeverTimeOut() {
+    BuildWatchdog.Watch watch = BuildWatchdog.unwatched(claim(1));
+    watch.interruptOnTimeout().close();
+    watch.checkNotTimedOut();
+    assertThat(watch.guard(Stream.of(1, 2)).collect(Collectors.toList()))
+        .isEqualTo(List.of(1, 2));
+  }
+
+  @Test
+  void unwatchedWhenNoBudgetIsConfigured() throws Exception {
+    BuildWatchdog.Watch watch = watchdog(0, 0).watch(claim(1000));
+    Thread.sleep(100);
+    assertThat(watch.timedOut()).isFalse();
+  }
+
+  @Test
+  void watchesForLaterOnlyTimeOutOnceStarted() throws Exception {
+    CountDownLatch cancelled = new CountDownLatch(1);
+    BuildWatchdog.Watch watch = watchdog(0, 100).watchLater(claim(1));
+    watch.onTimeout(cancelled::countDown);
+    assertThat(cancelled.await(300, TimeUnit.MILLISECONDS)).isFalse();
+    watch.start();
+    assertThat(cancelled.await(2, TimeUnit.SECONDS)).isTrue();
+    assertThat(watch.timedOut()).isTrue();
+    watch.close();
+  }
+
+  private BuildWatchdog watchdog(long baseSeconds, long millisPerRecord) {
+    watchdog =
+        BuildWatchdog.builder()
+            .baseSeconds(baseSeconds)
+            .millisPerRecord(millisPerRecord)
+            .meterRegistry(registry)
+            .build();
+    return watchdog;
+  }
+
+  @AfterEach
+  void shutdown() {
+    if (watchdog != null) {
+      watchdog.shutdown();
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package gov.va.api.health.bulkfhir.service.controller.publication;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+import gov.va.api.health.bulkfhir.service.filebuilder.ClaimLease;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuildRequest;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileClaim;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileClaimant;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public class ClaimHeartbeatTest {
+
+  @Mock FileClaimant claimant;
+
+  ClaimHeartbeat heartbeat;
+
+  private FileClaim claim() {
+    return FileClaim.builder()
+        .request(FileBuildRequest.builder().publicationId("p").fileId("f").build())
+        .fileName("f")
+        .version(1)
+        .build();
+  }
+
+  private ClaimHeartbeat heartbeat(long leaseSeconds) {
+    heartbeat = ClaimHeartbeat.builder().claimant(claimant).leaseSeconds(leaseSeconds).build();
+    return heartbeat;
+  }
+
+  @Test
+  void leaseIsRenewedUntilItIsClosed() {
+    when(claimant.renewClaim(claim())).thenReturn(true);
+    ClaimLease lease = heartbeat(1).start(claim());
+    verify(claimant, timeout(3000).atLeast(2)).renewClaim(claim());
+    lease.close();
+    clearInvocations(claimant);
+    verify(claimant, after(1000).never()).renewClaim(claim());
+  }
+
+  @Test
+  @SneakyThrows
+  void lostLeaseCancelsTheBuild() {
+    when(claimant.renewClaim(claim())).thenReturn(false);
+    CountDownLatch cancelled = new CountDownLatch(1);
+    heartbeat(1).start(claim()).onLost(cancelled::countDown);
+    assertThat(cancelled.await(3, TimeUnit.SECONDS)).isTrue();
+  }
+
+  @Test
+  void noLeaseMeansNoHeartbeat() {
+    heartbeat(0).start(claim()).close();
+    verifyNoInteractions(claimant);
+  }
+
+  @Test
+  void renewalFailuresAreRetried() {
+    when(claimant.renewClaim(claim())).thenThrow(new RuntimeException("fugazi")).thenReturn(true);
+    try (ClaimLease lease = heartbeat(1).start(claim())) {
+      verify(claimant, timeout(3000).atLeast(2)).renewClaim(claim());
+    }
+  }
+
+  @Test
+  void renewalsStopWhenTheClaimIsLost() {
+    when(claimant.renewClaim(claim())).thenReturn(false);
+    heartbeat(1).start(claim());
+    verify(claimant, timeout(3000)).renewClaim(claim());
+    verify(claimant, after(1000).times(1)).renewClaim(claim());
+    verify(claimant, never()).completeClaim(claim());
+  }
+
+  @AfterEach
+  void shutdown() {
+    if (heartbeat != null) {
+      heartbeat.shutdown();
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package gov.va.api.health.bulkfhir.service.controller.publication;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import gov.va.api.health.bulkfhir.service.controller.bulkstatus.PublicationManifests;
+import gov.va.api.health.bulkfhir.service.status.CompletedPublicationEntity;
+import gov.va.api.health.bulkfhir.service.status.CompletedPublicationRepository;
+import gov.va.api.health.bulkfhir.service.status.StatusEntity;
+import gov.va.api.health.bulkfhir.service.status.StatusRepository;
+import java.util.List;
+import java.util.Optional;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.QueryTimeoutException;
+
+@ExtendWith(MockitoExtension.class)
+public class CompletedPublicationsTest {
+
+  @Mock StatusRepository statusRepository;
+
+  @Mock CompletedPublicationRepository repository;
+
+  @Mock PublicationManifests manifests;
+
+  private CompletedPublications completedPublications(long cacheSeconds) {
+    return CompletedPublications.builder()
+        .statusRepository(statusRepository)
+        .repository(repository)
+        .cacheSeconds(cacheSeconds)
+        .manifests(manifests)
+        .build();
+  }
+
+  private CompletedPublicationEntity completed(String publicationId) {
+    return CompletedPublicationEntity.builder()
+        .publicationId(publicationId)
+        .publicationEpoch(1000)
+        .completeEpoch(2000)
+        .build();
+  }
+
+  @Test
+  void completingAnotherPublicationClearsTheCache() {
+    when(repository.findFirstByOrderByPublicationEpochDesc())
+        .thenReturn(Optional.of(completed("p1")))
+        .thenReturn(Optional.of(completed("p2")));
+    when(statusRepository.countByPublicationIdAndBuildCompleteEpoch("p2", 0)).thenReturn(0);
+    when(statusRepository.findByPublicationIdAndFileName("p2", "f")).thenReturn(lastFile());
+    CompletedPublications completedPublications = completedPublications(60);
+    assertThat(completedPublications.latest()).contains("p1");
+    completedPublications.fileCompleted("p2", "f");
+    assertThat(completedPublications.latest()).contains("p2");
+    verify(repository).save(completed("p2"));
+  }
+
+  @Test
+  void completingTheLastFileRecordsThePublication() {
+    when(statusRepository.countByPublicationIdAndBuildCompleteEpoch("p", 0)).thenReturn(0);
+    when(statusRepository.findByPublicationIdAndFileName("p", "f")).thenReturn(lastFile());
+    completedPublications(60).fileCompleted("p", "f");
+    verify(repository).save(completed("p"));
+    verify(manifests).store("p");
+  }
+
+  @Test
+  void completingTheLastFileSurvivesFailingToStoreTheManifest() {
+    when(statusRepository.countByPublicationIdAndBuildCompleteEpoch("p", 0)).thenReturn(0);
+    when(statusRepository.findByPublicationIdAndFileName("p", "f")).thenReturn(lastFile());
+    doThrow(new QueryTimeoutException("fugazi")).when(manifests).store("p");
+    completedPublications(60).fileCompleted("p", "f");
+    verify(repository).save(completed("p"));
+  }
+
+  @Test
+  void completingTheLastFileTwiceIsIgnored() {
+    when(statusRepository.countByPublicationIdAndBuildCompleteEpoch("p", 0)).thenReturn(0);
+    when(statusRepository.findByPublicationIdAndFileName("p", "f"))
+        .thenReturn(List.of(StatusEntity.builder().build()));
+    when(repository.save(any())).thenThrow(new DataIntegrityViolationException("fugazi"));
+    completedPublications(60).fileCompleted("p", "f");
+    verify(manifests, never()).store(any());
+  }
+
+  @Test
+  void forgettingACompletedPublicationClearsTheCache() {
+    when(repository.findFirstByOrderByPublicationEpochDesc())
+        .thenReturn(Optional.of(completed("p")))
+        .thenReturn(Optional.empty());
+    when(repository.deleteByPublicationId("p")).thenReturn(1);
+    CompletedPublications completedPublications = completedPublications(60);
+    assertThat(completedPublications.latest()).contains("p");
+    completedPublications.forget("p");
+    assertThat(completedPublications.latest()).isEmpty();
+    verify(manifests).forget("p");
+  }
+
+  @Test
+  void forgettingAnIncompletePublicationKeepsTheCache() {
+    when(repository.findFirstByOrderByPublicationEpochDesc())
+        .thenReturn(Optional.of(completed("p")));
+    when(repository.deleteByPublicationId("x")).thenReturn(0);
+    CompletedPublications completedPublications = completedPublications(60);
+    assertThat(completedPublications.latest()).contains("p");
+    completedPublications.forget("x");
+    assertThat(completedPublications.latest()).contains("p");
+    verify(repository, times(1)).findFirstByOrderByPublicationEpochDesc();
+    verify(manifests).forget("x");
+  }
+
+  @Test
+  void incompletePublicationsAreNotRecorded() {
+    when(statusRepository.countByPublicationIdAndBuildCompleteEpoch("p", 0)).thenReturn(3);
+    completedPublications(60).fileCompleted("p", "f");
+    verify(repository, never()).save(any());
+  }
+
+  private List<StatusEntity> lastFile() {
+    return List.of(StatusEntity.builder().publicationEpoch(1000).buildCompleteEpoch(2000).build());
+  }
+
+  @Test
+  void latestIsCached() {
+    when(repository.findFirstByOrderByPublicationEpochDesc())
+        .thenReturn(Optional.of(completed("p")));
+    CompletedPublications completedPublications = completedPublications(60);
+    assertThat(completedPublications.latest()).contains("p");
+    assertThat(completedPublications.latest()).contains("p");
+    verify(repository, times(1)).findFirstByOrderByPublicationEpochDesc();
+    verify(manifests).forget("x");
+  }
+
+  @Test
+  void latestIsReadEveryTimeWithoutACache() {
+    when(repository.findFirstByOrderByPublicationEpochDesc())
+        .thenReturn(Optional.of(completed("p")))
+        .thenReturn(Optional.of(completed("q")));
+    CompletedPublications completedPublications = completedPublications(0);
+    assertThat(completedPublications.latest()).contains("p");
+    assertThat(completedPublications.latest()).contains("q");
+  }
+}
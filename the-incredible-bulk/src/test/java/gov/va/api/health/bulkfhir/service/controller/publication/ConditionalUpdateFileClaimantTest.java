@@ -0,0 +1,213 @@
+package gov.va.api.health.bulkfhir.service.controller.publication;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import gov.va.api.health.bulkfhir.service.controller.publication.PublicationExceptions.PublicationFileNotFound;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuildRequest;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilderExceptions.AlreadyClaimed;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilderExceptions.ClaimLost;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileClaim;
+import gov.va.api.health.bulkfhir.service.status.StatusEntity;
+import gov.va.api.health.bulkfhir.service.status.StatusRepository;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+class ConditionalUpdateFileClaimantTest {
+
+  @Mock StatusRepository repo;
+
+  @Mock CompletedPublications completedPublications;
+
+  @Test
+  void alreadyClaimedThrownIfNoRowIsUpdated() {
+    when(repo.claimFile(eq("p"), eq("f"), anyLong(), anyLong(), anyString())).thenReturn(0);
+    when(repo.countByPublicationIdAndFileName("p", "f")).thenReturn(1);
+    assertThrows(AlreadyClaimed.class, () -> claimant().tryClaim(request()));
+    verify(repo, never()).findByPublicationIdAndFileName(any(), any());
+    verify(repo, never()).saveAndFlush(any());
+  }
+
+  ConditionalUpdateFileClaimant claimant() {
+    return ConditionalUpdateFileClaimant.builder().repository(repo).build();
+  }
+
+  ConditionalUpdateFileClaimant trackingClaimant() {
+    return ConditionalUpdateFileClaimant.builder()
+        .repository(repo)
+        .completedPublications(completedPublications)
+        .build();
+  }
+
+  private FileClaim claim(int version) {
+    return FileClaim.builder().request(request()).version(version).build();
+  }
+
+  @Test
+  void completeClaimThrowsClaimLostIfTheFileWasClaimedAgain() {
+    when(repo.completeFile(eq("p"), eq("f"), eq(3), anyLong(), anyString())).thenReturn(0);
+    when(repo.countByPublicationIdAndFileName("p", "f")).thenReturn(1);
+    assertThrows(ClaimLost.class, () -> trackingClaimant().completeClaim(claim(3)));
+    verify(completedPublications, never()).fileCompleted(any(), any());
+  }
+
+  @Test
+  void completeClaimThrowsPublicationFileNotFoundForUnknownFile() {
+    when(repo.completeFile(eq("p"), eq("f"), eq(3), anyLong(), anyString())).thenReturn(0);
+    when(repo.countByPublicationIdAndFileName("p", "f")).thenReturn(0);
+    assertThrows(PublicationFileNotFound.class, () -> claimant().completeClaim(claim(3)));
+  }
+
+  @Test
+  void completeClaimTellsCompletedPublications() {
+    when(repo.completeFile(eq("p"), eq("f"), eq(3), anyLong(), anyString())).thenReturn(1);
+    trackingClaimant().completeClaim(claim(3));
+    verify(completedPublications).fileCompleted("p", "f");
+  }
+
+  @Test
+  void completeClaimRecordsTheExtensionOfTheCodec() {
+    when(repo.completeFile(eq("p"), eq("f"), eq(3), anyLong(), eq(".ndjson.gz"))).thenReturn(1);
+    ConditionalUpdateFileClaimant.builder()
+        .repository(repo)
+        .codec("gzip")
+        .build()
+        .completeClaim(claim(3));
+    verify(repo).completeFile(eq("p"), eq("f"), eq(3), anyLong(), eq(".ndjson.gz"));
+  }
+
+  @Test
+  void completeClaimUpdatesTheFile() {
+    when(repo.completeFile(eq("p"), eq("f"), eq(3), anyLong(), anyString())).thenReturn(1);
+    claimant().completeClaim(claim(3));
+    verify(repo, never()).saveAndFlush(any());
+  }
+
+  @Test
+  void fileClaimedIfRowIsUpdated() {
+    when(repo.claimFile(eq("p"), eq("f"), anyLong(), anyLong(), anyString())).thenReturn(1);
+    when(repo.findByPublicationIdAndFileName("p", "f"))
+        .thenReturn(
+            List.of(
+                StatusEntity.builder()
+                    .fileName("awesome")
+                    .recordsPerFile(2000)
+                    .page(3)
+                    .count(1234)
+                    .version(2)
+                    .build()));
+    assertThat(claimant().tryClaim(request()))
+        .isEqualTo(
+            FileClaim.builder()
+                .request(request())
+                .fileName("awesome")
+                .recordsPerFile(2000)
+                .page(3)
+                .count(1234)
+                .version(2)
+                .build());
+    verify(repo, never()).saveAndFlush(any());
+  }
+
+  @Test
+  void fileClaimedIfRowIsUpdatedKeepsTheCompletedPublication() {
+    when(repo.claimFile(eq("p"), eq("f"), anyLong(), anyLong(), anyString())).thenReturn(1);
+    when(repo.findByPublicationIdAndFileName("p", "f"))
+        .thenReturn(List.of(StatusEntity.builder().fileName("f").build()));
+    trackingClaimant().tryClaim(request());
+    verify(repo, never()).rebuildFile(any(), any(), anyLong(), anyLong(), any());
+    verify(completedPublications, never()).forget(any());
+  }
+
+  @Test
+  void leaseIsNotRenewedWhenLeasesAreDisabled() {
+    assertThat(claimant().renewClaim(claim(3))).isFalse();
+    verify(repo, never()).renewLease(any(), any(), anyInt(), anyLong());
+  }
+
+  @Test
+  void leaseIsRenewedForTheClaimedVersion() {
+    when(repo.renewLease(eq("p"), eq("f"), eq(3), anyLong())).thenReturn(1);
+    assertThat(
+            ConditionalUpdateFileClaimant.builder()
+                .repository(repo)
+                .leaseSeconds(60)
+                .build()
+                .renewClaim(claim(3)))
+        .isTrue();
+  }
+
+  @Test
+  void failClaimGivesUpAfterTheLastAttempt() {
+    when(repo.failFile(eq("p"), eq("f"), eq(3), anyLong(), eq(0L), eq(true))).thenReturn(1);
+    ConditionalUpdateFileClaimant.builder()
+        .repository(repo)
+        .retryPolicy(BuildRetryPolicy.builder().maxAttempts(2).build())
+        .build()
+        .failClaim(FileClaim.builder().request(request()).version(3).failureCount(1).build());
+  }
+
+  @Test
+  void failClaimOnlyCountsFailedBuilds() {
+    when(repo.failFile(eq("p"), eq("f"), eq(3), anyLong(), anyLong(), eq(false))).thenReturn(1);
+    ConditionalUpdateFileClaimant.builder()
+        .repository(repo)
+        .retryPolicy(BuildRetryPolicy.builder().maxAttempts(2).build())
+        .build()
+        .failClaim(FileClaim.builder().request(request()).version(3).attemptCount(5).build());
+  }
+
+  @Test
+  void failClaimThrowsClaimLostIfTheFileWasClaimedAgain() {
+    when(repo.failFile(eq("p"), eq("f"), eq(3), anyLong(), anyLong(), eq(false))).thenReturn(0);
+    when(repo.countByPublicationIdAndFileName("p", "f")).thenReturn(1);
+    assertThrows(ClaimLost.class, () -> claimant().failClaim(claim(3)));
+  }
+
+  @Test
+  void rebuildingACompletedFileForgetsTheCompletedPublication() {
+    when(repo.claimFile(eq("p"), eq("f"), anyLong(), anyLong(), anyString())).thenReturn(0);
+    when(repo.rebuildFile(eq("p"), eq("f"), anyLong(), anyLong(), anyString())).thenReturn(1);
+    when(repo.findByPublicationIdAndFileName("p", "f"))
+        .thenReturn(List.of(StatusEntity.builder().fileName("f").build()));
+    trackingClaimant().tryClaim(request());
+    verify(completedPublications).forget("p");
+  }
+
+  @Test
+  void releaseClaimResetsTheClaimedVersion() {
+    when(repo.releaseFile("p", "f", 3)).thenReturn(1);
+    claimant().releaseClaim(claim(3));
+    verify(repo, never()).saveAndFlush(any());
+  }
+
+  @Test
+  void releaseClaimThrowsClaimLostIfTheFileWasClaimedAgain() {
+    when(repo.releaseFile("p", "f", 3)).thenReturn(0);
+    when(repo.countByPublicationIdAndFileName("p", "f")).thenReturn(1);
+    assertThrows(ClaimLost.class, () -> claimant().releaseClaim(claim(3)));
+  }
+
+  private FileBuildRequest request() {
+    return FileBuildRequest.builder().publicationId("p").fileId("f").build();
+  }
+
+  @Test
+  void tryClaimThrowsPublicationFileNotFoundForUnknownFile() {
+    when(repo.claimFile(eq("p"), eq("f"), anyLong(), anyLong(), anyString())).thenReturn(0);
+    when(repo.countByPublicationIdAndFileName("p", "f")).thenReturn(0);
+    assertThrows(PublicationFileNotFound.class, () -> claimant().tryClaim(request()));
+  }
+}
@@ -3,7 +3,10 @@ package gov.va.api.health.bulkfhir.service.controller.publication;
 import static org.assertj.core.api.Assertions.assertThat;
 
 import gov.va.api.health.bulkfhir.api.internal.BuildStatus;
+import gov.va.api.health.bulkfhir.api.internal.PublicationSummary;
 import gov.va.api.health.bulkfhir.service.controller.publication.DefaultPublicationStatusTransformer.Counter;
+import gov.va.api.health.bulkfhir.service.status.StatusSummary;
+import java.time.Instant;
 import org.junit.jupiter.api.Test;
 
 public class DefaultPublicationStatusTransformerTest {
@@ -49,10 +52,15 @@ public class DefaultPublicationStatusTransformerTest {
   }
 
   private Counter counter(int notStarted, int inProgress, int complete) {
+    return counter(notStarted, inProgress, complete, 0);
+  }
+
+  private Counter counter(int notStarted, int inProgress, int complete, int failed) {
     var c = new Counter();
     c.notStarted = notStarted;
     c.inProgress = inProgress;
     c.completed = complete;
+    c.failed = failed;
     return c;
   }
 
@@ -66,6 +74,57 @@ public class DefaultPublicationStatusTransformerTest {
     assertThat(counter(0, 8, 1).overallStatus()).isEqualTo(BuildStatus.IN_PROGRESS);
     assertThat(counter(0, 1, 8).overallStatus()).isEqualTo(BuildStatus.IN_PROGRESS);
     assertThat(counter(0, 0, 9).overallStatus()).isEqualTo(BuildStatus.COMPLETE);
+    assertThat(counter(1, 0, 7, 1).overallStatus()).isEqualTo(BuildStatus.IN_PROGRESS);
+    assertThat(counter(0, 1, 7, 1).overallStatus()).isEqualTo(BuildStatus.IN_PROGRESS);
+    assertThat(counter(0, 0, 8, 1).overallStatus()).isEqualTo(BuildStatus.FAILED);
+    assertThat(counter(0, 0, 0, 9).overallStatus()).isEqualTo(BuildStatus.FAILED);
+  }
+
+  @Test
+  void publicationSummary() {
+    StatusSummary summary =
+        StatusSummary.builder()
+            .publicationId("p")
+            .publicationEpoch(1000)
+            .recordsPerFile(100)
+            .files(10)
+            .complete(6)
+            .failed(1)
+            .inProgress(2)
+            .firstBuildStartEpoch(2000L)
+            .lastBuildCompleteEpoch(3000)
+            .build();
+    assertThat(DefaultPublicationStatusTransformer.summaryOf(summary))
+        .isEqualTo(
+            PublicationSummary.builder()
+                .publicationId("p")
+                .recordsPerFile(100)
+                .creationDate(Instant.ofEpochMilli(1000))
+                .overallStatus(BuildStatus.IN_PROGRESS)
+                .files(10)
+                .notStarted(1)
+                .inProgress(2)
+                .complete(6)
+                .failed(1)
+                .firstBuildStartTime(Instant.ofEpochMilli(2000))
+                .lastBuildCompleteTime(Instant.ofEpochMilli(3000))
+                .build());
+  }
+
+  @Test
+  void publicationSummaryOfAnUnstartedPublication() {
+    StatusSummary summary =
+        StatusSummary.builder()
+            .publicationId("p")
+            .publicationEpoch(1000)
+            .recordsPerFile(100)
+            .files(10)
+            .build();
+    PublicationSummary publication = DefaultPublicationStatusTransformer.summaryOf(summary);
+    assertThat(publication.overallStatus()).isEqualTo(BuildStatus.NOT_STARTED);
+    assertThat(publication.notStarted()).isEqualTo(10);
+    assertThat(publication.firstBuildStartTime()).isNull();
+    assertThat(publication.lastBuildCompleteTime()).isNull();
   }
 
   @Test
@@ -0,0 +1,114 @@
+package gov.va.api.health.bulkfhir.service.controller.publication;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import lombok.SneakyThrows;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+
+/** An in-process stand-in for S3 that supports the operations used by the bulk file writers. */
+class InMemoryS3Client implements S3Client {
+
+  final Map<String, byte[]> objects = new ConcurrentHashMap<>();
+
+  final Map<String, PutObjectRequest> objectRequests = new ConcurrentHashMap<>();
+
+  final Map<String, Map<Integer, byte[]>> uploads = new ConcurrentHashMap<>();
+
+  final Set<String> abortedUploads = ConcurrentHashMap.newKeySet();
+
+  /** When positive, uploading the part with this number will fail. */
+  volatile int failOnPart;
+
+  @SneakyThrows
+  private static byte[] bytesOf(RequestBody body) {
+    try (InputStream in = body.contentStreamProvider().newStream()) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      in.transferTo(out);
+      return out.toByteArray();
+    }
+  }
+
+  @Override
+  public AbortMultipartUploadResponse abortMultipartUpload(AbortMultipartUploadRequest request) {
+    uploads.remove(request.uploadId());
+    abortedUploads.add(request.uploadId());
+    return AbortMultipartUploadResponse.builder().build();
+  }
+
+  @Override
+  public void close() {}
+
+  @Override
+  public CompleteMultipartUploadResponse completeMultipartUpload(
+      CompleteMultipartUploadRequest request) {
+    Map<Integer, byte[]> parts = uploads.remove(request.uploadId());
+    if (parts == null) {
+      throw S3Exception.builder().message("NoSuchUpload").build();
+    }
+    ByteArrayOutputStream object = new ByteArrayOutputStream();
+    int expectedPartNumber = 1;
+    for (CompletedPart part : request.multipartUpload().parts()) {
+      if (part.partNumber() != expectedPartNumber++ || !parts.containsKey(part.partNumber())) {
+        throw S3Exception.builder().message("InvalidPartOrder").build();
+      }
+      object.writeBytes(parts.get(part.partNumber()));
+    }
+    objects.put(request.key(), object.toByteArray());
+    return CompleteMultipartUploadResponse.builder().key(request.key()).build();
+  }
+
+  @Override
+  public CreateMultipartUploadResponse createMultipartUpload(
+      CreateMultipartUploadRequest request) {
+    String uploadId = UUID.randomUUID().toString();
+    uploads.put(uploadId, new ConcurrentSkipListMap<>());
+    return CreateMultipartUploadResponse.builder()
+        .bucket(request.bucket())
+        .key(request.key())
+        .uploadId(uploadId)
+        .build();
+  }
+
+  @Override
+  public PutObjectResponse putObject(PutObjectRequest request, RequestBody body) {
+    objects.put(request.key(), bytesOf(body));
+    objectRequests.put(request.key(), request);
+    return PutObjectResponse.builder().eTag(request.key()).build();
+  }
+
+  @Override
+  public String serviceName() {
+    return "s3";
+  }
+
+  @Override
+  public UploadPartResponse uploadPart(UploadPartRequest request, RequestBody body) {
+    if (request.partNumber() == failOnPart) {
+      throw S3Exception.builder().message("SlowDown").build();
+    }
+    Map<Integer, byte[]> parts = uploads.get(request.uploadId());
+    if (parts == null) {
+      throw S3Exception.builder().message("NoSuchUpload").build();
+    }
+    parts.put(request.partNumber(), bytesOf(body));
+    return UploadPartResponse.builder().eTag("etag-" + request.partNumber()).build();
+  }
+}
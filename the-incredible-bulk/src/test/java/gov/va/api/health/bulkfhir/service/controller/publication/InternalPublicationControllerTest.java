@@ -3,13 +3,18 @@ package gov.va.api.health.bulkfhir.service.controller.publication;
 import static java.util.Collections.emptyList;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.verifyNoMoreInteractions;
 import static org.mockito.Mockito.when;
 
+import gov.va.api.health.bulkfhir.api.internal.BuildStatus;
 import gov.va.api.health.bulkfhir.api.internal.ClearHungRequest;
 import gov.va.api.health.bulkfhir.api.internal.FileBuildResponse;
 import gov.va.api.health.bulkfhir.api.internal.PublicationRequest;
+import gov.va.api.health.bulkfhir.api.internal.PublicationSummary;
 import gov.va.api.health.bulkfhir.service.controller.publication.PublicationExceptions.PublicationAlreadyExists;
 import gov.va.api.health.bulkfhir.service.controller.publication.PublicationExceptions.PublicationFileCountTooBig;
 import gov.va.api.health.bulkfhir.service.controller.publication.PublicationExceptions.PublicationNotFound;
@@ -22,14 +27,18 @@ import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilder;
 import gov.va.api.health.bulkfhir.service.filebuilder.FileToBuildManager;
 import gov.va.api.health.bulkfhir.service.status.StatusEntity;
 import gov.va.api.health.bulkfhir.service.status.StatusRepository;
+import gov.va.api.health.bulkfhir.service.status.StatusSummary;
 import java.time.Duration;
 import java.util.List;
+import java.util.Optional;
 import javax.servlet.http.HttpServletResponse;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.data.domain.PageRequest;
 
 @ExtendWith(MockitoExtension.class)
 public class InternalPublicationControllerTest {
@@ -46,6 +55,10 @@ public class InternalPublicationControllerTest {
 
   @Mock HttpServletResponse httpResponse;
 
+  @Mock ApplicationEventPublisher events;
+
+  @Mock CompletedPublications completedPublications;
+
   private void assertStatusEntityCreated(
       StatusEntity entity,
       String publicationId,
@@ -79,12 +92,13 @@ public class InternalPublicationControllerTest {
     when(fileToBuildManager.getNextFileToBuild())
         .thenReturn(FileBuildRequest.builder().publicationId("x").fileId("a").build());
     var response = FileBuildResponse.builder().publicationId("x").fileId("a").build();
-    when(fileBuilder.buildFile(FileBuildRequest.builder().publicationId("x").fileId("a").build()))
+    when(fileBuilder.buildNextFile(
+            FileBuildRequest.builder().publicationId("x").fileId("a").build()))
         .thenReturn(response);
     assertThat(controller().buildNextFile(httpResponse)).isSameAs(response);
     verify(httpResponse).setStatus(202);
     verify(fileBuilder)
-        .buildFile(FileBuildRequest.builder().publicationId("x").fileId("a").build());
+        .buildNextFile(FileBuildRequest.builder().publicationId("x").fileId("a").build());
     verifyNoMoreInteractions(fileBuilder);
   }
 
@@ -96,7 +110,30 @@ public class InternalPublicationControllerTest {
     verifyNoMoreInteractions(fileBuilder);
   }
 
+  @Test
+  void buildNextFileClaimsInOneStepWhenSkippingLockedFiles() {
+    var response = FileBuildResponse.builder().publicationId("x").fileId("a").build();
+    when(fileBuilder.buildNextFiles(1)).thenReturn(List.of(response));
+    var controller = controller("skip-locked");
+    assertThat(controller.buildNextFile(httpResponse)).isSameAs(response);
+    verify(httpResponse).setStatus(202);
+    verifyNoInteractions(fileToBuildManager);
+  }
+
+  @Test
+  void buildNextFileDoesNothingWhenNoUnlockedFileIsLeft() {
+    when(fileBuilder.buildNextFiles(1)).thenReturn(emptyList());
+    var controller = controller("skip-locked");
+    assertThat(controller.buildNextFile(httpResponse)).isNull();
+    verify(httpResponse).setStatus(204);
+    verifyNoInteractions(fileToBuildManager);
+  }
+
   InternalPublicationController controller() {
+    return controller("oldest-first");
+  }
+
+  InternalPublicationController controller(String nextFile) {
     return InternalPublicationController.builder()
         .maxFileCount(5000)
         .repository(repo)
@@ -104,6 +141,9 @@ public class InternalPublicationControllerTest {
         .transformer(tx)
         .fileBuilder(fileBuilder)
         .fileToBuildManager(fileToBuildManager)
+        .events(events)
+        .nextFile(nextFile)
+        .completedPublications(completedPublications)
         .build();
   }
 
@@ -112,6 +152,7 @@ public class InternalPublicationControllerTest {
     when(repo.deleteByPublicationId("x")).thenReturn(5);
     controller().deletePublication("x");
     verify(repo).deleteByPublicationId("x");
+    verify(completedPublications).forget("x");
   }
 
   @Test
@@ -136,6 +177,64 @@ public class InternalPublicationControllerTest {
     assertThrows(PublicationNotFound.class, () -> controller().getPublicationStatus("x"));
   }
 
+  @Test
+  void getPublicationFilesReturnsACursorWhenThereAreMoreFiles() {
+    var entities = PublicationSamples.Entity.create().entitiesWithoutIds();
+    when(repo.findByPublicationIdAndFileNameGreaterThanOrderByFileNameAsc(
+            "x", "", PageRequest.of(0, 3)))
+        .thenReturn(entities.subList(0, 3));
+    var page = controller().getPublicationFiles("x", "", 2);
+    assertThat(page.files())
+        .containsExactly(
+            DefaultPublicationStatusTransformer.toStatus(entities.get(0)),
+            DefaultPublicationStatusTransformer.toStatus(entities.get(1)));
+    assertThat(page.next()).isEqualTo(entities.get(1).fileName());
+  }
+
+  @Test
+  void getPublicationFilesReturnsNoCursorOnTheLastPage() {
+    var entities = PublicationSamples.Entity.create().entitiesWithoutIds();
+    when(repo.findByPublicationIdAndFileNameGreaterThanOrderByFileNameAsc(
+            "x", "f1", PageRequest.of(0, 3)))
+        .thenReturn(entities.subList(0, 1));
+    var page = controller().getPublicationFiles("x", "f1", 2);
+    assertThat(page.files()).hasSize(1);
+    assertThat(page.next()).isNull();
+  }
+
+  @Test
+  void getPublicationFilesThrowsNotFoundForUnknownPublication() {
+    when(repo.findByPublicationIdAndFileNameGreaterThanOrderByFileNameAsc(
+            "x", "", PageRequest.of(0, 501)))
+        .thenReturn(emptyList());
+    assertThrows(PublicationNotFound.class, () -> controller().getPublicationFiles("x", "", 500));
+  }
+
+  @Test
+  void getPublicationSummaryReturnsTheDatabaseSummary() {
+    when(repo.findSummaryByPublicationId("x"))
+        .thenReturn(
+            Optional.of(
+                StatusSummary.builder()
+                    .publicationId("x")
+                    .publicationEpoch(1000)
+                    .recordsPerFile(100)
+                    .files(3)
+                    .complete(3)
+                    .lastBuildCompleteEpoch(2000)
+                    .build()));
+    PublicationSummary summary = controller().getPublicationSummary("x");
+    assertThat(summary.overallStatus()).isEqualTo(BuildStatus.COMPLETE);
+    assertThat(summary.complete()).isEqualTo(3);
+    verify(repo, never()).findByPublicationId(any());
+  }
+
+  @Test
+  void getPublicationSummaryThrowsNotFoundForUnknownPublication() {
+    when(repo.findSummaryByPublicationId("x")).thenReturn(Optional.empty());
+    assertThrows(PublicationNotFound.class, () -> controller().getPublicationSummary("x"));
+  }
+
   @Test
   void getPublicationReturnsAllPublicationIds() {
     var publications = List.of("a", "b", "c");
@@ -186,6 +285,9 @@ public class InternalPublicationControllerTest {
     assertStatusEntityCreated(entities.get(1), "p", 100, 2, 100, "Patient-0002");
     assertStatusEntityCreated(entities.get(2), "p", 100, 3, 100, "Patient-0003");
     assertStatusEntityCreated(entities.get(3), "p", 100, 4, 33, "Patient-0004");
+    verify(events)
+        .publishEvent(
+            PublicationCreated.builder().publicationId("p").fileCount(4).automatic(true).build());
   }
 
   @Test
@@ -1,17 +1,28 @@
 package gov.va.api.health.bulkfhir.service.controller.publication;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.assertj.core.api.Assertions.assertThat;
 
+import gov.va.api.health.bulkfhir.service.controller.publication.LocalBulkFileWriter.FsyncPolicy;
+import gov.va.api.health.bulkfhir.service.filebuilder.BlockIndex;
 import gov.va.api.health.bulkfhir.service.filebuilder.FileBuildRequest;
 import gov.va.api.health.bulkfhir.service.filebuilder.FileClaim;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
 import org.assertj.core.util.Lists;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 public class LocalBulkFileWriterTest {
 
+  @Rule public TemporaryFolder root = new TemporaryFolder();
+
   private FileClaim claim() {
     return FileClaim.builder()
         .request(FileBuildRequest.builder().publicationId("p").fileId("f").build())
@@ -21,14 +32,92 @@ public class LocalBulkFileWriterTest {
         .build();
   }
 
+  private List<Path> filesIn(Path directory) throws Exception {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.collect(Collectors.toList());
+    }
+  }
+
+  @Test
+  public void failedWriteLeavesNothingBehind() throws Exception {
+    Stream<String> explodingLines =
+        Stream.of("HELLO", "boom")
+            .map(
+                s -> {
+                  if ("boom".equals(s)) {
+                    throw new IllegalStateException(s);
+                  }
+                  return s;
+                });
+    try {
+      writer("none").writeFile(claim(), explodingLines);
+    } catch (IllegalStateException expected) {
+      // expected
+    }
+    assertThat(filesIn(root.getRoot().toPath().resolve("p"))).isEmpty();
+  }
+
+  @Test
+  public void bgzfFilesAreWrittenWithABlockIndex() throws Exception {
+    LocalBulkFileWriter.builder()
+        .root(root.getRoot().getAbsolutePath())
+        .codec("bgzf")
+        .build()
+        .writeFile(claim(), Stream.of("HELLO", "GOODBYE"));
+    Path directory = root.getRoot().toPath().resolve("p");
+    try (InputStream in =
+        new GZIPInputStream(Files.newInputStream(directory.resolve("fake.ndjson.gz")))) {
+      assertThat(new String(in.readAllBytes(), UTF_8)).isEqualTo("HELLO\nGOODBYE");
+    }
+    try (InputStream in = Files.newInputStream(directory.resolve("fake.ndjson.gz.idx"))) {
+      assertThat(BlockIndex.readFrom(in).records()).isEqualTo(2);
+    }
+    assertThat(filesIn(directory))
+        .containsExactlyInAnyOrder(
+            directory.resolve("fake.ndjson.gz"), directory.resolve("fake.ndjson.gz.idx"));
+  }
+
+  @Test
+  public void fsyncPolicyIsParsedFromProperty() {
+    assertThat(FsyncPolicy.of(null)).isEqualTo(FsyncPolicy.NONE);
+    assertThat(FsyncPolicy.of("file")).isEqualTo(FsyncPolicy.FILE);
+    assertThat(FsyncPolicy.of(" file-and-directory ")).isEqualTo(FsyncPolicy.FILE_AND_DIRECTORY);
+  }
+
+  @Test
+  public void gzipFilesAreCompressed() throws Exception {
+    LocalBulkFileWriter.builder()
+        .root(root.getRoot().getAbsolutePath())
+        .codec("gzip")
+        .build()
+        .writeFile(claim(), Stream.of("HELLO", "GOODBYE"));
+    Path filePath = root.getRoot().toPath().resolve("p").resolve("fake.ndjson.gz");
+    try (InputStream in = new GZIPInputStream(Files.newInputStream(filePath))) {
+      assertThat(new String(in.readAllBytes(), UTF_8)).isEqualTo("HELLO\nGOODBYE");
+    }
+  }
+
   @Test
   public void localFileWriteDoesNotExplode() throws Exception {
-    LocalBulkFileWriter fileWriter = new LocalBulkFileWriter();
-    fileWriter.writeFile(claim(), Lists.newArrayList("HELLO").stream());
-    Path filePath = Paths.get("fake.ndjson");
-    /* Make sure the file is created */
-    assertThat(Files.exists(filePath)).isTrue();
-    /* Delete the file */
-    Files.delete(filePath);
+    writer("file-and-directory").writeFile(claim(), Lists.newArrayList("HELLO").stream());
+    Path filePath = root.getRoot().toPath().resolve("p").resolve("fake.ndjson");
+    assertThat(Files.readString(filePath)).isEqualTo("HELLO");
+  }
+
+  @Test
+  public void rewritingFileReplacesItWithoutLeavingTempFiles() throws Exception {
+    writer("file").writeFile(claim(), Stream.of("OLD"));
+    writer("file").writeFile(claim(), Stream.of("HELLO", "GOODBYE"));
+    Path directory = root.getRoot().toPath().resolve("p");
+    assertThat(filesIn(directory)).containsExactly(directory.resolve("fake.ndjson"));
+    assertThat(Files.readString(directory.resolve("fake.ndjson")))
+        .isEqualTo("HELLO\nGOODBYE");
+  }
+
+  private LocalBulkFileWriter writer(String fsync) {
+    return LocalBulkFileWriter.builder()
+        .root(root.getRoot().getAbsolutePath())
+        .fsync(fsync)
+        .build();
   }
 }
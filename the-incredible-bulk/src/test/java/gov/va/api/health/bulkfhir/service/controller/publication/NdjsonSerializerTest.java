@@ -0,0 +1,108 @@
+package gov.va.api.health.bulkfhir.service.controller.publication;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonMappingException;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.module.SimpleModule;
+import gov.va.api.health.argonaut.api.resources.Patient;
+import gov.va.api.health.autoconfig.configuration.JacksonConfig;
+import gov.va.api.health.bulkfhir.service.controller.NdjsonSerializer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.Test;
+
+public class NdjsonSerializerTest {
+
+  ObjectMapper mapper = JacksonConfig.createMapper();
+
+  private Patient patient(String id) {
+    return Patient.builder().id(id).gender(Patient.Gender.female).build();
+  }
+
+  NdjsonSerializer<Patient> serializer() {
+    return NdjsonSerializer.<Patient>builder()
+        .jacksonMapper(mapper)
+        .resourceType(Patient.class)
+        .build();
+  }
+
+  /** Patients that are male cannot be serialized by the mapper of this serializer. */
+  NdjsonSerializer<Patient> serializerFailingMalePatients() {
+    mapper.registerModule(
+        new SimpleModule()
+            .addSerializer(
+                Patient.Gender.class,
+                new JsonSerializer<Patient.Gender>() {
+                  @Override
+                  public void serialize(
+                      Patient.Gender gender, JsonGenerator generator, SerializerProvider provider)
+                      throws IOException {
+                    if (gender == Patient.Gender.male) {
+                      throw JsonMappingException.from(generator, "YOU CANT DO THAT");
+                    }
+                    generator.writeString(gender.name());
+                  }
+                }));
+    return serializer();
+  }
+
+  @Test
+  @SneakyThrows
+  void contentIsSameAsJoinedJsonStrings() {
+    var patients = Arrays.asList(patient("a"), null, patient("b"), patient("c"));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    serializer().content(patients.stream()).writeTo(out);
+    String expected =
+        Stream.of(patient("a"), patient("b"), patient("c"))
+            .map(this::json)
+            .collect(Collectors.joining("\n"));
+    assertThat(out.toString(UTF_8)).isEqualTo(expected);
+  }
+
+  @Test
+  @SneakyThrows
+  void contentLeavesOutResourcesThatCannotBeSerialized() {
+    NdjsonSerializer<Patient> serializer = serializerFailingMalePatients();
+    Patient male = Patient.builder().id("m").gender(Patient.Gender.male).build();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    serializer.content(Stream.of(male, patient("a"), male, patient("b"), male)).writeTo(out);
+    assertThat(out.toString(UTF_8)).isEqualTo(json(patient("a")) + "\n" + json(patient("b")));
+  }
+
+  @Test
+  @SneakyThrows
+  void emptyContentWritesNothing() {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    serializer().content(Stream.empty()).writeTo(out);
+    assertThat(out.size()).isZero();
+  }
+
+  @SneakyThrows
+  private String json(Patient patient) {
+    return mapper.writeValueAsString(patient);
+  }
+
+  @Test
+  void toBytesIsSameAsJsonString() {
+    assertThat(new String(serializer().toBytes(patient("a")), UTF_8))
+        .isEqualTo(json(patient("a")));
+    assertThat(serializer().toBytes(null)).isNull();
+  }
+
+  @Test
+  void toBytesOfAResourceThatCannotBeSerializedIsNull() {
+    NdjsonSerializer<Patient> serializer = serializerFailingMalePatients();
+    Patient male = Patient.builder().id("m").gender(Patient.Gender.male).build();
+    assertThat(serializer.toBytes(male)).isNull();
+    assertThat(new String(serializer.toBytes(patient("a")), UTF_8)).isEqualTo(json(patient("a")));
+  }
+}
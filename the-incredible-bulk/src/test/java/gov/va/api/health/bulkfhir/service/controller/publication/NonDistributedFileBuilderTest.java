@@ -2,18 +2,31 @@ package gov.va.api.health.bulkfhir.service.controller.publication;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
 import gov.va.api.health.bulkfhir.api.internal.FileBuildResponse;
 import gov.va.api.health.bulkfhir.service.filebuilder.FileBuildRequest;
 import gov.va.api.health.bulkfhir.service.filebuilder.FileBuildWorker;
 import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilderExceptions.AlreadyClaimed;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilderExceptions.BuildCapacityExceeded;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilderExceptions.BuildFailed;
 import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilderExceptions.ClaimFailed;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilderExceptions.FindFileToBuildFailed;
 import gov.va.api.health.bulkfhir.service.filebuilder.FileClaim;
 import gov.va.api.health.bulkfhir.service.filebuilder.FileClaimant;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
@@ -39,14 +52,190 @@ public class NonDistributedFileBuilderTest {
     FileBuildRequest request = FileBuildRequest.builder().publicationId("p").fileId("f").build();
     FileClaim claim = FileClaim.builder().request(request).page(3).count(1234).build();
     when(claimant.tryClaim(request)).thenReturn(claim);
-    when(worker.buildFile(claim))
+    when(worker.buildFile(eq(claim), any()))
         .thenReturn(CompletableFuture.completedFuture(FileBuildResponse.builder().build()));
 
     var response = manager().buildFile(request);
     assertThat(response)
         .isEqualTo(FileBuildResponse.builder().publicationId("p").fileId("f").build());
 
-    verify(worker).buildFile(claim);
+    verify(worker).buildFile(eq(claim), any());
+  }
+
+  @Test
+  void failedBuildIsNotReleasedWhenLimited() {
+    FileBuildRequest request = FileBuildRequest.builder().publicationId("p").fileId("f").build();
+    FileClaim claim = FileClaim.builder().request(request).page(3).count(1234).build();
+    when(claimant.tryClaim(request)).thenReturn(claim);
+    when(worker.buildFile(eq(claim), any()))
+        .thenReturn(CompletableFuture.failedFuture(new BuildFailed("p", "f", null)));
+    limitedManager().buildFile(request);
+    verify(worker).buildFile(eq(claim), any());
+    verify(claimant, never()).releaseClaim(any());
+  }
+
+  @Test
+  void fileIsNotClaimedWhenCapacityIsExceeded() {
+    FileBuildRequest request = FileBuildRequest.builder().publicationId("p").fileId("f").build();
+    FileClaim claim = FileClaim.builder().request(request).page(3).count(1234).build();
+    when(claimant.tryClaim(request)).thenReturn(claim);
+    when(worker.buildFile(eq(claim), any())).thenReturn(new CompletableFuture<>());
+    BuildAdmission admission = BuildAdmission.builder().maxQueuedFiles(1).build();
+    NonDistributedFileBuilder manager =
+        NonDistributedFileBuilder.builder()
+            .claimant(claimant)
+            .worker(worker)
+            .admission(admission)
+            .build();
+    manager.buildFile(request);
+    assertThrows(BuildCapacityExceeded.class, () -> manager.buildFile(request));
+    verify(claimant, times(1)).tryClaim(request);
+  }
+
+  @Test
+  void fileIsQueuedUnclaimedWhenClaimingOnDequeue() {
+    FileBuildRequest request = FileBuildRequest.builder().publicationId("p").fileId("f").build();
+    when(worker.claimAndBuildFile(request)).thenReturn(new CompletableFuture<>());
+    var response =
+        NonDistributedFileBuilder.builder()
+            .claimant(claimant)
+            .worker(worker)
+            .claimMode("on-dequeue")
+            .build()
+            .buildFile(request);
+    assertThat(response)
+        .isEqualTo(FileBuildResponse.builder().publicationId("p").fileId("f").build());
+    verify(worker).claimAndBuildFile(request);
+    verifyNoInteractions(claimant);
+  }
+
+  @Test
+  void nextFileIsClaimedBeforeItIsQueuedWhenClaimingOnDequeue() {
+    FileBuildRequest request = FileBuildRequest.builder().publicationId("p").fileId("f").build();
+    FileClaim claim = FileClaim.builder().request(request).page(3).count(1234).build();
+    when(claimant.tryClaim(request)).thenReturn(claim);
+    when(worker.buildFile(eq(claim), any())).thenReturn(new CompletableFuture<>());
+    NonDistributedFileBuilder.builder()
+        .claimant(claimant)
+        .worker(worker)
+        .claimMode("on-dequeue")
+        .build()
+        .buildNextFile(request);
+    verify(claimant).tryClaim(request);
+    verify(worker, never()).claimAndBuildFile(any());
+  }
+
+  @Test
+  void nextFilesAreClaimedTogetherUpToCapacity() {
+    FileClaim first = claim("f1");
+    FileClaim second = claim("f2");
+    when(claimant.tryClaimNext(2)).thenReturn(List.of(first, second));
+    when(worker.buildFile(eq(first), any())).thenReturn(new CompletableFuture<>());
+    when(worker.buildFile(eq(second), any())).thenReturn(new CompletableFuture<>());
+    BuildAdmission admission = BuildAdmission.builder().maxQueuedFiles(2).build();
+    NonDistributedFileBuilder manager =
+        NonDistributedFileBuilder.builder()
+            .claimant(claimant)
+            .worker(worker)
+            .admission(admission)
+            .build();
+    assertThat(manager.buildNextFiles(5))
+        .containsExactly(
+            FileBuildResponse.builder().publicationId("p").fileId("f1").build(),
+            FileBuildResponse.builder().publicationId("p").fileId("f2").build());
+    assertThat(admission.queuedFiles()).isEqualTo(2);
+    assertThrows(BuildCapacityExceeded.class, () -> manager.buildNextFiles(1));
+    verify(claimant, times(1)).tryClaimNext(anyInt());
+  }
+
+  @Test
+  void nextFilesClaimFailureReleasesAdmission() {
+    when(claimant.tryClaimNext(3)).thenThrow(new RuntimeException("fugazi"));
+    BuildAdmission admission = BuildAdmission.builder().build();
+    NonDistributedFileBuilder manager =
+        NonDistributedFileBuilder.builder()
+            .claimant(claimant)
+            .worker(worker)
+            .admission(admission)
+            .build();
+    assertThrows(FindFileToBuildFailed.class, () -> manager.buildNextFiles(3));
+    assertThat(admission.queuedFiles()).isZero();
+    verifyNoInteractions(worker);
+  }
+
+  @Test
+  void queuedClaimsKeepTheirLease() {
+    FileClaim building = claim("f1");
+    FileClaim queued = claim("f2");
+    when(claimant.tryClaimNext(2)).thenReturn(List.of(building, queued));
+    when(claimant.renewClaim(any())).thenReturn(true);
+    when(worker.buildFile(eq(building), any())).thenReturn(new CompletableFuture<>());
+    ClaimHeartbeat heartbeat = ClaimHeartbeat.builder().claimant(claimant).leaseSeconds(1).build();
+    assertThat(limitedManager(heartbeat).buildNextFiles(2)).hasSize(2);
+    /* The second file waits behind the first for longer than a lease, and keeps renewing it. */
+    verify(claimant, timeout(3000).atLeast(4)).renewClaim(queued);
+    verify(worker, never()).buildFile(eq(queued), any());
+    verify(claimant, never()).releaseClaim(any());
+    heartbeat.shutdown();
+  }
+
+  @Test
+  void rejectedFileIsReturnedToNotStarted() {
+    FileBuildRequest request = FileBuildRequest.builder().publicationId("p").fileId("f").build();
+    FileClaim claim = FileClaim.builder().request(request).page(3).count(1234).build();
+    when(claimant.tryClaim(request)).thenReturn(claim);
+    when(worker.buildFile(eq(claim), any())).thenThrow(new RejectedExecutionException("fugazi"));
+    assertThrows(RejectedExecutionException.class, () -> manager().buildFile(request));
+    verify(claimant).releaseClaim(claim);
+    verify(claimant, never()).completeClaim(any());
+  }
+
+  @Test
+  void rejectedFileIsReturnedToNotStartedWhenLimited() {
+    FileBuildRequest request = FileBuildRequest.builder().publicationId("p").fileId("f").build();
+    FileClaim claim = FileClaim.builder().request(request).page(3).count(1234).build();
+    when(claimant.tryClaim(request)).thenReturn(claim);
+    when(worker.buildFile(eq(claim), any())).thenThrow(new RejectedExecutionException("fugazi"));
+    limitedManager().buildFile(request);
+    verify(claimant).releaseClaim(claim);
+    verify(claimant, never()).completeClaim(any());
+  }
+
+  @Test
+  void unclaimedNextFilesAreNotQueued() {
+    when(claimant.tryClaimNext(3)).thenReturn(List.of(claim("f1")));
+    when(worker.buildFile(eq(claim("f1")), any())).thenReturn(new CompletableFuture<>());
+    BuildAdmission admission = BuildAdmission.builder().build();
+    NonDistributedFileBuilder manager =
+        NonDistributedFileBuilder.builder()
+            .claimant(claimant)
+            .worker(worker)
+            .admission(admission)
+            .build();
+    assertThat(manager.buildNextFiles(3)).hasSize(1);
+    assertThat(admission.queuedFiles()).isEqualTo(1);
+  }
+
+  private FileClaim claim(String fileId) {
+    return FileClaim.builder()
+        .request(FileBuildRequest.builder().publicationId("p").fileId(fileId).build())
+        .page(1)
+        .count(10)
+        .build();
+  }
+
+  NonDistributedFileBuilder limitedManager() {
+    return limitedManager(null);
+  }
+
+  /** Builds one file at a time, started by the limiter. */
+  NonDistributedFileBuilder limitedManager(ClaimHeartbeat heartbeat) {
+    return NonDistributedFileBuilder.builder()
+        .claimant(claimant)
+        .worker(worker)
+        .limiter(AdaptiveBuildLimiter.builder().meterRegistry(new SimpleMeterRegistry()).build())
+        .heartbeat(heartbeat)
+        .build();
   }
 
   NonDistributedFileBuilder manager() {
@@ -1,28 +1,44 @@
 package gov.va.api.health.bulkfhir.service.controller.publication;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
 import static org.mockito.Mockito.when;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import gov.va.api.health.argonaut.api.resources.Patient;
+import gov.va.api.health.autoconfig.configuration.JacksonConfig;
+import gov.va.api.health.bulkfhir.anonymizer.SaltedType5UuidGenerator;
 import gov.va.api.health.bulkfhir.api.internal.FileBuildResponse;
 import gov.va.api.health.bulkfhir.service.dataquery.client.DataQueryBatchClient;
 import gov.va.api.health.bulkfhir.service.dataquery.client.DataQueryBatchClient.RequestFailed;
 import gov.va.api.health.bulkfhir.service.filebuilder.BulkFileWriter;
+import gov.va.api.health.bulkfhir.service.filebuilder.ClaimLease;
 import gov.va.api.health.bulkfhir.service.filebuilder.FileBuildRequest;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilderExceptions.AlreadyClaimed;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilderExceptions.BuildTimedOut;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilderExceptions.ClaimLost;
 import gov.va.api.health.bulkfhir.service.filebuilder.FileClaim;
 import gov.va.api.health.bulkfhir.service.filebuilder.FileClaimant;
+import gov.va.api.health.bulkfhir.service.filebuilder.NdjsonContent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.ByteArrayOutputStream;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
-import java.util.stream.Stream;
 import lombok.SneakyThrows;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
@@ -35,7 +51,9 @@ public class NonDistributedFileWorkerTest {
 
   @Mock BulkFileWriter fileWriter;
 
-  @Mock ObjectMapper objectMapper;
+  @Mock ClaimHeartbeat heartbeat;
+
+  ObjectMapper mapper = JacksonConfig.createMapper();
 
   private FileClaim claim() {
     return FileClaim.builder()
@@ -47,43 +65,163 @@ public class NonDistributedFileWorkerTest {
 
   @Test
   void failedResponseIsReturnedWhenFileWriterGivesException() throws Exception {
-    when(dq.requestPatients(3, 1234)).thenReturn(refactorMeToBeReusableSamplePatients());
-    doThrow(new IllegalArgumentException("NOPE")).when(fileWriter).writeFile(any(), any());
-    var response = worker().buildFile(claim());
+    when(dq.streamPatients(3, 1234)).thenReturn(refactorMeToBeReusableSamplePatients().stream());
+    doThrow(new IllegalArgumentException("NOPE"))
+        .when(fileWriter)
+        .writeFile(any(), any(NdjsonContent.class));
+    var response = worker().buildFile(claim(), ClaimLease.NONE);
     assertThrows(ExecutionException.class, response::get);
+    verify(claimant).failClaim(claim());
+    verify(claimant, never()).completeClaim(any());
   }
 
   @Test
   void failedResponseWhenPatientFetchFails() {
-    when(dq.requestPatients(3, 1234)).thenThrow(new RequestFailed("xxx"));
-    var response = worker().buildFile(claim());
+    when(dq.streamPatients(3, 1234)).thenThrow(new RequestFailed("xxx"));
+    var response = worker().buildFile(claim(), ClaimLease.NONE);
     assertThrows(ExecutionException.class, response::get);
   }
 
   @Test
   @SneakyThrows
   void fileWriterIsGivenTheProperDataToWrite() {
-    when(dq.requestPatients(3, 1234)).thenReturn(refactorMeToBeReusableSamplePatients());
-    when(objectMapper.writeValueAsString(any())).thenReturn("HI");
+    when(dq.streamPatients(3, 1234)).thenReturn(refactorMeToBeReusableSamplePatients().stream());
+    /* The stream is closed once the file is written, so it must be consumed by the writer. */
+    ByteArrayOutputStream written = new ByteArrayOutputStream();
+    doAnswer(
+            invocation -> {
+              NdjsonContent content = invocation.getArgument(1);
+              content.writeTo(written);
+              return null;
+            })
+        .when(fileWriter)
+        .writeFile(any(), any(NdjsonContent.class));
     FileClaim claim = claim();
-    worker().buildFile(claim);
+    worker().buildFile(claim, ClaimLease.NONE);
     ArgumentCaptor<FileClaim> fileClaim = ArgumentCaptor.forClass(FileClaim.class);
-    ArgumentCaptor<Stream<String>> resourceStream = ArgumentCaptor.forClass(Stream.class);
-    verify(fileWriter).writeFile(fileClaim.capture(), resourceStream.capture());
-    verify(claimant).completeClaim(claim.request());
+    verify(fileWriter).writeFile(fileClaim.capture(), any(NdjsonContent.class));
+    verify(claimant).completeClaim(claim);
     assertThat(fileClaim.getValue()).isEqualTo(claim());
-    assertThat(resourceStream.getValue().count()).isEqualTo(1);
+    String json = written.toString(UTF_8);
+    assertThat(json).doesNotContain("\n").doesNotContain("12345V67890");
+    assertThat(mapper.readValue(json, Patient.class).id())
+        .isEqualTo(
+            SaltedType5UuidGenerator.builder()
+                .resource("Patient")
+                .saltKey("SALTYBRAH")
+                .seed("a457c370-7992-5d1a-9c14-832566af5af2")
+                .build()
+                .generateIdFrom("12345V67890"));
   }
 
   private List<Patient> refactorMeToBeReusableSamplePatients() {
     return List.of(Patient.builder().id("12345V67890").build());
   }
 
+  @Test
+  void claimAndBuildFileClaimsBeforeBuilding() throws Exception {
+    when(claimant.tryClaim(claim().request())).thenReturn(claim());
+    when(dq.streamPatients(3, 1234)).thenReturn(refactorMeToBeReusableSamplePatients().stream());
+    var result = worker().claimAndBuildFile(claim().request());
+    assertThat(result.get())
+        .isEqualTo(FileBuildResponse.builder().publicationId("p").fileId("f").build());
+    verify(fileWriter).writeFile(eq(claim()), any(NdjsonContent.class));
+    verify(claimant).completeClaim(claim());
+  }
+
+  @Test
+  void claimAndBuildFileDoesNotBuildWhenClaimFails() {
+    when(claimant.tryClaim(claim().request())).thenThrow(new AlreadyClaimed("p", "f"));
+    var result = worker().claimAndBuildFile(claim().request());
+    var thrown = assertThrows(ExecutionException.class, result::get);
+    assertThat(thrown.getCause()).isInstanceOf(AlreadyClaimed.class);
+    verifyNoInteractions(dq, fileWriter);
+    verify(claimant, never()).completeClaim(any());
+  }
+
+  @Test
+  @SneakyThrows
+  void leaseIsRenewedUntilTheFileIsBuilt() {
+    when(claimant.tryClaim(claim().request())).thenReturn(claim());
+    when(dq.streamPatients(3, 1234)).thenReturn(refactorMeToBeReusableSamplePatients().stream());
+    ClaimLease lease = mock(ClaimLease.class);
+    when(heartbeat.start(claim())).thenReturn(lease);
+    var result =
+        NonDistributedFileWorker.builder()
+            .claimant(claimant)
+            .dataQuery(dq)
+            .fileWriter(fileWriter)
+            .jacksonMapper(mapper)
+            .familyNameOffset(1000)
+            .saltKey("SALTYBRAH")
+            .uuidSeed("a457c370-7992-5d1a-9c14-832566af5af2")
+            .heartbeat(heartbeat)
+            .build()
+            .claimAndBuildFile(claim().request());
+    result.get();
+    InOrder inOrder = inOrder(fileWriter, lease, claimant);
+    inOrder.verify(fileWriter).writeFile(eq(claim()), any(NdjsonContent.class));
+    inOrder.verify(lease).close();
+    inOrder.verify(claimant).completeClaim(claim());
+  }
+
+  @Test
+  void lostLeaseCancelsTheBuild() {
+    ClaimLease lease = mock(ClaimLease.class);
+    /* The lease is already lost, so the cancellation runs as soon as it is registered. */
+    doAnswer(
+            invocation -> {
+              invocation.<Runnable>getArgument(0).run();
+              return null;
+            })
+        .when(lease)
+        .onLost(any());
+    var result = worker().buildFile(claim(), lease);
+    var thrown = assertThrows(ExecutionException.class, result::get);
+    assertThat(thrown.getCause().getCause()).isInstanceOf(ClaimLost.class);
+    assertThat(Thread.currentThread().isInterrupted()).isFalse();
+    verifyNoInteractions(dq, fileWriter);
+    verify(lease).close();
+    verify(claimant, never()).completeClaim(any());
+  }
+
+  @Test
+  void timedOutBuildIsInterruptedAndItsClaimReleased() {
+    when(dq.streamPatients(3, 1234)).thenReturn(refactorMeToBeReusableSamplePatients().stream());
+    doAnswer(
+            invocation -> {
+              Thread.sleep(10000);
+              return null;
+            })
+        .when(fileWriter)
+        .writeFile(any(), any(NdjsonContent.class));
+    BuildWatchdog watchdog =
+        BuildWatchdog.builder().millisPerRecord(1).meterRegistry(new SimpleMeterRegistry()).build();
+    var result =
+        NonDistributedFileWorker.builder()
+            .claimant(claimant)
+            .dataQuery(dq)
+            .fileWriter(fileWriter)
+            .jacksonMapper(mapper)
+            .familyNameOffset(1000)
+            .saltKey("SALTYBRAH")
+            .uuidSeed("a457c370-7992-5d1a-9c14-832566af5af2")
+            .watchdog(watchdog)
+            .build()
+            .buildFile(claim(), ClaimLease.NONE);
+    var thrown = assertThrows(ExecutionException.class, result::get);
+    assertThat(thrown.getCause().getCause()).isInstanceOf(BuildTimedOut.class);
+    assertThat(Thread.currentThread().isInterrupted()).isFalse();
+    verify(claimant).failClaim(claim());
+    verify(claimant, never()).completeClaim(any());
+    watchdog.shutdown();
+  }
+
   @Test
   @SneakyThrows
   void successResponseWhenFileIsSaved() {
-    when(dq.requestPatients(3, 1234)).thenReturn(refactorMeToBeReusableSamplePatients());
-    var result = worker().buildFile(claim());
+    when(dq.streamPatients(3, 1234)).thenReturn(refactorMeToBeReusableSamplePatients().stream());
+    var result = worker().buildFile(claim(), ClaimLease.NONE);
     assertThat(result.get())
         .isEqualTo(FileBuildResponse.builder().publicationId("p").fileId("f").build());
   }
@@ -93,7 +231,7 @@ public class NonDistributedFileWorkerTest {
         .claimant(claimant)
         .dataQuery(dq)
         .fileWriter(fileWriter)
-        .jacksonMapper(objectMapper)
+        .jacksonMapper(mapper)
         .familyNameOffset(1000)
         .saltKey("SALTYBRAH")
         .uuidSeed("a457c370-7992-5d1a-9c14-832566af5af2")
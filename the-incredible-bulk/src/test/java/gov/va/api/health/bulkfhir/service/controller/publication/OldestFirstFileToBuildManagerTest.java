@@ -2,6 +2,7 @@ package gov.va.api.health.bulkfhir.service.controller.publication;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.Mockito.when;
 
 import gov.va.api.health.bulkfhir.service.filebuilder.FileBuildRequest;
@@ -33,21 +34,22 @@ public class OldestFirstFileToBuildManagerTest {
 
   @Test
   public void noFileIsReturnedWhenNoFilesHaveYetToBeStartedWithEmptyList() {
-    when(repository.findByStatusNotStarted(any())).thenReturn(Lists.newArrayList());
+    when(repository.findAvailable(anyLong(), any())).thenReturn(Lists.newArrayList());
     FileBuildRequest result = buildManager().getNextFileToBuild();
     assertThat(result).isNull();
   }
 
   @Test
   public void noFileIsReturnedWhenNoFilesHaveYetToBeStartedWithNull() {
-    when(repository.findByStatusNotStarted(any())).thenReturn(null);
+    when(repository.findAvailable(anyLong(), any())).thenReturn(null);
     FileBuildRequest result = buildManager().getNextFileToBuild();
     assertThat(result).isNull();
   }
 
   @Test(expected = IllegalArgumentException.class)
   public void noFileIsReturnedWhenQueryFails() {
-    when(repository.findByStatusNotStarted(any())).thenThrow(new IllegalArgumentException("NOPE"));
+    when(repository.findAvailable(anyLong(), any()))
+        .thenThrow(new IllegalArgumentException("NOPE"));
     /*
      * We expect an explosion here, the IllegalArgumentException should be converted into a FileToBuildFailed
      * exception.
@@ -57,7 +59,7 @@ public class OldestFirstFileToBuildManagerTest {
 
   @Test
   public void theCorrectFileIsSelectedAsTheNextToBeBuilt() {
-    when(repository.findByStatusNotStarted(any()))
+    when(repository.findAvailable(anyLong(), any()))
         .thenReturn(
             List.of(
                 StatusEntity.builder()
@@ -3,20 +3,28 @@ package gov.va.api.health.bulkfhir.service.controller.publication;
 import static java.util.Collections.emptyList;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import gov.va.api.health.bulkfhir.service.controller.publication.PublicationExceptions.PublicationFileNotFound;
 import gov.va.api.health.bulkfhir.service.filebuilder.FileBuildRequest;
 import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilderExceptions.AlreadyClaimed;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilderExceptions.ClaimLost;
 import gov.va.api.health.bulkfhir.service.filebuilder.FileClaim;
 import gov.va.api.health.bulkfhir.service.status.StatusEntity;
 import gov.va.api.health.bulkfhir.service.status.StatusRepository;
 import java.util.List;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.orm.ObjectOptimisticLockingFailureException;
 
 @ExtendWith(MockitoExtension.class)
@@ -24,6 +32,8 @@ class OptimisticFileClaimantTest {
 
   @Mock StatusRepository repo;
 
+  @Mock CompletedPublications completedPublications;
+
   @Test
   void alreadyClaimedThrownIfTransactionFails() {
     StatusEntity e = StatusEntity.builder().build();
@@ -36,50 +46,334 @@ class OptimisticFileClaimantTest {
             claimant().tryClaim(FileBuildRequest.builder().publicationId("p").fileId("f").build()));
   }
 
+  private FileClaim claim(String publicationId, String fileId, int version) {
+    return FileClaim.builder()
+        .request(FileBuildRequest.builder().publicationId(publicationId).fileId(fileId).build())
+        .version(version)
+        .build();
+  }
+
   @Test
   void claimComplete() {
-    StatusEntity e = StatusEntity.builder().build();
+    StatusEntity e =
+        StatusEntity.builder().version(4).leaseExpiryEpoch(1234).failureCount(2).build();
     when(repo.findByPublicationIdAndFileName("p", "f")).thenReturn(List.of(e));
 
-    claimant().completeClaim(FileBuildRequest.builder().publicationId("p").fileId("f").build());
+    claimant().completeClaim(claim("p", "f", 4));
     assertThat(e.buildCompleteEpoch()).isNotZero();
+    assertThat(e.leaseExpiryEpoch()).isZero();
+    assertThat(e.failureCount()).isZero();
+    assertThat(e.fileExtension()).isEqualTo(".ndjson");
     verify(repo).saveAndFlush(e);
   }
 
+  @Test
+  void claimCompleteTellsCompletedPublications() {
+    StatusEntity e = StatusEntity.builder().version(4).build();
+    when(repo.findByPublicationIdAndFileName("p", "f")).thenReturn(List.of(e));
+    trackingClaimant().completeClaim(claim("p", "f", 4));
+    verify(completedPublications).fileCompleted("p", "f");
+  }
+
+  @Test
+  void claimingAnIncompleteFileDoesNotForgetTheCompletedPublication() {
+    StatusEntity e = StatusEntity.builder().fileName("f").build();
+    when(repo.findByPublicationIdAndFileName("p", "f")).thenReturn(List.of(e));
+    when(repo.saveAndFlush(e)).thenReturn(e);
+    trackingClaimant().tryClaim(FileBuildRequest.builder().publicationId("p").fileId("f").build());
+    verify(completedPublications, never()).forget(any());
+  }
+
+  @Test
+  void claimingAFileThatFailedForGoodGivesItsRetriesBack() {
+    StatusEntity e = StatusEntity.builder().fileName("f").failed(true).failureCount(5).build();
+    when(repo.findByPublicationIdAndFileName("p", "f")).thenReturn(List.of(e));
+    when(repo.saveAndFlush(e)).thenReturn(e);
+    claimant().tryClaim(FileBuildRequest.builder().publicationId("p").fileId("f").build());
+    assertThat(e.failed()).isFalse();
+    assertThat(e.failureCount()).isZero();
+  }
+
+  @Test
+  void claimLostThrownIfTheFileWasClaimedAgain() {
+    StatusEntity e = StatusEntity.builder().version(5).build();
+    when(repo.findByPublicationIdAndFileName("p", "f")).thenReturn(List.of(e));
+    assertThrows(ClaimLost.class, () -> claimant().completeClaim(claim("p", "f", 4)));
+    assertThat(e.buildCompleteEpoch()).isZero();
+    verify(repo, never()).saveAndFlush(any());
+  }
+
+  @Test
+  void claimLostThrownIfCompletingFails() {
+    StatusEntity e = StatusEntity.builder().version(4).build();
+    when(repo.findByPublicationIdAndFileName("p", "f")).thenReturn(List.of(e));
+    when(repo.saveAndFlush(e))
+        .thenThrow(new ObjectOptimisticLockingFailureException("fugaze", null));
+    assertThrows(ClaimLost.class, () -> claimant().completeClaim(claim("p", "f", 4)));
+  }
+
   OptimisticFileClaimant claimant() {
     return OptimisticFileClaimant.builder().repository(repo).build();
   }
 
+  OptimisticFileClaimant retryingClaimant() {
+    return OptimisticFileClaimant.builder()
+        .repository(repo)
+        .retryPolicy(
+            BuildRetryPolicy.builder()
+                .maxAttempts(3)
+                .initialDelaySeconds(10)
+                .maxDelaySeconds(60)
+                .build())
+        .build();
+  }
+
+  OptimisticFileClaimant trackingClaimant() {
+    return OptimisticFileClaimant.builder()
+        .repository(repo)
+        .completedPublications(completedPublications)
+        .build();
+  }
+
+  OptimisticFileClaimant leasingClaimant() {
+    return OptimisticFileClaimant.builder().repository(repo).leaseSeconds(60).build();
+  }
+
   @Test
   void completeClaimThrowsPublicationFileNotFoundForUnknownFile() {
     when(repo.findByPublicationIdAndFileName("x", "a")).thenReturn(emptyList());
-    assertThrows(
-        PublicationFileNotFound.class,
-        () ->
-            claimant()
-                .completeClaim(FileBuildRequest.builder().publicationId("x").fileId("a").build()));
+    assertThrows(PublicationFileNotFound.class, () -> claimant().completeClaim(claim("x", "a", 0)));
   }
 
   @Test
   void entityClaimedIfTransactionSucceeds() {
-    StatusEntity e = StatusEntity.builder().fileName("awesome").page(3).count(1234).build();
+    StatusEntity e =
+        StatusEntity.builder().fileName("awesome").recordsPerFile(2000).page(3).count(1234).build();
+    StatusEntity saved =
+        StatusEntity.builder()
+            .fileName("awesome")
+            .recordsPerFile(2000)
+            .page(3)
+            .count(1234)
+            .version(1)
+            .build();
     when(repo.findByPublicationIdAndFileName("p", "f")).thenReturn(List.of(e));
-    when(repo.saveAndFlush(e)).thenReturn(e);
+    when(repo.saveAndFlush(e)).thenReturn(saved);
 
     FileBuildRequest request = FileBuildRequest.builder().publicationId("p").fileId("f").build();
     FileClaim claim = claimant().tryClaim(request);
     /* Entity was updated. */
     assertThat(e.buildStartEpoch()).isNotZero();
     assertThat(e.buildCompleteEpoch()).isZero();
+    assertThat(e.leaseExpiryEpoch()).isZero();
+    assertThat(e.attemptCount()).isEqualTo(1);
     assertThat(e.buildProcessorId()).isNotNull();
     verify(repo).saveAndFlush(e);
 
     /* Claim is correct */
     FileClaim expected =
-        FileClaim.builder().request(request).fileName("awesome").page(3).count(1234).build();
+        FileClaim.builder()
+            .request(request)
+            .fileName("awesome")
+            .recordsPerFile(2000)
+            .page(3)
+            .count(1234)
+            .version(1)
+            .build();
     assertThat(claim).isEqualTo(expected);
   }
 
+  @Test
+  void leaseIsRenewedForTheClaimedVersion() {
+    when(repo.renewLease(eq("p"), eq("f"), eq(4), anyLong())).thenReturn(1);
+    assertThat(leasingClaimant().renewClaim(claim("p", "f", 4))).isTrue();
+  }
+
+  @Test
+  void leaseIsNotRenewedAfterTheFileWasClaimedAgain() {
+    when(repo.renewLease(eq("p"), eq("f"), eq(4), anyLong())).thenReturn(0);
+    assertThat(leasingClaimant().renewClaim(claim("p", "f", 4))).isFalse();
+  }
+
+  @Test
+  void leaseIsTakenWhenClaiming() {
+    StatusEntity e = StatusEntity.builder().fileName("awesome").build();
+    when(repo.findByPublicationIdAndFileName("p", "f")).thenReturn(List.of(e));
+    when(repo.saveAndFlush(e)).thenReturn(e);
+    leasingClaimant().tryClaim(FileBuildRequest.builder().publicationId("p").fileId("f").build());
+    assertThat(e.leaseExpiryEpoch()).isGreaterThan(e.buildStartEpoch());
+  }
+
+  private StatusEntity available(String id, String fileName) {
+    return StatusEntity.builder()
+        .id(id)
+        .publicationId("p")
+        .fileName(fileName)
+        .recordsPerFile(100)
+        .page(2)
+        .count(100)
+        .build();
+  }
+
+  private FileClaim claimOf(StatusEntity e, int version, int attemptCount) {
+    return FileClaim.builder()
+        .request(FileBuildRequest.builder().publicationId("p").fileId(e.fileName()).build())
+        .fileName(e.fileName())
+        .recordsPerFile(100)
+        .page(2)
+        .count(100)
+        .version(version)
+        .attemptCount(attemptCount)
+        .build();
+  }
+
+  @Test
+  void failClaimMarksTheFileFailedAfterTheLastAttempt() {
+    StatusEntity e = StatusEntity.builder().buildStartEpoch(1234).version(4).build();
+    when(repo.findByPublicationIdAndFileName("p", "f")).thenReturn(List.of(e));
+    retryingClaimant()
+        .failClaim(
+            FileClaim.builder()
+                .request(FileBuildRequest.builder().publicationId("p").fileId("f").build())
+                .version(4)
+                .attemptCount(7)
+                .failureCount(2)
+                .build());
+    assertThat(e.failed()).isTrue();
+    assertThat(e.failureCount()).isEqualTo(3);
+    assertThat(e.retryAfterEpoch()).isZero();
+    assertThat(e.buildStartEpoch()).isZero();
+    assertThat(e.buildCompleteEpoch()).isZero();
+    verify(repo).saveAndFlush(e);
+  }
+
+  @Test
+  void failClaimSchedulesARetry() {
+    StatusEntity e = StatusEntity.builder().buildStartEpoch(1234).version(4).build();
+    when(repo.findByPublicationIdAndFileName("p", "f")).thenReturn(List.of(e));
+    retryingClaimant()
+        .failClaim(
+            FileClaim.builder()
+                .request(FileBuildRequest.builder().publicationId("p").fileId("f").build())
+                .version(4)
+                .attemptCount(5)
+                .failureCount(1)
+                .build());
+    assertThat(e.failed()).isFalse();
+    assertThat(e.failureCount()).isEqualTo(2);
+    assertThat(e.lastFailureEpoch()).isNotZero();
+    assertThat(e.retryAfterEpoch()).isEqualTo(e.lastFailureEpoch() + 20_000);
+    assertThat(e.buildStartEpoch()).isZero();
+    assertThat(e.buildCompleteEpoch()).isZero();
+    verify(repo).saveAndFlush(e);
+  }
+
+  @Test
+  void rebuildingACompletedFileForgetsTheCompletedPublication() {
+    StatusEntity e = StatusEntity.builder().fileName("f").buildCompleteEpoch(1234).build();
+    when(repo.findByPublicationIdAndFileName("p", "f")).thenReturn(List.of(e));
+    when(repo.saveAndFlush(e)).thenReturn(e);
+    trackingClaimant().tryClaim(FileBuildRequest.builder().publicationId("p").fileId("f").build());
+    verify(completedPublications).forget("p");
+  }
+
+  @Test
+  void releaseClaimReturnsTheFileToNotStarted() {
+    StatusEntity e =
+        StatusEntity.builder().buildStartEpoch(1234).leaseExpiryEpoch(5678).version(4).build();
+    when(repo.findByPublicationIdAndFileName("p", "f")).thenReturn(List.of(e));
+    claimant().releaseClaim(claim("p", "f", 4));
+    assertThat(e.buildStartEpoch()).isZero();
+    assertThat(e.leaseExpiryEpoch()).isZero();
+    verify(repo).saveAndFlush(e);
+  }
+
+  @Test
+  void releaseClaimThrowsClaimLostIfTheFileWasCompleted() {
+    StatusEntity e = StatusEntity.builder().buildCompleteEpoch(1234).version(4).build();
+    when(repo.findByPublicationIdAndFileName("p", "f")).thenReturn(List.of(e));
+    assertThrows(ClaimLost.class, () -> claimant().releaseClaim(claim("p", "f", 4)));
+    verify(repo, never()).saveAndFlush(any());
+  }
+
+  @Test
+  void tryClaimNextClaimsTheLockedFiles() {
+    StatusEntity a = available("1", "a");
+    StatusEntity b = available("2", "b");
+    when(repo.lockAvailable(anyLong(), eq(PageRequest.of(0, 3)))).thenReturn(List.of(a, b));
+    when(repo.claimAvailable(
+            eq(List.of("1", "2")), anyLong(), anyLong(), anyString(), anyString()))
+        .thenReturn(2);
+    /* The claim incremented the version of the locked files. */
+    assertThat(claimant().tryClaimNext(3)).containsExactly(claimOf(a, 1, 1), claimOf(b, 1, 1));
+    verify(repo, never()).findClaimed(any(), any());
+    verify(repo, never()).saveAndFlush(any());
+  }
+
+  @Test
+  void tryClaimNextDoesNotUpdateWhenNothingIsAvailable() {
+    when(repo.lockAvailable(anyLong(), eq(PageRequest.of(0, 3)))).thenReturn(emptyList());
+    assertThat(claimant().tryClaimNext(3)).isEmpty();
+    verify(repo, never()).claimAvailable(any(), anyLong(), anyLong(), any(), any());
+  }
+
+  @Test
+  void tryClaimNextFindsTheClaimsWhenSomeFilesWereNotClaimed() {
+    StatusEntity a = available("1", "a");
+    StatusEntity b = available("2", "b");
+    when(repo.lockAvailable(anyLong(), eq(PageRequest.of(0, 2)))).thenReturn(List.of(a, b));
+    ArgumentCaptor<String> claimToken = ArgumentCaptor.forClass(String.class);
+    when(repo.claimAvailable(
+            eq(List.of("1", "2")), anyLong(), anyLong(), anyString(), claimToken.capture()))
+        .thenReturn(1);
+    when(repo.findClaimed(eq(List.of("1", "2")), anyString())).thenReturn(List.of(b));
+    assertThat(claimant().tryClaimNext(2)).containsExactly(claimOf(b, 0, 0));
+    /* The batch is found by a token unique to the call, not by host name and time. */
+    verify(repo).findClaimed(List.of("1", "2"), claimToken.getValue());
+    assertThat(claimToken.getValue()).isNotEqualTo(FileClaims.processorId());
+  }
+
+  @Test
+  void tryClaimNextReturnsNothingWhenAllFilesWereClaimedByOthers() {
+    when(repo.lockAvailable(anyLong(), eq(PageRequest.of(0, 2))))
+        .thenReturn(List.of(available("1", "a"), available("2", "b")));
+    when(repo.claimAvailable(
+            eq(List.of("1", "2")), anyLong(), anyLong(), anyString(), anyString()))
+        .thenReturn(0);
+    assertThat(claimant().tryClaimNext(2)).isEmpty();
+    verify(repo, never()).findClaimed(any(), any());
+  }
+
+  @Test
+  void tryClaimReclaimsAFileWhoseLeaseExpired() {
+    StatusEntity e =
+        StatusEntity.builder().fileName("f").buildStartEpoch(1000).leaseExpiryEpoch(2000).build();
+    when(repo.findByPublicationIdAndFileName("p", "f")).thenReturn(List.of(e));
+    when(repo.saveAndFlush(e)).thenReturn(e);
+    leasingClaimant().tryClaim(FileBuildRequest.builder().publicationId("p").fileId("f").build());
+    assertThat(e.buildStartEpoch()).isGreaterThan(2000);
+    assertThat(e.leaseExpiryEpoch()).isGreaterThan(e.buildStartEpoch());
+  }
+
+  @Test
+  void tryClaimThrowsAlreadyClaimedWhileTheFileIsBeingBuilt() {
+    long now = System.currentTimeMillis();
+    StatusEntity leased =
+        StatusEntity.builder().buildStartEpoch(now).leaseExpiryEpoch(now + 60_000).build();
+    StatusEntity unleased = StatusEntity.builder().buildStartEpoch(now).build();
+    when(repo.findByPublicationIdAndFileName("p", "f")).thenReturn(List.of(leased));
+    when(repo.findByPublicationIdAndFileName("p", "g")).thenReturn(List.of(unleased));
+    assertThrows(
+        AlreadyClaimed.class,
+        () ->
+            claimant().tryClaim(FileBuildRequest.builder().publicationId("p").fileId("f").build()));
+    assertThrows(
+        AlreadyClaimed.class,
+        () ->
+            claimant().tryClaim(FileBuildRequest.builder().publicationId("p").fileId("g").build()));
+    verify(repo, never()).saveAndFlush(any());
+  }
+
   @Test
   void tryClaimThrowsPublicationFileNotFoundForUnknownFile() {
     when(repo.findByPublicationIdAndFileName("x", "a")).thenReturn(emptyList());
@@ -0,0 +1,282 @@
+package gov.va.api.health.bulkfhir.service.controller.publication;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gov.va.api.health.argonaut.api.resources.Patient;
+import gov.va.api.health.autoconfig.configuration.JacksonConfig;
+import gov.va.api.health.bulkfhir.api.internal.FileBuildResponse;
+import gov.va.api.health.bulkfhir.service.dataquery.client.DataQueryBatchClient;
+import gov.va.api.health.bulkfhir.service.dataquery.client.DataQueryBatchClient.RequestFailed;
+import gov.va.api.health.bulkfhir.service.filebuilder.BulkFileWriter;
+import gov.va.api.health.bulkfhir.service.filebuilder.ClaimLease;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuildRequest;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilderExceptions.AlreadyClaimed;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilderExceptions.BuildFailed;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuilderExceptions.BuildTimedOut;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileClaim;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileClaimant;
+import gov.va.api.health.bulkfhir.service.filebuilder.NdjsonContent;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public class PipelinedFileWorkerTest {
+
+  @Mock DataQueryBatchClient dq;
+
+  @Mock FileClaimant claimant;
+
+  @Mock BulkFileWriter fileWriter;
+
+  ObjectMapper mapper = JacksonConfig.createMapper();
+
+  PipelinedFileWorker worker;
+
+  private FileClaim claim() {
+    return FileClaim.builder()
+        .request(FileBuildRequest.builder().publicationId("p").fileId("f").build())
+        .page(3)
+        .count(1234)
+        .build();
+  }
+
+  @Test
+  void failedResponseIsReturnedWhenFileWriterGivesException() throws Exception {
+    when(dq.streamPatients(3, 1234)).thenReturn(samplePatients(1).stream());
+    doThrow(new IllegalArgumentException("NOPE"))
+        .when(fileWriter)
+        .writeFile(any(), any(NdjsonContent.class));
+    var response = worker().buildFile(claim(), ClaimLease.NONE);
+    var thrown = assertThrows(ExecutionException.class, response::get);
+    assertThat(thrown.getCause()).isInstanceOf(BuildFailed.class);
+    assertThat(thrown.getCause().getCause()).isInstanceOf(IllegalArgumentException.class);
+    verify(claimant).failClaim(claim());
+    verify(claimant, never()).completeClaim(any());
+  }
+
+  @Test
+  void claimAndBuildFileFailsWithoutWritingWhenClaimFails() {
+    when(claimant.tryClaim(claim().request())).thenThrow(new AlreadyClaimed("p", "f"));
+    var response = worker().claimAndBuildFile(claim().request());
+    var thrown = assertThrows(ExecutionException.class, () -> response.get(10, TimeUnit.SECONDS));
+    assertThat(thrown.getCause()).isInstanceOf(AlreadyClaimed.class);
+    verifyNoInteractions(dq, fileWriter);
+    verify(claimant, never()).completeClaim(any());
+  }
+
+  @Test
+  @SneakyThrows
+  void claimAndBuildFileClaimsWhenTheFetchStarts() {
+    when(claimant.tryClaim(claim().request())).thenReturn(claim());
+    when(dq.streamPatients(3, 1234)).thenReturn(samplePatients(1).stream());
+    var result = worker().claimAndBuildFile(claim().request());
+    assertThat(result.get(10, TimeUnit.SECONDS))
+        .isEqualTo(FileBuildResponse.builder().publicationId("p").fileId("f").build());
+    verify(fileWriter).writeFile(eq(claim()), any(NdjsonContent.class));
+    verify(claimant).completeClaim(claim());
+  }
+
+  @Test
+  void failedResponseWhenPatientFetchFails() {
+    when(dq.streamPatients(3, 1234)).thenThrow(new RequestFailed("xxx"));
+    var response = worker().buildFile(claim(), ClaimLease.NONE);
+    var thrown = assertThrows(ExecutionException.class, response::get);
+    assertThat(thrown.getCause().getCause()).isInstanceOf(RequestFailed.class);
+  }
+
+  @Test
+  @SneakyThrows
+  void fetchStopsWhenWriterFailsPartWayThrough() {
+    AtomicBoolean closed = new AtomicBoolean();
+    when(dq.streamPatients(3, 1234))
+        .thenReturn(samplePatients(10_000).stream().onClose(() -> closed.set(true)));
+    doAnswer(
+            invocation -> {
+              NdjsonContent content = invocation.getArgument(1);
+              content.writeTo(new LimitedOutputStream(5000));
+              return null;
+            })
+        .when(fileWriter)
+        .writeFile(any(), any(NdjsonContent.class));
+    var response = worker().buildFile(claim(), ClaimLease.NONE);
+    var thrown = assertThrows(ExecutionException.class, () -> response.get(10, TimeUnit.SECONDS));
+    assertThat(thrown.getCause().getCause()).isInstanceOf(IllegalStateException.class);
+    assertThat(closed).isTrue();
+  }
+
+  @Test
+  @SneakyThrows
+  void fileWriterIsGivenEveryRecord() {
+    List<Patient> patients = samplePatients(500);
+    when(dq.streamPatients(3, 1234)).thenReturn(patients.stream());
+    ByteArrayOutputStream written = new ByteArrayOutputStream();
+    doAnswer(
+            invocation -> {
+              NdjsonContent content = invocation.getArgument(1);
+              content.writeTo(written);
+              return null;
+            })
+        .when(fileWriter)
+        .writeFile(any(), any(NdjsonContent.class));
+    worker().buildFile(claim(), ClaimLease.NONE).get(10, TimeUnit.SECONDS);
+    verify(claimant).completeClaim(claim());
+    String[] lines = written.toString(UTF_8).split("\n");
+    assertThat(lines).hasSize(500);
+    for (String line : lines) {
+      assertThat(mapper.readValue(line, Patient.class).id()).doesNotStartWith("12345V");
+    }
+  }
+
+  private List<Patient> samplePatients(int count) {
+    List<Patient> patients = new ArrayList<>(count);
+    IntStream.range(0, count)
+        .forEach(i -> patients.add(Patient.builder().id("12345V" + i).build()));
+    return patients;
+  }
+
+  @AfterEach
+  void shutdown() {
+    if (worker != null) {
+      worker.shutdown();
+    }
+  }
+
+  @Test
+  @SneakyThrows
+  void successResponseWhenFileIsSaved() {
+    when(dq.streamPatients(3, 1234)).thenReturn(samplePatients(1).stream());
+    doAnswer(
+            invocation -> {
+              NdjsonContent content = invocation.getArgument(1);
+              content.writeTo(OutputStream.nullOutputStream());
+              return null;
+            })
+        .when(fileWriter)
+        .writeFile(any(), any(NdjsonContent.class));
+    var result = worker().buildFile(claim(), ClaimLease.NONE);
+    assertThat(result.get(10, TimeUnit.SECONDS))
+        .isEqualTo(FileBuildResponse.builder().publicationId("p").fileId("f").build());
+  }
+
+  @Test
+  @SneakyThrows
+  void timeWaitingForAWriterDoesNotCountAgainstTheBudget() {
+    FileClaim first =
+        FileClaim.builder()
+            .request(FileBuildRequest.builder().publicationId("p").fileId("first").build())
+            .page(2)
+            .count(10_000)
+            .build();
+    when(dq.streamPatients(2, 10_000)).thenReturn(samplePatients(1).stream());
+    when(dq.streamPatients(3, 1234)).thenReturn(samplePatients(1).stream());
+    doAnswer(
+            invocation -> {
+              if (invocation.getArgument(0).equals(first)) {
+                /* Longer than the budget of the second file, which waits for this writer. */
+                Thread.sleep(2000);
+              }
+              NdjsonContent content = invocation.getArgument(1);
+              content.writeTo(OutputStream.nullOutputStream());
+              return null;
+            })
+        .when(fileWriter)
+        .writeFile(any(), any(NdjsonContent.class));
+    BuildWatchdog watchdog =
+        BuildWatchdog.builder().millisPerRecord(1).meterRegistry(new SimpleMeterRegistry()).build();
+    worker = worker(watchdog);
+    var firstResponse = worker.buildFile(first, ClaimLease.NONE);
+    var secondResponse = worker.buildFile(claim(), ClaimLease.NONE);
+    firstResponse.get(10, TimeUnit.SECONDS);
+    secondResponse.get(10, TimeUnit.SECONDS);
+    verify(claimant).completeClaim(first);
+    verify(claimant).completeClaim(claim());
+    verify(claimant, never()).failClaim(any());
+    watchdog.shutdown();
+  }
+
+  @Test
+  void timedOutBuildIsCancelledAndItsClaimReleased() {
+    when(dq.streamPatients(3, 1234)).thenReturn(samplePatients(1).stream());
+    doAnswer(
+            invocation -> {
+              Thread.sleep(10000);
+              return null;
+            })
+        .when(fileWriter)
+        .writeFile(any(), any(NdjsonContent.class));
+    BuildWatchdog watchdog =
+        BuildWatchdog.builder().millisPerRecord(1).meterRegistry(new SimpleMeterRegistry()).build();
+    worker = worker(watchdog);
+    var response = worker.buildFile(claim(), ClaimLease.NONE);
+    var thrown = assertThrows(ExecutionException.class, () -> response.get(10, TimeUnit.SECONDS));
+    assertThat(thrown.getCause()).isInstanceOf(BuildFailed.class);
+    assertThat(thrown.getCause().getCause()).isInstanceOf(BuildTimedOut.class);
+    verify(claimant).failClaim(claim());
+    verify(claimant, never()).completeClaim(any());
+    watchdog.shutdown();
+  }
+
+  PipelinedFileWorker worker() {
+    return worker(null);
+  }
+
+  PipelinedFileWorker worker(BuildWatchdog watchdog) {
+    worker =
+        PipelinedFileWorker.builder()
+            .claimant(claimant)
+            .dataQuery(dq)
+            .fileWriter(fileWriter)
+            .jacksonMapper(mapper)
+            .familyNameOffset(1000)
+            .saltKey("SALTYBRAH")
+            .uuidSeed("a457c370-7992-5d1a-9c14-832566af5af2")
+            .fetchThreads(1)
+            .transformThreads(1)
+            .writeThreads(1)
+            .queueSize(2)
+            .watchdog(watchdog)
+            .build();
+    return worker;
+  }
+
+  /** Fails like a full disk once a number of bytes have been written. */
+  private static class LimitedOutputStream extends OutputStream {
+    private int remaining;
+
+    LimitedOutputStream(int limit) {
+      remaining = limit;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      if (remaining-- <= 0) {
+        throw new IllegalStateException("disk full");
+      }
+    }
+  }
+}
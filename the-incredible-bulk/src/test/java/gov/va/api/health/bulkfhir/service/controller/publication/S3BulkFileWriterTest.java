@@ -1,31 +1,120 @@
 package gov.va.api.health.bulkfhir.service.controller.publication;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.github.luben.zstd.ZstdInputStream;
 import gov.va.api.health.bulkfhir.service.filebuilder.FileBuildRequest;
 import gov.va.api.health.bulkfhir.service.filebuilder.FileClaim;
-import org.assertj.core.util.Lists;
-import org.junit.Test;
-import software.amazon.awssdk.core.exception.SdkClientException;
-import software.amazon.awssdk.services.s3.model.S3Exception;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import org.junit.jupiter.api.Test;
 
 public class S3BulkFileWriterTest {
 
-  @Test
-  public void attemptToWriteToS3ExpectExplosion() throws Exception {
-    S3BulkFileWriter fileWriter = new S3BulkFileWriter();
-    fileWriter.setAwsRegion("us-gov-west-1");
-    fileWriter.setS3Bucket("fake-test-bucket");
-    try {
-      fileWriter.writeFile(claim(), Lists.newArrayList("HELLO").stream());
-    } catch (SdkClientException | S3Exception e) {
-      // Eat it - the test bucket shouldn't exist
-    }
-  }
+  InMemoryS3Client s3 = new InMemoryS3Client();
 
   private FileClaim claim() {
     return FileClaim.builder()
         .request(FileBuildRequest.builder().publicationId("p").fileId("f").build())
+        .fileName("fake")
         .page(3)
         .count(1234)
         .build();
   }
+
+  /** Enough 1 KiB lines to span three 5 MiB parts. */
+  private List<String> lines() {
+    String padding = "x".repeat(1000);
+    return IntStream.range(0, 12_000)
+        .mapToObj(i -> String.format("{\"id\":\"%05d\",\"pad\":\"%s\"}", i, padding))
+        .collect(Collectors.toList());
+  }
+
+  @Test
+  public void multipartUploadIsAbortedWhenPartUploadFails() {
+    s3.failOnPart = 2;
+    assertThrows(
+        IOException.class, () -> writer("multipart").writeFile(claim(), lines().stream()));
+    assertThat(s3.objects).isEmpty();
+    assertThat(s3.uploads).isEmpty();
+    assertThat(s3.abortedUploads).hasSize(1);
+  }
+
+  @Test
+  public void multipartUploadIsAbortedWhenResourcesFail() {
+    Stream<String> explodingLines =
+        Stream.concat(
+            lines().stream(),
+            Stream.of("boom")
+                .map(
+                    s -> {
+                      throw new IllegalStateException(s);
+                    }));
+    assertThrows(
+        IllegalStateException.class,
+        () -> writer("multipart").writeFile(claim(), explodingLines));
+    assertThat(s3.objects).isEmpty();
+    assertThat(s3.uploads).isEmpty();
+    assertThat(s3.abortedUploads).hasSize(1);
+  }
+
+  @Test
+  public void multipartUploadWritesAllLinesInOrder() throws Exception {
+    writer("multipart").writeFile(claim(), lines().stream());
+    assertThat(new String(s3.objects.get("p/fake.ndjson"), UTF_8))
+        .isEqualTo(String.join("\n", lines()));
+    assertThat(s3.abortedUploads).isEmpty();
+  }
+
+  @Test
+  public void multipartUploadIsCompressedWithZstd() throws Exception {
+    writer("multipart", "zstd").writeFile(claim(), lines().stream());
+    byte[] object = s3.objects.get("p/fake.ndjson.zst");
+    assertThat(object.length).isLessThan(S3BulkFileWriter.MIN_PART_SIZE);
+    try (InputStream in = new ZstdInputStream(new ByteArrayInputStream(object))) {
+      assertThat(new String(in.readAllBytes(), UTF_8)).isEqualTo(String.join("\n", lines()));
+    }
+  }
+
+  @Test
+  public void singleUploadIsCompressedWithGzip() throws Exception {
+    writer("single", "gzip").writeFile(claim(), Stream.of("HELLO", "GOODBYE"));
+    assertThat(s3.objectRequests.get("p/fake.ndjson.gz").contentType())
+        .isEqualTo("application/gzip");
+    byte[] object = s3.objects.get("p/fake.ndjson.gz");
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(object))) {
+      assertThat(new String(in.readAllBytes(), UTF_8)).isEqualTo("HELLO\nGOODBYE");
+    }
+  }
+
+  @Test
+  public void singleUploadWritesAllLines() throws Exception {
+    writer("single").writeFile(claim(), Stream.of("HELLO", "GOODBYE"));
+    assertThat(new String(s3.objects.get("p/fake.ndjson"), UTF_8))
+        .isEqualTo("HELLO\nGOODBYE");
+  }
+
+  S3BulkFileWriter writer(String uploadMode) {
+    return writer(uploadMode, null);
+  }
+
+  S3BulkFileWriter writer(String uploadMode, String codec) {
+    return S3BulkFileWriter.builder()
+        .s3Client(s3)
+        .s3Bucket("fake-test-bucket")
+        .uploadMode(uploadMode)
+        .partSize(S3BulkFileWriter.MIN_PART_SIZE)
+        .maxPartsInFlight(2)
+        .partUploadThreads(2)
+        .codec(codec)
+        .build();
+  }
 }
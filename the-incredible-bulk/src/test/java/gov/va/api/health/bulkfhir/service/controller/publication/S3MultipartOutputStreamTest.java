@@ -0,0 +1,81 @@
+package gov.va.api.health.bulkfhir.service.controller.publication;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class S3MultipartOutputStreamTest {
+
+  InMemoryS3Client s3 = new InMemoryS3Client();
+
+  ExecutorService executor = Executors.newFixedThreadPool(3);
+
+  @Test
+  void abortRemovesTheUpload() throws Exception {
+    S3MultipartOutputStream upload = upload(4);
+    upload.write("0123456789".getBytes(UTF_8));
+    upload.abort();
+    upload.close();
+    assertThat(s3.objects).isEmpty();
+    assertThat(s3.uploads).isEmpty();
+    assertThat(s3.abortedUploads).hasSize(1);
+  }
+
+  @Test
+  void bytesAreSplitIntoPartsAndReassembledInOrder() throws Exception {
+    S3MultipartOutputStream upload = upload(4);
+    upload.write("01234".getBytes(UTF_8));
+    upload.write('5');
+    upload.write("6789".getBytes(UTF_8));
+    upload.close();
+    assertThat(upload.partCount()).isEqualTo(3);
+    assertThat(new String(s3.objects.get("p/f.ndjson"), UTF_8)).isEqualTo("0123456789");
+  }
+
+  @Test
+  void emptyUploadCreatesEmptyObject() throws Exception {
+    S3MultipartOutputStream upload = upload(4);
+    upload.close();
+    assertThat(upload.partCount()).isEqualTo(1);
+    assertThat(s3.objects.get("p/f.ndjson")).isEmpty();
+  }
+
+  @Test
+  void failedPartAbortsTheUploadOnClose() throws Exception {
+    s3.failOnPart = 1;
+    S3MultipartOutputStream upload = upload(4);
+    upload.write("01".getBytes(UTF_8));
+    assertThrows(IOException.class, upload::close);
+    assertThat(s3.objects).isEmpty();
+    assertThat(s3.abortedUploads).hasSize(1);
+  }
+
+  @AfterEach
+  void shutdown() {
+    executor.shutdownNow();
+  }
+
+  S3MultipartOutputStream upload(int partSize) {
+    return S3MultipartOutputStream.builder()
+        .s3(s3)
+        .bucket("b")
+        .key("p/f.ndjson")
+        .partSize(partSize)
+        .maxPartsInFlight(2)
+        .executor(executor)
+        .start();
+  }
+
+  @Test
+  void writingAfterCloseFails() throws Exception {
+    S3MultipartOutputStream upload = upload(4);
+    upload.close();
+    assertThrows(IOException.class, () -> upload.write('x'));
+  }
+}
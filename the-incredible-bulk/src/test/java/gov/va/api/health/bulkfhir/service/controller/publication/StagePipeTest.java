@@ -0,0 +1,49 @@
+package gov.va.api.health.bulkfhir.service.controller.publication;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import gov.va.api.health.bulkfhir.service.controller.publication.StagePipe.PipeAborted;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import org.junit.jupiter.api.Test;
+
+public class StagePipeTest {
+
+  @Test
+  void abortedPipeFailsTheConsumer() {
+    StagePipe<String> pipe = new StagePipe<>(2);
+    pipe.put("a");
+    pipe.abort(new IllegalStateException("nope"));
+    var thrown = assertThrows(PipeAborted.class, () -> pipe.stream().count());
+    assertThat(thrown.getCause()).isInstanceOf(IllegalStateException.class);
+  }
+
+  @Test
+  void abortedPipeUnblocksTheProducer() throws Exception {
+    StagePipe<Integer> pipe = new StagePipe<>(1);
+    CompletableFuture<Void> producer =
+        CompletableFuture.runAsync(() -> IntStream.range(0, 100).forEach(pipe::put));
+    pipe.abort(new IllegalStateException("nope"));
+    assertThat(
+            producer
+                .handle((ignored, error) -> error.getCause())
+                .get(10, TimeUnit.SECONDS))
+        .isInstanceOf(PipeAborted.class);
+  }
+
+  @Test
+  void itemsArriveInOrderAcrossThreads() throws Exception {
+    StagePipe<Integer> pipe = new StagePipe<>(3);
+    CompletableFuture.runAsync(
+        () -> {
+          IntStream.range(0, 1000).forEach(pipe::put);
+          pipe.finish();
+        });
+    List<Integer> taken = pipe.stream().collect(Collectors.toList());
+    assertThat(taken).isEqualTo(IntStream.range(0, 1000).boxed().collect(Collectors.toList()));
+  }
+}
@@ -0,0 +1,164 @@
+package gov.va.api.health.bulkfhir.service.controller.publication;
+
+import static gov.va.api.health.bulkfhir.service.controller.publication.SubRangePatientFetcher.subRangeSizeFor;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import gov.va.api.health.argonaut.api.resources.Patient;
+import gov.va.api.health.bulkfhir.service.dataquery.client.DataQueryBatchClient;
+import gov.va.api.health.bulkfhir.service.dataquery.client.DataQueryBatchClient.RequestFailed;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileBuildRequest;
+import gov.va.api.health.bulkfhir.service.filebuilder.FileClaim;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import lombok.SneakyThrows;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+@ExtendWith(MockitoExtension.class)
+public class SubRangePatientFetcherTest {
+
+  @Mock DataQueryBatchClient dq;
+
+  ExecutorService executor = Executors.newFixedThreadPool(4);
+
+  private FileClaim claim(int recordsPerFile, int page, int count) {
+    return FileClaim.builder()
+        .request(FileBuildRequest.builder().publicationId("p").fileId("f").build())
+        .recordsPerFile(recordsPerFile)
+        .page(page)
+        .count(count)
+        .build();
+  }
+
+  private SubRangePatientFetcher fetcher(int subRangeSize) {
+    return SubRangePatientFetcher.builder()
+        .dataQuery(dq)
+        .subRangeSize(subRangeSize)
+        .concurrency(3)
+        .executor(executor)
+        .build();
+  }
+
+  @Test
+  void fileHasTheSameRecordsWhetherOrNotItIsSplit() {
+    /* A publication of 245 records in files of 100, so the last file has 45. */
+    when(dq.requestPatients(anyInt(), anyInt()))
+        .thenAnswer(i -> page(i.getArgument(0), i.getArgument(1), 245));
+    when(dq.streamPatients(anyInt(), anyInt()))
+        .thenAnswer(i -> page(i.getArgument(0), i.getArgument(1), 245).stream());
+    for (FileClaim claim : List.of(claim(100, 2, 100), claim(100, 3, 45))) {
+      try (Stream<Patient> split = fetcher(25).fetch(claim);
+          Stream<Patient> sequential = fetcher(0).fetch(claim)) {
+        assertThat(split.map(Patient::id).collect(Collectors.toList()))
+            .isEqualTo(sequential.map(Patient::id).collect(Collectors.toList()));
+      }
+    }
+    verify(dq).streamPatients(3, 100);
+  }
+
+  @Test
+  void fileIsStreamedWithOneRequestWhenSplittingIsNotWorthwhile() {
+    when(dq.streamPatients(2, 100)).thenReturn(Stream.of(patient(1)));
+    try (Stream<Patient> patients = fetcher(0).fetch(claim(100, 2, 100))) {
+      assertThat(patients.count()).isEqualTo(1);
+    }
+  }
+
+  @Test
+  void lastFileOfPublicationOnlyRequestsTheSubRangesItNeeds() {
+    /* File 3 of 100 records per file holds records 201-250, which are pages 9 and 10 of 25. */
+    when(dq.requestPatients(anyInt(), anyInt())).thenAnswer(i -> page(i.getArgument(0), 25));
+    try (Stream<Patient> patients = fetcher(25).fetch(claim(100, 3, 50))) {
+      assertThat(patients.map(Patient::id).collect(Collectors.toList()))
+          .isEqualTo(ids(201, 250));
+    }
+    verify(dq).requestPatients(9, 25);
+    verify(dq).requestPatients(10, 25);
+  }
+
+  @Test
+  void lastSubRangeOfAShortFileIsTrimmedToTheCount() {
+    /* File 3 of 100 records per file with 45 records ends partway through page 10 of 25. */
+    when(dq.requestPatients(anyInt(), anyInt())).thenAnswer(i -> page(i.getArgument(0), 25));
+    try (Stream<Patient> patients = fetcher(25).fetch(claim(100, 3, 45))) {
+      assertThat(patients.map(Patient::id).collect(Collectors.toList()))
+          .isEqualTo(ids(201, 245));
+    }
+    verify(dq).requestPatients(9, 25);
+    verify(dq).requestPatients(10, 25);
+  }
+
+  private List<String> ids(int first, int last) {
+    return IntStream.rangeClosed(first, last).mapToObj(i -> "P" + i).collect(Collectors.toList());
+  }
+
+  /** A page of sample patients, returned after a short random delay to shuffle completion. */
+  private List<Patient> page(int page, int size) {
+    return page(page, size, Integer.MAX_VALUE);
+  }
+
+  /** A page of a publication with the given number of records, which may be short or empty. */
+  @SneakyThrows
+  private List<Patient> page(int page, int size, int records) {
+    Thread.sleep(ThreadLocalRandom.current().nextInt(10));
+    int first = (page - 1) * size + 1;
+    return IntStream.rangeClosed(first, Math.min(first + size - 1, records))
+        .mapToObj(this::patient)
+        .collect(Collectors.toList());
+  }
+
+  private Patient patient(int n) {
+    return Patient.builder().id("P" + n).build();
+  }
+
+  @AfterEach
+  void shutdown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  void subRangeFailureFailsTheStream() {
+    when(dq.requestPatients(anyInt(), anyInt()))
+        .thenAnswer(
+            i -> {
+              if ((int) i.getArgument(0) == 6) {
+                throw new RequestFailed("page 6");
+              }
+              return page(i.getArgument(0), 10);
+            });
+    try (Stream<Patient> patients = fetcher(10).fetch(claim(100, 1, 100))) {
+      assertThrows(RequestFailed.class, patients::count);
+    }
+  }
+
+  @Test
+  void subRangeSizeDividesTheFilePageSize() {
+    assertThat(subRangeSizeFor(1000, 1000, 250)).isEqualTo(250);
+    assertThat(subRangeSizeFor(1000, 1000, 300)).isEqualTo(250);
+    assertThat(subRangeSizeFor(997, 997, 100)).isZero();
+    assertThat(subRangeSizeFor(1000, 100, 250)).isZero();
+    assertThat(subRangeSizeFor(1000, 1000, 0)).isZero();
+    assertThat(subRangeSizeFor(0, 1000, 250)).isZero();
+  }
+
+  @Test
+  void subRangesAreReassembledInOrder() {
+    when(dq.requestPatients(anyInt(), anyInt())).thenAnswer(i -> page(i.getArgument(0), 10));
+    try (Stream<Patient> patients = fetcher(10).fetch(claim(100, 2, 100))) {
+      assertThat(patients.map(Patient::id).collect(Collectors.toList()))
+          .isEqualTo(ids(101, 200));
+    }
+  }
+}
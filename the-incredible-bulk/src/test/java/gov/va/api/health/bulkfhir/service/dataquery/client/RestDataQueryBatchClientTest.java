@@ -2,6 +2,7 @@ package gov.va.api.health.bulkfhir.service.dataquery.client;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyMap;
 import static org.mockito.ArgumentMatchers.anyString;
@@ -10,13 +11,21 @@ import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import gov.va.api.health.argonaut.api.resources.Patient;
+import gov.va.api.health.autoconfig.configuration.JacksonConfig;
 import gov.va.api.health.bulkfhir.service.dataquery.client.DataQueryBatchClient.AccessDenied;
 import gov.va.api.health.bulkfhir.service.dataquery.client.DataQueryBatchClient.BadRequest;
 import gov.va.api.health.bulkfhir.service.dataquery.client.DataQueryBatchClient.NotFound;
 import gov.va.api.health.bulkfhir.service.dataquery.client.DataQueryBatchClient.RequestFailed;
 import gov.va.api.health.bulkfhir.service.dataquery.client.DataQueryBatchClient.ResourceCount;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import lombok.SneakyThrows;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.ArgumentCaptor;
@@ -29,21 +38,34 @@ import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpMethod;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.ClientHttpRequestFactory;
+import org.springframework.mock.http.client.MockClientHttpRequest;
+import org.springframework.mock.http.client.MockClientHttpResponse;
+import org.springframework.web.client.DefaultResponseErrorHandler;
 import org.springframework.web.client.HttpClientErrorException;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.util.DefaultUriBuilderFactory;
 
 @ExtendWith(MockitoExtension.class)
 public class RestDataQueryBatchClientTest {
 
   @Mock RestTemplate rt;
 
+  @Mock ClientHttpRequestFactory requestFactory;
+
   RestDataQueryBatchClient client() {
+    return client(0);
+  }
+
+  RestDataQueryBatchClient client(int maxConcurrentRequests) {
     return RestDataQueryBatchClient.builder()
         .baseUrl("http://awesome.com")
         .internalBulkPath("/i/b")
         .accessKeyHeader("secret")
         .accessKey("open")
         .restTemplate(rt)
+        .jacksonMapper(JacksonConfig.createMapper())
+        .maxConcurrentRequests(maxConcurrentRequests)
         .build();
   }
 
@@ -131,6 +153,80 @@ public class RestDataQueryBatchClientTest {
     assertThat(args.getValue().getHeaders().get("secret")).containsExactly("open");
   }
 
+  @Test
+  @SneakyThrows
+  void streamPatients200() {
+    MockClientHttpRequest request =
+        whenPatientStreamRequest("[{\"id\":\"1\"},{\"id\":\"2\"}]", HttpStatus.OK);
+    try (Stream<Patient> patients = client().streamPatients(1, 50)) {
+      assertThat(patients.map(Patient::id)).containsExactly("1", "2");
+    }
+    verify(requestFactory)
+        .createRequest(
+            eq(URI.create("http://awesome.com/i/b/Patient?page=1&_count=50")), eq(HttpMethod.GET));
+    assertThat(request.getHeaders().get("secret")).containsExactly("open");
+  }
+
+  @Test
+  @SneakyThrows
+  void streamPatientsHoldsARequestPermitUntilClosed() {
+    whenPatientStreamRequest("[{\"id\":\"1\"}]", HttpStatus.OK);
+    List<Patient> page = List.of(Patient.builder().id("2").build());
+    whenPatientRequest().thenReturn(new ResponseEntity<>(page, HttpStatus.OK));
+    RestDataQueryBatchClient client = client(1);
+    CompletableFuture<List<Patient>> waiting;
+    try (Stream<Patient> patients = client.streamPatients(1, 50)) {
+      waiting = CompletableFuture.supplyAsync(() -> client.requestPatients(2, 50));
+      Thread.sleep(100);
+      assertThat(waiting).isNotDone();
+    }
+    assertThat(waiting.get(5, TimeUnit.SECONDS)).extracting(Patient::id).containsExactly("2");
+  }
+
+  @Test
+  void streamPatientsOfEmptyArrayIsEmpty() {
+    whenPatientStreamRequest("[]", HttpStatus.OK);
+    try (Stream<Patient> patients = client().streamPatients(1, 50)) {
+      assertThat(patients).isEmpty();
+    }
+  }
+
+  @Test
+  void streamPatientsThrowsAccessDeniedWhenForbidden() {
+    whenPatientStreamRequest("", HttpStatus.FORBIDDEN);
+    assertThrows(AccessDenied.class, () -> client().streamPatients(1, 50));
+  }
+
+  @Test
+  void streamPatientsThrowsRequestFailedWhenAnElementIsNotAPatient() {
+    whenPatientStreamRequest("[{\"id\":\"1\"},1,{\"id\":\"2\"}]", HttpStatus.OK);
+    try (Stream<Patient> patients = client().streamPatients(1, 50)) {
+      assertThrows(RequestFailed.class, patients::count);
+    }
+  }
+
+  @Test
+  void streamPatientsThrowsRequestFailedWhenBodyIsNotAnArray() {
+    whenPatientStreamRequest("{\"id\":\"1\"}", HttpStatus.OK);
+    assertThrows(RequestFailed.class, () -> client().streamPatients(1, 50).count());
+  }
+
+  @Test
+  void streamPatientsReleasesItsPermitWhenTheRequestFails() {
+    whenPatientStreamRequest("", HttpStatus.FORBIDDEN);
+    RestDataQueryBatchClient client = client(1);
+    assertThrows(AccessDenied.class, () -> client.streamPatients(1, 50));
+    assertTimeoutPreemptively(
+        Duration.ofSeconds(5),
+        () -> assertThrows(AccessDenied.class, () -> client.streamPatients(1, 50)));
+  }
+
+  @Test
+  void streamPatientsThrowsRequestFailedWhenGenericFailureOccurs() {
+    whenPatientStreamRequest("", HttpStatus.BAD_GATEWAY);
+    assertThrows(RequestFailed.class, () -> client().streamPatients(1, 50));
+  }
+
   private OngoingStubbing<ResponseEntity> whenCountRequest() {
     return when(
         rt.exchange(
@@ -140,6 +236,18 @@ public class RestDataQueryBatchClientTest {
             any(ParameterizedTypeReference.class)));
   }
 
+  @SneakyThrows
+  private MockClientHttpRequest whenPatientStreamRequest(String body, HttpStatus status) {
+    MockClientHttpRequest request = new MockClientHttpRequest();
+    request.setResponse(
+        new MockClientHttpResponse(body.getBytes(StandardCharsets.UTF_8), status));
+    when(rt.getUriTemplateHandler()).thenReturn(new DefaultUriBuilderFactory());
+    when(rt.getRequestFactory()).thenReturn(requestFactory);
+    when(rt.getErrorHandler()).thenReturn(new DefaultResponseErrorHandler());
+    when(requestFactory.createRequest(any(URI.class), eq(HttpMethod.GET))).thenReturn(request);
+    return request;
+  }
+
   private OngoingStubbing<ResponseEntity> whenPatientRequest() {
     return when(
         rt.exchange(
@@ -0,0 +1,105 @@
+package gov.va.api.health.bulkfhir.service.filebuilder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.zip.GZIPInputStream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+public class BlockGzipOutputStreamTest {
+
+  ExecutorService executor = Executors.newFixedThreadPool(4);
+
+  private static String decompress(byte[] compressed) throws IOException {
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+      return new String(in.readAllBytes(), UTF_8);
+    }
+  }
+
+  private BlockGzipOutputStream blocks(ByteArrayOutputStream out, int blockSize) {
+    return BlockGzipOutputStream.builder()
+        .out(out)
+        .blockSize(blockSize)
+        .maxBlocksInFlight(3)
+        .executor(executor)
+        .build();
+  }
+
+  @Test
+  void blocksCanBeReadIndependentlyWithTheIndex() throws IOException {
+    List<String> records = records(500);
+    ByteArrayOutputStream file = new ByteArrayOutputStream();
+    BlockGzipOutputStream out = blocks(file, 1024);
+    NdjsonContent.ofLines(records.stream()).writeTo(out);
+    out.close();
+    ByteArrayOutputStream indexFile = new ByteArrayOutputStream();
+    out.index().writeTo(indexFile);
+    BlockIndex index = BlockIndex.readFrom(new ByteArrayInputStream(indexFile.toByteArray()));
+    assertThat(index).isEqualTo(out.index());
+    assertThat(index.blocks().size()).isGreaterThan(10);
+    assertThat(index.records()).isEqualTo(500);
+    for (int record : List.of(0, 1, 123, 250, 499)) {
+      BlockIndex.Block block = index.blockOf(record).orElseThrow();
+      byte[] member = new byte[block.length()];
+      System.arraycopy(file.toByteArray(), (int) block.offset(), member, 0, block.length());
+      String[] lines = decompress(member).split("\n");
+      assertThat(lines).hasSize(block.records());
+      assertThat(lines[(int) (record - block.firstRecord())]).isEqualTo(records.get(record));
+    }
+    assertThat(index.blockOf(500)).isEmpty();
+  }
+
+  @Test
+  void emptyContentIsAnEmptyGzipFile() throws IOException {
+    ByteArrayOutputStream file = new ByteArrayOutputStream();
+    BlockGzipOutputStream out = blocks(file, 1024);
+    out.close();
+    assertThat(decompress(file.toByteArray())).isEmpty();
+    assertThat(out.index().blocks()).isEmpty();
+    assertThat(out.index().records()).isZero();
+  }
+
+  @Test
+  void fileIsReadableAsOrdinaryGzip() throws IOException {
+    List<String> records = records(1000);
+    ByteArrayOutputStream file = new ByteArrayOutputStream();
+    try (BlockGzipOutputStream out = blocks(file, 4096)) {
+      NdjsonContent.ofLines(records.stream()).writeTo(out);
+    }
+    assertThat(decompress(file.toByteArray())).isEqualTo(String.join("\n", records));
+  }
+
+  private List<String> records(int count) {
+    return IntStream.range(0, count)
+        .mapToObj(i -> "{\"resourceType\":\"Patient\",\"id\":\"P" + i + "\"}")
+        .collect(Collectors.toList());
+  }
+
+  @Test
+  void recordsBiggerThanABlockAreNotSplit() throws IOException {
+    String big = "x".repeat(5000);
+    List<String> records = List.of("a", big, "b");
+    ByteArrayOutputStream file = new ByteArrayOutputStream();
+    BlockGzipOutputStream out = blocks(file, 1000);
+    NdjsonContent.ofLines(records.stream()).writeTo(out);
+    out.close();
+    assertThat(decompress(file.toByteArray())).isEqualTo(String.join("\n", records));
+    assertThat(out.index().records()).isEqualTo(3);
+    assertThat(out.index().blocks()).allSatisfy(b -> assertThat(b.records()).isGreaterThan(0));
+  }
+
+  @AfterEach
+  void shutdown() {
+    executor.shutdownNow();
+  }
+}
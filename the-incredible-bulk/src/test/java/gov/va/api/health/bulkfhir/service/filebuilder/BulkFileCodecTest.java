@@ -0,0 +1,74 @@
+package gov.va.api.health.bulkfhir.service.filebuilder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.github.luben.zstd.ZstdInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import org.junit.jupiter.api.Test;
+
+public class BulkFileCodecTest {
+
+  private static final String CONTENT = "{\"id\":\"1\"}\n{\"id\":\"2\"}";
+
+  private byte[] encode(BulkFileCodec codec, ByteArrayOutputStream destination)
+      throws IOException {
+    try (OutputStream out = codec.encode(destination)) {
+      out.write(CONTENT.getBytes(UTF_8));
+    }
+    return destination.toByteArray();
+  }
+
+  @Test
+  void encodeDoesNotCloseTheDestination() throws IOException {
+    class CloseTracker extends ByteArrayOutputStream {
+      boolean closed;
+
+      @Override
+      public void close() {
+        closed = true;
+      }
+    }
+    CloseTracker destination = new CloseTracker();
+    encode(BulkFileCodec.GZIP, destination);
+    assertThat(destination.closed).isFalse();
+    assertThat(destination.size()).isGreaterThan(0);
+  }
+
+  @Test
+  void gzipRoundTrips() throws IOException {
+    byte[] encoded = encode(BulkFileCodec.GZIP, new ByteArrayOutputStream());
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(encoded))) {
+      assertThat(new String(in.readAllBytes(), UTF_8)).isEqualTo(CONTENT);
+    }
+  }
+
+  @Test
+  void noneIsPassedThrough() throws IOException {
+    byte[] encoded = encode(BulkFileCodec.NONE, new ByteArrayOutputStream());
+    assertThat(new String(encoded, UTF_8)).isEqualTo(CONTENT);
+  }
+
+  @Test
+  void ofIsLenient() {
+    assertThat(BulkFileCodec.of(null)).isEqualTo(BulkFileCodec.NONE);
+    assertThat(BulkFileCodec.of(" ")).isEqualTo(BulkFileCodec.NONE);
+    assertThat(BulkFileCodec.of(" Gzip ")).isEqualTo(BulkFileCodec.GZIP);
+    assertThat(BulkFileCodec.of("zstd")).isEqualTo(BulkFileCodec.ZSTD);
+    assertThrows(IllegalArgumentException.class, () -> BulkFileCodec.of("bzip2"));
+  }
+
+  @Test
+  void zstdRoundTrips() throws IOException {
+    byte[] encoded = encode(BulkFileCodec.ZSTD, new ByteArrayOutputStream());
+    try (InputStream in = new ZstdInputStream(new ByteArrayInputStream(encoded))) {
+      assertThat(new String(in.readAllBytes(), UTF_8)).isEqualTo(CONTENT);
+    }
+  }
+}
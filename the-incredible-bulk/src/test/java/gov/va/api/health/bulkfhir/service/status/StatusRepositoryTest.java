@@ -0,0 +1,154 @@
+package gov.va.api.health.bulkfhir.service.status;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.groups.Tuple.tuple;
+
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.test.context.TestPropertySource;
+
+/**
+ * Runs the claiming and leasing queries against H2 with the Liquibase schema. H2 waits for locked
+ * rows instead of skipping them, so the queries are checked for which files they select and claim
+ * rather than for how they behave under contention.
+ */
+@DataJpaTest
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@TestPropertySource(
+    properties = {
+      "spring.datasource.driver-class-name=org.h2.Driver",
+      "spring.datasource.password=unset",
+      "spring.datasource.url=jdbc:h2:mem:status-repository",
+      "spring.datasource.username=unset",
+      "spring.jpa.properties.hibernate.globally_quoted_identifiers=false",
+    })
+public class StatusRepositoryTest {
+
+  private static final long NOW = 1_000_000;
+
+  @Autowired StatusRepository repository;
+
+  private StatusEntity.StatusEntityBuilder file(long publicationEpoch, String fileName) {
+    return StatusEntity.builder()
+        .publicationId("p" + publicationEpoch)
+        .publicationEpoch(publicationEpoch)
+        .recordsPerFile(10)
+        .fileName(fileName)
+        .page(1)
+        .count(10)
+        .automatic(true);
+  }
+
+  private List<String> fileNames(List<StatusEntity> files) {
+    return files.stream().map(StatusEntity::fileName).collect(Collectors.toList());
+  }
+
+  private StatusEntity find(StatusEntity file) {
+    return repository.findByPublicationIdAndFileName(file.publicationId(), file.fileName()).get(0);
+  }
+
+  private List<String> ids(List<StatusEntity> files) {
+    return files.stream().map(StatusEntity::id).collect(Collectors.toList());
+  }
+
+  private StatusEntity save(StatusEntity.StatusEntityBuilder file) {
+    return repository.saveAndFlush(file.build());
+  }
+
+  @Test
+  void claimAvailableOnlyClaimsFilesThatAreStillAvailable() {
+    StatusEntity available = save(file(1, "available"));
+    StatusEntity claimedMeanwhile =
+        save(file(1, "claimed-meanwhile").buildStartEpoch(NOW - 10).leaseExpiryEpoch(NOW + 60));
+    List<String> ids = ids(List.of(available, claimedMeanwhile));
+    assertThat(repository.claimAvailable(ids, NOW, NOW + 30, "me", "token-1")).isEqualTo(1);
+    List<StatusEntity> claimed = repository.findClaimed(ids, "token-1");
+    assertThat(fileNames(claimed)).containsExactly("available");
+    assertThat(claimed.get(0).buildStartEpoch()).isEqualTo(NOW);
+    assertThat(claimed.get(0).leaseExpiryEpoch()).isEqualTo(NOW + 30);
+    assertThat(claimed.get(0).buildProcessorId()).isEqualTo("me");
+    assertThat(claimed.get(0).attemptCount()).isEqualTo(1);
+    assertThat(claimed.get(0).version()).isEqualTo(available.version() + 1);
+    assertThat(find(claimedMeanwhile).version()).isEqualTo(claimedMeanwhile.version());
+  }
+
+  @Test
+  void claimAvailableTwiceOnlyClaimsOnce() {
+    List<String> ids = ids(List.of(save(file(1, "f1")), save(file(1, "f2"))));
+    assertThat(repository.claimAvailable(ids, NOW, NOW + 30, "me", "token-1")).isEqualTo(2);
+    assertThat(repository.claimAvailable(ids, NOW, NOW + 30, "you", "token-2")).isZero();
+    assertThat(fileNames(repository.findClaimed(ids, "token-1"))).containsExactly("f1", "f2");
+    assertThat(repository.findClaimed(ids, "token-2")).isEmpty();
+  }
+
+  @Test
+  void expiredLeasesAreAvailableAgain() {
+    StatusEntity expired =
+        save(file(1, "expired").buildStartEpoch(NOW - 60).leaseExpiryEpoch(NOW - 1));
+    save(file(1, "leased").buildStartEpoch(NOW - 60).leaseExpiryEpoch(NOW + 1));
+    save(file(1, "unleased").buildStartEpoch(NOW - 60));
+    assertThat(fileNames(repository.findAvailable(NOW, PageRequest.of(0, 10))))
+        .containsExactly("expired");
+    List<String> ids = ids(List.of(expired));
+    assertThat(repository.claimAvailable(ids, NOW, NOW + 30, "me", "token")).isEqualTo(1);
+    assertThat(find(expired).leaseExpiryEpoch()).isEqualTo(NOW + 30);
+    assertThat(find(expired).attemptCount()).isEqualTo(1);
+  }
+
+  @Test
+  void expiredLeasesCanBeClaimedExplicitly() {
+    StatusEntity expired =
+        save(file(1, "expired").buildStartEpoch(NOW - 60).leaseExpiryEpoch(NOW - 1));
+    StatusEntity leased =
+        save(file(1, "leased").buildStartEpoch(NOW - 60).leaseExpiryEpoch(NOW + 1));
+    assertThat(repository.claimFile("p1", "expired", NOW, NOW + 30, "me")).isEqualTo(1);
+    assertThat(repository.claimFile("p1", "leased", NOW, NOW + 30, "me")).isZero();
+    assertThat(find(expired).buildProcessorId()).isEqualTo("me");
+    assertThat(find(leased).version()).isEqualTo(leased.version());
+  }
+
+  @Test
+  void lockAvailableSelectsAvailableFilesInPublicationOrder() {
+    save(file(2, "f1"));
+    save(file(1, "f2"));
+    save(file(1, "f1"));
+    save(file(1, "complete").buildStartEpoch(NOW - 60).buildCompleteEpoch(NOW - 1));
+    save(file(1, "leased").buildStartEpoch(NOW - 60).leaseExpiryEpoch(NOW + 60));
+    save(file(1, "failed").failed(true));
+    save(file(1, "retrying").retryAfterEpoch(NOW + 60));
+    save(file(1, "manual").automatic(false));
+    List<StatusEntity> locked = repository.lockAvailable(NOW, PageRequest.of(0, 10));
+    assertThat(locked)
+        .extracting(StatusEntity::publicationId, StatusEntity::fileName)
+        .containsExactly(tuple("p1", "f1"), tuple("p1", "f2"), tuple("p2", "f1"));
+    assertThat(repository.lockAvailable(NOW, PageRequest.of(0, 2))).hasSize(2);
+  }
+
+  @Test
+  void renewLeaseIsFencedByTheVersionOfTheClaim() {
+    StatusEntity file = save(file(1, "f1"));
+    assertThat(repository.claimFile("p1", "f1", NOW, NOW + 30, "me")).isEqualTo(1);
+    int version = find(file).version();
+    assertThat(repository.renewLease("p1", "f1", version - 1, NOW + 90)).isZero();
+    assertThat(find(file).leaseExpiryEpoch()).isEqualTo(NOW + 30);
+    assertThat(repository.renewLease("p1", "f1", version, NOW + 60)).isEqualTo(1);
+    assertThat(find(file).leaseExpiryEpoch()).isEqualTo(NOW + 60);
+    assertThat(find(file).version()).isEqualTo(version);
+  }
+
+  @Test
+  void renewLeaseOfACompletedFileIsRejected() {
+    StatusEntity file = save(file(1, "f1"));
+    assertThat(repository.claimFile("p1", "f1", NOW, NOW + 30, "me")).isEqualTo(1);
+    int version = find(file).version();
+    assertThat(repository.completeFile("p1", "f1", version, NOW + 10, ".ndjson")).isEqualTo(1);
+    assertThat(repository.renewLease("p1", "f1", version, NOW + 60)).isZero();
+    assertThat(repository.renewLease("p1", "f1", version + 1, NOW + 60)).isZero();
+    assertThat(find(file).leaseExpiryEpoch()).isZero();
+  }
+}
@@ -6,5 +6,11 @@ GO
 DROP TABLE [app].[Status]
 GO
 
+DROP TABLE [app].[CompletedPublication]
+GO
+
+DROP TABLE [app].[PublicationManifest]
+GO
+
 DROP SCHEMA [app]
 GO